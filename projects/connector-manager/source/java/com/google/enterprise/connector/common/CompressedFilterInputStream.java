@@ -25,6 +25,8 @@ import java.util.zip.Deflater;
 public class CompressedFilterInputStream extends FilterInputStream {
   private final Deflater deflater;
   private final byte[] inputBuff;
+  private final ContentCompressor compressor;
+  private boolean isClosed = false;
   private final byte[] oneByte = new byte[1];
 
   /**
@@ -48,6 +50,25 @@ public class CompressedFilterInputStream extends FilterInputStream {
     super(in);
     deflater = new Deflater();
     inputBuff = new byte[bufferSize];
+    compressor = null;
+  }
+
+  /**
+   * Given some InputStream, create an InputStream that compresses the
+   * input stream using a Deflater and buffer borrowed from the supplied
+   * {@link ContentCompressor}.  They are returned when the stream is
+   * closed.
+   *
+   * @param in an InputStream providing source data for compressing.
+   * @param bufferSize size in bytes of I/O buffer used.
+   * @param compressor the ContentCompressor that pools Deflaters.
+   */
+  CompressedFilterInputStream(InputStream in, int bufferSize,
+      ContentCompressor compressor) {
+    super(in);
+    this.deflater = compressor.getDeflater();
+    this.inputBuff = compressor.getBuffer(bufferSize);
+    this.compressor = compressor;
   }
 
 
@@ -102,7 +123,15 @@ public class CompressedFilterInputStream extends FilterInputStream {
 
   @Override
   public void close() throws IOException {
-    deflater.end();
+    if (!isClosed) {
+      isClosed = true;
+      if (compressor == null) {
+        deflater.end();
+      } else {
+        compressor.releaseDeflater(deflater);
+        compressor.releaseBuffer(inputBuff);
+      }
+    }
     super.close();
   }
 
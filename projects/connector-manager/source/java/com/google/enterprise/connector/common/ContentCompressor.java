@@ -0,0 +1,230 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.common;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses document content for feeds.  The {@link Deflater Deflaters}
+ * used for compression are kept in a bounded pool shared by all threads,
+ * and the input buffers in per-thread pools, for reuse rather than being
+ * allocated anew for each document.
+ * Content of MIME types that are already compressed, such as JPEG
+ * images or ZIP archives, may be fed without compressing it again.
+ *
+ * @since 3.4
+ */
+public class ContentCompressor {
+  /** The maximum number of idle buffers kept per thread. */
+  private static final int MAX_IDLE = 2;
+
+  /** The maximum number of idle Deflaters kept in the shared pool. */
+  static final int MAX_IDLE_DEFLATERS = 8;
+
+  /**
+   * The MIME types of content that is already compressed.  Entries that
+   * end with {@code '*'} match any MIME type with that prefix.
+   */
+  public static final Set<String> DEFAULT_UNCOMPRESSED_MIME_TYPES =
+      ImmutableSet.of(
+          "application/zip",
+          "application/gzip",
+          "application/x-gzip",
+          "application/x-bzip2",
+          "application/x-7z-compressed",
+          "application/x-rar-compressed",
+          "application/java-archive",
+          "application/vnd.openxmlformats-officedocument.*",
+          "application/vnd.oasis.opendocument.*",
+          "image/gif",
+          "image/jpeg",
+          "image/png",
+          "audio/*",
+          "video/*");
+
+  private int level = Deflater.DEFAULT_COMPRESSION;
+  private int strategy = Deflater.DEFAULT_STRATEGY;
+  private Set<String> uncompressedMimeTypes = DEFAULT_UNCOMPRESSED_MIME_TYPES;
+
+  /**
+   * The idle Deflaters.  These hold native memory, so they are shared by
+   * all threads rather than kept per thread, where they would never be
+   * ended when the thread dies.
+   */
+  private final BlockingQueue<Deflater> idleDeflaters =
+      new ArrayBlockingQueue<Deflater>(MAX_IDLE_DEFLATERS);
+
+  /** The idle buffers for a thread. */
+  private final ThreadLocal<LinkedList<byte[]>> idleBuffers =
+      new ThreadLocal<LinkedList<byte[]>>() {
+        @Override
+        protected LinkedList<byte[]> initialValue() {
+          return new LinkedList<byte[]>();
+        }
+      };
+
+  /**
+   * Sets the compression level, from 0 (no compression) to 9 (best
+   * compression), or -1 for the default level.
+   *
+   * @param level the compression level
+   * @see Deflater#setLevel(int)
+   */
+  public void setLevel(int level) {
+    Preconditions.checkArgument(
+        level == Deflater.DEFAULT_COMPRESSION || (level >= 0 && level <= 9),
+        "Invalid compression level: %s", level);
+    this.level = level;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * Sets the compression strategy: 0 for the default strategy,
+   * 1 for filtered data, or 2 for Huffman coding only.
+   *
+   * @param strategy the compression strategy
+   * @see Deflater#setStrategy(int)
+   */
+  public void setStrategy(int strategy) {
+    Preconditions.checkArgument(strategy == Deflater.DEFAULT_STRATEGY
+        || strategy == Deflater.FILTERED || strategy == Deflater.HUFFMAN_ONLY,
+        "Invalid compression strategy: %s", strategy);
+    this.strategy = strategy;
+  }
+
+  public int getStrategy() {
+    return strategy;
+  }
+
+  /**
+   * Sets the MIME types of content that should not be compressed,
+   * because it is already compressed.  Entries that end with {@code '*'}
+   * match any MIME type with that prefix.
+   *
+   * @param uncompressedMimeTypes a Set of MIME types
+   */
+  public void setUncompressedMimeTypes(Set<String> uncompressedMimeTypes) {
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    for (String mimeType : uncompressedMimeTypes) {
+      builder.add(mimeType.trim().toLowerCase());
+    }
+    this.uncompressedMimeTypes = builder.build();
+  }
+
+  public Set<String> getUncompressedMimeTypes() {
+    return uncompressedMimeTypes;
+  }
+
+  /**
+   * Returns {@code true} if content of the supplied MIME type is worth
+   * compressing.  Content of unknown type is assumed to be compressible.
+   *
+   * @param mimeType a MIME type, possibly with parameters; may be
+   *        {@code null}
+   */
+  public boolean isCompressible(String mimeType) {
+    if (mimeType == null) {
+      return true;
+    }
+    int semicolon = mimeType.indexOf(';');
+    if (semicolon >= 0) {
+      mimeType = mimeType.substring(0, semicolon);
+    }
+    mimeType = mimeType.trim().toLowerCase();
+    if (uncompressedMimeTypes.contains(mimeType)) {
+      return false;
+    }
+    for (String pattern : uncompressedMimeTypes) {
+      if (pattern.endsWith("*")
+          && mimeType.startsWith(pattern.substring(0, pattern.length() - 1))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns an {@code InputStream} that compresses the supplied content
+   * using a pooled {@link Deflater}.  The Deflater is returned to the
+   * pool when the stream is closed.
+   *
+   * @param in an InputStream providing source data for compressing
+   * @param bufferSize size in bytes of I/O buffer used
+   */
+  public InputStream compress(InputStream in, int bufferSize) {
+    return new CompressedFilterInputStream(in, bufferSize, this);
+  }
+
+  /** Gets a Deflater from the pool, or a new one. */
+  Deflater getDeflater() {
+    Deflater deflater = idleDeflaters.poll();
+    if (deflater == null) {
+      deflater = new Deflater(level);
+    } else {
+      deflater.setLevel(level);
+    }
+    deflater.setStrategy(strategy);
+    return deflater;
+  }
+
+  /** Returns a Deflater to the pool, or ends it if the pool is full. */
+  void releaseDeflater(Deflater deflater) {
+    deflater.reset();
+    if (!idleDeflaters.offer(deflater)) {
+      deflater.end();
+    }
+  }
+
+  /** Gets a buffer from the current thread's pool, or a new one. */
+  byte[] getBuffer(int size) {
+    LinkedList<byte[]> buffers = idleBuffers.get();
+    for (Iterator<byte[]> it = buffers.iterator(); it.hasNext(); ) {
+      byte[] buffer = it.next();
+      if (buffer.length == size) {
+        it.remove();
+        return buffer;
+      }
+    }
+    return new byte[size];
+  }
+
+  /** Returns a buffer to the current thread's pool. */
+  void releaseBuffer(byte[] buffer) {
+    LinkedList<byte[]> buffers = idleBuffers.get();
+    if (buffers.size() >= MAX_IDLE) {
+      buffers.removeFirst();
+    }
+    buffers.add(buffer);
+  }
+
+  @Override
+  public String toString() {
+    return "ContentCompressor: level = " + level + ", strategy = " + strategy
+        + ", uncompressedMimeTypes = " + uncompressedMimeTypes;
+  }
+}
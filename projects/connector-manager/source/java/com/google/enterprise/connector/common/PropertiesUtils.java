@@ -53,6 +53,8 @@ public class PropertiesUtils {
   // Persistable special google properties.
   public static final String GOOGLE_GLOBAL_NAMESPACE = "googleGlobalNamespace";
   public static final String GOOGLE_LOCAL_NAMESPACE = "googleLocalNamespace";
+  public static final String GOOGLE_TRAVERSAL_PIPELINE_DEPTH =
+      "googleTraversalPipelineDepth";
   public static final String GOOGLE_PROPERTIES_VERSION =
       "googlePropertiesVersion";
   public static final int GOOGLE_PROPERTIES_VERSION_NUMBER = 3;
@@ -0,0 +1,370 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@code OutputStream} that accumulates data in memory until it
+ * exceeds a configured threshold, after which all of the data is spooled
+ * to a temporary file.  Like {@code ByteArrayOutputStream}, the
+ * accumulated data may be truncated back to an earlier size with
+ * {@link #reset(int)}, and written out with {@link #writeTo(OutputStream)}.
+ * Once spooled to disk, the data is written out using
+ * {@link FileChannel#transferTo}, so it need never be resident in the
+ * Java heap.
+ * <p>
+ * Callers must call {@link #release()} when the data is no longer
+ * needed, to delete any temporary spool file.
+ */
+public class SpoolingOutputStream extends OutputStream {
+  private static final Logger LOGGER =
+      Logger.getLogger(SpoolingOutputStream.class.getName());
+
+  /** Size of the write buffer used once the data is spooled to disk. */
+  private static final int SPOOL_BUFFER_SIZE = 64 * 1024;
+
+  /** The maximum size of the in-memory buffer. */
+  private final int threshold;
+
+  /** The directory in which to create the spool file. May be null. */
+  private final File spoolDirectory;
+
+  /**
+   * Before spooling, this holds all the data.  After spooling, this
+   * holds data that has not yet been written to the spool file.
+   */
+  private byte[] buf;
+
+  /** The number of valid bytes in {@code buf}. */
+  private int bufCount;
+
+  /** The number of bytes written to the spool file. */
+  private long spoolCount;
+
+  private File spoolFile;
+  private RandomAccessFile spoolRaf;
+  private FileChannel spoolChannel;
+
+  /**
+   * Constructs a {@code SpoolingOutputStream} that keeps up to
+   * {@code threshold} bytes in memory before spooling to a temporary
+   * file in the default temporary-file directory.
+   *
+   * @param initialSize the initial size of the in-memory buffer
+   * @param threshold the maximum number of bytes to hold in memory
+   */
+  public SpoolingOutputStream(int initialSize, int threshold) {
+    this(initialSize, threshold, null);
+  }
+
+  /**
+   * Constructs a {@code SpoolingOutputStream} that keeps up to
+   * {@code threshold} bytes in memory before spooling to a temporary
+   * file in the specified directory.
+   *
+   * @param initialSize the initial size of the in-memory buffer
+   * @param threshold the maximum number of bytes to hold in memory
+   * @param spoolDirectory the directory in which the spool file is to be
+   *        created, or {@code null} to use the default temporary-file
+   *        directory
+   */
+  public SpoolingOutputStream(int initialSize, int threshold,
+      File spoolDirectory) {
+    if (initialSize < 0 || threshold < 0) {
+      throw new IllegalArgumentException(
+          "Buffer sizes must not be negative.");
+    }
+    this.threshold = threshold;
+    this.spoolDirectory = spoolDirectory;
+    this.buf = new byte[Math.min(initialSize, threshold)];
+  }
+
+  /**
+   * Returns {@code true} if the data has been spooled to disk.
+   */
+  public synchronized boolean isSpooled() {
+    return spoolChannel != null;
+  }
+
+  /**
+   * Returns the current size of the data.
+   */
+  public synchronized int size() {
+    return (int) (spoolCount + bufCount);
+  }
+
+  @Override
+  public synchronized void write(int b) throws IOException {
+    ensureCapacity(1);
+    buf[bufCount++] = (byte) b;
+  }
+
+  @Override
+  public synchronized void write(byte[] b, int off, int len)
+      throws IOException {
+    if ((off < 0) || (off > b.length) || (len < 0)
+        || ((off + len) - b.length > 0)) {
+      throw new IndexOutOfBoundsException();
+    }
+    while (len > 0) {
+      ensureCapacity(1);
+      int bytes = Math.min(len, buf.length - bufCount);
+      System.arraycopy(b, off, buf, bufCount, bytes);
+      bufCount += bytes;
+      off += bytes;
+      len -= bytes;
+    }
+  }
+
+  /**
+   * Reads the complete contents of the supplied InputStream
+   * directly into the buffer of this stream.
+   * This avoids the data copy that would occur if using
+   * {@code InputStream.read(byte[], int, int)}, followed by
+   * {@code write(byte[], int, int)}.
+   * <p>
+   * The InputStream may call {@link #size()} and {@link #reset(int)}
+   * on this stream while it is being read.
+   *
+   * @param in the InputStream from which to read the data.
+   * @throws IOException if an I/O error occurs.
+   */
+  public synchronized void readFrom(InputStream in) throws IOException {
+    int bytes;
+    do {
+      ensureCapacity(1);
+      bytes = in.read(buf, bufCount, buf.length - bufCount);
+      if (bytes > 0) {
+        bufCount += bytes;
+      }
+    } while (bytes != -1);
+  }
+
+  /**
+   * Resets the size of this stream to the specified {@code size},
+   * effectively discarding any data that may have been written
+   * past that point.
+   * <p>
+   * This method may be used to reduce the size of the data stored,
+   * but not to increase it.  In other words, the specified {@code size}
+   * cannot be greater than the current size.
+   *
+   * @param size new data size.
+   * @throws IllegalArgumentException if size is negative or greater
+   *         than the current size
+   */
+  public synchronized void reset(int size) {
+    if (size < 0 || size > size()) {
+      throw new IllegalArgumentException(
+          "New size must not be negative or greater than the current size.");
+    }
+    if (size >= spoolCount) {
+      bufCount = (int) (size - spoolCount);
+    } else {
+      // Discard the unwritten data and truncate the spool file.
+      bufCount = 0;
+      try {
+        spoolChannel.truncate(size);
+        spoolCount = size;
+      } catch (IOException e) {
+        throw new IllegalStateException("Failed to truncate spool file "
+            + spoolFile, e);
+      }
+    }
+  }
+
+  /**
+   * Writes the complete contents of this stream to the specified
+   * OutputStream.
+   *
+   * @param out the output stream to which to write the data.
+   * @throws IOException if an I/O error occurs.
+   */
+  public synchronized void writeTo(OutputStream out) throws IOException {
+    if (spoolChannel == null) {
+      out.write(buf, 0, bufCount);
+    } else if (out instanceof FileOutputStream) {
+      writeTo(((FileOutputStream) out).getChannel());
+    } else {
+      // Do not close this channel, as that would close the OutputStream.
+      writeTo(Channels.newChannel(out));
+      out.flush();
+    }
+  }
+
+  /**
+   * Writes the complete contents of this stream to the specified
+   * channel.  If the data has been spooled, it is transferred directly
+   * from the spool file using {@link FileChannel#transferTo}.
+   *
+   * @param target the channel to which to write the data.
+   * @throws IOException if an I/O error occurs.
+   */
+  public synchronized void writeTo(WritableByteChannel target)
+      throws IOException {
+    if (spoolChannel != null) {
+      flushBuffer();
+      long position = 0;
+      while (position < spoolCount) {
+        position += spoolChannel.transferTo(position, spoolCount - position,
+                                            target);
+      }
+    } else {
+      ByteBuffer buffer = ByteBuffer.wrap(buf, 0, bufCount);
+      while (buffer.hasRemaining()) {
+        target.write(buffer);
+      }
+    }
+  }
+
+  /**
+   * Returns a copy of the contents of this stream as a byte array.
+   * This should only be used for small streams, or in tests.
+   */
+  public synchronized byte[] toByteArray() throws IOException {
+    byte[] bytes = new byte[size()];
+    if (spoolChannel == null) {
+      System.arraycopy(buf, 0, bytes, 0, bufCount);
+    } else {
+      flushBuffer();
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      long position = 0;
+      while (buffer.hasRemaining()) {
+        int count = spoolChannel.read(buffer, position);
+        if (count < 0) {
+          throw new IOException("Unexpected EOF reading spool file "
+              + spoolFile);
+        }
+        position += count;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Converts the contents of this stream into a string, decoding bytes
+   * using the named charset.
+   */
+  public synchronized String toString(String charsetName)
+      throws UnsupportedEncodingException {
+    try {
+      return new String(toByteArray(), charsetName);
+    } catch (UnsupportedEncodingException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Converts the contents of this stream into a string, decoding bytes
+   * using the platform's default charset.
+   */
+  @Override
+  public synchronized String toString() {
+    try {
+      return new String(toByteArray());
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Releases the resources held by this stream, including deleting
+   * any spool file.  The contents of the stream are lost.
+   */
+  public synchronized void release() {
+    buf = new byte[0];
+    bufCount = 0;
+    spoolCount = 0;
+    if (spoolRaf != null) {
+      try {
+        spoolRaf.close();
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to close spool file " + spoolFile,
+                   e);
+      }
+      spoolRaf = null;
+      spoolChannel = null;
+    }
+    if (spoolFile != null) {
+      if (!spoolFile.delete() && spoolFile.exists()) {
+        LOGGER.warning("Failed to delete spool file " + spoolFile);
+      }
+      spoolFile = null;
+    }
+  }
+
+  /**
+   * Makes room in the buffer for at least {@code needed} more bytes,
+   * growing the in-memory buffer up to the threshold, then spooling
+   * to disk.
+   */
+  private void ensureCapacity(int needed) throws IOException {
+    if (bufCount + needed <= buf.length) {
+      return;
+    }
+    if (spoolChannel != null) {
+      flushBuffer();
+    } else if (bufCount + needed <= threshold) {
+      // Grow the in-memory buffer, but not beyond the threshold.
+      int newSize = Math.max(bufCount + needed,
+          buf.length + Math.min(Math.max(buf.length, 1024), 8 * 1024 * 1024));
+      byte[] newbuf = new byte[Math.min(newSize, threshold)];
+      System.arraycopy(buf, 0, newbuf, 0, bufCount);
+      buf = newbuf;
+    } else {
+      spool();
+    }
+  }
+
+  /**
+   * Moves the in-memory data to a new spool file, and replaces the
+   * in-memory buffer with a smaller write buffer.
+   */
+  private void spool() throws IOException {
+    spoolFile = File.createTempFile("feed", ".spool", spoolDirectory);
+    spoolRaf = new RandomAccessFile(spoolFile, "rw");
+    spoolChannel = spoolRaf.getChannel();
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Spooling " + bufCount + " bytes to " + spoolFile);
+    }
+    flushBuffer();
+    buf = new byte[SPOOL_BUFFER_SIZE];
+  }
+
+  /** Writes any buffered data to the spool file. */
+  private void flushBuffer() throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(buf, 0, bufCount);
+    while (buffer.hasRemaining()) {
+      spoolChannel.write(buffer, spoolCount + buffer.position());
+    }
+    spoolCount += bufCount;
+    bufCount = 0;
+  }
+}
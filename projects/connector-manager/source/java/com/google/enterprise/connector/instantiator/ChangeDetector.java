@@ -35,4 +35,13 @@ interface ChangeDetector {
    * reverted.
    */
   void detect();
+
+  /**
+   * Returns the time taken by the most recent successful instantiation
+   * of a connector, in milliseconds.
+   *
+   * @param connectorName the name of the connector
+   * @return the instantiation time, or -1 if it is not known
+   */
+  long getInstantiationMillis(String connectorName);
 }
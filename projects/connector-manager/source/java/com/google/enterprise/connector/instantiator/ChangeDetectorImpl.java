@@ -14,27 +14,61 @@
 
 package com.google.enterprise.connector.instantiator;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.persist.ConnectorStamps;
 import com.google.enterprise.connector.persist.PersistentStore;
 import com.google.enterprise.connector.persist.Stamp;
+import com.google.enterprise.connector.persist.StampedPersistentStore;
 import com.google.enterprise.connector.persist.StoreContext;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Checks for changes in a persistent store. Intended to be run both
  * manually to handle local servlet changes, and periodically to check
  * for remote connector manager changes.
+ * <p>
+ * If the store is a {@link StampedPersistentStore}, the inventory is only
+ * read if the stamp of the whole store has changed since the last run.
+ * <p>
+ * Connectors that were added or whose configuration changed are
+ * instantiated concurrently on a bounded pool of threads.  Each connector
+ * is notified of at most one instantiating change in a run, after any
+ * other changes to it, and the run waits for all the instantiations to
+ * finish, so the changes to any one connector are still seen in order.
  *
  * @see com.google.enterprise.connector.persist.PersistentStore
  * @see ChangeListener
  */
 // TODO: Change StoreContext to String and x.getConnectorName() to x.
 class ChangeDetectorImpl implements ChangeDetector {
+  private static final Logger LOGGER =
+      Logger.getLogger(ChangeDetectorImpl.class.getName());
+
+  /** Idle instantiation threads exit after this many seconds. */
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
   private final PersistentStore store;
   private final ChangeListener listener;
 
@@ -46,6 +80,28 @@ class ChangeDetectorImpl implements ChangeDetector {
   private SortedSet<StoreContext> inMemoryInstances =
       new TreeSet<StoreContext>();
 
+  /**
+   * The stamp of the whole store from the previous run, or {@code null}
+   * if the store does not supply one, or changes must be retried.
+   */
+  private Stamp inventoryStamp = null;
+
+  /** Set if a change failed to apply during the current run. */
+  private boolean hasFailures;
+
+  /** The number of connectors that may be instantiated concurrently. */
+  private int instantiationThreads = 4;
+
+  /** The lazily constructed instantiation executor. */
+  private ThreadPoolExecutor executor;
+
+  /** Set once the instantiation executor has been shut down. */
+  private boolean isShutdown = false;
+
+  /** The time taken by the last instantiation of each connector. */
+  private final ConcurrentMap<String, Long> instantiationMillis =
+      new ConcurrentHashMap<String, Long>();
+
   /**
    * Constructs the detector.
    *
@@ -57,10 +113,76 @@ class ChangeDetectorImpl implements ChangeDetector {
     this.listener = listener;
   }
 
+  /**
+   * Sets the number of connectors that may be instantiated concurrently
+   * when connectors are added or their configurations change.  A value
+   * of one instantiates each connector in turn on the calling thread.
+   *
+   * @param instantiationThreads the number of instantiation threads;
+   *        must be positive
+   */
+  public synchronized void setInstantiationThreads(int instantiationThreads) {
+    if (instantiationThreads <= 0) {
+      throw new IllegalArgumentException(
+          "instantiationThreads must be positive.");
+    }
+    this.instantiationThreads = instantiationThreads;
+    if (executor != null) {
+      if (instantiationThreads > executor.getMaximumPoolSize()) {
+        executor.setMaximumPoolSize(instantiationThreads);
+        executor.setCorePoolSize(instantiationThreads);
+      } else {
+        executor.setCorePoolSize(instantiationThreads);
+        executor.setMaximumPoolSize(instantiationThreads);
+      }
+    }
+  }
+
+  public synchronized int getInstantiationThreads() {
+    return instantiationThreads;
+  }
+
+  /**
+   * Returns the time taken by the most recent successful instantiation
+   * of each connector, in milliseconds.
+   */
+  Map<String, Long> getInstantiationMillis() {
+    return Collections.unmodifiableMap(instantiationMillis);
+  }
+
+  @Override
+  public long getInstantiationMillis(String connectorName) {
+    Long millis = instantiationMillis.get(connectorName);
+    return (millis == null) ? -1L : millis;
+  }
+
+  /**
+   * Shuts down the instantiation threads.  Any later changes are
+   * instantiated on the calling thread.
+   */
+  public synchronized void shutdown() {
+    isShutdown = true;
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
   @Override
   public synchronized void detect() {
     NDC.push("Change");
     try {
+      Stamp stamp = null;
+      if (store instanceof StampedPersistentStore) {
+        stamp = ((StampedPersistentStore) store).getInventoryStamp();
+        if (stamp != null && inventoryStamp != null
+            && stamp.compareTo(inventoryStamp) == 0) {
+          // Nothing has changed since the last run.
+          return;
+        }
+      }
+
+      hasFailures = false;
       ImmutableMap<StoreContext, ConnectorStamps> persistentInventory =
           store.getInventory();
       SortedSet<StoreContext> persistentInstances =
@@ -71,10 +193,13 @@ class ChangeDetectorImpl implements ChangeDetector {
       // Save in memory, the new inventory of unchanged items and successfully
       // applied changes.
       inMemoryInventory = compareInventoriesAndNotifyListeners(
-          inMemoryInstances.iterator(), persistentInstances.iterator(),
+          inMemoryInstances.iterator(), persistentInstances,
           persistentInventory);
       inMemoryInstances = persistentInstances;
 
+      // Read the inventory again next time if there are changes to retry.
+      inventoryStamp = hasFailures ? null : stamp;
+
     } finally {
       NDC.pop();
     }
@@ -96,14 +221,15 @@ class ChangeDetectorImpl implements ChangeDetector {
    * stamps for changes in the individual persisted objects.
    *
    * @param mi the sorted keys to the in-memory instances
-   * @param pi the sorted keys to the persistent instances
+   * @param persistentInstances the sorted keys to the persistent instances;
+   *        connectors that fail to instantiate are removed
    * @param persistentInventory the persistent object stamps
    * @return a new inventory of stamps, derived from the
    *         persistentInventory, but reflecting instantiation failures.
    */
   private ImmutableMap<StoreContext, ConnectorStamps>
-        compareInventoriesAndNotifyListeners(
-        Iterator<StoreContext> mi, Iterator<StoreContext> pi,
+        compareInventoriesAndNotifyListeners(Iterator<StoreContext> mi,
+        SortedSet<StoreContext> persistentInstances,
         ImmutableMap<StoreContext, ConnectorStamps> persistentInventory) {
     // This map will accumulate items for the new in-memory inventory.
     // Generally, this map will end up being identical to the
@@ -113,6 +239,11 @@ class ChangeDetectorImpl implements ChangeDetector {
     ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder =
         new ImmutableMap.Builder<StoreContext, ConnectorStamps>();
 
+    // The connector instantiations started during this run.
+    List<Instantiation> instantiations = new ArrayList<Instantiation>();
+    long startMillis = System.currentTimeMillis();
+
+    Iterator<StoreContext> pi = persistentInstances.iterator();
     StoreContext m = getNext(mi);
     StoreContext p = getNext(pi);
     while (m != null && p != null) {
@@ -123,28 +254,24 @@ class ChangeDetectorImpl implements ChangeDetector {
         if (diff == 0) {
           // Compare the inMemory vs inPStore ConnectorStamps for a
           // connector instance. Notify ChangeListeners for items whose
-          // Stamps have changed.
-          ConnectorStamps stamps = compareInstancesAndNotifyListeners(
-             m, p, inMemoryInventory.get(m), persistentInventory.get(p));
-
-          // Remember the new ConnetorStamps for our new inMemory inventory.
-          mapBuilder.put(p, stamps);
+          // Stamps have changed, and remember the new ConnectorStamps
+          // for our new inMemory inventory.
+          compareInstancesAndNotifyListeners(m, p, inMemoryInventory.get(m),
+              persistentInventory.get(p), mapBuilder, instantiations);
 
           // Advance to the next connector instance.
           m = getNext(mi);
           p = getNext(pi);
         } else if (diff < 0) {
           listener.connectorRemoved(m.getConnectorName());
+          instantiationMillis.remove(m.getConnectorName());
           m = getNext(mi);
         } else { // diff > 0
-          try {
-            listener.connectorAdded(p.getConnectorName(),
-                store.getConnectorConfiguration(p));
-            mapBuilder.put(p, persistentInventory.get(p));
-          } catch (InstantiatorException e) {
-            // Forget about this one and retry on the next time around.
-            pi.remove();
-          }
+          // Forget about this one if it fails, and retry on the next
+          // time around.
+          instantiations.add(instantiate(new Instantiation(p,
+              store.getConnectorConfiguration(p), true,
+              persistentInventory.get(p), null)));
           p = getNext(pi);
         }
       } finally {
@@ -155,6 +282,7 @@ class ChangeDetectorImpl implements ChangeDetector {
       NDC.pushAppend(m.getConnectorName());
       try {
         listener.connectorRemoved(m.getConnectorName());
+        instantiationMillis.remove(m.getConnectorName());
       } finally {
         NDC.pop();
       }
@@ -163,17 +291,22 @@ class ChangeDetectorImpl implements ChangeDetector {
     while (p != null) {
       NDC.pushAppend(p.getConnectorName());
       try {
-        listener.connectorAdded(p.getConnectorName(),
-            store.getConnectorConfiguration(p));
-        mapBuilder.put(p, persistentInventory.get(p));
-      } catch (InstantiatorException e) {
-        // Forget about this one and retry on the next time around.
-        pi.remove();
+        instantiations.add(instantiate(new Instantiation(p,
+            store.getConnectorConfiguration(p), true,
+            persistentInventory.get(p), null)));
       } finally {
         NDC.pop();
       }
       p = getNext(pi);
     }
+
+    awaitInstantiations(instantiations, persistentInstances, mapBuilder);
+    if (!instantiations.isEmpty()) {
+      LOGGER.info("Instantiated " + instantiations.size() + " connectors in "
+          + (System.currentTimeMillis() - startMillis) + " ms using up to "
+          + Math.min(instantiationThreads, instantiations.size())
+          + " threads.");
+    }
     return mapBuilder.build();
   }
 
@@ -185,13 +318,18 @@ class ChangeDetectorImpl implements ChangeDetector {
    * @param p the key for the persistent instance
    * @param ms the stamps for the in-memory instance
    * @param ps the stamps for the persistent instance
-   * @return possibly modified stamps for the persistent instance
+   * @param mapBuilder the new inventory, to which the possibly modified
+   *        stamps for the persistent instance are added
+   * @param instantiations the list of instantiations, to which a
+   *        configuration change is added
    */
   // TODO: When StoreContext becomes String, we only need one key
   // parameter because we will have m.equals(p). NOTE: This may be
   // false now, if the connector type has changed.
-  private ConnectorStamps compareInstancesAndNotifyListeners(
-      StoreContext m, StoreContext p, ConnectorStamps ms, ConnectorStamps ps) {
+  private void compareInstancesAndNotifyListeners(StoreContext m,
+      StoreContext p, ConnectorStamps ms, ConnectorStamps ps,
+      ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder,
+      List<Instantiation> instantiations) {
 
     if (compareStamps(ms.getCheckpointStamp(),
         ps.getCheckpointStamp()) != 0) {
@@ -207,21 +345,89 @@ class ChangeDetectorImpl implements ChangeDetector {
     // Save configuration for last, because it may fail.
     if (compareStamps(ms.getConfigurationStamp(),
         ps.getConfigurationStamp()) != 0) {
+      // If instantiation of the connector fails, remember a null
+      // configuration stamp so we will try the new configuration again
+      // next time through.  This is an attempt to handle connectors that
+      // fail instantiation due to transient causes (such as a server
+      // off-line).
+      instantiations.add(instantiate(new Instantiation(p,
+          store.getConnectorConfiguration(p), false, ps,
+          new ConnectorStamps(ps.getCheckpointStamp(), null,
+                              ps.getScheduleStamp()))));
+    } else {
+      // Remember the original stamps.
+      mapBuilder.put(p, ps);
+    }
+  }
+
+  /**
+   * Starts a connector instantiation, either on the instantiation pool,
+   * or on this thread if only one instantiation thread is configured.
+   *
+   * @param instantiation the instantiation to start
+   * @return the instantiation
+   */
+  private Instantiation instantiate(final Instantiation instantiation) {
+    if (instantiationThreads == 1 || isShutdown) {
+      FutureTask<Long> task = new FutureTask<Long>(instantiation);
+      task.run();
+      instantiation.future = task;
+    } else {
+      final String context = NDC.peek();
+      instantiation.future = getExecutor().submit(new Callable<Long>() {
+          @Override
+          public Long call() throws InstantiatorException {
+            NDC.push(context);
+            try {
+              return instantiation.call();
+            } finally {
+              NDC.clear();
+            }
+          }
+        });
+    }
+    return instantiation;
+  }
+
+  /**
+   * Waits for the connector instantiations to finish, and adds their
+   * stamps to the new inventory.  If an unexpected exception was thrown
+   * by the listener, it is rethrown once all the instantiations are done.
+   *
+   * @param instantiations the instantiations started during this run
+   * @param persistentInstances the sorted keys to the persistent instances;
+   *        connectors that fail to instantiate are removed
+   * @param mapBuilder the new inventory
+   */
+  private void awaitInstantiations(List<Instantiation> instantiations,
+      SortedSet<StoreContext> persistentInstances,
+      ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder) {
+    Throwable unexpected = null;
+    for (Instantiation instantiation : instantiations) {
+      String name = instantiation.key.getConnectorName();
       try {
-        listener.connectorConfigurationChanged(p.getConnectorName(),
-            store.getConnectorConfiguration(p));
-      } catch (InstantiatorException e) {
-        // Instantiation of the connector failed. Remember a null configuration
-        // stamp so we will try the new configuration again next time through.
-        // This is an attempt to handle connectors that fail instantiation
-        // due to transient causes (such as a server off-line).
-        return new ConnectorStamps(ps.getCheckpointStamp(),
-            null, ps.getScheduleStamp());
+        long millis = Uninterruptibles.getUninterruptibly(instantiation.future);
+        instantiationMillis.put(name, millis);
+        mapBuilder.put(instantiation.key, instantiation.stamps);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof InstantiatorException) {
+          hasFailures = true;
+          if (instantiation.failedStamps == null) {
+            persistentInstances.remove(instantiation.key);
+          } else {
+            mapBuilder.put(instantiation.key, instantiation.failedStamps);
+          }
+        } else if (unexpected == null) {
+          unexpected = e.getCause();
+        } else {
+          LOGGER.log(Level.WARNING, "Failed to instantiate connector "
+                     + name, e.getCause());
+        }
       }
     }
-
-    // Return the original stamps.
-    return ps;
+    if (unexpected != null) {
+      throw Throwables.propagate(unexpected);
+    }
   }
 
   /**
@@ -246,4 +452,68 @@ class ChangeDetectorImpl implements ChangeDetector {
       return memoryStamp.compareTo(persistentStamp);
     }
   }
+
+  private synchronized ThreadPoolExecutor getExecutor() {
+    if (executor == null) {
+      // Daemon threads, so that idle instantiation threads do not
+      // prevent the JVM from exiting.
+      executor = new ThreadPoolExecutor(instantiationThreads,
+          instantiationThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+              .setNameFormat("ConnectorInstantiator-%d").setDaemon(true)
+              .build());
+      // Don't hold on to idle threads between runs.
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  /**
+   * Notifies the listener of a new connector or a configuration change,
+   * which instantiates the connector, and holds the stamps to remember
+   * for the connector afterwards.  Returns the time taken, in milliseconds.
+   */
+  private class Instantiation implements Callable<Long> {
+    final StoreContext key;
+    final Configuration configuration;
+    final boolean isNew;
+    final ConnectorStamps stamps;
+    final ConnectorStamps failedStamps;
+    Future<Long> future;
+
+    /**
+     * @param key the key for the persistent instance
+     * @param configuration the new connector configuration
+     * @param isNew {@code true} if the connector was added, or
+     *        {@code false} if its configuration changed
+     * @param stamps the stamps to remember if the instantiation succeeds
+     * @param failedStamps the stamps to remember if the instantiation
+     *        fails, or {@code null} to forget the connector
+     */
+    Instantiation(StoreContext key, Configuration configuration,
+        boolean isNew, ConnectorStamps stamps, ConnectorStamps failedStamps) {
+      this.key = key;
+      this.configuration = configuration;
+      this.isNew = isNew;
+      this.stamps = stamps;
+      this.failedStamps = failedStamps;
+    }
+
+    @Override
+    public Long call() throws InstantiatorException {
+      long startMillis = System.currentTimeMillis();
+      if (isNew) {
+        listener.connectorAdded(key.getConnectorName(), configuration);
+      } else {
+        listener.connectorConfigurationChanged(key.getConnectorName(),
+                                               configuration);
+      }
+      long millis = System.currentTimeMillis() - startMillis;
+      if (LOGGER.isLoggable(Level.CONFIG)) {
+        LOGGER.config("Instantiated connector " + key.getConnectorName()
+                      + " in " + millis + " ms.");
+      }
+      return millis;
+    }
+  }
 }
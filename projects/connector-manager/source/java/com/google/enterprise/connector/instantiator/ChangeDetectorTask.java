@@ -51,4 +51,14 @@ public class ChangeDetectorTask extends ScheduledTimerTask {
   public void run() {
     changeDetector.detect();
   }
+
+  /**
+   * Returns the time taken by the most recent successful instantiation
+   * of a connector, in milliseconds, or -1 if it is not known.
+   *
+   * @since 3.4
+   */
+  public long getInstantiationMillis(String connectorName) {
+    return changeDetector.getInstantiationMillis(connectorName);
+  }
 }
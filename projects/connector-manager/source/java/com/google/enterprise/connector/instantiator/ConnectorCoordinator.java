@@ -278,6 +278,21 @@ public interface ConnectorCoordinator {
    */
   public boolean startBatch() throws ConnectorNotFoundException;
 
+  /**
+   * Returns the number of milliseconds until this {@link ConnectorCoordinator}
+   * might be able to start another batch, based upon its traversal delay,
+   * its traversal schedule, and its load.  A return value of zero indicates
+   * that a batch might be started now, or that the time cannot be predicted.
+   * A return value of {@code Long.MAX_VALUE} indicates that a batch will not
+   * be started until something changes, such as the running batch finishing.
+   *
+   * @return the number of milliseconds until a batch might be started
+   * @throws ConnectorNotFoundException if this {@link ConnectorCoordinator}
+   *         does not exist.
+   * @since 3.4
+   */
+  public long getNextBatchDelay() throws ConnectorNotFoundException;
+
   /**
    * Shuts down this {@link ConnectorCoordinator} if {@link #exists()}.
    */
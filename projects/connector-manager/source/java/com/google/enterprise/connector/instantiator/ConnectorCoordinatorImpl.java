@@ -22,6 +22,8 @@ import com.google.enterprise.connector.common.PropertiesUtils;
 import com.google.enterprise.connector.common.SecurityUtils;
 import com.google.enterprise.connector.common.StringUtils;
 import com.google.enterprise.connector.database.ConnectorPersistentStoreFactory;
+import com.google.enterprise.connector.manager.AuthenticationCache;
+import com.google.enterprise.connector.manager.AuthorizationCache;
 import com.google.enterprise.connector.manager.Context;
 import com.google.enterprise.connector.persist.ConnectorExistsException;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
@@ -31,6 +33,7 @@ import com.google.enterprise.connector.scheduler.HostLoadManager;
 import com.google.enterprise.connector.scheduler.LoadManager;
 import com.google.enterprise.connector.scheduler.LoadManagerFactory;
 import com.google.enterprise.connector.scheduler.Schedule;
+import com.google.enterprise.connector.scheduler.TraversalSignal;
 import com.google.enterprise.connector.spi.AuthenticationManager;
 import com.google.enterprise.connector.spi.AuthorizationManager;
 import com.google.enterprise.connector.spi.ConfigureResponse;
@@ -90,6 +93,9 @@ class ConnectorCoordinatorImpl implements
   private final ThreadPool threadPool;
   private final ChangeDetector changeDetector;
   private final Clock clock;
+  private final AuthorizationCache authorizationCache;
+  private final AuthenticationCache authenticationCache;
+  private final TraversalSignal traversalSignal;
 
   /**
    * Context set when an instance is created or configured and cleared when the
@@ -129,12 +135,34 @@ class ConnectorCoordinatorImpl implements
   private TaskHandle taskHandle;
   Object currentBatchKey;
 
+  /**
+   * Set when the result of the current batch has been recorded. The batch
+   * is then finished, although its thread may not have quite exited.
+   */
+  private boolean batchResultRecorded;
+
   /**
    * The cached TraversalManager.
    */
   private TraversalManager traversalManager;
   private boolean traversalEnabled;
 
+  /**
+   * The number of documents a traversal may fetch ahead of the Pusher.
+   */
+  private int traversalPipelineDepth = 0;
+
+  /**
+   * The traversal pipeline depth configured for this connector instance,
+   * or -1 to use the default {@link #traversalPipelineDepth}.
+   */
+  private int instancePipelineDepth = -1;
+
+  /**
+   * The number of feeds a Lister may build concurrently.
+   */
+  private int listerFeedBuilders = 1;
+
   /**
    * The cached Lister.
    */
@@ -166,12 +194,28 @@ class ConnectorCoordinatorImpl implements
    * @param threadPool the {@link ThreadPool} for running traversals.
    * @param changeDetector used to invoke the ChangeHandlers for changes
    *        originiting within this Manager instance (or from the Servlets).
+   * @param authorizationCache the {@link AuthorizationCache} whose cached
+   *        decisions for this Connector are discarded when the Connector
+   *        is reconfigured or removed; may be {@code null}
+   * @param authenticationCache the {@link AuthenticationCache} whose cached
+   *        responses for this Connector are discarded when the Connector
+   *        is reconfigured or removed; may be {@code null}
+   * @param traversalSignal the {@link TraversalSignal} used to wake the
+   *        {@link com.google.enterprise.connector.scheduler.TraversalScheduler
+   *        TraversalScheduler} when this Connector may be able to start a
+   *        batch; may be {@code null}
    */
   ConnectorCoordinatorImpl(String name, PusherFactory pusherFactory,
       LoadManagerFactory loadManagerFactory,
       ConnectorPersistentStoreFactory connectorPersistentStoreFactory,
-      ThreadPool threadPool, ChangeDetector changeDetector, Clock clock) {
+      ThreadPool threadPool, ChangeDetector changeDetector, Clock clock,
+      AuthorizationCache authorizationCache,
+      AuthenticationCache authenticationCache,
+      TraversalSignal traversalSignal) {
     this.name = name;
+    this.authorizationCache = authorizationCache;
+    this.authenticationCache = authenticationCache;
+    this.traversalSignal = traversalSignal;
     this.threadPool = threadPool;
     this.clock = clock;
     this.changeDetector = changeDetector;
@@ -181,6 +225,66 @@ class ConnectorCoordinatorImpl implements
     this.traversalEnabled = true;
   }
 
+  /**
+   * Sets the default number of documents that a traversal may fetch from
+   * the repository ahead of the Pusher.  Zero disables pipelined
+   * traversals.  A connector instance may override the default with the
+   * {@code googleTraversalPipelineDepth} configuration property.
+   *
+   * @param traversalPipelineDepth the number of documents to fetch ahead
+   * @see QueryTraverser#setPipelineDepth(int)
+   */
+  synchronized void setTraversalPipelineDepth(int traversalPipelineDepth) {
+    this.traversalPipelineDepth = traversalPipelineDepth;
+  }
+
+  /**
+   * Returns the number of documents that a traversal of this connector
+   * may fetch from the repository ahead of the Pusher.
+   */
+  @VisibleForTesting
+  synchronized int getTraversalPipelineDepth() {
+    return (instancePipelineDepth < 0)
+        ? traversalPipelineDepth : instancePipelineDepth;
+  }
+
+  /**
+   * Returns the traversal pipeline depth set by the
+   * {@code googleTraversalPipelineDepth} property of the connector
+   * configuration, or -1 if it is not set or is not valid.
+   */
+  private int getInstancePipelineDepth(Configuration config) {
+    Map<String, String> configMap = config.getMap();
+    String value = (configMap == null) ? null
+        : configMap.get(PropertiesUtils.GOOGLE_TRAVERSAL_PIPELINE_DEPTH);
+    if (value == null || value.trim().length() == 0) {
+      return -1;
+    }
+    try {
+      int depth = Integer.parseInt(value.trim());
+      if (depth >= 0) {
+        return depth;
+      }
+    } catch (NumberFormatException e) {
+      // Fall through to the warning.
+    }
+    LOGGER.warning("Ignoring invalid "
+        + PropertiesUtils.GOOGLE_TRAVERSAL_PIPELINE_DEPTH
+        + " for connector " + name + ": " + value);
+    return -1;
+  }
+
+  /**
+   * Sets the number of feeds that the Lister threads may build
+   * concurrently.
+   *
+   * @param listerFeedBuilders the number of concurrent feeds
+   * @see DocumentAcceptorImpl#DocumentAcceptorImpl(String, PusherFactory, int)
+   */
+  synchronized void setListerFeedBuilders(int listerFeedBuilders) {
+    this.listerFeedBuilders = listerFeedBuilders;
+  }
+
   /**
    * Returns the name of this {@link Connector}.
    *
@@ -231,6 +335,7 @@ class ConnectorCoordinatorImpl implements
         shutdownConnector(true);
         removeConnectorDirectory(connectorDir);
       }
+      QueryTraverser.connectorRemoved(name);
     } finally {
       instanceInfo = null;
       typeInfo = null;
@@ -337,7 +442,7 @@ class ConnectorCoordinatorImpl implements
         if (lister != null) {
           LOGGER.log(Level.FINE, "Starting Lister for connector {0}", name);
           lister.setDocumentAcceptor(new DocumentAcceptorImpl(
-              name, pusherFactory));
+              name, pusherFactory, listerFeedBuilders));
           listerHandle = threadPool.submit(new CancelableLister(name, lister));
         }
       } catch (ConnectorNotFoundException e) {
@@ -746,6 +851,18 @@ class ConnectorCoordinatorImpl implements
                     + " minutes after encountering an error.");
         break;
     }
+
+    // The next batch may now start at a different time.
+    signalTraversal();
+  }
+
+  /**
+   * Wakes the scheduler to check whether this connector can start a batch.
+   */
+  private void signalTraversal() {
+    if (traversalSignal != null) {
+      traversalSignal.signal(name);
+    }
   }
 
   /**
@@ -765,7 +882,7 @@ class ConnectorCoordinatorImpl implements
     }
 
     // Are we already running? If so, we shouldn't run again.
-    if (taskHandle != null && !taskHandle.isDone()) {
+    if (isBatchRunning()) {
       return false;
     }
 
@@ -788,6 +905,32 @@ class ConnectorCoordinatorImpl implements
     return getSchedule().inScheduledInterval();
   }
 
+  @Override
+  public synchronized long getNextBatchDelay() {
+    // These conditions are signalled when they change.
+    if (instanceInfo == null || !traversalEnabled) {
+      return Long.MAX_VALUE;
+    }
+    if (isBatchRunning()) {
+      return Long.MAX_VALUE;
+    }
+    Schedule schedule = getSchedule();
+    if (schedule.isDisabled()) {
+      return Long.MAX_VALUE;
+    }
+
+    // Wait for the traversal delay, the next scheduled traversal interval,
+    // and the load, whichever is longest.
+    int nextInterval = schedule.nextScheduledInterval();
+    if (nextInterval < 0) {
+      // No more intervals today. Check again later.
+      return Long.MAX_VALUE;
+    }
+    long delay = Math.max(traversalDelayEnd - clock.getTimeMillis(),
+                          nextInterval * 1000L);
+    return Math.max(delay, loadManager.getDelayMillis());
+  }
+
   /**
    * Starts running a batch for this {@link ConnectorCoordinator} if a batch is
    * not already running.
@@ -806,15 +949,22 @@ class ConnectorCoordinatorImpl implements
     }
 
     try {
+      if (taskHandle != null) {
+        // Wait for the thread of the previous batch to exit, so that two
+        // batches never run at once against the same TraversalManager.
+        taskHandle.awaitCompletion();
+      }
       TraversalManager traversalManager = getTraversalManager();
       if (traversalManager == null) {
         return false;
       }
       currentBatchKey = new Object();
+      batchResultRecorded = false;
       BatchCoordinator batchCoordinator = new BatchCoordinator(this);
-      Traverser traverser = new QueryTraverser(pusherFactory,
+      QueryTraverser traverser = new QueryTraverser(pusherFactory,
           traversalManager, batchCoordinator, name,
           Context.getInstance().getTraversalContext(), clock);
+      traverser.setPipelineDepth(getTraversalPipelineDepth());
       TimedCancelable batch =  new CancelableBatch(traverser, name,
           batchCoordinator, batchCoordinator, batchSize);
       taskHandle = threadPool.submit(batch);
@@ -826,10 +976,22 @@ class ConnectorCoordinatorImpl implements
       LOGGER.log(Level.WARNING,
           "Failed to perform connector content traversal.", ie);
       delayTraversal(TraversalDelayPolicy.ERROR);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
     return false;
   }
 
+  /**
+   * Returns {@code true} if a batch is running.  A batch whose result has
+   * been recorded is treated as finished, so that the next batch may be
+   * scheduled immediately; {@link #startBatch} waits for its thread to
+   * exit before starting the next batch.
+   */
+  private boolean isBatchRunning() {
+    return taskHandle != null && !taskHandle.isDone() && !batchResultRecorded;
+  }
+
   /**
    * Records the supplied traversal batch results.  Updates the
    * {@link LoadManager} with number of documents traversed,
@@ -839,6 +1001,10 @@ class ConnectorCoordinatorImpl implements
    */
   @Override
   public synchronized void recordResult(BatchResult result) {
+    // The batch is finished once its result is recorded, even though its
+    // thread may not have quite exited. Keep its handle, so that it can
+    // still be canceled and the next batch can wait for it to exit.
+    batchResultRecorded = true;
     loadManager.recordResult(result);
     delayTraversal(result.getDelayPolicy());
   }
@@ -868,6 +1034,7 @@ class ConnectorCoordinatorImpl implements
     taskHandle = null;
     currentBatchKey = null;
     interfaces = null;
+    signalTraversal();
 
     // Discard cached interface instances.
     traversalManager = null;
@@ -887,6 +1054,14 @@ class ConnectorCoordinatorImpl implements
     retriever = null;
     traversalSchedule = null;
 
+    // Discard cached authorization decisions made by this instance.
+    if (authorizationCache != null) {
+      authorizationCache.invalidate(name);
+    }
+    if (authenticationCache != null) {
+      authenticationCache.invalidate(name);
+    }
+
     // Shut down the Lister, if running.
     stopLister();
     lister = null;
@@ -1117,6 +1292,10 @@ class ConnectorCoordinatorImpl implements
     // TODO(jlacey): Unsynchronized writes to otherwise synchronized fields.
     instanceInfo = newInstanceInfo;
     typeInfo = newTypeInfo;
+    int newPipelineDepth = getInstancePipelineDepth(config);
+    synchronized (this) {
+      instancePipelineDepth = newPipelineDepth;
+    }
 
     // Prefetch the AuthenticationManager and AuthorizationManager to
     // avoid AuthN and AuthZ timeouts when logging in to the repository
@@ -15,8 +15,11 @@
 package com.google.enterprise.connector.instantiator;
 
 import com.google.enterprise.connector.database.ConnectorPersistentStoreFactory;
+import com.google.enterprise.connector.manager.AuthenticationCache;
+import com.google.enterprise.connector.manager.AuthorizationCache;
 import com.google.enterprise.connector.pusher.PusherFactory;
 import com.google.enterprise.connector.scheduler.LoadManagerFactory;
+import com.google.enterprise.connector.scheduler.TraversalSignal;
 import com.google.enterprise.connector.spi.Connector;
 import com.google.enterprise.connector.util.Clock;
 
@@ -33,6 +36,11 @@ public class ConnectorCoordinatorImplFactory
   private ThreadPool threadPool;
   private ChangeDetector changeDetector;
   private Clock clock;
+  private AuthorizationCache authorizationCache;
+  private AuthenticationCache authenticationCache;
+  private TraversalSignal traversalSignal;
+  private int traversalPipelineDepth = 0;
+  private int listerFeedBuilders = 1;
 
   /**
    * Sets the {@link PusherFactory} used to create instances of
@@ -87,6 +95,79 @@ public class ConnectorCoordinatorImplFactory
     this.clock = clock;
   }
 
+  /**
+   * Sets the {@link AuthorizationCache} whose cached decisions for a
+   * Connector are discarded when that Connector is reconfigured or removed.
+   *
+   * @param authorizationCache an {@link AuthorizationCache}
+   * @since 3.4
+   */
+  public void setAuthorizationCache(AuthorizationCache authorizationCache) {
+    this.authorizationCache = authorizationCache;
+  }
+
+  /**
+   * Sets the {@link AuthenticationCache} whose cached responses for a
+   * Connector are discarded when that Connector is reconfigured or removed.
+   *
+   * @param authenticationCache an {@link AuthenticationCache}
+   * @since 3.4
+   */
+  public void setAuthenticationCache(AuthenticationCache authenticationCache) {
+    this.authenticationCache = authenticationCache;
+  }
+
+  /**
+   * Sets the {@link TraversalSignal} used to wake the
+   * {@link com.google.enterprise.connector.scheduler.TraversalScheduler
+   * TraversalScheduler} when a Connector may be able to start a batch.
+   *
+   * @param traversalSignal a {@link TraversalSignal}
+   * @since 3.4
+   */
+  public void setTraversalSignal(TraversalSignal traversalSignal) {
+    this.traversalSignal = traversalSignal;
+  }
+
+  /**
+   * Sets the number of documents that a traversal may fetch from the
+   * repository ahead of the
+   * {@link com.google.enterprise.connector.pusher.Pusher Pusher}, so that
+   * repository access overlaps feed construction.  Zero, the default,
+   * disables pipelined traversals.  This is the default for all connectors;
+   * a connector instance may override it with the
+   * {@code googleTraversalPipelineDepth} configuration property.
+   *
+   * @param traversalPipelineDepth the number of documents to fetch ahead;
+   *        must not be negative
+   * @since 3.4
+   */
+  public void setTraversalPipelineDepth(int traversalPipelineDepth) {
+    if (traversalPipelineDepth < 0) {
+      throw new IllegalArgumentException(
+          "traversalPipelineDepth must not be negative.");
+    }
+    this.traversalPipelineDepth = traversalPipelineDepth;
+  }
+
+  /**
+   * Sets the number of feeds that a connector's
+   * {@link com.google.enterprise.connector.spi.Lister Lister} threads may
+   * build concurrently.  Documents from each Lister thread are added to
+   * one of these feeds.  The default is one.
+   *
+   * @param listerFeedBuilders the number of concurrent feeds; must be
+   *        positive
+   * @since 3.4
+   */
+  public void setListerFeedBuilders(int listerFeedBuilders) {
+    if (listerFeedBuilders <= 0) {
+      throw new IllegalArgumentException(
+          "listerFeedBuilders must be positive.");
+    }
+    this.listerFeedBuilders = listerFeedBuilders;
+  }
+
   /**
    * Sets the {@link ChangeDetector} used for invoking the local
    * {@link ChangeHandler} for connector configuration, schedule, and
@@ -116,8 +197,12 @@ public class ConnectorCoordinatorImplFactory
    */
   @Override
   public ConnectorCoordinator newConnectorCoordinator(String connectorName) {
-    return new ConnectorCoordinatorImpl(connectorName,
-        pusherFactory, loadManagerFactory, connectorPersistentStoreFactory,
-        threadPool, changeDetector, clock);
+    ConnectorCoordinatorImpl coordinator = new ConnectorCoordinatorImpl(
+        connectorName, pusherFactory, loadManagerFactory,
+        connectorPersistentStoreFactory, threadPool, changeDetector, clock,
+        authorizationCache, authenticationCache, traversalSignal);
+    coordinator.setTraversalPipelineDepth(traversalPipelineDepth);
+    coordinator.setListerFeedBuilders(listerFeedBuilders);
+    return coordinator;
   }
 }
@@ -31,7 +31,6 @@ import org.springframework.beans.BeansException;
 import org.springframework.beans.MutablePropertyValues;
 import org.springframework.beans.PropertyAccessorFactory;
 import org.springframework.beans.factory.support.DefaultListableBeanFactory;
-import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
 import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.Resource;
 
@@ -211,10 +210,11 @@ final class InstanceInfo {
       prototype = typeInfo.getConnectorInstancePrototype();
     }
 
-    XmlBeanDefinitionReader beanReader = new XmlBeanDefinitionReader(factory);
+    // The TypeInfo caches the parsed prototypes, which are shared by
+    // many connector instances.
     Resource defaults = typeInfo.getConnectorDefaultPrototype();
     try {
-      beanReader.loadBeanDefinitions(prototype);
+      typeInfo.loadBeanDefinitions(prototype, factory);
     } catch (BeansException e) {
       throw new FactoryCreationFailureException(e, prototype, name);
     }
@@ -223,7 +223,7 @@ final class InstanceInfo {
     // specified in old-style monolithic connectorInstance.xml files.
     if (defaults != null) {
       try {
-        beanReader.loadBeanDefinitions(defaults);
+        typeInfo.loadBeanDefinitions(defaults, factory);
       } catch (BeansException e) {
         throw new FactoryCreationFailureException(e, defaults, name);
       }
@@ -236,6 +236,28 @@ public interface Instantiator {
   public void startBatch(String connectorName)
       throws ConnectorNotFoundException;
 
+  /**
+   * Returns the number of milliseconds until a batch might be started
+   * for a named connector.
+   *
+   * @return the number of milliseconds until a batch might be started,
+   *         as described by {@link ConnectorCoordinator#getNextBatchDelay()}
+   * @throws ConnectorNotFoundException if the named connector is not found
+   * @since 3.4
+   */
+  public long getNextBatchDelay(String connectorName)
+      throws ConnectorNotFoundException;
+
+  /**
+   * Returns the time taken by the most recent successful instantiation
+   * of a named connector, in milliseconds.
+   *
+   * @param connectorName the name of the connector
+   * @return the instantiation time, or -1 if it is not known
+   * @since 3.4
+   */
+  public long getInstantiationMillis(String connectorName);
+
   /**
    * Shutdown all the Connector instances.
    */
@@ -149,6 +149,18 @@ public class SpringInstantiator implements Instantiator {
     getConnectorCoordinator(connectorName).startBatch();
   }
 
+  @Override
+  public long getNextBatchDelay(String connectorName)
+      throws ConnectorNotFoundException {
+    return getConnectorCoordinator(connectorName).getNextBatchDelay();
+  }
+
+  @Override
+  public long getInstantiationMillis(String connectorName) {
+    return (changeDetectorTask == null) ? -1L
+        : changeDetectorTask.getInstantiationMillis(connectorName);
+  }
+
   @VisibleForTesting
   ConnectorCoordinator getConnectorCoordinator(String connectorName)
       throws ConnectorNotFoundException {
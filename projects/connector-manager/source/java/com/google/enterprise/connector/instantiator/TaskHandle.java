@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.instantiator;
 
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 /**
@@ -63,5 +65,21 @@ public class TaskHandle {
   public boolean isDone() {
     return taskFuture.isDone();
   }
+
+  /**
+   * Waits for the primary task to complete.  Returns immediately if the
+   * task has been canceled.
+   *
+   * @throws InterruptedException if the current thread is interrupted
+   */
+  public void awaitCompletion() throws InterruptedException {
+    try {
+      taskFuture.get();
+    } catch (CancellationException e) {
+      // The task is done.
+    } catch (ExecutionException e) {
+      // The task is done. The ThreadPool logs the failure.
+    }
+  }
 }
 
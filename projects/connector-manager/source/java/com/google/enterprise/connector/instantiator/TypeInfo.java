@@ -17,10 +17,16 @@ package com.google.enterprise.connector.instantiator;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.enterprise.connector.spi.ConnectorType;
 
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.support.BeanDefinitionRegistry;
+import org.springframework.beans.factory.xml.XmlBeanDefinitionReader;
 import org.springframework.beans.factory.xml.XmlBeanFactory;
 import org.springframework.core.io.Resource;
+import org.w3c.dom.Document;
 
 import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -35,12 +41,25 @@ public class TypeInfo {
   private static final Logger LOGGER =
       Logger.getLogger(TypeInfo.class.getName());
 
+  /** The maximum number of parsed prototypes cached for a connector type. */
+  @VisibleForTesting
+  static final int MAX_PARSED_PROTOTYPES = 16;
+
   private final String connectorTypeName;
   private final ConnectorType connectorType;
   private final Resource connectorInstancePrototype;
   private final Resource connectorDefaultPrototype;
   private File connectorTypeDir = null;
 
+  /**
+   * The parsed prototypes used to instantiate connectors of this type,
+   * keyed by the resource.  Stored instance XML is wrapped in a
+   * {@code ByteArrayResource}, which compares by content, so connectors
+   * with identical XML share an entry.
+   */
+  private final ConcurrentMap<Resource, ParsedPrototype> parsedPrototypes =
+      new ConcurrentHashMap<Resource, ParsedPrototype>();
+
   /**
    * @return the connectorInstancePrototype
    */
@@ -83,6 +102,92 @@ public class TypeInfo {
     this.connectorTypeDir = connectorTypeDir;
   }
 
+  /**
+   * Loads the bean definitions from a connector instance prototype,
+   * such as {@code connectorInstance.xml} or {@code connectorDefaults.xml},
+   * into a bean factory.  Each distinct prototype is read and parsed only
+   * once for this connector type.  Later calls register bean definitions
+   * from the parsed document, so each connector instance still gets its
+   * own bean definitions, which property placeholders may modify.
+   *
+   * @param prototype a Spring resource containing XML bean definitions
+   * @param registry the bean factory to register the bean definitions with
+   * @return the number of bean definitions found
+   * @throws BeansException if the prototype could not be loaded or parsed
+   */
+  int loadBeanDefinitions(Resource prototype, BeanDefinitionRegistry registry)
+      throws BeansException {
+    ParsedPrototype parsed = parsedPrototypes.get(prototype);
+    if (parsed == null) {
+      if (parsedPrototypes.size() >= MAX_PARSED_PROTOTYPES) {
+        parsedPrototypes.clear();
+      }
+      parsed = new ParsedPrototype(prototype);
+      ParsedPrototype existing =
+          parsedPrototypes.putIfAbsent(prototype, parsed);
+      if (existing != null) {
+        parsed = existing;
+      }
+    }
+    return parsed.loadBeanDefinitions(registry);
+  }
+
+  /** Returns the number of parsed prototypes cached for this type. */
+  @VisibleForTesting
+  int getParsedPrototypeCount() {
+    return parsedPrototypes.size();
+  }
+
+  /**
+   * A prototype resource and its lazily parsed XML document.  The
+   * document is only read while holding the lock, because DOM
+   * implementations are not thread-safe, even for reads.
+   */
+  private static class ParsedPrototype {
+    private final Resource resource;
+    private Document document;
+
+    ParsedPrototype(Resource resource) {
+      this.resource = resource;
+    }
+
+    synchronized int loadBeanDefinitions(BeanDefinitionRegistry registry)
+        throws BeansException {
+      if (document == null) {
+        DocumentCapturingReader reader = new DocumentCapturingReader(registry);
+        int count = reader.loadBeanDefinitions(resource);
+        document = reader.document;
+        return count;
+      } else {
+        return new XmlBeanDefinitionReader(registry)
+            .registerBeanDefinitions(document, resource);
+      }
+    }
+  }
+
+  /**
+   * An {@code XmlBeanDefinitionReader} that remembers the document it
+   * parsed.  Resources imported by the document are read again each time
+   * it is registered.
+   */
+  private static class DocumentCapturingReader extends XmlBeanDefinitionReader {
+    Document document;
+
+    DocumentCapturingReader(BeanDefinitionRegistry registry) {
+      super(registry);
+    }
+
+    @Override
+    public int registerBeanDefinitions(Document doc, Resource resource)
+        throws BeansException {
+      // Keep the outermost document, not any that it imports.
+      if (document == null) {
+        document = doc;
+      }
+      return super.registerBeanDefinitions(doc, resource);
+    }
+  }
+
   /* @VisibleForTesting */
   TypeInfo(String connectorTypeName, ConnectorType connectorType,
       Resource connectorInstancePrototype, Resource connectorDefaultPrototype) {
@@ -0,0 +1,404 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.logging;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+
+/**
+ * A logging {@link Handler} that publishes log records to another
+ * Handler on a separate writer thread, so that the threads that log
+ * messages do not wait for them to be formatted and written.
+ * <p>
+ * Records are held in a bounded queue until they are written.  If the
+ * queue fills, logging threads either wait for space, or the records
+ * are dropped and counted, according to the {@link OverflowPolicy}.
+ * The writer thread flushes the target Handler only once the queue is
+ * empty, rather than after each record.
+ * <p>
+ * The {@link NDC}, {@link MDC}, and thread of the logging thread are
+ * captured with each record, and are used by the {@link LayoutPattern}
+ * conversions and the formatters in this package when the record is
+ * formatted on the writer thread.
+ * <p>
+ * When configured from {@code logging.properties}, the target Handler
+ * is constructed from its class name, and configures itself as usual.
+ * For example:
+ * <pre>
+ *   handlers=com.google.enterprise.connector.logging.AsyncHandler
+ *   com.google.enterprise.connector.logging.AsyncHandler.target=java.util.logging.FileHandler
+ *   com.google.enterprise.connector.logging.AsyncHandler.capacity=4096
+ *   com.google.enterprise.connector.logging.AsyncHandler.overflow=DROP
+ * </pre>
+ *
+ * @since 3.4
+ */
+public class AsyncHandler extends Handler {
+  /** What to do with a log record when the queue is full. */
+  public static enum OverflowPolicy {
+    /** Wait for the writer thread to make space in the queue. */
+    BLOCK,
+    /** Discard the record, and count it as dropped. */
+    DROP
+  }
+
+  private static final int DEFAULT_CAPACITY = 1024;
+
+  /** How long the idle writer thread sleeps between checks of the queue. */
+  private static final long IDLE_NANOS = 100 * 1000 * 1000L;
+
+  /** How long a blocked logging thread sleeps between attempts. */
+  private static final long FULL_NANOS = 100 * 1000L;
+
+  /** Daemon threads, so that logging does not prevent the JVM exiting. */
+  private static final ThreadFactory writerThreadFactory =
+      new ThreadFactoryBuilder()
+          .setNameFormat("AsyncLogWriter-%d").setDaemon(true).build();
+
+  private final Handler target;
+  private final OverflowPolicy overflowPolicy;
+
+  /*
+   * The queue is a ring buffer shared by many logging threads and the
+   * single writer thread.  A logging thread claims the slot at the tail
+   * with a compare-and-set, then fills it.  Only the writer thread empties
+   * slots and advances the head.
+   */
+  private final AtomicReferenceArray<Entry> slots;
+  private final int mask;
+  private final AtomicLong tail = new AtomicLong();
+  private volatile long head = 0L;
+
+  private final Thread writer;
+  private volatile boolean isWriterIdle = false;
+  private volatile boolean isClosed = false;
+
+  private final AtomicLong droppedCount = new AtomicLong();
+
+  /**
+   * Constructs an {@code AsyncHandler} configured from the
+   * {@code logging.properties} {@code target}, {@code capacity},
+   * {@code overflow}, and {@code level} properties for this class.
+   * The target defaults to a {@link ConsoleHandler}, the capacity to
+   * 1024 records, and the overflow policy to {@code BLOCK}.
+   */
+  public AsyncHandler() {
+    this(newTarget(getProperty("target")),
+         getIntProperty("capacity", DEFAULT_CAPACITY),
+         getPolicyProperty("overflow", OverflowPolicy.BLOCK));
+    String level = getProperty("level");
+    if (level != null) {
+      setLevel(Level.parse(level.trim()));
+    }
+  }
+
+  /**
+   * Constructs an {@code AsyncHandler} that publishes records to the
+   * supplied target Handler.
+   *
+   * @param target the Handler that formats and writes the records
+   * @param capacity the number of records that may be queued; this is
+   *        rounded up to a power of two
+   * @param overflowPolicy what to do with records when the queue is full
+   */
+  public AsyncHandler(Handler target, int capacity,
+      OverflowPolicy overflowPolicy) {
+    if (target == null) {
+      throw new NullPointerException("target must not be null.");
+    }
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive.");
+    }
+    if (overflowPolicy == null) {
+      throw new NullPointerException("overflowPolicy must not be null.");
+    }
+    this.target = target;
+    this.overflowPolicy = overflowPolicy;
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.slots = new AtomicReferenceArray<Entry>(size);
+    this.mask = size - 1;
+
+    writer = writerThreadFactory.newThread(new Writer());
+    writer.start();
+  }
+
+  /** Returns the Handler that formats and writes the records. */
+  public Handler getTarget() {
+    return target;
+  }
+
+  /** Returns the number of records that may be queued. */
+  public int getCapacity() {
+    return slots.length();
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  /** Returns the number of records waiting to be written. */
+  public int getQueueDepth() {
+    return (int) (tail.get() - head);
+  }
+
+  /** Returns the number of records dropped because the queue was full. */
+  public long getDroppedCount() {
+    return droppedCount.get();
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (isClosed || !isLoggable(record)) {
+      return;
+    }
+    // Infer the caller while it is still on the stack.
+    record.getSourceClassName();
+    Entry entry = new Entry(record, DiagnosticContext.capture());
+
+    // The writer thread must not wait on itself.
+    boolean canBlock = (overflowPolicy == OverflowPolicy.BLOCK
+                        && Thread.currentThread() != writer);
+    while (!offer(entry)) {
+      if (!canBlock || isClosed) {
+        droppedCount.incrementAndGet();
+        return;
+      }
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(this, FULL_NANOS);
+    }
+    if (isWriterIdle) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /** Adds the entry at the tail of the queue, unless it is full. */
+  private boolean offer(Entry entry) {
+    while (true) {
+      long claim = tail.get();
+      if (claim - head >= slots.length()) {
+        return false;
+      }
+      if (tail.compareAndSet(claim, claim + 1)) {
+        slots.set((int) (claim & mask), entry);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Removes the entry at the head of the queue.  Only called by the
+   * writer thread.
+   *
+   * @return the entry at the head of the queue, or {@code null} if the
+   *         queue is empty, or the entry has not been filled yet
+   */
+  private Entry poll() {
+    int index = (int) (head & mask);
+    Entry entry = slots.get(index);
+    if (entry != null) {
+      slots.set(index, null);
+      head++;
+    }
+    return entry;
+  }
+
+  private boolean isEmpty() {
+    return tail.get() == head;
+  }
+
+  /**
+   * Waits for the records already queued to be written, then flushes
+   * the target Handler.
+   */
+  @Override
+  public void flush() {
+    if (Thread.currentThread() != writer) {
+      long end = tail.get();
+      while (head < end && writer.isAlive()) {
+        LockSupport.unpark(writer);
+        LockSupport.parkNanos(this, FULL_NANOS);
+      }
+    }
+    target.flush();
+  }
+
+  /**
+   * Writes the records already queued, then closes the target Handler.
+   * Records published after the Handler is closed are ignored.
+   */
+  @Override
+  public void close() {
+    isClosed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    target.close();
+  }
+
+  @Override
+  public String toString() {
+    return "AsyncHandler: target = " + target
+        + ", capacity = " + getCapacity()
+        + ", overflowPolicy = " + overflowPolicy
+        + ", queueDepth = " + getQueueDepth()
+        + ", droppedCount = " + getDroppedCount();
+  }
+
+  /** A queued record, and the diagnostic context of its logging thread. */
+  private static class Entry {
+    final LogRecord record;
+    final DiagnosticContext context;
+
+    Entry(LogRecord record, DiagnosticContext context) {
+      this.record = record;
+      this.context = context;
+    }
+  }
+
+  /** Writes the queued records to the target Handler. */
+  private class Writer implements Runnable {
+    private long reportedDrops = 0L;
+
+    public void run() {
+      boolean isDirty = false;
+      while (true) {
+        Entry entry = poll();
+        if (entry != null) {
+          write(entry.record, entry.context);
+          isDirty = true;
+          continue;
+        }
+        reportDrops();
+        if (isDirty) {
+          flushTarget();
+          isDirty = false;
+        }
+        if (isEmpty()) {
+          if (isClosed) {
+            return;
+          }
+          isWriterIdle = true;
+          if (isEmpty() && !isClosed) {
+            LockSupport.parkNanos(AsyncHandler.this, IDLE_NANOS);
+          }
+          isWriterIdle = false;
+        } else {
+          // A logging thread has claimed the next slot, but not filled it.
+          Thread.yield();
+        }
+      }
+    }
+
+    private void write(LogRecord record, DiagnosticContext context) {
+      DiagnosticContext.install(context);
+      try {
+        target.publish(record);
+      } catch (RuntimeException e) {
+        reportError(null, e, ErrorManager.WRITE_FAILURE);
+      } finally {
+        DiagnosticContext.install(null);
+      }
+    }
+
+    private void flushTarget() {
+      try {
+        target.flush();
+      } catch (RuntimeException e) {
+        reportError(null, e, ErrorManager.FLUSH_FAILURE);
+      }
+    }
+
+    /** Logs the number of records dropped since the last report. */
+    private void reportDrops() {
+      long dropped = droppedCount.get();
+      if (dropped > reportedDrops) {
+        LogRecord record = new LogRecord(Level.WARNING, "Dropped "
+            + (dropped - reportedDrops) + " log records because the "
+            + "logging queue was full.");
+        record.setLoggerName(AsyncHandler.class.getName());
+        record.setSourceClassName(AsyncHandler.class.getName());
+        record.setSourceMethodName("publish");
+        reportedDrops = dropped;
+        write(record, null);
+      }
+    }
+  }
+
+  /* Configuration from logging.properties. */
+
+  private static String getProperty(String name) {
+    return LogManager.getLogManager().getProperty(
+        AsyncHandler.class.getName() + "." + name);
+  }
+
+  private static int getIntProperty(String name, int defaultValue) {
+    String value = getProperty(name);
+    if (value != null) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        // Use the default.
+      }
+    }
+    return defaultValue;
+  }
+
+  private static OverflowPolicy getPolicyProperty(String name,
+      OverflowPolicy defaultValue) {
+    String value = getProperty(name);
+    if (value != null) {
+      try {
+        return OverflowPolicy.valueOf(value.trim().toUpperCase());
+      } catch (IllegalArgumentException e) {
+        // Use the default.
+      }
+    }
+    return defaultValue;
+  }
+
+  private static Handler newTarget(String className) {
+    if (className == null || className.trim().length() == 0) {
+      return new ConsoleHandler();
+    }
+    ClassLoader loader = Thread.currentThread().getContextClassLoader();
+    if (loader == null) {
+      loader = ClassLoader.getSystemClassLoader();
+    }
+    try {
+      return (Handler) loader.loadClass(className.trim()).getConstructor()
+          .newInstance();
+    } catch (Exception e) {
+      throw new IllegalArgumentException(
+          "Unable to create the target log Handler " + className, e);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.logging;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A snapshot of the diagnostic context of the thread that logged a
+ * message: its thread ID and name, and its {@link NDC} and {@link MDC}.
+ * A {@link java.util.logging.Handler} that formats log records on a
+ * different thread may capture the context as the record is published,
+ * and install it while the record is formatted.  The formatters in this
+ * package use the installed context, if there is one, in place of the
+ * context of the current thread.
+ */
+final class DiagnosticContext {
+  private static final ThreadLocal<DiagnosticContext> installed =
+      new ThreadLocal<DiagnosticContext>();
+
+  private final long threadId;
+  private final String threadName;
+  private final String ndc;
+  private final Map<String, String> mdc;
+
+  private DiagnosticContext(long threadId, String threadName, String ndc,
+      Map<String, String> mdc) {
+    this.threadId = threadId;
+    this.threadName = threadName;
+    this.ndc = ndc;
+    this.mdc = mdc;
+  }
+
+  /** Captures the diagnostic context of the current thread. */
+  public static DiagnosticContext capture() {
+    Thread thread = Thread.currentThread();
+    HashMap<String, String> context = MDC.context.get();
+    Map<String, String> mdc = (context == null || context.isEmpty())
+        ? null : new HashMap<String, String>(context);
+    return new DiagnosticContext(thread.getId(), thread.getName(), NDC.peek(),
+                                 mdc);
+  }
+
+  /**
+   * Installs the supplied context for the current thread, replacing
+   * the thread's own context when formatting log records.
+   *
+   * @param context a captured context, or {@code null} to uninstall
+   *        the installed context
+   */
+  public static void install(DiagnosticContext context) {
+    if (context == null) {
+      installed.remove();
+    } else {
+      installed.set(context);
+    }
+  }
+
+  /** Returns the ID of the thread that logged the message. */
+  public static long getThreadId() {
+    DiagnosticContext context = installed.get();
+    return (context == null) ? Thread.currentThread().getId()
+        : context.threadId;
+  }
+
+  /** Returns the name of the thread that logged the message. */
+  public static String getThreadName() {
+    DiagnosticContext context = installed.get();
+    return (context == null) ? Thread.currentThread().getName()
+        : context.threadName;
+  }
+
+  /** Returns the top of the {@link NDC} of the thread. */
+  public static String getNDC() {
+    DiagnosticContext context = installed.get();
+    return (context == null) ? NDC.peek() : context.ndc;
+  }
+
+  /** Returns the {@link MDC} value for the key, or the empty string. */
+  public static String getMDC(String key) {
+    DiagnosticContext context = installed.get();
+    if (context == null) {
+      return MDC.get(key);
+    }
+    String value = (context.mdc == null) ? null : context.mdc.get(key);
+    return (value == null) ? "" : value;
+  }
+}
@@ -468,18 +468,56 @@ public class LayoutPattern {
 
   // %d{date-format} - Date.  The date-format specifier uses the same syntax
   // as java.text.SimpleDateFormat.  ISO8601 is the default.
+  // SimpleDateFormat is not thread-safe, so each thread has its own.
+  // Unless the format includes milliseconds, the most recently formatted
+  // second is cached, since consecutive records usually share it.
   private class DateElement implements FormatElement {
     private static final String DEFAULT_DATE_FORMAT = "yyyy-MM-dd' 'HH:mm:ss";
-    private SimpleDateFormat dateFormat;
+    private final ThreadLocal<SimpleDateFormat> dateFormat;
+    private final boolean isCacheable;
+    private volatile CachedDate cachedDate;
     public DateElement() {
       this(DEFAULT_DATE_FORMAT);
     }
-    public DateElement(String dateFormat) {
-      this.dateFormat = new SimpleDateFormat(dateFormat);
+    public DateElement(final String dateFormat) {
+      // Fail fast on an invalid format.
+      new SimpleDateFormat(dateFormat);
+      this.dateFormat = new ThreadLocal<SimpleDateFormat>() {
+          @Override
+          protected SimpleDateFormat initialValue() {
+            return new SimpleDateFormat(dateFormat);
+          }
+        };
+      this.isCacheable = (dateFormat.indexOf('S') < 0);
     }
     @Override
     public void format(StringBuilder builder, LogRecord logRecord) {
-      builder.append(dateFormat.format(new Date(logRecord.getMillis())));
+      long millis = logRecord.getMillis();
+      if (!isCacheable) {
+        builder.append(dateFormat.get().format(new Date(millis)));
+        return;
+      }
+      long second = millis / 1000;
+      if (millis % 1000 < 0) {
+        second--;  // Round dates before 1970 down, too.
+      }
+      CachedDate cached = cachedDate;
+      if (cached == null || cached.second != second) {
+        cached = new CachedDate(second,
+            dateFormat.get().format(new Date(second * 1000)));
+        cachedDate = cached;
+      }
+      builder.append(cached.formatted);
+    }
+  }
+
+  // An immutable formatted date, so that it may be shared between threads.
+  private static class CachedDate {
+    final long second;
+    final String formatted;
+    CachedDate(long second, String formatted) {
+      this.second = second;
+      this.formatted = formatted;
     }
   }
 
@@ -539,7 +577,7 @@ public class LayoutPattern {
   private class ThreadIdElement implements FormatElement {
     @Override
     public void format(StringBuilder builder, LogRecord logRecord) {
-      builder.append(Thread.currentThread().getId());
+      builder.append(DiagnosticContext.getThreadId());
     }
   }
 
@@ -547,7 +585,7 @@ public class LayoutPattern {
   private class ThreadNameElement implements FormatElement {
     @Override
     public void format(StringBuilder builder, LogRecord logRecord) {
-      builder.append(Thread.currentThread().getName());
+      builder.append(DiagnosticContext.getThreadName());
     }
   }
 
@@ -559,7 +597,7 @@ public class LayoutPattern {
     }
     @Override
     public void format(StringBuilder builder, LogRecord ignored) {
-      builder.append(MDC.get(key));
+      builder.append(DiagnosticContext.getMDC(key));
     }
   }
 
@@ -567,7 +605,7 @@ public class LayoutPattern {
   private class NDCElement implements FormatElement {
     @Override
     public void format(StringBuilder builder, LogRecord ignored) {
-      builder.append(NDC.peek());
+      builder.append(DiagnosticContext.getNDC());
     }
   }
 }
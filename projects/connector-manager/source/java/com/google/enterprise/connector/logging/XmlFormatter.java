@@ -99,7 +99,7 @@ public class XmlFormatter extends Formatter {
     @Override
     public String format(LogRecord record) {
       String output = super.format(record);
-      String ndc = NDC.peek();
+      String ndc = DiagnosticContext.getNDC();
       if (ndc != null && ndc.length() > 0) {
         int point = output.indexOf(RECORD_TAG);
         if (point >= 0) {
@@ -138,11 +138,11 @@ public class XmlFormatter extends Formatter {
       appendAttr(buf, "logger", record.getLoggerName());
       appendAttr(buf, "timestamp", Long.toString(record.getMillis()));
       appendAttr(buf, "level", record.getLevel().getName());
-      appendAttr(buf, "thread", Thread.currentThread().getName());
+      appendAttr(buf, "thread", DiagnosticContext.getThreadName());
       buf.append('>').append(NL);
 
       // Add NDC element.
-      String ndc = NDC.peek();
+      String ndc = DiagnosticContext.getNDC();
       if (ndc != null && ndc.length() > 0) {
         appendCdata(buf, NDC_TAG, ndc);
       }
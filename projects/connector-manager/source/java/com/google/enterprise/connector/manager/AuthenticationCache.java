@@ -0,0 +1,149 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.manager;
+
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthenticationResponse;
+import com.google.enterprise.connector.util.BasicChecksumGenerator;
+import com.google.enterprise.connector.util.ChecksumGenerator;
+import com.google.enterprise.connector.util.Clock;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded, in-memory cache of successful authentication responses,
+ * keyed by connector and identity.  The Search Appliance may ask the
+ * Connector Manager to authenticate the same user, or look up the same
+ * user's groups, several times within a single search session, and group
+ * lookups are often expensive for the repository.
+ * <p>
+ * Only valid responses are cached, so a failed login is always retried.
+ * The password is part of the key, but only a digest of it is kept.
+ * When the cache is full, the least recently used responses are
+ * discarded.  The responses for a connector are discarded when that
+ * connector is reconfigured or removed.
+ *
+ * @since 3.4
+ */
+public class AuthenticationCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(AuthenticationCache.class.getName());
+
+  private static final ChecksumGenerator PASSWORD_DIGEST =
+      new BasicChecksumGenerator(BasicChecksumGenerator.SHA256);
+
+  /** The cached responses. */
+  private final IdentityCache<AuthenticationResponse> entries =
+      new IdentityCache<AuthenticationResponse>(1000);
+
+  /** The number of milliseconds to cache valid responses. */
+  private volatile long ttlMillis = 0L;
+
+  public void setClock(Clock clock) {
+    entries.setClock(clock);
+  }
+
+  /**
+   * Sets the maximum number of responses to cache, for all connectors
+   * combined.  A value of zero disables the cache.
+   */
+  public void setMaximumSize(int maximumSize) {
+    entries.setMaximumSize(maximumSize);
+  }
+
+  public int getMaximumSize() {
+    return entries.getMaximumSize();
+  }
+
+  /**
+   * Sets the number of seconds to cache valid responses.
+   * A value of zero disables the cache.
+   */
+  public void setTtlSeconds(int ttlSeconds) {
+    if (ttlSeconds < 0) {
+      throw new IllegalArgumentException("ttlSeconds must not be negative.");
+    }
+    this.ttlMillis = ttlSeconds * 1000L;
+  }
+
+  /** Returns {@code true} if any responses will be cached. */
+  public boolean isEnabled() {
+    return entries.getMaximumSize() > 0 && ttlMillis > 0;
+  }
+
+  /**
+   * Returns the cached response for an identity, or {@code null} if
+   * there is no unexpired response cached.
+   *
+   * @param connectorName the name of the connector
+   * @param identity the identity of the user
+   * @return the cached response, or {@code null}
+   */
+  public AuthenticationResponse get(String connectorName,
+      AuthenticationIdentity identity) {
+    return entries.get(connectorName, identity, getPasswordDigest(identity));
+  }
+
+  /**
+   * Caches a response for an identity, if it is valid.
+   *
+   * @param connectorName the name of the connector
+   * @param identity the identity of the user
+   * @param response the response
+   */
+  public void put(String connectorName, AuthenticationIdentity identity,
+      AuthenticationResponse response) {
+    if (response.isValid()) {
+      entries.put(connectorName, identity, getPasswordDigest(identity),
+                  response, ttlMillis);
+    }
+  }
+
+  /**
+   * Discards all the cached responses for a connector.
+   *
+   * @param connectorName the name of the connector
+   */
+  public void invalidate(String connectorName) {
+    int count = entries.invalidate(connectorName);
+    if (count > 0 && LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Discarded " + count + " cached authentication responses for "
+          + connectorName);
+    }
+  }
+
+  /** Returns the number of responses cached. */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Returns a digest of the identity's password, so that the password
+   * is part of the key without being kept in memory.
+   */
+  private static String getPasswordDigest(AuthenticationIdentity identity) {
+    // Group lookups have no password.
+    String password = identity.getPassword();
+    return (password == null) ? null : PASSWORD_DIGEST.getChecksum(password);
+  }
+
+  @Override
+  public String toString() {
+    return "AuthenticationCache: maximumSize = " + entries.getMaximumSize()
+        + ", ttlMillis = " + ttlMillis;
+  }
+}
@@ -0,0 +1,374 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Lists;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
+import com.google.enterprise.connector.util.Clock;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded, in-memory cache of authorization decisions, keyed by
+ * connector, identity and docid.  The Search Appliance often asks
+ * for the same decisions again within seconds, as a user pages
+ * through or refines the search results, so caching the decisions
+ * briefly can substantially reduce the load on the repositories.
+ * <p>
+ * {@code PERMIT} and {@code DENY} decisions are cached for separately
+ * configured times, either of which may be zero to not cache those
+ * decisions.  The times may be overridden for individual connectors.
+ * {@code INDETERMINATE} decisions are never cached.  When the cache is
+ * full, the least recently used decisions are discarded.  The decisions
+ * for a connector are discarded when that connector is reconfigured or
+ * removed.
+ * <p>
+ * The decisions for a request are looked up and stored in batches,
+ * so that each request takes the cache lock only a few times,
+ * regardless of the number of documents in the request.
+ *
+ * @since 3.4
+ */
+public class AuthorizationCache {
+  private static final Logger LOGGER =
+      Logger.getLogger(AuthorizationCache.class.getName());
+
+  /** The default number of milliseconds to cache PERMIT decisions. */
+  private volatile long permitTtlMillis = 0L;
+
+  /** The default number of milliseconds to cache DENY decisions. */
+  private volatile long denyTtlMillis = 0L;
+
+  /** The PERMIT and DENY times for connectors that override the defaults. */
+  private final ConcurrentMap<String, Ttls> connectorTtls =
+      new ConcurrentHashMap<String, Ttls>();
+
+  /** The cached decisions. */
+  private final IdentityCache<AuthorizationResponse.Status> entries =
+      new IdentityCache<AuthorizationResponse.Status>(10000);
+
+  /** The hit and miss counters for each connector. */
+  private final ConcurrentMap<String, Counters> counters =
+      new ConcurrentHashMap<String, Counters>();
+
+  public void setClock(Clock clock) {
+    entries.setClock(clock);
+  }
+
+  /**
+   * Sets the maximum number of decisions to cache, for all connectors
+   * combined.  A value of zero disables the cache.
+   */
+  public void setMaximumSize(int maximumSize) {
+    entries.setMaximumSize(maximumSize);
+  }
+
+  public int getMaximumSize() {
+    return entries.getMaximumSize();
+  }
+
+  /**
+   * Sets the default number of seconds to cache {@code PERMIT} decisions.
+   * A value of zero disables caching of {@code PERMIT} decisions.
+   */
+  public void setPermitTtlSeconds(int permitTtlSeconds) {
+    this.permitTtlMillis = toMillis("permitTtlSeconds", permitTtlSeconds);
+  }
+
+  /**
+   * Sets the default number of seconds to cache {@code DENY} decisions.
+   * A value of zero disables caching of {@code DENY} decisions.
+   */
+  public void setDenyTtlSeconds(int denyTtlSeconds) {
+    this.denyTtlMillis = toMillis("denyTtlSeconds", denyTtlSeconds);
+  }
+
+  /**
+   * Sets the number of seconds to cache {@code PERMIT} and {@code DENY}
+   * decisions for a connector, overriding the defaults.
+   *
+   * @param connectorName the name of the connector
+   * @param permitTtlSeconds the number of seconds to cache {@code PERMIT}
+   *        decisions, or zero to not cache them
+   * @param denyTtlSeconds the number of seconds to cache {@code DENY}
+   *        decisions, or zero to not cache them
+   */
+  public void setConnectorTtlSeconds(String connectorName,
+      int permitTtlSeconds, int denyTtlSeconds) {
+    connectorTtls.put(connectorName,
+        new Ttls(toMillis("permitTtlSeconds", permitTtlSeconds),
+                 toMillis("denyTtlSeconds", denyTtlSeconds)));
+  }
+
+  /**
+   * Sets the number of seconds to cache {@code PERMIT} and {@code DENY}
+   * decisions for some connectors, overriding the defaults.  The
+   * overrides are a comma-separated list of
+   * <code><i>connectorName</i>:<i>permitTtl</i>:<i>denyTtl</i></code>
+   * entries, for example {@code "sharepoint:300:0,livelink:30:30"}.
+   * Any previous overrides are discarded.
+   *
+   * @param overrides the per-connector overrides, or an empty string
+   */
+  public void setConnectorTtls(String overrides) {
+    Map<String, Ttls> newTtls = new HashMap<String, Ttls>();
+    for (String override : Splitter.on(',').trimResults().omitEmptyStrings()
+             .split(overrides)) {
+      List<String> parts = Lists.newArrayList(
+          Splitter.on(':').trimResults().split(override));
+      if (parts.size() != 3 || parts.get(0).length() == 0) {
+        throw new IllegalArgumentException(
+            "Invalid connector TTLs \"" + override
+            + "\"; expected connectorName:permitTtl:denyTtl");
+      }
+      try {
+        newTtls.put(parts.get(0), new Ttls(
+            toMillis("permitTtlSeconds", Integer.parseInt(parts.get(1))),
+            toMillis("denyTtlSeconds", Integer.parseInt(parts.get(2)))));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException(
+            "Invalid connector TTLs \"" + override + "\"", e);
+      }
+    }
+    connectorTtls.clear();
+    connectorTtls.putAll(newTtls);
+  }
+
+  private static long toMillis(String name, int seconds) {
+    if (seconds < 0) {
+      throw new IllegalArgumentException(name + " must not be negative.");
+    }
+    return seconds * 1000L;
+  }
+
+  /** Returns {@code true} if any decisions will be cached. */
+  public boolean isEnabled() {
+    if (entries.getMaximumSize() <= 0) {
+      return false;
+    }
+    if (permitTtlMillis > 0 || denyTtlMillis > 0) {
+      return true;
+    }
+    for (Ttls ttls : connectorTtls.values()) {
+      if (ttls.permitMillis > 0 || ttls.denyMillis > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the cached decision for a document, or {@code null} if
+   * there is no unexpired decision cached.
+   *
+   * @param connectorName the name of the connector
+   * @param identity the identity of the user
+   * @param docid the docid of the document
+   * @return the cached decision, or {@code null}
+   */
+  public AuthorizationResponse.Status get(String connectorName,
+      AuthenticationIdentity identity, String docid) {
+    AuthorizationResponse.Status status =
+        entries.get(connectorName, identity, docid);
+    Counters connectorCounters = getCounters(connectorName);
+    if (status == null) {
+      connectorCounters.misses.incrementAndGet();
+    } else {
+      connectorCounters.hits.incrementAndGet();
+    }
+    return status;
+  }
+
+  /**
+   * Returns the cached decisions for some documents.  Documents with
+   * no unexpired decision cached are omitted from the result.
+   *
+   * @param connectorName the name of the connector
+   * @param identity the identity of the user
+   * @param docids the docids of the documents
+   * @return a map from docid to cached decision
+   */
+  public Map<String, AuthorizationResponse.Status> getAll(
+      String connectorName, AuthenticationIdentity identity,
+      Collection<String> docids) {
+    Map<String, AuthorizationResponse.Status> results =
+        entries.getAll(connectorName, identity, docids);
+    int hits = 0;
+    for (String docid : docids) {
+      if (results.containsKey(docid)) {
+        hits++;
+      }
+    }
+    Counters connectorCounters = getCounters(connectorName);
+    connectorCounters.hits.addAndGet(hits);
+    connectorCounters.misses.addAndGet(docids.size() - hits);
+    return results;
+  }
+
+  /**
+   * Caches a decision for a document, if decisions of that kind are
+   * cached.
+   *
+   * @param connectorName the name of the connector
+   * @param identity the identity of the user
+   * @param docid the docid of the document
+   * @param status the decision
+   */
+  public void put(String connectorName, AuthenticationIdentity identity,
+      String docid, AuthorizationResponse.Status status) {
+    entries.put(connectorName, identity, docid, status,
+                getTtlMillis(connectorName, status));
+  }
+
+  /**
+   * Caches the decisions for some documents, if decisions of those
+   * kinds are cached.
+   *
+   * @param connectorName the name of the connector
+   * @param identity the identity of the user
+   * @param responses the decisions
+   */
+  public void putAll(String connectorName, AuthenticationIdentity identity,
+      Collection<AuthorizationResponse> responses) {
+    Map<String, AuthorizationResponse.Status> permits =
+        new HashMap<String, AuthorizationResponse.Status>();
+    Map<String, AuthorizationResponse.Status> denials =
+        new HashMap<String, AuthorizationResponse.Status>();
+    for (AuthorizationResponse response : responses) {
+      switch (response.getStatus()) {
+        case PERMIT:
+          permits.put(response.getDocid(), response.getStatus());
+          break;
+        case DENY:
+          denials.put(response.getDocid(), response.getStatus());
+          break;
+        default:
+          break;
+      }
+    }
+    if (!permits.isEmpty()) {
+      entries.putAll(connectorName, identity, permits, getTtlMillis(
+          connectorName, AuthorizationResponse.Status.PERMIT));
+    }
+    if (!denials.isEmpty()) {
+      entries.putAll(connectorName, identity, denials, getTtlMillis(
+          connectorName, AuthorizationResponse.Status.DENY));
+    }
+  }
+
+  /**
+   * Returns the number of milliseconds to cache a decision for a
+   * connector, or zero if the decision is not cached.
+   */
+  private long getTtlMillis(String connectorName,
+      AuthorizationResponse.Status status) {
+    Ttls ttls = connectorTtls.get(connectorName);
+    switch (status) {
+      case PERMIT:
+        return (ttls == null) ? permitTtlMillis : ttls.permitMillis;
+      case DENY:
+        return (ttls == null) ? denyTtlMillis : ttls.denyMillis;
+      default:
+        return 0L;
+    }
+  }
+
+  /**
+   * Discards all the cached decisions and counters for a connector.
+   *
+   * @param connectorName the name of the connector
+   */
+  public void invalidate(String connectorName) {
+    int count = entries.invalidate(connectorName);
+    counters.remove(connectorName);
+    if (count > 0 && LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Discarded " + count + " cached authorization decisions for "
+          + connectorName);
+    }
+  }
+
+  /** Returns the number of decisions cached. */
+  public int size() {
+    return entries.size();
+  }
+
+  /** Returns the number of decisions for a connector found in the cache. */
+  public long getHits(String connectorName) {
+    Counters connectorCounters = counters.get(connectorName);
+    return (connectorCounters == null) ? 0 : connectorCounters.hits.get();
+  }
+
+  /**
+   * Returns the number of decisions for a connector not found in the
+   * cache.
+   */
+  public long getMisses(String connectorName) {
+    Counters connectorCounters = counters.get(connectorName);
+    return (connectorCounters == null) ? 0 : connectorCounters.misses.get();
+  }
+
+  private Counters getCounters(String connectorName) {
+    Counters connectorCounters = counters.get(connectorName);
+    if (connectorCounters == null) {
+      Counters newCounters = new Counters();
+      connectorCounters = counters.putIfAbsent(connectorName, newCounters);
+      if (connectorCounters == null) {
+        connectorCounters = newCounters;
+      }
+    }
+    return connectorCounters;
+  }
+
+  @Override
+  public String toString() {
+    return "AuthorizationCache: maximumSize = " + entries.getMaximumSize()
+        + ", permitTtlMillis = " + permitTtlMillis
+        + ", denyTtlMillis = " + denyTtlMillis
+        + ", connectorTtls = " + connectorTtls;
+  }
+
+  /** The PERMIT and DENY times for a connector. */
+  private static class Ttls {
+    final long permitMillis;
+    final long denyMillis;
+
+    Ttls(long permitMillis, long denyMillis) {
+      this.permitMillis = permitMillis;
+      this.denyMillis = denyMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "{permitMillis = " + permitMillis
+          + ", denyMillis = " + denyMillis + "}";
+    }
+  }
+
+  /** The hit and miss counts for a connector. */
+  private static class Counters {
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+  }
+}
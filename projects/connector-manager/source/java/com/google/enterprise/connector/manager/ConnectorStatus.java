@@ -25,6 +25,9 @@ public class ConnectorStatus {
   private final String schedule;
   private final String globalNamespace;
   private final String localNamespace;
+  private final long authorizationCacheHits;
+  private final long authorizationCacheMisses;
+  private final long instantiationMillis;
 
   /**
    * Primary constructor.
@@ -35,6 +38,50 @@ public class ConnectorStatus {
    */
   public ConnectorStatus(String name, String type, int status, String schedule,
                          String globalNamespace, String localNamespace) {
+    this(name, type, status, schedule, globalNamespace, localNamespace,
+         -1L, -1L);
+  }
+
+  /**
+   * Constructor including the authorization cache statistics.
+   * @param name the connector's name
+   * @param type the connector's type
+   * @param status the connector's status
+   * @param schedule the connector's schedule
+   * @param authorizationCacheHits the number of authorization decisions
+   *        found in the cache, or -1 if decisions are not cached
+   * @param authorizationCacheMisses the number of authorization decisions
+   *        not found in the cache, or -1 if decisions are not cached
+   * @since 3.4
+   */
+  public ConnectorStatus(String name, String type, int status, String schedule,
+                         String globalNamespace, String localNamespace,
+                         long authorizationCacheHits,
+                         long authorizationCacheMisses) {
+    this(name, type, status, schedule, globalNamespace, localNamespace,
+         authorizationCacheHits, authorizationCacheMisses, -1L);
+  }
+
+  /**
+   * Constructor including the authorization cache statistics and the
+   * instantiation time.
+   * @param name the connector's name
+   * @param type the connector's type
+   * @param status the connector's status
+   * @param schedule the connector's schedule
+   * @param authorizationCacheHits the number of authorization decisions
+   *        found in the cache, or -1 if decisions are not cached
+   * @param authorizationCacheMisses the number of authorization decisions
+   *        not found in the cache, or -1 if decisions are not cached
+   * @param instantiationMillis the time taken by the most recent
+   *        instantiation of the connector, or -1 if it is not known
+   * @since 3.4
+   */
+  public ConnectorStatus(String name, String type, int status, String schedule,
+                         String globalNamespace, String localNamespace,
+                         long authorizationCacheHits,
+                         long authorizationCacheMisses,
+                         long instantiationMillis) {
     super();
     this.name = name;
     this.type = type;
@@ -42,6 +89,9 @@ public class ConnectorStatus {
     this.schedule = (schedule == null) ? null : schedule.trim();
     this.globalNamespace = globalNamespace;
     this.localNamespace = localNamespace;
+    this.authorizationCacheHits = authorizationCacheHits;
+    this.authorizationCacheMisses = authorizationCacheMisses;
+    this.instantiationMillis = instantiationMillis;
   }
 
   /**
@@ -92,10 +142,41 @@ public class ConnectorStatus {
     return localNamespace;
   }
 
+  /**
+   * Gets the number of authorization decisions found in the cache
+   * @return the number of cache hits, or -1 if decisions are not cached
+   * @since 3.4
+   */
+  public long getAuthorizationCacheHits() {
+    return authorizationCacheHits;
+  }
+
+  /**
+   * Gets the number of authorization decisions not found in the cache
+   * @return the number of cache misses, or -1 if decisions are not cached
+   * @since 3.4
+   */
+  public long getAuthorizationCacheMisses() {
+    return authorizationCacheMisses;
+  }
+
+  /**
+   * Gets the time taken by the most recent instantiation of the connector
+   * @return the instantiation time, in milliseconds, or -1 if not known
+   * @since 3.4
+   */
+  public long getInstantiationMillis() {
+    return instantiationMillis;
+  }
+
   @Override
   public String toString() {
     return "{ connector = " + name + ", type = " + type + ", status = " + status
             + ", schedule = " + schedule + ", globalNamespace = "
-            + globalNamespace + ", localNamespace = " + localNamespace + " }";
+            + globalNamespace + ", localNamespace = " + localNamespace
+            + ", authorizationCacheHits = " + authorizationCacheHits
+            + ", authorizationCacheMisses = " + authorizationCacheMisses
+            + ", instantiationMillis = " + instantiationMillis
+            + " }";
   }
 }
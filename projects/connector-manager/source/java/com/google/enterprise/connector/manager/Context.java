@@ -22,6 +22,7 @@ import com.google.enterprise.connector.instantiator.Instantiator;
 import com.google.enterprise.connector.instantiator.InstantiatorException;
 import com.google.enterprise.connector.instantiator.SpringInstantiator;
 import com.google.enterprise.connector.instantiator.ThreadPool;
+import com.google.enterprise.connector.persist.JdbcStore;
 import com.google.enterprise.connector.pusher.GsaFeedConnection;
 import com.google.enterprise.connector.scheduler.TraversalScheduler;
 import com.google.enterprise.connector.spi.SimpleTraversalContext;
@@ -206,6 +207,49 @@ public class Context {
       + " For example:\n"
       + "   feed.document.size.limit=31457280\n"
       + "\n"
+      + " The 'feed.spool.threshold' property sets the size, in bytes, beyond\n"
+      + " which an accumulated feed file is spooled to a temporary file on\n"
+      + " disk, rather than held in memory.  Spooling feeds allows larger\n"
+      + " feed files and more Connector Instances without running out of\n"
+      + " memory, at the cost of disk I/O.  Spool files are created in the\n"
+      + " Java temporary directory.  The default value of 0 disables spooling.\n"
+      + " For example:\n"
+      + "   feed.spool.threshold=1048576\n"
+      + "\n"
+      + " The 'feed.compression.level' property sets the compression level\n"
+      + " used for document content, if the GSA accepts compressed content.\n"
+      + " Levels range from 0 (no compression) to 9 (best compression).\n"
+      + " Lower levels use less CPU.  The default value of -1 uses the\n"
+      + " default compression level of java.util.zip.Deflater.  The\n"
+      + " 'feed.compression.strategy' property sets the Deflater strategy:\n"
+      + " 0 (default), 1 (filtered) or 2 (Huffman coding only).  Content\n"
+      + " whose MIME type is already compressed, such as JPEG images or ZIP\n"
+      + " archives, is never compressed again.\n"
+      + " For example:\n"
+      + "   feed.compression.level=1\n"
+      + "\n"
+      + " The 'feed.sender.threads' property sets the number of threads used\n"
+      + " to send feeds to the GSA, shared by all Connector Instances.  The\n"
+      + " 'feed.sender.connector.threads' property sets the number of feeds from\n"
+      + " a single Connector Instance that may be sent concurrently.  Values\n"
+      + " greater than 1 may cause feeds to arrive at the GSA out of order.\n"
+      + " The defaults are 10 and 1, respectively.\n"
+      + " For example:\n"
+      + "   feed.sender.threads=10\n"
+      + "   feed.sender.connector.threads=1\n"
+      + "\n"
+      + " The 'feed.sender.connector.backlog.feeds' and\n"
+      + " 'feed.sender.connector.backlog.bytes' properties limit the number of\n"
+      + " feeds, and the total size in bytes of the feeds, that a Connector\n"
+      + " Instance may have waiting to be sent.  A Connector Instance that\n"
+      + " exceeds either limit ends its traversal batch early.  A value of 0\n"
+      + " disables the corresponding limit.  The defaults are 10 feeds and\n"
+      + " 104857600 bytes (100MB).  The feed sender statistics, including the\n"
+      + " number of feeds waiting and the send times, are available through JMX.\n"
+      + " For example:\n"
+      + "   feed.sender.connector.backlog.feeds=10\n"
+      + "   feed.sender.connector.backlog.bytes=104857600\n"
+      + "\n"
       + " The 'feed.contenturl.prefix' property is used for contentUrl generation.\n"
       + " The prefix should include protocol, host and port, web app,\n"
       + " and servlet to point back at this Connector Manager instance.\n"
@@ -245,6 +289,62 @@ public class Context {
       + " the list. The default is empty.\n"
       + " retriever.allowedHosts=\n"
       + "\n"
+      + " The 'security.request.threads' property sets the number of threads\n"
+      + " used to call the connectors concurrently when authenticating users\n"
+      + " and authorizing search results, shared by all requests.  The default\n"
+      + " is 20.\n"
+      + " For example:\n"
+      + "   security.request.threads=20\n"
+      + "\n"
+      + " The 'authorization.timeout' property sets the number of milliseconds\n"
+      + " to wait for a connector to authorize the documents in a request,\n"
+      + " counted from when the connector is called.  A query that waits longer\n"
+      + " than this for one of the 'security.request.threads' also times out.\n"
+      + " Documents from a connector that does not respond in time are returned\n"
+      + " as INDETERMINATE.  A value of 0 disables the timeout.  The default is 0.\n"
+      + " For example:\n"
+      + "   authorization.timeout=5000\n"
+      + "\n"
+      + " The 'authorization.cache.*' properties configure an in-memory cache\n"
+      + " of the authorization decisions made by the Connector Instances, to\n"
+      + " reduce the load on the repositories when the GSA asks for the same\n"
+      + " decisions repeatedly.  The 'authorization.cache.permit.ttl' and\n"
+      + " 'authorization.cache.deny.ttl' properties set the number of seconds\n"
+      + " that PERMIT and DENY decisions are cached.  A value of 0 disables\n"
+      + " caching of those decisions.  The 'authorization.cache.size' property\n"
+      + " sets the maximum number of decisions cached.  The cached decisions\n"
+      + " for a Connector Instance are discarded when it is reconfigured.\n"
+      + " The 'authorization.cache.connector.ttls' property overrides the\n"
+      + " PERMIT and DENY times for individual Connector Instances, as a\n"
+      + " comma-separated list of connectorName:permitTtl:denyTtl entries.\n"
+      + " By default, no decisions are cached.\n"
+      + " For example:\n"
+      + "   authorization.cache.size=10000\n"
+      + "   authorization.cache.permit.ttl=30\n"
+      + "   authorization.cache.deny.ttl=30\n"
+      + "   authorization.cache.connector.ttls=sharepoint:300:0\n"
+      + "\n"
+      + " The 'authentication.timeout' property sets the number of milliseconds\n"
+      + " to wait for a connector to authenticate a user, counted from when the\n"
+      + " connector is called.  A call that waits longer than this for one of the\n"
+      + " 'security.request.threads' also times out.  Connectors that do not\n"
+      + " respond in time are reported as failing to authenticate the user, and\n"
+      + " the groups from the connectors that did respond are returned.  A value\n"
+      + " of 0 disables the timeout.  The default is 0.\n"
+      + " For example:\n"
+      + "   authentication.timeout=10000\n"
+      + "\n"
+      + " The 'authentication.cache.*' properties configure an in-memory cache\n"
+      + " of successful authentications, including the groups returned by the\n"
+      + " Connector Instances.  The 'authentication.cache.ttl' property sets\n"
+      + " the number of seconds that successful authentications are cached.\n"
+      + " A value of 0 disables the cache.  The 'authentication.cache.size'\n"
+      + " property sets the maximum number of authentications cached.  Failed\n"
+      + " authentications are never cached.  By default, nothing is cached.\n"
+      + " For example:\n"
+      + "   authentication.cache.size=1000\n"
+      + "   authentication.cache.ttl=60\n"
+      + "\n"
       + " The 'feed.backlog.*' properties are used to throttle back the\n"
       + " document feed if the GSA has fallen behind processing outstanding\n"
       + " feed items.  The Connector Manager periodically polls the GSA,\n"
@@ -287,6 +387,31 @@ public class Context {
       + " For example:\n"
       + "   traversal.time.limit=7200\n"
       + "\n"
+      + " The 'traversal.pipeline.depth' property defines the number of\n"
+      + " documents a traversal batch may fetch from the repository ahead of\n"
+      + " the feed.  If greater than zero, documents are retrieved on a\n"
+      + " separate thread, so that slow repository access overlaps the\n"
+      + " filtering and feed construction of earlier documents.  Documents\n"
+      + " already fetched are always fed before the batch checkpoints.  Only\n"
+      + " enable this for connectors whose documents remain usable after the\n"
+      + " next document is retrieved.  By default, each document is fetched\n"
+      + " and fed in turn.  This is the default for all connectors; a connector\n"
+      + " instance may override it with a 'googleTraversalPipelineDepth'\n"
+      + " property in its configuration, which a connector type may supply\n"
+      + " from its configuration form.\n"
+      + " For example:\n"
+      + "   traversal.pipeline.depth=0\n"
+      + "\n"
+      + " The 'lister.feed.builders' property defines the number of feeds\n"
+      + " that a connector's Lister may build concurrently.  Documents sent\n"
+      + " by each Lister thread are added to one of these feeds, so Listers\n"
+      + " that send documents from many threads may build feeds on several\n"
+      + " processors.  The feed.sender.connector limits apply to all of a\n"
+      + " connector's feeds together, however many are built at once.  By\n"
+      + " default, a single feed is built at a time.\n"
+      + " For example:\n"
+      + "   lister.feed.builders=1\n"
+      + "\n"
       + " The 'traversal.enabled' property is used to enable or disable\n"
       + " Traversals and Feeds for all connector instances in this\n"
       + " Connector Manager.  Disabling Traversal would be desirable if\n"
@@ -303,6 +428,14 @@ public class Context {
       + " detection interval is 15 minutes (900 seconds).\n"
       + " config.change.detect.interval=900\n"
       + "\n"
+      + " The 'connector.instantiation.threads' property defines the number\n"
+      + " of connector instances that may be created concurrently, when the\n"
+      + " Connector Manager starts up or when many connector configurations\n"
+      + " change at once.  Set this to 1 to instantiate connectors one at a\n"
+      + " time.  By default, up to 4 connectors are instantiated at once.\n"
+      + " For example:\n"
+      + "   connector.instantiation.threads=4\n"
+      + "\n"
       + "The 'jdbc.datasource.*' properties specify JDBC configuration\n"
       + "required to access external databases.  By default, the\n"
       + "Connector Manager uses an embedded H2 database to store\n"
@@ -332,6 +465,39 @@ public class Context {
       + "Connector Configurations from the embedded H2 database to\n"
       + "an external corporate SQL Server database.\n"
       + "\n"
+      + "The 'jdbc.checkpoint.flush.interval' property specifies how often\n"
+      + "(in milliseconds) to write connector checkpoints to a JDBC data\n"
+      + "store.  If zero, each checkpoint is written as it is made.  Otherwise,\n"
+      + "only the latest checkpoint of each connector is written, and the\n"
+      + "checkpoints of all connectors are written together.  A checkpoint\n"
+      + "made within the interval before the Connector Manager fails might\n"
+      + "be lost, causing some documents to be fed again.  The default is 0.\n"
+      + "jdbc.checkpoint.flush.interval=1000\n"
+      + "\n"
+      + "The 'jdbc.pool.max.connections' property limits the number of\n"
+      + "connections to the JDBC data store that may be in use at once.\n"
+      + "The 'jdbc.pool.validation.interval' property specifies how long\n"
+      + "(in milliseconds) a pooled connection may be idle before it is\n"
+      + "validated again when it is reused.  The 'jdbc.pool.max.idle.time'\n"
+      + "property specifies how long (in milliseconds) a pooled connection\n"
+      + "may be idle before it is closed.  The default for each is 0, which\n"
+      + "means no limit, validating every reused connection, and keeping idle\n"
+      + "connections open.  The 'jdbc.pool.max.lifetime' property specifies\n"
+      + "how long (in milliseconds) a connection may be used before it is\n"
+      + "closed and replaced.  The 'jdbc.pool.leak.threshold' property\n"
+      + "specifies how long (in milliseconds) a connection may be in use\n"
+      + "before it is logged as a possible leak.  The default for each is 0,\n"
+      + "which means reusing connections indefinitely, and no leak detection.\n"
+      + "The 'jdbc.pool.statement.cache.size' property sets the number of\n"
+      + "prepared statements cached for each connection.  The default is 20.\n"
+      + "The connection pool statistics are available through JMX.\n"
+      + "jdbc.pool.max.connections=10\n"
+      + "jdbc.pool.validation.interval=30000\n"
+      + "jdbc.pool.max.idle.time=600000\n"
+      + "jdbc.pool.max.lifetime=3600000\n"
+      + "jdbc.pool.leak.threshold=300000\n"
+      + "jdbc.pool.statement.cache.size=20\n"
+      + "\n"
       + "Microsoft SQL Server JDBC DataSource configuration.\n"
       + "jdbc.datasource.sqlserver.url=jdbc:sqlserver://myserver;DatabaseName=google_connectors\n"
       + "jdbc.datasource.sqlserver.user=google_admin\n"
@@ -850,11 +1016,29 @@ public class Context {
             ThreadPool.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS);
         instantiator = null;
       }
+      flushPersistentStores();
       closeDatabases();
       started = false;
     }
   }
 
+  /**
+   * Writes any pending checkpoints held by instantiated JdbcStores.
+   */
+  @SuppressWarnings("unchecked")
+  private void flushPersistentStores() {
+    Collection<JdbcStore> stores = (Collection<JdbcStore>)
+        applicationContext.getBeansOfType(JdbcStore.class, false, false)
+        .values();
+    for (JdbcStore store : stores) {
+      try {
+        store.shutdown();
+      } catch (Exception e) {
+        LOGGER.log(Level.WARNING, "Failed to store pending checkpoints", e);
+      }
+    }
+  }
+
   /**
    * Shuts down any Spring-configured JdbcDatabase instances.
    */
@@ -0,0 +1,245 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, in-memory cache of values that expire, keyed by connector,
+ * identity, and a qualifier such as a docid.  When the cache is full,
+ * the least recently used values are discarded.  This is the storage
+ * shared by {@link AuthorizationCache} and {@link AuthenticationCache};
+ * what to cache, and for how long, is left to them.
+ * <p>
+ * A single lock guards the cache, so that eviction is exactly least
+ * recently used.  The batch methods take the lock once per call.
+ *
+ * @param <V> the type of the cached values
+ */
+class IdentityCache<V> {
+  private volatile Clock clock = new SystemClock();
+
+  /** The maximum number of values to cache. */
+  private volatile int maximumSize;
+
+  /** The cached values, in least recently used order. */
+  private final LinkedHashMap<Key, Entry<V>> entries =
+      new LinkedHashMap<Key, Entry<V>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Entry<V>> eldest) {
+          return size() > maximumSize;
+        }
+      };
+
+  IdentityCache(int maximumSize) {
+    this.maximumSize = maximumSize;
+  }
+
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Sets the maximum number of values to cache, for all connectors
+   * combined.  A value of zero disables the cache.
+   */
+  synchronized void setMaximumSize(int maximumSize) {
+    if (maximumSize < 0) {
+      throw new IllegalArgumentException(
+          "maximumSize must not be negative.");
+    }
+    this.maximumSize = maximumSize;
+  }
+
+  int getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * Returns the cached value, or {@code null} if there is no unexpired
+   * value cached.
+   *
+   * @param connectorName the name of the connector
+   * @param identity the identity of the user
+   * @param qualifier the qualifier, which may be {@code null}
+   * @return the cached value, or {@code null}
+   */
+  synchronized V get(String connectorName, AuthenticationIdentity identity,
+      String qualifier) {
+    return lookup(new Key(connectorName, identity, qualifier),
+                  clock.getTimeMillis());
+  }
+
+  /**
+   * Returns the cached values for some qualifiers.  Qualifiers with no
+   * unexpired value cached are omitted from the result.
+   *
+   * @param connectorName the name of the connector
+   * @param identity the identity of the user
+   * @param qualifiers the qualifiers
+   * @return a map from qualifier to cached value
+   */
+  synchronized Map<String, V> getAll(String connectorName,
+      AuthenticationIdentity identity, Collection<String> qualifiers) {
+    Map<String, V> results = new HashMap<String, V>();
+    long now = clock.getTimeMillis();
+    for (String qualifier : qualifiers) {
+      V value = lookup(new Key(connectorName, identity, qualifier), now);
+      if (value != null) {
+        results.put(qualifier, value);
+      }
+    }
+    return results;
+  }
+
+  /** Returns the unexpired value for a key. Must hold the lock. */
+  private V lookup(Key key, long now) {
+    Entry<V> entry = entries.get(key);
+    if (entry == null) {
+      return null;
+    } else if (entry.expires <= now) {
+      entries.remove(key);
+      return null;
+    } else {
+      return entry.value;
+    }
+  }
+
+  /**
+   * Caches a value, if the cache is enabled and {@code ttlMillis} is
+   * positive.
+   *
+   * @param connectorName the name of the connector
+   * @param identity the identity of the user
+   * @param qualifier the qualifier, which may be {@code null}
+   * @param value the value
+   * @param ttlMillis the number of milliseconds to cache the value
+   */
+  synchronized void put(String connectorName,
+      AuthenticationIdentity identity, String qualifier, V value,
+      long ttlMillis) {
+    if (ttlMillis > 0 && maximumSize > 0) {
+      entries.put(new Key(connectorName, identity, qualifier),
+          new Entry<V>(value, clock.getTimeMillis() + ttlMillis));
+    }
+  }
+
+  /**
+   * Caches some values with the same lifetime, if the cache is enabled
+   * and {@code ttlMillis} is positive.
+   *
+   * @param connectorName the name of the connector
+   * @param identity the identity of the user
+   * @param values a map from qualifier to value
+   * @param ttlMillis the number of milliseconds to cache the values
+   */
+  synchronized void putAll(String connectorName,
+      AuthenticationIdentity identity, Map<String, V> values,
+      long ttlMillis) {
+    if (ttlMillis > 0 && maximumSize > 0) {
+      long expires = clock.getTimeMillis() + ttlMillis;
+      for (Map.Entry<String, V> value : values.entrySet()) {
+        entries.put(new Key(connectorName, identity, value.getKey()),
+            new Entry<V>(value.getValue(), expires));
+      }
+    }
+  }
+
+  /**
+   * Discards all the cached values for a connector.
+   *
+   * @param connectorName the name of the connector
+   * @return the number of values discarded
+   */
+  synchronized int invalidate(String connectorName) {
+    int count = 0;
+    Iterator<Key> it = entries.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().connectorName.equals(connectorName)) {
+        it.remove();
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Returns the number of values cached. */
+  synchronized int size() {
+    return entries.size();
+  }
+
+  /** The key of a cached value. */
+  private static class Key {
+    final String connectorName;
+    final String username;
+    final String domain;
+    final String qualifier;
+
+    Key(String connectorName, AuthenticationIdentity identity,
+        String qualifier) {
+      this.connectorName = connectorName;
+      this.username = identity.getUsername();
+      this.domain = identity.getDomain();
+      this.qualifier = qualifier;
+    }
+
+    @Override
+    public int hashCode() {
+      int result = connectorName.hashCode();
+      result = 31 * result + ((username == null) ? 0 : username.hashCode());
+      result = 31 * result + ((domain == null) ? 0 : domain.hashCode());
+      result = 31 * result + ((qualifier == null) ? 0 : qualifier.hashCode());
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return connectorName.equals(other.connectorName)
+          && equals(username, other.username)
+          && equals(domain, other.domain)
+          && equals(qualifier, other.qualifier);
+    }
+
+    private static boolean equals(String a, String b) {
+      return (a == null) ? b == null : a.equals(b);
+    }
+  }
+
+  /** A cached value and its expiration time. */
+  private static class Entry<V> {
+    final V value;
+    final long expires;
+
+    Entry(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+}
@@ -67,6 +67,8 @@ public class ProductionManager implements Manager {
 
   Instantiator instantiator;
   private DocumentFilterFactoryFactory documentFilterFactoryFactory = null;
+  private AuthorizationCache authorizationCache = null;
+  private AuthenticationCache authenticationCache = null;
 
   public ProductionManager() {
   }
@@ -88,6 +90,28 @@ public class ProductionManager implements Manager {
     this.documentFilterFactoryFactory = documentFilterFactoryFactory;
   }
 
+  /**
+   * Specify the cache of authorization decisions.
+   *
+   * @param authorizationCache an {@link AuthorizationCache}, or
+   *        {@code null} to not cache authorization decisions
+   * @since 3.4
+   */
+  public void setAuthorizationCache(AuthorizationCache authorizationCache) {
+    this.authorizationCache = authorizationCache;
+  }
+
+  /**
+   * Specify the cache of successful authentication responses.
+   *
+   * @param authenticationCache an {@link AuthenticationCache}, or
+   *        {@code null} to not cache authentication responses
+   * @since 3.4
+   */
+  public void setAuthenticationCache(AuthenticationCache authenticationCache) {
+    this.authenticationCache = authenticationCache;
+  }
+
   /**
    * This was used previously to determine whether feeds supported
    * inherited ACLs. We now assume they do.
@@ -100,6 +124,18 @@ public class ProductionManager implements Manager {
   @Override
   public AuthenticationResponse authenticate(String connectorName,
       AuthenticationIdentity identity) {
+    boolean useCache =
+        authenticationCache != null && authenticationCache.isEnabled();
+    if (useCache) {
+      AuthenticationResponse response =
+          authenticationCache.get(connectorName, identity);
+      if (response != null) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("AUTHENTICATION CACHED: " + identity + ": " + response);
+        }
+        return response;
+      }
+    }
     try {
       AuthenticationManager authnManager =
           instantiator.getAuthenticationManager(connectorName);
@@ -115,6 +151,9 @@ public class ProductionManager implements Manager {
               + (response.isValid() ? "SUCCEEDED" : "FAILED") + ": "
               + identity + ": " + response);
         }
+        if (useCache) {
+          authenticationCache.put(connectorName, identity, response);
+        }
         return response;
       }
     } catch (ConnectorNotFoundException e) {
@@ -151,8 +190,13 @@ public class ProductionManager implements Manager {
       if (LOGGER.isLoggable(Level.FINE)) {
         LOGGER.fine("AUTHORIZE: " + identity + ": docids = " + docidList);
       }
-      Collection<AuthorizationResponse> results =
-          authzManager.authorizeDocids(docidList, identity);
+      Collection<AuthorizationResponse> results;
+      if (authorizationCache != null && authorizationCache.isEnabled()) {
+        results = authorizeDocidsUsingCache(connectorName, authzManager,
+            docidList, identity);
+      } else {
+        results = authzManager.authorizeDocids(docidList, identity);
+      }
       if (LOGGER.isLoggable(Level.FINE)) {
          LOGGER.fine("AUTHORIZATION: " + identity + ": authorized for "
             + results.size() + " of " + docidList.size() + " documents.");
@@ -176,6 +220,43 @@ public class ProductionManager implements Manager {
     return null;
   }
 
+  /**
+   * Authorizes the documents using the cached decisions, if any,
+   * only calling the connector for the remaining documents.
+   */
+  private Collection<AuthorizationResponse> authorizeDocidsUsingCache(
+      String connectorName, AuthorizationManager authzManager,
+      List<String> docidList, AuthenticationIdentity identity)
+      throws RepositoryException {
+    List<AuthorizationResponse> results =
+        new ArrayList<AuthorizationResponse>(docidList.size());
+    List<String> uncachedDocids = new ArrayList<String>();
+    Map<String, AuthorizationResponse.Status> cached =
+        authorizationCache.getAll(connectorName, identity, docidList);
+    for (String docid : docidList) {
+      AuthorizationResponse.Status status = cached.get(docid);
+      if (status == null) {
+        uncachedDocids.add(docid);
+      } else {
+        results.add(new AuthorizationResponse(status, docid));
+      }
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("AUTHORIZATION: " + identity + ": found "
+          + results.size() + " of " + docidList.size()
+          + " documents in the cache.");
+    }
+    if (!uncachedDocids.isEmpty()) {
+      Collection<AuthorizationResponse> responses =
+          authzManager.authorizeDocids(uncachedDocids, identity);
+      if (responses != null) {
+        authorizationCache.putAll(connectorName, identity, responses);
+        results.addAll(responses);
+      }
+    }
+    return results;
+  }
+
   @Override
   public InputStream getDocumentContent(String connectorName, String docid)
       throws ConnectorNotFoundException, InstantiatorException,
@@ -308,11 +389,19 @@ public class ProductionManager implements Manager {
       globalNamespace = configData.get(PropertiesUtils.GOOGLE_GLOBAL_NAMESPACE);
       localNamespace = configData.get(PropertiesUtils.GOOGLE_LOCAL_NAMESPACE);
     }
+    long cacheHits = -1L;
+    long cacheMisses = -1L;
+    if (authorizationCache != null && authorizationCache.isEnabled()) {
+      cacheHits = authorizationCache.getHits(connectorName);
+      cacheMisses = authorizationCache.getMisses(connectorName);
+    }
     // Note: We do not return a null or empty Schedule, as most GSAs cannot
     // handle it.
     // TODO: resolve the third parameter - we need to give status a meaning
     return new ConnectorStatus(connectorName, connectorTypeName, 0,
-        Schedule.toString(schedule), globalNamespace, localNamespace);
+        Schedule.toString(schedule), globalNamespace, localNamespace,
+        cacheHits, cacheMisses,
+        instantiator.getInstantiationMillis(connectorName));
   }
 
   @Override
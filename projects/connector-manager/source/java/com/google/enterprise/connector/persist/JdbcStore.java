@@ -17,22 +17,31 @@ package com.google.enterprise.connector.persist;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.enterprise.connector.common.PropertiesException;
 import com.google.enterprise.connector.common.PropertiesUtils;
 import com.google.enterprise.connector.instantiator.Configuration;
 import com.google.enterprise.connector.scheduler.Schedule;
 import com.google.enterprise.connector.spi.DatabaseResourceBundle;
+import com.google.enterprise.connector.util.database.DatabaseConnectionPool;
 import com.google.enterprise.connector.util.database.DatabaseResourceBundleManager;
 import com.google.enterprise.connector.util.database.JdbcDatabase;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.text.MessageFormat;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -42,8 +51,17 @@ import javax.sql.DataSource;
  * Manage persistence for schedule and state and configuration
  * for a named connector. The persistent store for these data items
  * are columns in a database table, accessed via JDBC.
+ * <p>
+ * If a {@link #setCheckpointFlushInterval checkpoint flush interval} is
+ * set, the connector states are written asynchronously.  Only the latest
+ * state of each connector is written, and the states of all the
+ * connectors are written together, in one transaction.  The states are
+ * also cached, so reading a connector's state does not query the database.
+ * Pending states are written before any other change to the store, before
+ * {@link #getInventory()} returns, and when {@link #flush()} or
+ * {@link #shutdown()} is called.
  */
-public class JdbcStore implements PersistentStore {
+public class JdbcStore implements StampedPersistentStore {
 
   private static final Logger LOGGER =
       Logger.getLogger(JdbcStore.class.getName());
@@ -66,13 +84,44 @@ public class JdbcStore implements PersistentStore {
   /* Cached SQL Resources */
   private String inventoryStampsQuery;
   private String inventoryTypesQuery;
-  private String getValueQuery;
+  private String inventoryStampQuery;
+  private String configurationStampQuery;
+  private String checkpointStampsQuery;
+  private String getValueStatement;
   private String setValueQuery;
+  private String getConnectorsStatement;
+  private String updateValueStatement;
+  private String insertValueStatement;
   private String connectorNameColumn;
   private String modifyStampColumn;
   private String propertyNameColumn;
   private String propertyValueColumn;
 
+  /* Asynchronous checkpoints */
+  private long checkpointFlushInterval = 0L;
+  private final Object checkpointLock = new Object();
+  private final Object flushLock = new Object();
+  /** The cached connector states, guarded by checkpointLock. */
+  private final Map<String, String> cachedStates =
+      new HashMap<String, String>();
+  /** The connector states not yet written, guarded by checkpointLock. */
+  private Map<String, String> pendingStates =
+      new LinkedHashMap<String, String>();
+  /** The connector states being written, guarded by checkpointLock. */
+  private Map<String, String> flushingStates = ImmutableMap.of();
+  private ScheduledThreadPoolExecutor checkpointWriter;
+  private boolean isFlushScheduled = false;
+  private boolean isShutdown = false;
+
+  /* Incremental inventory */
+  private final Object inventoryLock = new Object();
+  /**
+   * The inventory from the last full read, and the stamp of the rows
+   * other than checkpoints when it was read, guarded by inventoryLock.
+   */
+  private ImmutableMap<StoreContext, ConnectorStamps> lastInventory = null;
+  private InventoryStamp lastConfigurationStamp = null;
+
   private synchronized void init() {
     if (resourceBundle != null) {
       return;
@@ -101,11 +150,19 @@ public class JdbcStore implements PersistentStore {
     }
 
     // Cache some SQL resources.
-    // TODO: These queries should really be PreparedStatements.
     inventoryStampsQuery = getResource("getinventory.stamps.query");
     inventoryTypesQuery = getResource("getinventory.types.query");
-    getValueQuery = getResource("getvalue.query");
+    inventoryStampQuery = getResource("getinventory.stamp.query");
+    configurationStampQuery = MessageFormat.format(
+        getResource("getinventory.configstamp.query"), quoteValue(STATE));
+    checkpointStampsQuery = MessageFormat.format(
+        getResource("getinventory.checkpointstamps.query"),
+        quoteValue(STATE));
+    getValueStatement = getResource("getvalue.statement");
     setValueQuery = getResource("setvalue.query");
+    getConnectorsStatement = getResource("getconnectors.statement");
+    updateValueStatement = getResource("updatevalue.statement");
+    insertValueStatement = getResource("insertvalue.statement");
 
     connectorNameColumn = getResource("column.connector_name");
     modifyStampColumn = getResource("column.modify_stamp");
@@ -128,6 +185,90 @@ public class JdbcStore implements PersistentStore {
     return database;
   }
 
+  /**
+   * Sets the interval between writes of connector states.  If positive,
+   * connector states are written asynchronously, at most this often.
+   * If zero, each connector state is written as it is stored, which is
+   * the default.
+   *
+   * @param checkpointFlushInterval the interval in milliseconds, or zero
+   * @since 3.4
+   */
+  public void setCheckpointFlushInterval(long checkpointFlushInterval) {
+    Preconditions.checkArgument(checkpointFlushInterval >= 0,
+        "checkpointFlushInterval must not be negative.");
+    this.checkpointFlushInterval = checkpointFlushInterval;
+  }
+
+  /**
+   * Writes any pending connector states to the database, and waits for
+   * the write to complete.
+   *
+   * @since 3.4
+   */
+  public void flush() {
+    synchronized (flushLock) {
+      Map<String, String> states;
+      synchronized (checkpointLock) {
+        if (pendingStates.isEmpty()) {
+          return;
+        }
+        states = pendingStates;
+        pendingStates = new LinkedHashMap<String, String>();
+        flushingStates = states;
+      }
+      try {
+        writeStates(states);
+        synchronized (checkpointLock) {
+          flushingStates = ImmutableMap.of();
+        }
+      } catch (SQLException e) {
+        LOGGER.log(Level.WARNING, "Failed to store checkpoints for connectors "
+            + states.keySet(), e);
+        // Retry the states that have not been replaced since.
+        synchronized (checkpointLock) {
+          flushingStates = ImmutableMap.of();
+          for (Map.Entry<String, String> entry : states.entrySet()) {
+            if (!pendingStates.containsKey(entry.getKey())) {
+              pendingStates.put(entry.getKey(), entry.getValue());
+            }
+          }
+          scheduleFlush();
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes any pending connector states to the database, and stops the
+   * background writer.  A write already in progress is allowed to
+   * finish.  Connector states stored after shutdown are written as
+   * they are stored.
+   *
+   * @since 3.4
+   */
+  public void shutdown() {
+    ScheduledThreadPoolExecutor writer;
+    synchronized (checkpointLock) {
+      isShutdown = true;
+      writer = checkpointWriter;
+      checkpointWriter = null;
+      isFlushScheduled = false;
+    }
+    if (writer != null) {
+      // Cancel the delayed flush, but let a running one finish.
+      writer.shutdown();
+      try {
+        if (!writer.awaitTermination(30, TimeUnit.SECONDS)) {
+          LOGGER.warning("Timed out waiting for the checkpoint writer.");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+  }
+
   /* Sets the ClassLoader that will be used to locate SQL Resources. */
   @VisibleForTesting
   void setResourceClassLoader(ClassLoader classLoader) {
@@ -157,9 +298,11 @@ public class JdbcStore implements PersistentStore {
   }
 
   /**
-   * Gets the version stamps of all persistent objects.  Reads the entire
-   * connector instance table and extracts the MODIFY_STAMPS for all peristed
-   * data.
+   * Gets the version stamps of all persistent objects.  If only
+   * checkpoints have changed since the last full read, just the checkpoint
+   * stamps are read, and the other stamps are reused.  Otherwise, reads
+   * the entire connector instance table and extracts the MODIFY_STAMPS for
+   * all peristed data.
    *
    * @return an immutable map containing the version stamps; may be
    * empty but not {@code null}
@@ -168,80 +311,219 @@ public class JdbcStore implements PersistentStore {
   public ImmutableMap<StoreContext, ConnectorStamps> getInventory() {
     ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder =
         new ImmutableMap.Builder<StoreContext, ConnectorStamps>();
-    try {
-      init();
-      Connection connection = database.getConnectionPool().getConnection();
+    // Write our own pending states, and forget the cached states, which
+    // may have been changed by another Connector Manager.
+    flush();
+    synchronized (checkpointLock) {
+      // Keep the states that are not yet written, since the database
+      // does not have them.
+      cachedStates.keySet().retainAll(pendingStates.keySet());
+      for (String connectorName : flushingStates.keySet()) {
+        if (!cachedStates.containsKey(connectorName)) {
+          cachedStates.put(connectorName, flushingStates.get(connectorName));
+        }
+      }
+    }
+    synchronized (inventoryLock) {
       try {
-        // TODO: We should consider using a PreparedStatement - however this
-        // is non-trivial when using connection pools.  Try using
-        // MapMaker.makeComputingMap() to map connections to PreparedStatements.
-        Map<String, Map<String, JdbcStamp>> stampAlbum =
-            new HashMap<String, Map<String, JdbcStamp>>();
-
-        // Collect the Stamps for the various interesting properties.
-        Statement statement = connection.createStatement(
-            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        init();
+        Connection connection = database.getConnectionPool().getConnection();
         try {
-          ResultSet resultSet = statement.executeQuery(inventoryStampsQuery);
-          while (resultSet.next()) {
-            String connectorName = resultSet.getString(connectorNameColumn);
-            Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
-            if (stamps == null) {
-              stamps = new HashMap<String, JdbcStamp>();
-              stampAlbum.put(connectorName, stamps);
-            }
-            stamps.put(resultSet.getString(propertyNameColumn),
-                       new JdbcStamp(resultSet.getLong(modifyStampColumn)));
+          // Checkpoints are written far more often than anything else,
+          // notably by the other Connector Managers in a cluster.
+          InventoryStamp configurationStamp =
+              queryInventoryStamp(connection, configurationStampQuery);
+          if (lastInventory != null && configurationStamp != null
+              && configurationStamp.compareTo(lastConfigurationStamp) == 0) {
+            getCheckpointInventory(connection, mapBuilder);
+            return mapBuilder.build();
           }
+          lastInventory = null;
+          getFullInventory(connection, mapBuilder);
+          lastInventory = mapBuilder.build();
+          lastConfigurationStamp = configurationStamp;
+          return lastInventory;
         } finally {
-          statement.close();
+          database.getConnectionPool().releaseConnection(connection);
         }
+      } catch (SQLException e) {
+        LOGGER.log(Level.WARNING, "Failed to retrieve Connector Inventory", e);
+      }
+    }
+    // Finally, construct the inventory.
+    return mapBuilder.build();
+  }
 
-        // Find all connectors with non-null Type, construct a StoreContext
-        // for the connector+type, and build an inventory of that connector's
-        // stamps from the previous query.
-        // (Connectors with no Type have been deleted.)
-        statement = connection.createStatement(
-            ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
-        try {
-          Object[] params = { quoteValue(TYPE) };
-          String query = MessageFormat.format(inventoryTypesQuery, params);
-          ResultSet resultSet = statement.executeQuery(query);
-          while (resultSet.next()) {
-            String connectorName = resultSet.getString(connectorNameColumn);
-            StoreContext storeContext = new StoreContext(connectorName,
-                resultSet.getString(propertyValueColumn));
-            Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
-            ConnectorStamps connectorStamps;
-            if (stamps == null) {
-              connectorStamps = new ConnectorStamps(null, null, null);
-            } else {
-              JdbcStamp mapStamp = stamps.get(MAP);
-              JdbcStamp xmlStamp = stamps.get(XML);
-              JdbcStamp configStamp = new JdbcStamp(
-                  ((mapStamp == null) ? 0L : mapStamp.version) +
-                  ((xmlStamp == null) ? 0L : xmlStamp.version));
-              connectorStamps = new ConnectorStamps(
-                  stamps.get(STATE), configStamp, stamps.get(SCHEDULE));
-            }
-            mapBuilder.put(storeContext, connectorStamps);
-            if (LOGGER.isLoggable(Level.FINE)) {
-              LOGGER.fine("Found connector: name = " + connectorName
-                          + "  type = " + storeContext.getTypeName()
-                          + "  stamps = " + connectorStamps);
-            }
-          }
-        } finally {
-          statement.close();
+  /**
+   * Reads the current checkpoint stamps, and combines them with the
+   * other stamps from the last full read of the inventory.
+   */
+  private void getCheckpointInventory(Connection connection,
+      ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder)
+      throws SQLException {
+    Map<String, JdbcStamp> checkpointStamps = new HashMap<String, JdbcStamp>();
+    Statement statement = connection.createStatement(
+        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    try {
+      ResultSet resultSet = statement.executeQuery(checkpointStampsQuery);
+      while (resultSet.next()) {
+        checkpointStamps.put(resultSet.getString(connectorNameColumn),
+            new JdbcStamp(resultSet.getLong(modifyStampColumn)));
+      }
+    } finally {
+      statement.close();
+    }
+    for (Map.Entry<StoreContext, ConnectorStamps> entry :
+             lastInventory.entrySet()) {
+      ConnectorStamps stamps = entry.getValue();
+      mapBuilder.put(entry.getKey(), new ConnectorStamps(
+          checkpointStamps.get(entry.getKey().getConnectorName()),
+          stamps.getConfigurationStamp(), stamps.getScheduleStamp()));
+    }
+  }
+
+  /** Reads the stamps of all the persistent objects. */
+  private void getFullInventory(Connection connection,
+      ImmutableMap.Builder<StoreContext, ConnectorStamps> mapBuilder)
+      throws SQLException {
+    // TODO: We should consider using a PreparedStatement - however this
+    // is non-trivial when using connection pools.  Try using
+    // MapMaker.makeComputingMap() to map connections to PreparedStatements.
+    Map<String, Map<String, JdbcStamp>> stampAlbum =
+        new HashMap<String, Map<String, JdbcStamp>>();
+
+    // Collect the Stamps for the various interesting properties.
+    Statement statement = connection.createStatement(
+        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    try {
+      ResultSet resultSet = statement.executeQuery(inventoryStampsQuery);
+      while (resultSet.next()) {
+        String connectorName = resultSet.getString(connectorNameColumn);
+        Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
+        if (stamps == null) {
+          stamps = new HashMap<String, JdbcStamp>();
+          stampAlbum.put(connectorName, stamps);
         }
+        stamps.put(resultSet.getString(propertyNameColumn),
+                   new JdbcStamp(resultSet.getLong(modifyStampColumn)));
+      }
+    } finally {
+      statement.close();
+    }
+
+    // Find all connectors with non-null Type, construct a StoreContext
+    // for the connector+type, and build an inventory of that connector's
+    // stamps from the previous query.
+    // (Connectors with no Type have been deleted.)
+    statement = connection.createStatement(
+        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    try {
+      Object[] params = { quoteValue(TYPE) };
+      String query = MessageFormat.format(inventoryTypesQuery, params);
+      ResultSet resultSet = statement.executeQuery(query);
+      while (resultSet.next()) {
+        String connectorName = resultSet.getString(connectorNameColumn);
+        StoreContext storeContext = new StoreContext(connectorName,
+            resultSet.getString(propertyValueColumn));
+        Map<String, JdbcStamp> stamps = stampAlbum.get(connectorName);
+        ConnectorStamps connectorStamps;
+        if (stamps == null) {
+          connectorStamps = new ConnectorStamps(null, null, null);
+        } else {
+          JdbcStamp mapStamp = stamps.get(MAP);
+          JdbcStamp xmlStamp = stamps.get(XML);
+          JdbcStamp configStamp = new JdbcStamp(
+              ((mapStamp == null) ? 0L : mapStamp.version) +
+              ((xmlStamp == null) ? 0L : xmlStamp.version));
+          connectorStamps = new ConnectorStamps(
+              stamps.get(STATE), configStamp, stamps.get(SCHEDULE));
+        }
+        mapBuilder.put(storeContext, connectorStamps);
+        if (LOGGER.isLoggable(Level.FINE)) {
+          LOGGER.fine("Found connector: name = " + connectorName
+                      + "  type = " + storeContext.getTypeName()
+                      + "  stamps = " + connectorStamps);
+        }
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
+  /**
+   * Gets a version stamp for the whole connector instance table, based
+   * upon the number of rows and the sum of their MODIFY_STAMPS.  Every
+   * write to the table increments a MODIFY_STAMP or inserts a row, so
+   * the stamp changes whenever the inventory might have changed.
+   * Pending connector states are not written first, since they are
+   * our own changes.
+   *
+   * @return the stamp, or {@code null} if the query failed
+   * @since 3.4
+   */
+  @Override
+  public Stamp getInventoryStamp() {
+    try {
+      init();
+      Connection connection = database.getConnectionPool().getConnection();
+      try {
+        return queryInventoryStamp(connection, inventoryStampQuery);
       } finally {
         database.getConnectionPool().releaseConnection(connection);
       }
     } catch (SQLException e) {
-      LOGGER.log(Level.WARNING, "Failed to retrieve Connector Inventory", e);
+      LOGGER.log(Level.WARNING, "Failed to retrieve Connector Inventory stamp",
+                 e);
+    }
+    return null;
+  }
+
+  /**
+   * Runs a query for a row count and a sum of MODIFY_STAMPS.
+   *
+   * @return the stamp, or {@code null} if the query returned no rows
+   */
+  private InventoryStamp queryInventoryStamp(Connection connection,
+      String query) throws SQLException {
+    Statement statement = connection.createStatement(
+        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    try {
+      ResultSet resultSet = statement.executeQuery(query);
+      if (resultSet.next()) {
+        return new InventoryStamp(resultSet.getLong(1), resultSet.getLong(2));
+      }
+    } finally {
+      statement.close();
+    }
+    return null;
+  }
+
+  /**
+   * A version stamp for the whole table, based upon the row count and
+   * the sum of the MODIFY_STAMP database fields.
+   */
+  private static class InventoryStamp implements Stamp {
+    final long rows;
+    final long version;
+
+    InventoryStamp(long rows, long version) {
+      this.rows = rows;
+      this.version = version;
+    }
+
+    @Override
+    public int compareTo(Stamp other) {
+      InventoryStamp that = (InventoryStamp) other;
+      if (rows != that.rows) {
+        return (rows < that.rows) ? -1 : 1;
+      }
+      return (version == that.version) ? 0 : (version < that.version) ? -1 : 1;
+    }
+
+    @Override
+    public String toString() {
+      return rows + ":" + version;
     }
-      // Finally, construct the inventory.
-    return mapBuilder.build();
   }
 
   /**
@@ -310,7 +592,31 @@ public class JdbcStore implements PersistentStore {
    */
   @Override
   public String getConnectorState(StoreContext context) {
-    return getField(context, STATE);
+    if (checkpointFlushInterval == 0L) {
+      return getField(context, STATE);
+    }
+    testStoreContext(context);
+    String connectorName = context.getConnectorName();
+    synchronized (checkpointLock) {
+      if (cachedStates.containsKey(connectorName)) {
+        return cachedStates.get(connectorName);
+      }
+      // The database does not yet have the unwritten states.
+      if (pendingStates.containsKey(connectorName)) {
+        return pendingStates.get(connectorName);
+      }
+      if (flushingStates.containsKey(connectorName)) {
+        return flushingStates.get(connectorName);
+      }
+    }
+    String state = getField(context, STATE);
+    synchronized (checkpointLock) {
+      // Don't replace a state stored while we were reading.
+      if (!cachedStates.containsKey(connectorName)) {
+        cachedStates.put(connectorName, state);
+      }
+      return cachedStates.get(connectorName);
+    }
   }
 
   /**
@@ -321,7 +627,129 @@ public class JdbcStore implements PersistentStore {
    */
   @Override
   public void storeConnectorState(StoreContext context, String connectorState) {
-    setField(context, STATE, connectorState);
+    if (checkpointFlushInterval == 0L) {
+      setField(context, STATE, connectorState);
+      return;
+    }
+    testStoreContext(context);
+    boolean writeNow;
+    synchronized (checkpointLock) {
+      cachedStates.put(context.getConnectorName(), connectorState);
+      pendingStates.put(context.getConnectorName(), connectorState);
+      scheduleFlush();
+      writeNow = isShutdown;
+    }
+    if (writeNow) {
+      flush();
+    }
+  }
+
+  /** Schedules a write of the pending states. */
+  /* Must be called holding checkpointLock. */
+  private void scheduleFlush() {
+    if (isFlushScheduled || isShutdown) {
+      return;
+    }
+    if (checkpointWriter == null) {
+      // A daemon thread, so that the checkpoint writer does not prevent
+      // the JVM from exiting.
+      checkpointWriter = new ScheduledThreadPoolExecutor(1,
+          new ThreadFactoryBuilder()
+              .setNameFormat("CheckpointWriter-%d").setDaemon(true).build());
+      checkpointWriter.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+    checkpointWriter.schedule(new Runnable() {
+        @Override
+        public void run() {
+          synchronized (checkpointLock) {
+            isFlushScheduled = false;
+          }
+          flush();
+        }
+      }, checkpointFlushInterval, TimeUnit.MILLISECONDS);
+    isFlushScheduled = true;
+  }
+
+  /**
+   * Writes the supplied connector states in a single transaction.
+   *
+   * @param states a map of connector names to states
+   */
+  private void writeStates(Map<String, String> states) throws SQLException {
+    init();
+    DatabaseConnectionPool pool = database.getConnectionPool();
+    Connection connection = pool.getConnection();
+    boolean originalAutoCommit = true;
+    try {
+      originalAutoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+
+      // Find the connectors that already have a stored state.
+      Set<String> existing = new HashSet<String>();
+      PreparedStatement select =
+          pool.prepareStatement(connection, getConnectorsStatement);
+      select.setString(1, STATE);
+      ResultSet rs = select.executeQuery();
+      try {
+        while (rs.next()) {
+          existing.add(rs.getString(connectorNameColumn));
+        }
+      } finally {
+        rs.close();
+      }
+
+      // The pool caches these statements, so they are not closed here.
+      PreparedStatement update =
+          pool.prepareStatement(connection, updateValueStatement);
+      PreparedStatement insert =
+          pool.prepareStatement(connection, insertValueStatement);
+      boolean hasUpdates = false;
+      boolean hasInserts = false;
+      for (Map.Entry<String, String> entry : states.entrySet()) {
+        if (existing.contains(entry.getKey())) {
+          setNullableString(update, 1, entry.getValue());
+          update.setString(2, entry.getKey());
+          update.setString(3, STATE);
+          update.addBatch();
+          hasUpdates = true;
+        } else {
+          insert.setString(1, entry.getKey());
+          insert.setString(2, STATE);
+          setNullableString(insert, 3, entry.getValue());
+          insert.addBatch();
+          hasInserts = true;
+        }
+      }
+      if (hasUpdates) {
+        update.executeBatch();
+      }
+      if (hasInserts) {
+        insert.executeBatch();
+      }
+      connection.commit();
+      if (LOGGER.isLoggable(Level.FINE)) {
+        LOGGER.fine("Stored checkpoints for connectors " + states.keySet());
+      }
+    } catch (SQLException e) {
+      try {
+        connection.rollback();
+      } catch (SQLException ignored) {}
+      throw e;
+    } finally {
+      try {
+        connection.setAutoCommit(originalAutoCommit);
+      } catch (SQLException ignored) {}
+      pool.releaseConnection(connection);
+    }
+  }
+
+  private static void setNullableString(PreparedStatement statement,
+      int index, String value) throws SQLException {
+    if (value == null) {
+      statement.setNull(index, Types.VARCHAR);
+    } else {
+      statement.setString(index, value);
+    }
   }
 
   /**
@@ -435,22 +863,24 @@ public class JdbcStore implements PersistentStore {
     testStoreContext(context);
     try {
       init();
-      Connection connection = database.getConnectionPool().getConnection();
+      DatabaseConnectionPool pool = database.getConnectionPool();
+      Connection connection = pool.getConnection();
       try {
-        Object[] params =
-            { quoteValue(context.getConnectorName()), quoteValue(fieldName) };
-        String query = MessageFormat.format(getValueQuery, params);
-        Statement stmt = connection.createStatement();
+        // The pool caches the statement, so it is not closed here.
+        PreparedStatement stmt =
+            pool.prepareStatement(connection, getValueStatement);
+        stmt.setString(1, context.getConnectorName());
+        stmt.setString(2, fieldName);
+        ResultSet rs = stmt.executeQuery();
         try {
-          ResultSet rs = stmt.executeQuery(query);
           if (rs.next()) {
             return rs.getString(propertyValueColumn);
           }
         } finally {
-          stmt.close();
+          rs.close();
         }
       } finally {
-        database.getConnectionPool().releaseConnection(connection);
+        pool.releaseConnection(connection);
       }
     } catch (SQLException e) {
       LOGGER.log(Level.WARNING, "Failed to retrieve " + fieldName
@@ -469,6 +899,9 @@ public class JdbcStore implements PersistentStore {
   private void setField(StoreContext context,
                         String fieldName, String fieldValue) {
     testStoreContext(context);
+    // Keep the changes in order, so that a pending state is not written
+    // after its connector is removed.
+    flush();
     Connection connection = null;
     boolean originalAutoCommit = true;
     try {
@@ -0,0 +1,35 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.persist;
+
+/**
+ * A {@link PersistentStore} that can cheaply tell whether any of its
+ * persistent objects might have changed, without building a complete
+ * {@link PersistentStore#getInventory() inventory}.
+ *
+ * @since 3.4
+ */
+public interface StampedPersistentStore extends PersistentStore {
+  /**
+   * Gets a version stamp for the store as a whole.  Any change to a
+   * persistent object should produce a stamp that compares unequal to
+   * the stamps returned before the change.
+   *
+   * @return a version stamp for the whole store, or {@code null} if the
+   * stamp could not be determined
+   */
+  Stamp getInventoryStamp();
+}
@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.pusher;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.enterprise.connector.common.ContentCompressor;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.Context;
 import com.google.enterprise.connector.spi.Document;
@@ -31,12 +32,10 @@ import java.io.OutputStream;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -84,17 +83,34 @@ public class DocPusher implements Pusher {
   private final String connectorName;
 
   /**
-   * ExcecutorService that submits a Feed to the GSA in a separate thread.
-   * This allows us to overlap I/O reading content from the Repository
-   * in the traversal thread, and submitting content to the GSA in
-   * a submitFeed thread.
+   * Pool of threads that submit Feeds to the GSA.  This allows us to
+   * overlap I/O reading content from the Repository in the traversal
+   * thread, and submitting content to the GSA in a feed sender thread.
+   * The pool is shared by all the DocPushers feeding the same GSA.
    */
-  private final ExecutorService feedSender;
+  private final FeedSenderPool feedSenderPool;
 
   /**
-   * This is the list of outstanding asynchronous feed submissions.
+   * Compresses document content in the feeds, reusing Deflaters.
    */
-  private final LinkedList<FutureTask<String>> submissions;
+  private final ContentCompressor contentCompressor;
+
+  /**
+   * This is the list of outstanding asynchronous feed submissions,
+   * in the order they were submitted.
+   */
+  private final LinkedList<FeedSubmission> submissions;
+
+  /**
+   * The outstanding feeds of this connector, shared with its other
+   * DocPushers.
+   */
+  private final FeedSenderPool.ConnectorFeeds connectorFeeds;
+
+  /**
+   * Set once this Pusher has been flushed or canceled.
+   */
+  private volatile boolean isShutdown = false;
 
   /**
    * This is used to build up a multi-record feed.  Documents are added to the
@@ -132,14 +148,67 @@ public class DocPusher implements Pusher {
   public DocPusher(FeedConnection feedConnection, String connectorName,
                    FileSizeLimitInfo fileSizeLimitInfo,
                    DocumentFilterFactory documentFilterFactory) {
+    this(feedConnection, connectorName, fileSizeLimitInfo,
+         documentFilterFactory, new FeedSenderPool());
+  }
+
+  /**
+   * Creates a {@code DocPusher} object from the specified
+   * {@code feedConnection} and {@code connectorName}.  The supplied
+   * {@link FileSizeLimitInfo} specifies constraints as to the size of a
+   * Document's content and the size of generated Feed files.
+   *
+   * @param feedConnection a FeedConnection
+   * @param connectorName The connector name that is the source of the feed
+   * @param fileSizeLimitInfo FileSizeLimitInfo constraints on document content
+   *        and feed size.
+   * @param documentFilterFactory a {@link DocumentFilterFactory} that creates
+   *        document processing filters.
+   * @param feedSenderPool a {@link FeedSenderPool} used to send feeds to
+   *        the {@code feedConnection}.
+   */
+  public DocPusher(FeedConnection feedConnection, String connectorName,
+                   FileSizeLimitInfo fileSizeLimitInfo,
+                   DocumentFilterFactory documentFilterFactory,
+                   FeedSenderPool feedSenderPool) {
+    this(feedConnection, connectorName, fileSizeLimitInfo,
+         documentFilterFactory, feedSenderPool,
+         XmlFeed.DEFAULT_CONTENT_COMPRESSOR);
+  }
+
+  /**
+   * Creates a {@code DocPusher} object from the specified
+   * {@code feedConnection} and {@code connectorName}.  The supplied
+   * {@link FileSizeLimitInfo} specifies constraints as to the size of a
+   * Document's content and the size of generated Feed files.
+   *
+   * @param feedConnection a FeedConnection
+   * @param connectorName The connector name that is the source of the feed
+   * @param fileSizeLimitInfo FileSizeLimitInfo constraints on document content
+   *        and feed size.
+   * @param documentFilterFactory a {@link DocumentFilterFactory} that creates
+   *        document processing filters.
+   * @param feedSenderPool a {@link FeedSenderPool} used to send feeds to
+   *        the {@code feedConnection}.
+   * @param contentCompressor a {@link ContentCompressor} used to compress
+   *        document content.
+   * @since 3.4
+   */
+  public DocPusher(FeedConnection feedConnection, String connectorName,
+                   FileSizeLimitInfo fileSizeLimitInfo,
+                   DocumentFilterFactory documentFilterFactory,
+                   FeedSenderPool feedSenderPool,
+                   ContentCompressor contentCompressor) {
+    this.contentCompressor = contentCompressor;
     this.feedConnection = feedConnection;
     this.connectorName = connectorName;
     this.fileSizeLimit = fileSizeLimitInfo;
     this.documentFilterFactory = documentFilterFactory;
 
     // Initialize background feed submission.
-    this.submissions = new LinkedList<FutureTask<String>>();
-    this.feedSender = Executors.newSingleThreadExecutor();
+    this.submissions = new LinkedList<FeedSubmission>();
+    this.feedSenderPool = feedSenderPool;
+    this.connectorFeeds = feedSenderPool.getConnectorFeeds(connectorName);
   }
 
   /**
@@ -187,7 +256,7 @@ public class DocPusher implements Pusher {
   @Override
   public PusherStatus take(Document document)
       throws PushException, FeedException, RepositoryException {
-    if (feedSender.isShutdown()) {
+    if (isShutdown) {
       return PusherStatus.DISABLED;
     }
     checkSubmissions();
@@ -300,23 +369,25 @@ public class DocPusher implements Pusher {
   @Override
   public void flush() throws PushException, FeedException, RepositoryException {
     checkSubmissions();
-    if (!feedSender.isShutdown()) {
+    if (!isShutdown) {
       if (xmlFeed != null) {
         LOGGER.fine("Flushing accumulated feed to GSA");
         submitFeed();
       }
-      feedSender.shutdown();
+      isShutdown = true;
     }
-    while (!feedSender.isTerminated()) {
-      try {
-        feedSender.awaitTermination(10, TimeUnit.SECONDS);
-      } catch (InterruptedException ie) {
-        if (checkSubmissions() > 0) {
-          throw new FeedException("Interrupted while waiting for feeds.");
+    // Wait for all the outstanding feeds to be sent.
+    synchronized(submissions) {
+      while (checkSubmissions() > 0) {
+        try {
+          submissions.wait(10 * 1000L);
+        } catch (InterruptedException ie) {
+          if (checkSubmissions() > 0) {
+            throw new FeedException("Interrupted while waiting for feeds.");
+          }
         }
       }
     }
-    checkSubmissions();
   }
 
   /**
@@ -327,20 +398,26 @@ public class DocPusher implements Pusher {
     // Discard any feed under construction.
     if (xmlFeed != null) {
       LOGGER.fine("Discarding accumulated feed for " + connectorName);
+      xmlFeed.release();
       xmlFeed = null;
     }
     if (feedLog != null) {
       feedLog = null;
     }
     // Cancel any feeds under asynchronous submission.
-    feedSender.shutdownNow();
+    isShutdown = true;
+    synchronized(submissions) {
+      for (FeedSubmission submission : submissions) {
+        submission.cancel(true);
+      }
+    }
   }
 
   @Override
   public PusherStatus getPusherStatus()
       throws PushException, FeedException, RepositoryException {
     // Is Pusher shutdown?
-    if (feedSender.isShutdown()) {
+    if (isShutdown) {
       return PusherStatus.DISABLED;
     }
 
@@ -350,9 +427,10 @@ public class DocPusher implements Pusher {
       return PusherStatus.LOW_MEMORY;
     }
 
-    // If the number of feeds waiting to be sent has backed up,
+    // If the feeds waiting to be sent have backed up,
     // tell the Traverser to finish this batch.
-    if (checkSubmissions() > 10) {
+    checkSubmissions();
+    if (connectorFeeds.isBacklogged()) {
       return PusherStatus.LOCAL_FEED_BACKLOG;
     } else if (feedConnection.isBacklogged()) {
       return PusherStatus.GSA_FEED_BACKLOG;
@@ -373,15 +451,17 @@ public class DocPusher implements Pusher {
       throws PushException, FeedException, RepositoryException {
     int count = 0;  // Count of outstanding items in the list.
     synchronized(submissions) {
-      ListIterator<FutureTask<String>> iter = submissions.listIterator();
+      ListIterator<FeedSubmission> iter = submissions.listIterator();
       while (iter.hasNext()) {
-        FutureTask<String> future = iter.next();
+        FeedSubmission future = iter.next();
         if (future.isDone()) {
           iter.remove();
           try {
             gsaResponse = future.get();
           } catch (InterruptedException ie) {
             // Shouldn't happen if isDone.
+          } catch (CancellationException ce) {
+            throw new FeedException("Feed submission was canceled.", ce);
           } catch (ExecutionException ee) {
             Throwable cause = ee.getCause();
             if (cause == null) {
@@ -411,7 +491,7 @@ public class DocPusher implements Pusher {
    * @return true if free memory is running low.
    */
   private boolean lowMemory() {
-    long threshold = ((fileSizeLimit.maxFeedSize() + fileSizeLimit.maxDocumentSize()) * 4) / 3;
+    long threshold = (fileSizeLimit.maxFeedMemory() * 4) / 3;
     Runtime rt = Runtime.getRuntime();
     if ((rt.maxMemory() - (rt.totalMemory() - rt.freeMemory())) < threshold) {
       rt.gc();
@@ -445,7 +525,7 @@ public class DocPusher implements Pusher {
       try {
         // Allocate XmlFeed of the target size.
         xmlFeed = new XmlFeed(connectorName, feedType, fileSizeLimit, feedLog,
-            feedConnection);
+            feedConnection, contentCompressor);
       } catch (OutOfMemoryError me) {
         // We shouldn't even have gotten this far under a low memory condition.
         // However, try to allocate a tiny feed buffer.  It should fill up on
@@ -457,9 +537,10 @@ public class DocPusher implements Pusher {
         FileSizeLimitInfo newLimit = new FileSizeLimitInfo();
         newLimit.setMaxFeedSize(feedSize);
         newLimit.setMaxDocumentSize(fileSizeLimit.maxDocumentSize());
+        newLimit.setFeedSpoolThreshold(fileSizeLimit.feedSpoolThreshold());
         try {
           xmlFeed = new XmlFeed(connectorName, feedType, newLimit, feedLog,
-              feedConnection);
+              feedConnection, contentCompressor);
         } catch (OutOfMemoryError oome) {
           throw new OutOfMemoryError(
                "Unable to allocate feed buffer for connector " + connectorName);
@@ -499,31 +580,72 @@ public class DocPusher implements Pusher {
     try {
       feed.close();
     } catch (IOException ioe) {
+      feed.release();
       throw new PushException("Error closing feed", ioe);
     }
 
-    try {
-      // Send the feed to the GSA in a separate thread.
-      FutureTask<String> future = new FutureTask<String> (
-          new Callable<String>() {
-            public String call()
-                throws PushException, FeedException, RepositoryException {
-              try {
-                NDC.push("Feed " + feed.getDataSource());
-                return submitFeed(feed, logMessage);
-              } finally {
-                NDC.remove();
+    // Send the feed to the GSA in a separate thread.
+    final long queuedTime = System.currentTimeMillis();
+    FeedSubmission future = new FeedSubmission(feed,
+        new Callable<String>() {
+          public String call()
+              throws PushException, FeedException, RepositoryException {
+            long startTime = System.currentTimeMillis();
+            boolean isSent = false;
+            try {
+              NDC.push("Feed " + feed.getDataSource());
+              String response = submitFeed(feed, logMessage);
+              isSent = true;
+              return response;
+            } finally {
+              NDC.remove();
+              if (isSent) {
+                feedSenderPool.recordSend(feed.getDataSource(), feed.size(),
+                    startTime - queuedTime,
+                    System.currentTimeMillis() - startTime);
+              } else {
+                feedSenderPool.recordFailure(feed.getDataSource(),
+                    feed.size());
               }
             }
           }
-        );
-      feedSender.execute(future);
-      // Add the future to list of outstanding submissions.
+        }
+      );
+    // Add the future to list of outstanding submissions.
+    synchronized(submissions) {
+      submissions.add(future);
+      try {
+        connectorFeeds.submit(future, future.size);
+      } catch (RejectedExecutionException ree) {
+        future.cancel(false);
+        feedSenderPool.recordFailure(feed.getDataSource(), future.size);
+        throw new FeedException("Asynchronous feed was rejected. ", ree);
+      }
+    }
+  }
+
+  /**
+   * An asynchronous feed submission.  This keeps a reference to the
+   * feed, so that its resources may be released once it is sent or
+   * canceled.
+   */
+  private class FeedSubmission extends FutureTask<String> {
+    private final XmlFeed feed;
+    private final int size;
+
+    FeedSubmission(XmlFeed feed, Callable<String> callable) {
+      super(callable);
+      this.feed = feed;
+      this.size = feed.size();
+    }
+
+    @Override
+    protected void done() {
+      feed.release();
+      connectorFeeds.done(this, size);
       synchronized(submissions) {
-        submissions.add(future);
+        submissions.notifyAll();
       }
-    } catch (RejectedExecutionException ree) {
-      throw new FeedException("Asynchronous feed was rejected. ", ree);
     }
   }
 
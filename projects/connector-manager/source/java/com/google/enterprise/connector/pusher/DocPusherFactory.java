@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.pusher;
 
+import com.google.enterprise.connector.common.ContentCompressor;
 import com.google.enterprise.connector.instantiator.DocumentFilterFactoryFactory;
 import com.google.enterprise.connector.instantiator.DocumentFilterFactoryFactoryImpl;
 import com.google.enterprise.connector.traversal.FileSizeLimitInfo;
@@ -52,6 +53,18 @@ public class DocPusherFactory implements PusherFactory {
    */
   private final DocumentFilterFactoryFactory documentFilterFactoryFactory;
 
+  /**
+   * The pool of threads used by all the {@link DocPusher DocPushers}
+   * to send feeds to the {@code feedConnection}.
+   */
+  private final FeedSenderPool feedSenderPool;
+
+  /**
+   * Compresses document content for all the {@link DocPusher DocPushers}.
+   */
+  private ContentCompressor contentCompressor =
+      XmlFeed.DEFAULT_CONTENT_COMPRESSOR;
+
   /**
    * Creates a {@code DocPusherFactory} object from the specified
    * {@code feedConnection}.  This constructor is Used by the tests.
@@ -78,18 +91,61 @@ public class DocPusherFactory implements PusherFactory {
   public DocPusherFactory(FeedConnection feedConnection,
       FileSizeLimitInfo fileSizeLimit,
       DocumentFilterFactoryFactory documentFilterFactoryFactory) {
+    this(feedConnection, fileSizeLimit, documentFilterFactoryFactory,
+         new FeedSenderPool());
+  }
+
+  /**
+   * Creates a {@code DocPusherFactory} object from the specified
+   * {@code feedConnection}.  The supplied {@link FileSizeLimitInfo} specifies
+   * constraints as to the size of a Document's content and the size of
+   * generated Feed files.
+   *
+   * @param feedConnection a {@link FeedConnection} sink for documents.
+   * @param fileSizeLimit {@link FileSizeLimitInfo} constraints on document
+   *        content and feed size.
+   * @param documentFilterFactoryFactory a {@link DocumentFilterFactoryFactory}
+   *        that will be used to create document processing filters.
+   * @param feedSenderPool a {@link FeedSenderPool} that will be used to
+   *        send feeds to the {@code feedConnection}.
+   */
+  public DocPusherFactory(FeedConnection feedConnection,
+      FileSizeLimitInfo fileSizeLimit,
+      DocumentFilterFactoryFactory documentFilterFactoryFactory,
+      FeedSenderPool feedSenderPool) {
     this.feedConnection = feedConnection;
     this.fileSizeLimit = fileSizeLimit;
     this.documentFilterFactoryFactory = documentFilterFactoryFactory;
+    this.feedSenderPool = feedSenderPool;
 
     LOGGER.config(feedConnection.toString());
     LOGGER.config(fileSizeLimit.toString());
     LOGGER.config(documentFilterFactoryFactory.toString());
+    LOGGER.config(feedSenderPool.toString());
+  }
+
+  /**
+   * Sets the {@link ContentCompressor} used to compress document content.
+   *
+   * @param contentCompressor a {@link ContentCompressor}
+   * @since 3.4
+   */
+  public void setContentCompressor(ContentCompressor contentCompressor) {
+    this.contentCompressor = contentCompressor;
+    LOGGER.config(contentCompressor.toString());
+  }
+
+  /**
+   * Returns the {@link FeedSenderPool} used to send feeds.
+   */
+  public FeedSenderPool getFeedSenderPool() {
+    return feedSenderPool;
   }
 
   @Override
   public Pusher newPusher(String dataSource) {
     return new DocPusher(feedConnection, dataSource, fileSizeLimit,
-        documentFilterFactoryFactory.getDocumentFilterFactory(dataSource));
+        documentFilterFactoryFactory.getDocumentFilterFactory(dataSource),
+        feedSenderPool, contentCompressor);
   }
 }
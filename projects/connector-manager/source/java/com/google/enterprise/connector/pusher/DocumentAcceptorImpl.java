@@ -27,16 +27,29 @@ import java.util.logging.Logger;
 /**
  * Implementation for {@link DocumentAcceptor} - something that takes spi
  * Documents and sends them along on their way.
+ * <p>
+ * Lister threads may submit documents concurrently.  Documents are added
+ * to one of several independent feeds, chosen by the submitting thread,
+ * so that threads using different feeds do not wait for each other.
+ * If the feeds are backlogged, the submitting thread waits for the
+ * backlog to clear, checking more slowly the longer it persists.
  */
 // TODO: Impose Error delay where appropriate.
 public class DocumentAcceptorImpl implements DocumentAcceptor {
   private static final Logger LOGGER =
       Logger.getLogger(DocumentAcceptorImpl.class.getName());
 
+  /**
+   * The first wait for a backlog to clear is this fraction of the
+   * maximum wait. Later waits are doubled, up to the maximum.
+   */
+  private static final int BACKOFF_STEPS = 32;
+
   private final String connectorName;
   private final PusherFactory pusherFactory;
 
-  private Pusher pusher;
+  /** The independent feeds, each built by its own Pusher. */
+  private final FeedBuilder[] feedBuilders;
 
   // Sleep milliseconds when waiting for Pusher to resume OK status.
   private long shortSleep = 30 * 1000L;
@@ -45,8 +58,30 @@ public class DocumentAcceptorImpl implements DocumentAcceptor {
 
   public DocumentAcceptorImpl(String connectorName, PusherFactory pusherFactory)
       throws DocumentAcceptorException, RepositoryException {
+    this(connectorName, pusherFactory, 1);
+  }
+
+  /**
+   * Constructs a {@code DocumentAcceptor} that spreads the documents
+   * submitted by concurrent threads over several feeds.
+   *
+   * @param connectorName the name of the connector
+   * @param pusherFactory creates a {@link Pusher} for each feed
+   * @param feedBuilders the number of feeds that may be built concurrently;
+   *        must be positive
+   * @since 3.4
+   */
+  public DocumentAcceptorImpl(String connectorName, PusherFactory pusherFactory,
+      int feedBuilders) throws DocumentAcceptorException, RepositoryException {
+    if (feedBuilders <= 0) {
+      throw new IllegalArgumentException("feedBuilders must be positive.");
+    }
     this.connectorName = connectorName;
     this.pusherFactory = pusherFactory;
+    this.feedBuilders = new FeedBuilder[feedBuilders];
+    for (int i = 0; i < feedBuilders; i++) {
+      this.feedBuilders[i] = new FeedBuilder();
+    }
   }
 
   /* Used by tests to shorten sleep times. */
@@ -56,6 +91,15 @@ public class DocumentAcceptorImpl implements DocumentAcceptor {
     this.retryCount = retryCount;
   }
 
+  /**
+   * Returns the feed used by the current thread.  Each thread consistently
+   * uses the same feed, so that its documents are fed in order.
+   */
+  private FeedBuilder getFeedBuilder() {
+    long id = Thread.currentThread().getId();
+    return feedBuilders[(int) (id % feedBuilders.length)];
+  }
+
   /**
    * Takes an spi Document and pushes it along, presumably to the GSA Feed.
    *
@@ -65,25 +109,12 @@ public class DocumentAcceptorImpl implements DocumentAcceptor {
    * @throws DocumentAcceptorException if a transient error occurs in the
    *         DocumentAcceptor
    */
-  public synchronized void take(Document document)
+  public void take(Document document)
       throws DocumentAcceptorException, RepositoryException {
+    FeedBuilder feedBuilder = getFeedBuilder();
     try {
-      if (pusher.take(document) != PusherStatus.OK) {
-        waitForOkStatus();
-      }
-    } catch (NullPointerException e) {
-      // Ugly, but avoids checking for null Pusher on every call to take.
-      if (pusher == null) {
-        // Opps. We need to get a new Pusher.
-        try {
-          pusher = pusherFactory.newPusher(connectorName);
-          this.take(document);
-        } catch (PushException pe) {
-          LOGGER.log(Level.SEVERE, "DocumentAcceptor failed to get Pusher", e);
-          throw new DocumentAcceptorException("Failed to get Pusher", e);
-        }
-      } else {
-        throw e;
+      if (feedBuilder.take(document) != PusherStatus.OK) {
+        waitForOkStatus(feedBuilder);
       }
     } catch (PushException e) {
       LOGGER.log(Level.SEVERE, "DocumentAcceptor failed to take document", e);
@@ -95,30 +126,50 @@ public class DocumentAcceptorImpl implements DocumentAcceptor {
       LOGGER.log(Level.WARNING, "DocumentAcceptor failed to take document", e);
       throw e;
     } catch (InterruptedException e) {
-      // Woke from sleep. Just return.
+      // Woke from sleep. Just return, but leave the thread interrupted.
+      Thread.currentThread().interrupt();
     }
   }
 
   /**
    * Wait for the PusherStatus to clear. But don't wait forever.
+   * The status is checked frequently at first, then less often the
+   * longer the backlog persists, without waiting longer in total than
+   * {@code retryCount} sleeps.
    */
-  private void waitForOkStatus() throws PushException,
+  private void waitForOkStatus(FeedBuilder feedBuilder) throws PushException,
       FeedException, RepositoryException, InterruptedException {
-    for (int retries = 0; retries < retryCount; retries++) {
-      switch (pusher.getPusherStatus()) {
+    long waited = 0L;
+    long sleep = 0L;
+    while (true) {
+      PusherStatus status = feedBuilder.getPusherStatus();
+      long maxSleep;
+      switch (status) {
         case OK:
-          return;
         case DISABLED:
-          // This is not likely, but trigger getting a new Pusher.
-          throw new NullPointerException();
-        case LOW_MEMORY:
-        case LOCAL_FEED_BACKLOG:
-          Thread.sleep(shortSleep);
-          break;
+          // A disabled Pusher is replaced by the next call to take.
+          return;
         case GSA_FEED_BACKLOG:
-          Thread.sleep(longSleep);
+          maxSleep = longSleep;
+          break;
+        default:
+          // LOW_MEMORY, LOCAL_FEED_BACKLOG
+          maxSleep = shortSleep;
           break;
       }
+      long remaining = retryCount * maxSleep - waited;
+      if (remaining <= 0) {
+        return;
+      }
+      sleep = Math.min(maxSleep, (sleep == 0L)
+          ? Math.max(1L, maxSleep / BACKOFF_STEPS) : sleep * 2);
+      long delay = Math.min(sleep, remaining);
+      if (LOGGER.isLoggable(Level.FINEST)) {
+        LOGGER.finest("Waiting " + delay + " ms for " + status + " to clear"
+            + " for connector " + connectorName);
+      }
+      Thread.sleep(delay);
+      waited += delay;
     }
   }
 
@@ -133,12 +184,11 @@ public class DocumentAcceptorImpl implements DocumentAcceptor {
    * @throws DocumentAcceptorException if a transient error occurs in the
    *         DocumentAcceptor
    */
-  public synchronized void flush()
+  public void flush()
       throws DocumentAcceptorException, RepositoryException {
     try {
-      if (pusher != null) {
-        pusher.flush();
-        pusher = null;
+      for (FeedBuilder feedBuilder : feedBuilders) {
+        feedBuilder.flush();
       }
     } catch (PushException e) {
       LOGGER.log(Level.SEVERE, "DocumentAcceptor failed to flush feed.", e);
@@ -157,10 +207,68 @@ public class DocumentAcceptorImpl implements DocumentAcceptor {
    * documents submitted to this DocumentAcceptor may have already been
    * sent on to the GSA.
    */
-  public synchronized void cancel() {
-    if (pusher != null) {
-      pusher.cancel();
-      pusher = null;
+  public void cancel() {
+    for (FeedBuilder feedBuilder : feedBuilders) {
+      feedBuilder.cancel();
+    }
+  }
+
+  /**
+   * One of the feeds, and the {@link Pusher} that builds it.  A Pusher
+   * is not thread-safe, so each is used by one thread at a time.
+   */
+  private class FeedBuilder {
+    private Pusher pusher;
+
+    public synchronized PusherStatus take(Document document)
+        throws DocumentAcceptorException, PushException, FeedException,
+        RepositoryException {
+      if (pusher == null) {
+        pusher = newPusher();
+      }
+      PusherStatus status = pusher.take(document);
+      if (status == PusherStatus.DISABLED) {
+        // The Pusher has been shut down.  Get a new Pusher and try again.
+        pusher = newPusher();
+        status = pusher.take(document);
+      }
+      return status;
+    }
+
+    public synchronized PusherStatus getPusherStatus()
+        throws PushException, FeedException, RepositoryException {
+      if (pusher == null) {
+        return PusherStatus.DISABLED;
+      }
+      PusherStatus status = pusher.getPusherStatus();
+      if (status == PusherStatus.DISABLED) {
+        pusher = null;
+      }
+      return status;
+    }
+
+    public synchronized void flush()
+        throws PushException, FeedException, RepositoryException {
+      if (pusher != null) {
+        pusher.flush();
+        pusher = null;
+      }
+    }
+
+    public synchronized void cancel() {
+      if (pusher != null) {
+        pusher.cancel();
+        pusher = null;
+      }
+    }
+
+    private Pusher newPusher() throws DocumentAcceptorException {
+      try {
+        return pusherFactory.newPusher(connectorName);
+      } catch (PushException e) {
+        LOGGER.log(Level.SEVERE, "DocumentAcceptor failed to get Pusher", e);
+        throw new DocumentAcceptorException("Failed to get Pusher", e);
+      }
     }
   }
 }
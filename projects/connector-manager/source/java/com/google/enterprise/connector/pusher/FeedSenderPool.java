@@ -0,0 +1,457 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * A pool of threads that send feeds to a feed host, shared by all the
+ * {@link DocPusher DocPushers} that feed that host.  The pool also holds
+ * the per-connector limits on outstanding feeds, and collects statistics
+ * on the feeds sent.  The outstanding feeds of a connector are counted
+ * together, and sent in order, however many {@code DocPushers} the
+ * connector uses.  The statistics are available through the
+ * {@link FeedSenderPoolMBean} interface, once {@link #registerMBean} has
+ * been called.
+ */
+public class FeedSenderPool implements FeedSenderPoolMBean {
+  private static final Logger LOGGER =
+      Logger.getLogger(FeedSenderPool.class.getName());
+
+  /** Idle feed sender threads exit after this many seconds. */
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
+  /** The number of feeds that may be sent concurrently to the feed host. */
+  private int threads = 10;
+
+  /** The number of feeds per connector that may be sent concurrently. */
+  private int connectorThreads = 1;
+
+  /** The number of outstanding feeds per connector that is a backlog. */
+  private int connectorBacklogFeeds = 10;
+
+  /** The number of outstanding bytes per connector that is a backlog. */
+  private long connectorBacklogBytes = 104857600L;
+
+  /** The lazily constructed executor. */
+  private ThreadPoolExecutor executor;
+
+  /** The outstanding feeds of each connector. */
+  private final Map<String, ConnectorFeeds> connectorFeeds =
+      new HashMap<String, ConnectorFeeds>();
+
+  /** The JMX name of this pool, or null if not registered. */
+  private ObjectName mbeanName;
+
+  // Statistics.
+  private final AtomicLong feedsSent = new AtomicLong();
+  private final AtomicLong bytesSent = new AtomicLong();
+  private final AtomicLong feedsFailed = new AtomicLong();
+  private final AtomicLong bytesFailed = new AtomicLong();
+  private final AtomicLong totalSendMillis = new AtomicLong();
+  private final AtomicLong totalWaitMillis = new AtomicLong();
+  private final AtomicLong maxSendMillis = new AtomicLong();
+
+  /**
+   * Sets the number of feeds that may be sent concurrently to the feed
+   * host, by all connectors combined.
+   *
+   * @param threads the number of feed sender threads; must be positive
+   */
+  public synchronized void setThreads(int threads) {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("threads must be positive.");
+    }
+    this.threads = threads;
+    if (executor != null) {
+      if (threads > executor.getMaximumPoolSize()) {
+        executor.setMaximumPoolSize(threads);
+        executor.setCorePoolSize(threads);
+      } else {
+        executor.setCorePoolSize(threads);
+        executor.setMaximumPoolSize(threads);
+      }
+    }
+  }
+
+  @Override
+  public synchronized int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Sets the number of feeds from a single connector that may be sent
+   * concurrently.  Values greater than one allow feeds from a connector
+   * to arrive at the feed host out of order.
+   *
+   * @param connectorThreads the number of concurrent feeds per connector;
+   *        must be positive
+   */
+  public void setConnectorThreads(int connectorThreads) {
+    if (connectorThreads <= 0) {
+      throw new IllegalArgumentException(
+          "connectorThreads must be positive.");
+    }
+    this.connectorThreads = connectorThreads;
+  }
+
+  @Override
+  public int getConnectorThreads() {
+    return connectorThreads;
+  }
+
+  /**
+   * Sets the number of outstanding feeds from a single connector,
+   * sending or waiting to be sent, beyond which the connector is
+   * considered backlogged.  A value of zero disables this check.
+   */
+  public void setConnectorBacklogFeeds(int connectorBacklogFeeds) {
+    if (connectorBacklogFeeds < 0) {
+      throw new IllegalArgumentException(
+          "connectorBacklogFeeds must not be negative.");
+    }
+    this.connectorBacklogFeeds = connectorBacklogFeeds;
+  }
+
+  @Override
+  public int getConnectorBacklogFeeds() {
+    return connectorBacklogFeeds;
+  }
+
+  /**
+   * Sets the number of outstanding feed bytes from a single connector,
+   * sending or waiting to be sent, beyond which the connector is
+   * considered backlogged.  A value of zero disables this check.
+   */
+  public void setConnectorBacklogBytes(long connectorBacklogBytes) {
+    if (connectorBacklogBytes < 0) {
+      throw new IllegalArgumentException(
+          "connectorBacklogBytes must not be negative.");
+    }
+    this.connectorBacklogBytes = connectorBacklogBytes;
+  }
+
+  @Override
+  public long getConnectorBacklogBytes() {
+    return connectorBacklogBytes;
+  }
+
+  /**
+   * Returns {@code true} if the supplied counts of outstanding feeds
+   * and bytes for a connector constitute a backlog.
+   */
+  boolean isBacklogged(int feeds, long bytes) {
+    return (connectorBacklogFeeds > 0 && feeds > connectorBacklogFeeds)
+        || (connectorBacklogBytes > 0 && bytes > connectorBacklogBytes);
+  }
+
+  /**
+   * Returns the outstanding feeds of the named connector, which are
+   * shared by all of the connector's {@link DocPusher DocPushers}.
+   */
+  synchronized ConnectorFeeds getConnectorFeeds(String connectorName) {
+    ConnectorFeeds feeds = connectorFeeds.get(connectorName);
+    if (feeds == null) {
+      feeds = new ConnectorFeeds();
+      connectorFeeds.put(connectorName, feeds);
+    }
+    return feeds;
+  }
+
+  /**
+   * Executes a feed submission on one of the feed sender threads.
+   *
+   * @throws java.util.concurrent.RejectedExecutionException if the
+   *         pool has been shut down
+   */
+  void execute(Runnable submission) {
+    getExecutor().execute(submission);
+  }
+
+  /** Returns the number of feeds waiting for a feed sender thread. */
+  @Override
+  public synchronized int getQueueDepth() {
+    return (executor == null) ? 0 : executor.getQueue().size();
+  }
+
+  /** Returns the number of feeds currently being sent. */
+  @Override
+  public synchronized int getActiveCount() {
+    return (executor == null) ? 0 : executor.getActiveCount();
+  }
+
+  /** Returns the number of feeds sent. */
+  @Override
+  public long getFeedsSent() {
+    return feedsSent.get();
+  }
+
+  /** Returns the number of feed bytes sent. */
+  @Override
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  /** Returns the number of feeds that failed or were rejected. */
+  @Override
+  public long getFeedsFailed() {
+    return feedsFailed.get();
+  }
+
+  /** Returns the number of bytes in the feeds that failed. */
+  @Override
+  public long getBytesFailed() {
+    return bytesFailed.get();
+  }
+
+  /** Returns the average time taken to send a feed, in milliseconds. */
+  @Override
+  public long getAverageSendMillis() {
+    long feeds = feedsSent.get();
+    return (feeds == 0) ? 0 : totalSendMillis.get() / feeds;
+  }
+
+  /**
+   * Returns the average time a feed waited for a feed sender thread,
+   * in milliseconds.
+   */
+  @Override
+  public long getAverageWaitMillis() {
+    long feeds = feedsSent.get();
+    return (feeds == 0) ? 0 : totalWaitMillis.get() / feeds;
+  }
+
+  /** Returns the longest time taken to send a feed, in milliseconds. */
+  @Override
+  public long getMaxSendMillis() {
+    return maxSendMillis.get();
+  }
+
+  /**
+   * Records the statistics for a single feed that was sent successfully.
+   *
+   * @param dataSource the data source of the feed
+   * @param bytes the size of the feed
+   * @param waitMillis the time the feed waited to be sent
+   * @param sendMillis the time taken to send the feed
+   */
+  void recordSend(String dataSource, long bytes, long waitMillis,
+      long sendMillis) {
+    feedsSent.incrementAndGet();
+    bytesSent.addAndGet(bytes);
+    totalWaitMillis.addAndGet(waitMillis);
+    totalSendMillis.addAndGet(sendMillis);
+    long max;
+    while (sendMillis > (max = maxSendMillis.get())) {
+      if (maxSendMillis.compareAndSet(max, sendMillis)) {
+        break;
+      }
+    }
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Sent " + bytes + " byte feed for " + dataSource + " in "
+          + sendMillis + " ms, after waiting " + waitMillis + " ms. "
+          + getActiveCount() + " feeds sending, " + getQueueDepth()
+          + " feeds waiting.");
+    }
+  }
+
+  /**
+   * Records a feed that could not be sent.
+   *
+   * @param dataSource the data source of the feed
+   * @param bytes the size of the feed
+   */
+  void recordFailure(String dataSource, long bytes) {
+    feedsFailed.incrementAndGet();
+    bytesFailed.addAndGet(bytes);
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Failed to send " + bytes + " byte feed for " + dataSource
+          + ". " + getActiveCount() + " feeds sending, " + getQueueDepth()
+          + " feeds waiting.");
+    }
+  }
+
+  /**
+   * Registers this pool with the platform {@code MBeanServer}.
+   * Failures are logged, since the statistics are not essential.
+   */
+  public synchronized void registerMBean() {
+    if (mbeanName != null) {
+      return;
+    }
+    try {
+      ObjectName name = new ObjectName(
+          "com.google.enterprise.connector:type=FeedSenderPool,name="
+          + ObjectName.quote(
+              Integer.toHexString(System.identityHashCode(this))));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      mbeanName = name;
+    } catch (JMException e) {
+      LOGGER.log(Level.WARNING,
+          "Failed to register the feed sender pool with JMX", e);
+    }
+  }
+
+  /**
+   * Returns the JMX name of this pool, or {@code null} if it is not
+   * registered.
+   */
+  public synchronized ObjectName getMBeanName() {
+    return mbeanName;
+  }
+
+  /**
+   * Shuts down the feed sender threads, and unregisters this pool from
+   * the {@code MBeanServer}.  Feeds already submitted are still sent.
+   */
+  public synchronized void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+    if (mbeanName != null) {
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(mbeanName)) {
+          server.unregisterMBean(mbeanName);
+        }
+      } catch (JMException e) {
+        LOGGER.log(Level.WARNING,
+            "Failed to unregister the feed sender pool from JMX", e);
+      }
+      mbeanName = null;
+    }
+  }
+
+  /**
+   * The outstanding feeds of one connector, sending or waiting to be sent.
+   * The feeds are handed to the feed sender threads in the order they were
+   * submitted, no more than {@link #getConnectorThreads} at a time.
+   */
+  class ConnectorFeeds {
+    private final LinkedList<FutureTask<?>> waiting =
+        new LinkedList<FutureTask<?>>();
+    private int running = 0;
+    private int outstandingFeeds = 0;
+    private long outstandingBytes = 0L;
+
+    /**
+     * Submits a feed to be sent.  The feed's {@code done} method must
+     * call {@link #done}.
+     *
+     * @param feed the feed submission
+     * @param bytes the size of the feed
+     * @throws RejectedExecutionException if the pool has been shut down
+     */
+    synchronized void submit(FutureTask<?> feed, long bytes) {
+      outstandingFeeds++;
+      outstandingBytes += bytes;
+      waiting.add(feed);
+      runWaiting();
+    }
+
+    /**
+     * Records that a feed submission is done, whether it was sent or
+     * canceled, and sends the next waiting feeds.
+     *
+     * @param feed the feed submission
+     * @param bytes the size of the feed
+     */
+    void done(FutureTask<?> feed, long bytes) {
+      LinkedList<FutureTask<?>> rejected = null;
+      synchronized (this) {
+        outstandingFeeds--;
+        outstandingBytes -= bytes;
+        if (!waiting.remove(feed)) {
+          running--;
+        }
+        try {
+          runWaiting();
+        } catch (RejectedExecutionException ree) {
+          LOGGER.log(Level.WARNING, "Asynchronous feed was rejected.", ree);
+          rejected = new LinkedList<FutureTask<?>>(waiting);
+        }
+      }
+      // Cancel outside the lock, as canceling calls back into done.
+      if (rejected != null) {
+        for (FutureTask<?> waitingFeed : rejected) {
+          waitingFeed.cancel(false);
+        }
+      }
+    }
+
+    /** Returns {@code true} if this connector is backlogged. */
+    synchronized boolean isBacklogged() {
+      return FeedSenderPool.this.isBacklogged(outstandingFeeds,
+          outstandingBytes);
+    }
+
+    private void runWaiting() {
+      while (running < connectorThreads && !waiting.isEmpty()) {
+        FutureTask<?> feed = waiting.getFirst();
+        execute(feed);
+        waiting.removeFirst();
+        running++;
+      }
+    }
+  }
+
+  private synchronized ThreadPoolExecutor getExecutor() {
+    if (executor == null) {
+      // Daemon threads, so that idle feed senders do not prevent the
+      // JVM from exiting.
+      executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder()
+              .setNameFormat("FeedSender-%d").setDaemon(true).build());
+      // Don't hold on to idle threads.
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  @Override
+  public String toString() {
+    return "FeedSenderPool: threads = " + threads
+        + ", connectorThreads = " + connectorThreads
+        + ", connectorBacklogFeeds = " + connectorBacklogFeeds
+        + ", connectorBacklogBytes = " + connectorBacklogBytes
+        + ", feedsSent = " + getFeedsSent()
+        + ", bytesSent = " + getBytesSent()
+        + ", feedsFailed = " + getFeedsFailed()
+        + ", bytesFailed = " + getBytesFailed()
+        + ", averageSendMillis = " + getAverageSendMillis()
+        + ", maxSendMillis = " + getMaxSendMillis()
+        + ", averageWaitMillis = " + getAverageWaitMillis()
+        + ", activeCount = " + getActiveCount()
+        + ", queueDepth = " + getQueueDepth();
+  }
+}
@@ -0,0 +1,67 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+/**
+ * The settings and statistics of a {@link FeedSenderPool}, as exposed
+ * through JMX.  The Connector Manager registers its pool with the
+ * platform {@code MBeanServer}, so the statistics may be watched with
+ * {@code jconsole} or any other JMX client.
+ *
+ * @since 3.4
+ */
+public interface FeedSenderPoolMBean {
+  /** Returns the number of feeds that may be sent concurrently. */
+  int getThreads();
+
+  /** Returns the number of feeds per connector sent concurrently. */
+  int getConnectorThreads();
+
+  /** Returns the number of outstanding feeds per connector in a backlog. */
+  int getConnectorBacklogFeeds();
+
+  /** Returns the number of outstanding bytes per connector in a backlog. */
+  long getConnectorBacklogBytes();
+
+  /** Returns the number of feeds waiting for a feed sender thread. */
+  int getQueueDepth();
+
+  /** Returns the number of feeds currently being sent. */
+  int getActiveCount();
+
+  /** Returns the number of feeds sent. */
+  long getFeedsSent();
+
+  /** Returns the number of feed bytes sent. */
+  long getBytesSent();
+
+  /** Returns the number of feeds that failed or were rejected. */
+  long getFeedsFailed();
+
+  /** Returns the number of bytes in the feeds that failed. */
+  long getBytesFailed();
+
+  /** Returns the average time taken to send a feed, in milliseconds. */
+  long getAverageSendMillis();
+
+  /**
+   * Returns the average time a feed waited for a feed sender thread,
+   * in milliseconds.
+   */
+  long getAverageWaitMillis();
+
+  /** Returns the longest time taken to send a feed, in milliseconds. */
+  long getMaxSendMillis();
+}
@@ -14,7 +14,6 @@
 
 package com.google.enterprise.connector.pusher;
 
-import java.io.ByteArrayOutputStream;
 import java.util.logging.Logger;
 
 /**
@@ -36,7 +35,7 @@ public class NullFeedConnection implements FeedConnection {
 
   @Override
   public String sendData(FeedData feedData) {
-    ByteArrayOutputStream data = (XmlFeed) feedData;
+    XmlFeed data = (XmlFeed) feedData;
     LOGGER.fine("Null FeedConnection discarded " + data.size() + " bytes.");
     return GsaFeedConnection.SUCCESS_RESPONSE;
   }
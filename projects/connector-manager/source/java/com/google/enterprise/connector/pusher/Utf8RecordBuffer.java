@@ -0,0 +1,158 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Charsets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A reusable buffer into which the XML for a feed record is appended,
+ * encoding characters directly as UTF-8 bytes.  This avoids building
+ * each record as a {@code String} and then converting it to bytes.
+ * Unpaired surrogate characters are encoded as {@code '?'}, as they
+ * are by {@link String#getBytes(java.nio.charset.Charset)}.
+ * <p>
+ * This class is not thread-safe.
+ */
+class Utf8RecordBuffer implements Appendable {
+  /** The initial size of the buffer. */
+  private static final int INITIAL_SIZE = 8 * 1024;
+
+  /** Buffers that have grown larger than this are discarded on reset. */
+  private static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+  private byte[] buf = new byte[INITIAL_SIZE];
+  private int count = 0;
+
+  /** A high surrogate waiting for its low surrogate, or zero. */
+  private char highSurrogate = 0;
+
+  @Override
+  public Utf8RecordBuffer append(char c) {
+    if (highSurrogate != 0) {
+      char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        appendCodePoint(Character.toCodePoint(high, c));
+        return this;
+      }
+      appendByte('?');
+    }
+    if (c < 0x80) {
+      appendByte(c);
+    } else if (c < 0x800) {
+      ensureCapacity(2);
+      buf[count++] = (byte) (0xC0 | (c >> 6));
+      buf[count++] = (byte) (0x80 | (c & 0x3F));
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      appendByte('?');
+    } else {
+      ensureCapacity(3);
+      buf[count++] = (byte) (0xE0 | (c >> 12));
+      buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+      buf[count++] = (byte) (0x80 | (c & 0x3F));
+    }
+    return this;
+  }
+
+  @Override
+  public Utf8RecordBuffer append(CharSequence csq) {
+    return append(csq, 0, csq.length());
+  }
+
+  @Override
+  public Utf8RecordBuffer append(CharSequence csq, int start, int end) {
+    // Fast path for ASCII, which is nearly all XML markup.
+    ensureCapacity(end - start);
+    for (int i = start; i < end; i++) {
+      char c = csq.charAt(i);
+      if (c < 0x80 && highSurrogate == 0) {
+        if (count == buf.length) {
+          ensureCapacity(end - i);
+        }
+        buf[count++] = (byte) c;
+      } else {
+        append(c);
+      }
+    }
+    return this;
+  }
+
+  /** Returns the number of bytes in the buffer. */
+  public int size() {
+    finish();
+    return count;
+  }
+
+  /** Writes the contents of the buffer to the supplied stream. */
+  public void writeTo(OutputStream out) throws IOException {
+    finish();
+    out.write(buf, 0, count);
+  }
+
+  /**
+   * Empties the buffer, so that it may be reused for another record.
+   * Unusually large buffers are released.
+   */
+  public void reset() {
+    count = 0;
+    highSurrogate = 0;
+    if (buf.length > MAX_RETAINED_SIZE) {
+      buf = new byte[INITIAL_SIZE];
+    }
+  }
+
+  /** Returns the contents of the buffer decoded as a string. */
+  @Override
+  public String toString() {
+    finish();
+    return new String(buf, 0, count, Charsets.UTF_8);
+  }
+
+  /** Encodes any trailing unpaired high surrogate. */
+  private void finish() {
+    if (highSurrogate != 0) {
+      highSurrogate = 0;
+      appendByte('?');
+    }
+  }
+
+  private void appendByte(int b) {
+    if (count == buf.length) {
+      ensureCapacity(1);
+    }
+    buf[count++] = (byte) b;
+  }
+
+  private void appendCodePoint(int codePoint) {
+    ensureCapacity(4);
+    buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+    buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+    buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+    buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+  }
+
+  private void ensureCapacity(int needed) {
+    if (count + needed > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + needed));
+    }
+  }
+}
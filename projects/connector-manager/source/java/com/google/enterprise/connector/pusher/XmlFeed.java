@@ -21,7 +21,8 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.enterprise.connector.common.AlternateContentFilterInputStream;
 import com.google.enterprise.connector.common.BigEmptyDocumentFilterInputStream;
-import com.google.enterprise.connector.common.CompressedFilterInputStream;
+import com.google.enterprise.connector.common.ContentCompressor;
+import com.google.enterprise.connector.common.SpoolingOutputStream;
 import com.google.enterprise.connector.manager.Context;
 import com.google.enterprise.connector.servlet.ServletUtil;
 import com.google.enterprise.connector.spi.Document;
@@ -46,7 +47,6 @@ import com.google.enterprise.connector.util.UniqueIdGenerator;
 import com.google.enterprise.connector.util.UuidGenerator;
 import com.google.enterprise.connector.util.filter.DocumentFilterFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
@@ -60,7 +60,7 @@ import java.util.logging.Logger;
  * Class to generate XML Feed for a document from the Document and send it
  * to GSA.
  */
-public class XmlFeed extends ByteArrayOutputStream implements FeedData {
+public class XmlFeed extends SpoolingOutputStream implements FeedData {
   private static final Logger LOGGER =
       Logger.getLogger(XmlFeed.class.getName());
 
@@ -94,6 +94,11 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
 
   /** Encoding method to use for Document content. */
   private final ContentEncoding contentEncoding;
+  private final ContentCompressor contentCompressor;
+
+  /** Shared by feeds that are not given a ContentCompressor. */
+  static final ContentCompressor DEFAULT_CONTENT_COMPRESSOR =
+      new ContentCompressor();
 
   private static UniqueIdGenerator uniqueIdGenerator = new UuidGenerator();
 
@@ -107,6 +112,9 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   private boolean isClosed;
   private int recordCount;
 
+  /** Reusable buffer in which each record's XML is encoded. */
+  private final Utf8RecordBuffer recordBuffer = new Utf8RecordBuffer();
+
   @SuppressWarnings("deprecation")
   public static final Set<String> propertySkipSet = ImmutableSet.<String>of(
       // TODO: What about displayurl, ispublic, searchurl? Should we
@@ -174,12 +182,27 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   public XmlFeed(String dataSource, FeedType feedType, 
       FileSizeLimitInfo fileSizeLimit, Appendable feedLogBuilder,
       FeedConnection feedConnection) throws IOException {
-    super((int) fileSizeLimit.maxFeedSize());
+    this(dataSource, feedType, fileSizeLimit, feedLogBuilder, feedConnection,
+        DEFAULT_CONTENT_COMPRESSOR);
+  }
+
+  /**
+   * Constructs a feed whose document content is compressed, if the
+   * feed host supports it, by the supplied {@link ContentCompressor}.
+   *
+   * @since 3.4
+   */
+  public XmlFeed(String dataSource, FeedType feedType,
+      FileSizeLimitInfo fileSizeLimit, Appendable feedLogBuilder,
+      FeedConnection feedConnection, ContentCompressor contentCompressor)
+      throws IOException {
+    super((int) fileSizeLimit.maxFeedSize(), spoolThreshold(fileSizeLimit));
     this.maxFeedSize = (int) fileSizeLimit.maxFeedSize();
     this.dataSource = dataSource;
     this.feedType = feedType;
     this.fileSizeLimit = fileSizeLimit;
     this.feedLogBuilder = feedLogBuilder;
+    this.contentCompressor = contentCompressor;
     this.recordCount = 0;
     this.isClosed = false;
     this.feedId = uniqueIdGenerator.uniqueId();
@@ -198,6 +221,15 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     write(prefix.getBytes(XML_DEFAULT_CHARSET));
   }
 
+  /**
+   * Returns the number of bytes of feed data to hold in memory before
+   * spooling the feed to disk.
+   */
+  private static int spoolThreshold(FileSizeLimitInfo fileSizeLimit) {
+    long threshold = fileSizeLimit.feedSpoolThreshold();
+    return (threshold > 0) ? (int) threshold : Integer.MAX_VALUE;
+  }
+
   @VisibleForTesting
   static void setUniqueIdGenerator(UniqueIdGenerator idGenerator) {
     uniqueIdGenerator = idGenerator;
@@ -276,55 +308,9 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   }
 
   /*
-   * ByteArrayOutputStream (and related) Interface.
+   * SpoolingOutputStream Interface.
    */
 
-  /**
-   * Resets the size of this ByteArrayOutputStream to the
-   * specified {@code size}, effectively discarding any
-   * data that may have been written passed that point.
-   * Like {@code reset()}, this method retains the previously
-   * allocated buffer.
-   * <p>
-   * This method may be used to reduce the size of the data stored,
-   * but not to increase it.  In other words, the specified {@code size}
-   * cannot be greater than the current size.
-   *
-   * @param size new data size.
-   */
-  public synchronized void reset(int size) {
-    if (size < 0 || size > count) {
-      throw new IllegalArgumentException(
-          "New size must not be negative or greater than the current size.");
-    }
-    count = size;
-  }
-
-  /**
-   * Reads the complete contents of the supplied InputStream
-   * directly into buffer of this ByteArrayOutputStream.
-   * This avoids the data copy that would occur if using
-   * {@code InputStream.read(byte[], int, int)}, followed by
-   * {@code ByteArrayOutputStream.write(byte[], int, int)}.
-   *
-   * @param in the InputStream from which to read the data.
-   * @throws IOException if an I/O error occurs.
-   */
-  public synchronized void readFrom(InputStream in) throws IOException {
-    int bytes = 0;
-    do {
-      count += bytes;
-      if (count >= buf.length) {
-        // Need to grow buffer.
-        int incr = Math.min(buf.length, 8 * 1024 * 1024);
-        byte[] newbuf = new byte[buf.length + incr];
-        System.arraycopy(buf, 0, newbuf, 0, buf.length);
-        buf = newbuf;
-      }
-      bytes = in.read(buf, count, buf.length - count);
-    } while (bytes != -1);
-  }
-
   @Override
   public synchronized void close() throws IOException {
     if (!isClosed) {
@@ -420,7 +406,8 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
     boolean metadataAllowed = (feedType != FeedType.CONTENTURL);
     boolean contentAllowed = (feedType == FeedType.CONTENT);
 
-    StringBuilder prefix = new StringBuilder();
+    Utf8RecordBuffer prefix = recordBuffer;
+    prefix.reset();
     prefix.append("<").append(XML_RECORD);
 
     String searchUrl =
@@ -543,7 +530,6 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
       xmlWrapMetadata(prefix, document);
     }
 
-    StringBuilder suffix = new StringBuilder();
     ContentEncoding documentContentEncoding = null;
     ContentEncoding alternateEncoding = null;
     if (contentAllowed) {
@@ -562,8 +548,15 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
           throw new RepositoryDocumentException(message);
         }
       }
-      alternateEncoding = (documentContentEncoding == null) 
-          ? contentEncoding : documentContentEncoding;
+      if (documentContentEncoding != null) {
+        alternateEncoding = documentContentEncoding;
+      } else if (contentEncoding == ContentEncoding.BASE64COMPRESSED
+          && !contentCompressor.isCompressible(mimetype)) {
+        // Don't waste time trying to compress already compressed content.
+        alternateEncoding = ContentEncoding.BASE64BINARY;
+      } else {
+        alternateEncoding = contentEncoding;
+      }
 
       // If including document content, wrap it with <content> tags.
       prefix.append("<");
@@ -571,12 +564,11 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
       XmlUtils.xmlAppendAttr(XML_ENCODING,
           alternateEncoding.toString(), prefix);
       prefix.append(">\n");
-
-      suffix.append('\n');
-      XmlUtils.xmlAppendEndTag(XML_CONTENT, suffix);
     }
 
-    write(prefix.toString().getBytes(XML_DEFAULT_CHARSET));
+    prefix.writeTo(this);
+    // Only render the record as text if it is to be logged.
+    String logPrefix = (feedLogBuilder == null) ? null : prefix.toString();
 
     if (contentAllowed) {
       InputStream contentStream = getContentStream(
@@ -588,16 +580,22 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
       }
     }
 
+    Utf8RecordBuffer suffix = recordBuffer;
+    suffix.reset();
+    if (contentAllowed) {
+      suffix.append('\n');
+      XmlUtils.xmlAppendEndTag(XML_CONTENT, suffix);
+    }
     XmlUtils.xmlAppendEndTag(XML_RECORD, suffix);
-    write(suffix.toString().getBytes(XML_DEFAULT_CHARSET));
+    suffix.writeTo(this);
 
     if (feedLogBuilder != null) {
       try {
-        feedLogBuilder.append(prefix);
+        feedLogBuilder.append(logPrefix);
         if (contentAllowed) {
           feedLogBuilder.append("...content...");
         }
-        feedLogBuilder.append(suffix);
+        feedLogBuilder.append(suffix.toString());
       } catch (IOException e) {
         // This won't happen with StringBuffer or StringBuilder.
         LOGGER.log(Level.WARNING, "Exception while constructing feed log:", e);
@@ -608,7 +606,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /*
    * Generate the record tag for the ACL xml data, appending to {@code aclBuff}.
    */
-  private void xmlWrapAclRecord(StringBuilder aclBuff, Document acl)
+  private void xmlWrapAclRecord(Appendable aclBuff, Document acl)
       throws IOException, RepositoryException {
     aclBuff.append("<").append(XML_ACL);
     String docType = DocUtils.getOptionalString(acl,
@@ -642,14 +640,15 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
    */
   private void xmlWrapAclRecord(Document acl) throws IOException,
       RepositoryException {
-    StringBuilder aclBuff = new StringBuilder();
+    Utf8RecordBuffer aclBuff = recordBuffer;
+    aclBuff.reset();
     xmlWrapAclRecord(aclBuff, acl);
 
-    write(aclBuff.toString().getBytes(XML_DEFAULT_CHARSET));
+    aclBuff.writeTo(this);
 
     if (feedLogBuilder != null) {
       try {
-        feedLogBuilder.append(aclBuff);
+        feedLogBuilder.append(aclBuff.toString());
       } catch (IOException e) {
         // This won't happen with StringBuffer or StringBuilder.
         LOGGER.log(Level.WARNING, "Exception while constructing feed log:", e);
@@ -660,7 +659,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /*
    * Generate the ACL principal XML data.
    */
-  private void getPrincipalXml(Document acl, StringBuilder buff)
+  private void getPrincipalXml(Document acl, Appendable buff)
       throws IOException, RepositoryException {
     Property property;
 
@@ -688,7 +687,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   /*
    * Wrap the ACL principal info as XML data.
    */
-  private static void wrapAclPrincipal(StringBuilder buff, Property property,
+  private static void wrapAclPrincipal(Appendable buff, Property property,
       AclScope scope, AclAccess access)
       throws RepositoryException, IOException {
     ValueImpl value;
@@ -757,16 +756,16 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   }
 
   /**
-   * Wrap the metadata and append it to the string buffer. Empty metadata
+   * Wrap the metadata and append it to the record buffer. Empty metadata
    * properties are not appended.
    *
-   * @param buf string buffer
+   * @param buf record buffer
    * @param document Document
    * @throws RepositoryException if error reading Property from Document
    * @throws IOException only from Appendable, and that can't really
-   *         happen when using StringBuilder.
+   *         happen when using a record buffer.
    */
-  private void xmlWrapMetadata(StringBuilder buf, Document document)
+  private void xmlWrapMetadata(Appendable buf, Document document)
       throws RepositoryException, IOException {
     boolean overwriteAcls = DocUtils.getOptionalBoolean(document,
         SpiConstants.PROPNAME_OVERWRITEACLS, true);
@@ -803,17 +802,17 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
   }
 
   /**
-   * Wrap a single Property and append to string buffer. Does nothing if the
+   * Wrap a single Property and append to record buffer. Does nothing if the
    * Property's value is null or zero-length.
    *
-   * @param buf string builder
+   * @param buf record buffer
    * @param name the property's name
    * @param property Property
    * @throws RepositoryException if error reading Property from Document
    * @throws IOException only from Appendable, and that can't really
-   *         happen when using StringBuilder.
+   *         happen when using a record buffer.
    */
-  private static void wrapOneProperty(StringBuilder buf, String name,
+  private static void wrapOneProperty(Appendable buf, String name,
       Property property) throws RepositoryException, IOException {
     ValueImpl value = null;
     while ((value = (ValueImpl) property.nextValue()) != null) {
@@ -863,7 +862,7 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
           fileSizeLimit.maxDocumentSize());
       InputStream encodedContentStream;
       if (documentContentEncoding == null) {
-        encodedContentStream = getEncodedStream(contentEncoding, 
+        encodedContentStream = getEncodedStream(alternateEncoding,
             original, (Context.getInstance().getTeedFeedFile() != null),
             1024 * 1024);
       } else {
@@ -884,13 +883,12 @@ public class XmlFeed extends ByteArrayOutputStream implements FeedData {
    * Wrap the content stream with the suitable encoding (either
    * Base64 or Base64Compressed, based upon GSA encoding support.
    */
-  // TODO: Don't compress tiny content or already compressed data
-  // (based on mimetype).  This is harder than it sounds.
+  // TODO: Don't compress tiny content.  This is harder than it sounds.
   private InputStream getEncodedStream(ContentEncoding contentEncoding,
       InputStream content, boolean wrapLines, int ioBufferSize) {
     if (contentEncoding == ContentEncoding.BASE64COMPRESSED) {
       return new Base64FilterInputStream(
-          new CompressedFilterInputStream(content, ioBufferSize), wrapLines);
+          contentCompressor.compress(content, ioBufferSize), wrapLines);
     } else {
       return new Base64FilterInputStream(content, wrapLines);
     }
@@ -36,6 +36,12 @@ public class HostLoadManager implements LoadManager {
 
   private static final long MINUTE_IN_MILLIS = 60 * 1000L;
 
+  /**
+   * The number of milliseconds to wait before checking again whether
+   * a low memory condition or a feed backlog has abated.
+   */
+  private static final long RECHECK_DELAY_MILLIS = 1000L;
+
   // TODO(bmj): Raise this to 1000 when the GSA moves there.
   public static final int DEFAULT_HOST_LOAD = 500;
 
@@ -266,6 +272,19 @@ public class HostLoadManager implements LoadManager {
     return false;
   }
 
+  @Override
+  public long getDelayMillis() {
+    BatchRequest batchReq = getBatchRequest();
+    long delay = lastBatchResult.getEndTime() + batchReq.delay
+        - clock.getTimeMillis();
+
+    // As in shouldDelay, if there is less that 100ms left, just let it go.
+    if (delay >= 100) {
+      return delay;
+    }
+    return shouldDelay() ? RECHECK_DELAY_MILLIS : 0L;
+  }
+
   /**
    * Calculate the batch size for the next traversal batch.
    * This uses the throughput of the previous traversal batch and
@@ -66,4 +66,15 @@ public interface LoadManager extends BatchResultRecorder {
    * maintain the target load management.
    */
   public boolean shouldDelay();
+
+  /**
+   * Returns the number of milliseconds the caller should wait before
+   * processing, in order to maintain the target load management, or
+   * 0 if the caller need not wait.  If the caller should wait for a
+   * condition whose end cannot be predicted, this returns a short delay,
+   * after which the caller should ask again.
+   *
+   * @since 3.4
+   */
+  public long getDelayMillis();
 }
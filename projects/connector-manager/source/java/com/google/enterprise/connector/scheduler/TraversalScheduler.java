@@ -18,6 +18,11 @@ import com.google.enterprise.connector.instantiator.Instantiator;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.persist.ConnectorNotFoundException;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,23 +30,23 @@ import java.util.logging.Logger;
  * Scheduler that schedules connector traversal.  This class is thread safe.
  * Must initialize TraversalScheduler before running it.
  *
- * <p> This facility includes a schedule thread that runs a loop.
- * Each iteration it asks the instantiator for the schedule
- * for each Connector Instance and runs batches for those that
- * are
+ * <p> This facility includes a schedule thread that keeps a queue of
+ * the times at which each Connector Instance should next be checked.
+ * The thread sleeps until the earliest of those times, then runs
+ * batches for the Connector Instances that are due and
  * <OL>
  * <LI> scheduled to run.
  * <LI> have not exhausted their quota for the current time interval.
  * <LI> are not currently running.
  * </OL>
- * The implementation must handle the situation that a Connector
- * Instance is running.
- */
-/* TODO (bmj): This should be removed and its functionality moved to
- * ConnectorCoordinator.  Connectors should be in charge of their own
- * scheduling.  In particular, the ConnectorCoordinator could leverage
- * Schedule.nextScheduledInterval(), sleeping when unscheduled rather
- * than checking all schedules once per second.
+ * After each check, the Connector Instance says how long it will be
+ * before it could run another batch, based upon its traversal delay,
+ * its schedule, and its load.  Connector Instances that are running
+ * a batch, or that become able to run sooner than expected, use a
+ * {@link TraversalSignal} to wake the scheduler immediately, so that
+ * batches that should run back to back are not delayed.  Without a
+ * {@code TraversalSignal}, each Connector Instance is checked once
+ * per second.
  */
 public class TraversalScheduler implements Runnable {
   public static final String SCHEDULER_CURRENT_TIME = "/Scheduler/currentTime";
@@ -49,18 +54,55 @@ public class TraversalScheduler implements Runnable {
   private static final Logger LOGGER =
     Logger.getLogger(TraversalScheduler.class.getName());
 
+  /**
+   * The delay before checking again a Connector Instance that could not
+   * say when it might run, or that cannot signal the scheduler.
+   */
+  private static final long POLL_MILLIS = 1000L;
+
+  /**
+   * The longest delay before checking again a Connector Instance that
+   * can signal the scheduler.  This is a safety net for changes that
+   * are not signalled.
+   */
+  private static final long MAX_DELAY_MILLIS = 60 * 1000L;
+
   private final Instantiator instantiator;
+  private final TraversalSignal signal;
+  private final long maxDelayMillis;
 
   private boolean isInitialized; // Protected by instance lock.
   private boolean isShutdown; // Protected by instance lock.
 
   /**
-   * Create a scheduler object.
+   * Create a scheduler object that checks each connector instance once
+   * per second.
    *
    * @param instantiator used to get schedule for connector instances
    */
   public TraversalScheduler(Instantiator instantiator) {
+    this(instantiator, new TraversalSignal(), POLL_MILLIS);
+  }
+
+  /**
+   * Create a scheduler object that checks each connector instance when
+   * it is due, or when it is signalled.
+   *
+   * @param instantiator used to get schedule for connector instances
+   * @param signal the {@link TraversalSignal} used by the connector
+   *        instances to wake the scheduler
+   * @since 3.4
+   */
+  public TraversalScheduler(Instantiator instantiator,
+      TraversalSignal signal) {
+    this(instantiator, signal, MAX_DELAY_MILLIS);
+  }
+
+  private TraversalScheduler(Instantiator instantiator,
+      TraversalSignal signal, long maxDelayMillis) {
     this.instantiator = instantiator;
+    this.signal = signal;
+    this.maxDelayMillis = maxDelayMillis;
     this.isInitialized = false;
     this.isShutdown = false;
   }
@@ -80,6 +122,7 @@ public class TraversalScheduler implements Runnable {
     }
     isInitialized = false;
     isShutdown = true;
+    signal.wakeup();
   }
 
   /**
@@ -92,22 +135,44 @@ public class TraversalScheduler implements Runnable {
     return isInitialized && !isShutdown;
   }
 
-  private void scheduleBatches() {
-    for (String connectorName : instantiator.getConnectorNames()) {
+  /**
+   * Runs batches for the connector instances that are due, and schedules
+   * each of them to be checked again.
+   *
+   * @param queue the times at which to check each connector instance
+   * @param signalled the connector instances to check now
+   * @return the number of milliseconds until the next connector instance
+   *         is due
+   */
+  private long scheduleBatches(BatchQueue queue, Set<String> signalled) {
+    queue.update(instantiator.getConnectorNames(), signalled,
+                 System.currentTimeMillis());
+    String connectorName;
+    while ((connectorName = queue.poll(System.currentTimeMillis())) != null) {
       NDC.pushAppend(connectorName);
       try {
         instantiator.startBatch(connectorName);
+        long delay = instantiator.getNextBatchDelay(connectorName);
+        if (delay <= 0) {
+          // The connector could not run, but did not say when it could.
+          delay = POLL_MILLIS;
+        }
+        queue.schedule(connectorName,
+            System.currentTimeMillis() + Math.min(delay, maxDelayMillis));
       } catch (ConnectorNotFoundException e) {
         // Looks like the connector just got deleted.  Don't schedule it.
       } finally {
         NDC.pop();
       }
     }
+    return queue.getWaitMillis(System.currentTimeMillis());
   }
 
   public void run() {
     NDC.push("Traverse");
     try {
+      BatchQueue queue = new BatchQueue();
+      Set<String> signalled = Collections.emptySet();
       while (true) {
         try {
           if (!isRunningState()) {
@@ -115,22 +180,114 @@ public class TraversalScheduler implements Runnable {
                 + "shutdown or not being initialized.");
             return;
           }
-          scheduleBatches();
-          // Give someone else a chance to run.
+          long waitMillis = scheduleBatches(queue, signalled);
+          signalled = Collections.emptySet();
+          // Sleep until the next connector is due or is signalled.
           try {
-            synchronized (this) {
-              wait(1000);
-            }
+            signalled = signal.await(waitMillis);
           } catch (InterruptedException e) {
             // May have been interrupted for shutdown.
           }
         } catch (Throwable t) {
           LOGGER.log(Level.SEVERE,
               "TraversalScheduler caught unexpected Throwable: ", t);
+          // Don't spin if the failure persists.
+          try {
+            signalled = signal.await(POLL_MILLIS);
+          } catch (InterruptedException e) {
+            // May have been interrupted for shutdown.
+          }
         }
       }
     } finally {
       NDC.remove();
     }
   }
+
+  /**
+   * The times at which each connector instance should next be checked.
+   * Each scheduler thread has its own queue.
+   */
+  private class BatchQueue {
+    /** The current due time for each connector instance. */
+    private final Map<String, Long> dueTimes = new HashMap<String, Long>();
+
+    /**
+     * The due times in order.  Entries that no longer match
+     * {@code dueTimes} are discarded when they reach the head.
+     */
+    private final PriorityQueue<DueTime> queue = new PriorityQueue<DueTime>();
+
+    /**
+     * Adds new connector instances, and the signalled ones, to be checked
+     * now, and forgets connector instances that no longer exist.
+     */
+    void update(Set<String> connectorNames, Set<String> signalled, long now) {
+      dueTimes.keySet().retainAll(connectorNames);
+      for (String connectorName : connectorNames) {
+        if (signalled.contains(connectorName)
+            || !dueTimes.containsKey(connectorName)) {
+          schedule(connectorName, now);
+        }
+      }
+    }
+
+    /** Schedules a connector instance to be checked at the given time. */
+    void schedule(String connectorName, long time) {
+      dueTimes.put(connectorName, time);
+      queue.add(new DueTime(connectorName, time));
+    }
+
+    /**
+     * Removes and returns the next connector instance that is due,
+     * or returns {@code null} if none are due.
+     */
+    String poll(long now) {
+      DueTime head = peek();
+      if (head == null || head.time > now) {
+        return null;
+      }
+      queue.remove();
+      dueTimes.remove(head.connectorName);
+      return head.connectorName;
+    }
+
+    /**
+     * Returns the number of milliseconds until the next connector instance
+     * is due.
+     */
+    long getWaitMillis(long now) {
+      DueTime head = peek();
+      return (head == null) ? maxDelayMillis : head.time - now;
+    }
+
+    /** Discards stale entries, and returns the head of the queue. */
+    private DueTime peek() {
+      DueTime head;
+      while ((head = queue.peek()) != null) {
+        Long time = dueTimes.get(head.connectorName);
+        if (time != null && time.longValue() == head.time) {
+          break;
+        }
+        queue.remove();
+      }
+      return head;
+    }
+  }
+
+  /** A connector instance and the time at which it is due. */
+  private static class DueTime implements Comparable<DueTime> {
+    final String connectorName;
+    final long time;
+
+    DueTime(String connectorName, long time) {
+      this.connectorName = connectorName;
+      this.time = time;
+    }
+
+    @Override
+    public int compareTo(DueTime other) {
+      return (time < other.time) ? -1 : ((time == other.time) ? 0 : 1);
+    }
+  }
 }
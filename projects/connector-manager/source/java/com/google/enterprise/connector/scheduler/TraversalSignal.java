@@ -0,0 +1,79 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.scheduler;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Wakes the {@link TraversalScheduler} when a connector may be able to
+ * start a traversal batch sooner than the scheduler expects; for instance,
+ * because the connector's previous batch has finished, or its schedule or
+ * configuration has changed.  This class is thread safe.
+ *
+ * @since 3.4
+ */
+public class TraversalSignal {
+  /** The connectors signalled since the scheduler last checked. */
+  private final Set<String> signalled = new HashSet<String>();
+
+  /** Set when the scheduler is woken without naming a connector. */
+  private boolean woken = false;
+
+  /**
+   * Tells the scheduler to check whether the named connector can start
+   * a traversal batch now.
+   *
+   * @param connectorName the name of the connector
+   */
+  public synchronized void signal(String connectorName) {
+    signalled.add(connectorName);
+    notifyAll();
+  }
+
+  /**
+   * Wakes the scheduler without naming a connector, so that it notices
+   * that it has been shut down.
+   */
+  synchronized void wakeup() {
+    woken = true;
+    notifyAll();
+  }
+
+  /**
+   * Waits until a connector is signalled, the scheduler is woken, or
+   * the timeout expires, and returns the connectors signalled since the
+   * last call.
+   *
+   * @param timeoutMillis the maximum time to wait, in milliseconds; if
+   *        zero or negative, this does not wait
+   * @return the names of the signalled connectors
+   * @throws InterruptedException if the thread is interrupted
+   */
+  synchronized Set<String> await(long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    long remaining = timeoutMillis;
+    while (signalled.isEmpty() && !woken && remaining > 0) {
+      wait(remaining);
+      remaining = deadline - System.currentTimeMillis();
+    }
+    woken = false;
+    Set<String> result = new HashSet<String>(signalled);
+    signalled.clear();
+    return result;
+  }
+}
@@ -19,6 +19,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.ConnectorStatus;
 import com.google.enterprise.connector.manager.Manager;
+import com.google.enterprise.connector.servlet.SecurityRequestPool.TimedCall;
 import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.AuthenticationResponse;
 import com.google.enterprise.connector.spi.Principal;
@@ -33,7 +34,15 @@ import org.w3c.dom.NodeList;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -62,6 +71,21 @@ public class Authenticate extends ConnectorManagerServlet {
    */
   public static void handleDoPost(
       String xmlBody, Manager manager, PrintWriter out) {
+    handleDoPost(xmlBody, manager, out, SecurityRequestPool.getInstance());
+  }
+
+  /**
+   * Handler for doPost in order to do unit tests.
+   * Writes credentials for connectors.
+   *
+   * @param xmlBody String the XML request body string
+   * @param manager Manager
+   * @param out PrintWriter where the response is written
+   * @param pool the {@link SecurityRequestPool} used to call the connectors
+   * @since 3.4
+   */
+  public static void handleDoPost(String xmlBody, Manager manager,
+      PrintWriter out, SecurityRequestPool pool) {
     Element root = XmlParseUtil.parseAndGetRootElement(
         xmlBody, ServletUtil.XMLTAG_AUTHN_REQUEST);
     if (root == null) {
@@ -112,7 +136,7 @@ public class Authenticate extends ConnectorManagerServlet {
 
     AuthenticationIdentity identity =
         new SimpleAuthenticationIdentity(username, password, domain);
-    handleEachConnector(requestedConnectors, identity, manager, out);
+    handleEachConnector(requestedConnectors, identity, manager, out, pool);
 
     ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHN_RESPONSE, true);
     ServletUtil.writeRootTag(out, true);
@@ -120,10 +144,16 @@ public class Authenticate extends ConnectorManagerServlet {
 
   /**
    * Writes a Success or Failure element for each requested connector
-   * instance.
+   * instance.  The connectors are called concurrently, and any connector
+   * that has not responded within the authentication timeout of being
+   * called, or that waits longer than the timeout to be called, is treated
+   * as having failed to authenticate the user.
    */
   private static void handleEachConnector(Set<String> requestedConnectors,
-      AuthenticationIdentity identity, Manager manager, PrintWriter out) {
+      AuthenticationIdentity identity, Manager manager, PrintWriter out,
+      SecurityRequestPool pool) {
+    Map<String, AuthenticationQuery> queries =
+        new LinkedHashMap<String, AuthenticationQuery>();
     for (ConnectorStatus connector : manager.getConnectorStatuses()) {
       String connectorName = connector.getName();
       if (requestedConnectors != null &&
@@ -132,55 +162,21 @@ public class Authenticate extends ConnectorManagerServlet {
       }
       NDC.pushAppend(connectorName);
       try {
-        AuthenticationResponse response =
-            manager.authenticate(connectorName, identity);
-        if (response.isValid()) {
-          ServletUtil.writeXMLTagWithAttrs(
-              out, 2, ServletUtil.XMLTAG_SUCCESS,
-              ImmutableMap.of(ServletUtil.XMLTAG_CONNECTOR_NAME, connectorName),
-              false);
-          ServletUtil.writeXMLElement(out, 3, ServletUtil.XMLTAG_IDENTITY,
-              identity.getUsername());
-
-          // Add any returned groups that the user may belong to.
-          if (response.getGroups() != null) {
-            for (Object item : response.getGroups()) {
-              Principal group = (item instanceof String) ?
-                  new Principal((String) item) : (Principal) item;
-              out.append(ServletUtil.indentStr(3));
-              out.append('<').append(ServletUtil.XMLTAG_GROUP);
-              if (group.getPrincipalType() ==
-                  SpiConstants.PrincipalType.UNQUALIFIED) {
-                // UNQUALIFIED is a special-case on the GSA to allow us to
-                // prevent the GSA from mistakeningly finding a domain in the
-                // principal name.
-                XmlUtils.xmlAppendAttr(
-                    ServletUtil.XMLTAG_PRINCIPALTYPE_ATTRIBUTE,
-                    SpiConstants.PrincipalType.UNQUALIFIED.toString(), out);
-              }
-              if (!Strings.isNullOrEmpty(group.getNamespace())) {
-                XmlUtils.xmlAppendAttr(ServletUtil.XMLTAG_NAMESPACE_ATTRIBUTE,
-                    group.getNamespace(), out);
-              }
-              out.append('>');
-              XmlUtils.xmlAppendAttrValue(group.getName(), out);
-              XmlUtils.xmlAppendEndTag(ServletUtil.XMLTAG_GROUP, out);
-            }
-          }
-          ServletUtil.writeXMLTag(out, 2, ServletUtil.XMLTAG_SUCCESS, true);
-        } else if (identity.getPassword() == null) {
-          // This is a group lookup request that failed. The GSA
-          // requires that we return success here.
-          ServletUtil.writeXMLTagWithAttrs(
-              out, 2, ServletUtil.XMLTAG_SUCCESS,
-              ImmutableMap.of(ServletUtil.XMLTAG_CONNECTOR_NAME, connectorName),
-              true);
-        } else {
-          ServletUtil.writeXMLTagWithAttrs(
-              out, 2, ServletUtil.XMLTAG_FAILURE,
-              ImmutableMap.of(ServletUtil.XMLTAG_CONNECTOR_NAME, connectorName),
-              true);
-        }
+        queries.put(connectorName,
+            submit(connectorName, identity, manager, pool));
+      } finally {
+        NDC.pop();
+      }
+    }
+
+    long timeout = pool.getAuthenticationTimeout();
+    for (Map.Entry<String, AuthenticationQuery> entry : queries.entrySet()) {
+      String connectorName = entry.getKey();
+      NDC.pushAppend(connectorName);
+      try {
+        AuthenticationResponse response = getResponse(connectorName,
+            identity, entry.getValue(), timeout);
+        writeResponse(connectorName, identity, response, out);
       } catch (IOException e) {
         LOGGER.log(Level.WARNING, "Error writing Authentication Response", e);
       } finally {
@@ -188,4 +184,146 @@ public class Authenticate extends ConnectorManagerServlet {
       }
     }
   }
+
+  /**
+   * A call to authenticate an identity against a single connector.
+   */
+  private static class AuthenticationQuery
+      extends TimedCall<AuthenticationResponse> {
+    private final String connectorName;
+    private final AuthenticationIdentity identity;
+    private final Manager manager;
+    private final String context;
+    Future<AuthenticationResponse> future;
+
+    AuthenticationQuery(String connectorName, AuthenticationIdentity identity,
+        Manager manager, String context) {
+      this.connectorName = connectorName;
+      this.identity = identity;
+      this.manager = manager;
+      this.context = context;
+    }
+
+    @Override
+    protected AuthenticationResponse doCall() {
+      NDC.push(context);
+      try {
+        return manager.authenticate(connectorName, identity);
+      } finally {
+        NDC.clear();
+      }
+    }
+  }
+
+  /**
+   * Submits a call to authenticate the identity against a connector to
+   * the pool, or makes the call on this thread if the pool has been
+   * shut down.
+   */
+  private static AuthenticationQuery submit(String connectorName,
+      AuthenticationIdentity identity, Manager manager,
+      SecurityRequestPool pool) {
+    AuthenticationQuery query =
+        new AuthenticationQuery(connectorName, identity, manager, NDC.peek());
+    try {
+      query.future = pool.submit(query);
+    } catch (RejectedExecutionException e) {
+      FutureTask<AuthenticationResponse> task =
+          new FutureTask<AuthenticationResponse>(query);
+      query.future = task;
+      task.run();
+    }
+    return query;
+  }
+
+  /**
+   * Waits until the deadline for the connector to respond.  Returns a
+   * failed response if the connector failed or did not respond in time.
+   */
+  private static AuthenticationResponse getResponse(String connectorName,
+      AuthenticationIdentity identity, AuthenticationQuery query,
+      long timeout) {
+    Future<AuthenticationResponse> future = query.future;
+    try {
+      if (timeout == 0L) {
+        return future.get();
+      }
+      long remaining;
+      while ((remaining = query.getDeadline(timeout)
+              - System.currentTimeMillis()) > 0L) {
+        try {
+          return future.get(remaining, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          // The call may have started since, moving its deadline.
+        }
+      }
+      if (future.isDone()) {
+        return future.get();
+      }
+      LOGGER.warning("Authentication timed out for connector "
+          + connectorName + ": " + identity);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOGGER.log(Level.WARNING, "Authentication failed for connector "
+                 + connectorName + ": " + identity, e.getCause());
+    }
+    future.cancel(true);
+    return new AuthenticationResponse(false, null);
+  }
+
+  /**
+   * Writes a Success or Failure element for a connector instance.
+   */
+  private static void writeResponse(String connectorName,
+      AuthenticationIdentity identity, AuthenticationResponse response,
+      PrintWriter out) throws IOException {
+    if (response.isValid()) {
+      ServletUtil.writeXMLTagWithAttrs(
+          out, 2, ServletUtil.XMLTAG_SUCCESS,
+          ImmutableMap.of(ServletUtil.XMLTAG_CONNECTOR_NAME, connectorName),
+          false);
+      ServletUtil.writeXMLElement(out, 3, ServletUtil.XMLTAG_IDENTITY,
+          identity.getUsername());
+
+      // Add any returned groups that the user may belong to.
+      if (response.getGroups() != null) {
+        for (Object item : response.getGroups()) {
+          Principal group = (item instanceof String) ?
+              new Principal((String) item) : (Principal) item;
+          out.append(ServletUtil.indentStr(3));
+          out.append('<').append(ServletUtil.XMLTAG_GROUP);
+          if (group.getPrincipalType() ==
+              SpiConstants.PrincipalType.UNQUALIFIED) {
+            // UNQUALIFIED is a special-case on the GSA to allow us to
+            // prevent the GSA from mistakeningly finding a domain in the
+            // principal name.
+            XmlUtils.xmlAppendAttr(
+                ServletUtil.XMLTAG_PRINCIPALTYPE_ATTRIBUTE,
+                SpiConstants.PrincipalType.UNQUALIFIED.toString(), out);
+          }
+          if (!Strings.isNullOrEmpty(group.getNamespace())) {
+            XmlUtils.xmlAppendAttr(ServletUtil.XMLTAG_NAMESPACE_ATTRIBUTE,
+                group.getNamespace(), out);
+          }
+          out.append('>');
+          XmlUtils.xmlAppendAttrValue(group.getName(), out);
+          XmlUtils.xmlAppendEndTag(ServletUtil.XMLTAG_GROUP, out);
+        }
+      }
+      ServletUtil.writeXMLTag(out, 2, ServletUtil.XMLTAG_SUCCESS, true);
+    } else if (identity.getPassword() == null) {
+      // This is a group lookup request that failed. The GSA
+      // requires that we return success here.
+      ServletUtil.writeXMLTagWithAttrs(
+          out, 2, ServletUtil.XMLTAG_SUCCESS,
+          ImmutableMap.of(ServletUtil.XMLTAG_CONNECTOR_NAME, connectorName),
+          true);
+    } else {
+      ServletUtil.writeXMLTagWithAttrs(
+          out, 2, ServletUtil.XMLTAG_FAILURE,
+          ImmutableMap.of(ServletUtil.XMLTAG_CONNECTOR_NAME, connectorName),
+          true);
+    }
+  }
 }
@@ -18,6 +18,7 @@ import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.Manager;
 import com.google.enterprise.connector.servlet.AuthorizationParser.ConnectorQueries;
 import com.google.enterprise.connector.servlet.AuthorizationParser.QueryResources;
+import com.google.enterprise.connector.servlet.SecurityRequestPool.TimedCall;
 import com.google.enterprise.connector.spi.AuthenticationIdentity;
 import com.google.enterprise.connector.spi.AuthorizationResponse;
 import com.google.enterprise.connector.spi.XmlUtils;
@@ -26,18 +27,34 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * This class does the real work for the authorization servlet
+ * This class does the real work for the authorization servlet.
+ * <p>
+ * The connectors are queried concurrently, using the threads of a
+ * {@link SecurityRequestPool}, and the answers from each connector are
+ * written as soon as that connector responds.  Documents from connectors
+ * that do not respond within the
+ * {@link SecurityRequestPool#getAuthorizationTimeout authorization timeout}
+ * of their query starting to run, or whose query waits longer than the
+ * timeout for a pool thread, are returned as {@code INDETERMINATE}.
  */
 public class AuthorizationHandler {
   private static final Logger LOGGER =
@@ -47,14 +64,28 @@ public class AuthorizationHandler {
   Manager manager;
   PrintWriter out;
   ConnectorMessageCode status;
+  SecurityRequestPool pool;
 
+  /**
+   * If not {@code null}, the results are collected here and written once
+   * all the connectors have responded, rather than written as each
+   * connector responds.
+   */
   Map<AuthorizationResource, AuthorizationResponse.Status> results;
 
+  /** {@code true} if the authorization response start tag was written. */
+  private boolean responseStarted = false;
+
   AuthorizationHandler(String xmlBody, Manager manager, PrintWriter out) {
+    this(xmlBody, manager, out, SecurityRequestPool.getInstance());
+  }
+
+  AuthorizationHandler(String xmlBody, Manager manager, PrintWriter out,
+      SecurityRequestPool pool) {
     this.xmlBody = xmlBody;
     this.manager = manager;
     this.out = out;
-    results = new HashMap<AuthorizationResource, AuthorizationResponse.Status>();
+    this.pool = pool;
   }
 
   /**
@@ -63,8 +94,18 @@ public class AuthorizationHandler {
    */
   static AuthorizationHandler makeAuthorizationHandlerForTest(String xmlBody,
       Manager manager, PrintWriter out) {
+    return makeAuthorizationHandlerForTest(xmlBody, manager, out,
+        new SecurityRequestPool());
+  }
+
+  /**
+   * Factory method for testing.  Ensures that the results come back in a
+   * predictable order.
+   */
+  static AuthorizationHandler makeAuthorizationHandlerForTest(String xmlBody,
+      Manager manager, PrintWriter out, SecurityRequestPool pool) {
     AuthorizationHandler authorizationHandler = new AuthorizationHandler(
-        xmlBody, manager, out);
+        xmlBody, manager, out, pool);
     authorizationHandler.results =
         new TreeMap<AuthorizationResource, AuthorizationResponse.Status>();
     return authorizationHandler;
@@ -84,24 +125,22 @@ public class AuthorizationHandler {
         ServletUtil.writeResponse(out,status);
         return;
       }
+      ServletUtil.writeRootTag(out, false);
       computeResultSet(authorizationParser);
-      generateXml();
+      if (results != null) {
+        generateEachResultXml();
+      }
+      if (responseStarted) {
+        ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHZ_RESPONSE,
+                                true);
+      }
+      ServletUtil.writeMessageCode(out, status);
+      ServletUtil.writeRootTag(out, true);
     } finally {
       NDC.pop();
     }
   }
 
-  private void generateXml() {
-    ServletUtil.writeRootTag(out, false);
-    if (results.size() > 0) {
-      ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHZ_RESPONSE, false);
-      generateEachResultXml();
-      ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHZ_RESPONSE, true);
-    }
-    ServletUtil.writeMessageCode(out, status);
-    ServletUtil.writeRootTag(out, true);
-  }
-
   private void generateEachResultXml() {
     for (Entry<AuthorizationResource, AuthorizationResponse.Status> e :
          results.entrySet()) {
@@ -109,8 +148,25 @@ public class AuthorizationHandler {
     }
   }
 
+  /**
+   * Records the decision for a resource, either writing it immediately,
+   * or saving it to be written later.
+   */
+  private void addResult(AuthorizationResource resource,
+      AuthorizationResponse.Status decision) {
+    if (results != null) {
+      results.put(resource, decision);
+    } else {
+      writeResultElement(resource, decision);
+    }
+  }
+
   private void writeResultElement(AuthorizationResource resource,
       AuthorizationResponse.Status decision) {
+    if (!responseStarted) {
+      ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_AUTHZ_RESPONSE, false);
+      responseStarted = true;
+    }
     ServletUtil.writeXMLTag(out, 2, ServletUtil.XMLTAG_ANSWER, false);
     // Add the connector name attribute to the resource element.
     try {
@@ -131,21 +187,86 @@ public class AuthorizationHandler {
     ServletUtil.writeXMLTag(out, 2, ServletUtil.XMLTAG_ANSWER, true);
   }
 
+  /**
+   * Submits a query to each connector for each identity, then writes the
+   * answers as the queries complete.
+   */
   private void computeResultSet(AuthorizationParser authorizationParser) {
+    BlockingQueue<AuthorizationQuery> completed =
+        new LinkedBlockingQueue<AuthorizationQuery>();
+    Set<AuthorizationQuery> pending = new LinkedHashSet<AuthorizationQuery>();
     for (AuthenticationIdentity identity: authorizationParser.getIdentities()) {
       NDC.pushAppend(identity.getUsername());
       try {
         ConnectorQueries queries =
             authorizationParser.getConnectorQueriesForIdentity(identity);
-        runManagerQueries(identity, queries);
+        submitManagerQueries(identity, queries, completed, pending);
       } finally {
         NDC.pop();
       }
     }
+
+    long timeout = pool.getAuthorizationTimeout();
+    List<AuthorizationQuery> timedOut = new ArrayList<AuthorizationQuery>();
+    try {
+      while (!pending.isEmpty()) {
+        AuthorizationQuery query;
+        if (timeout == 0L) {
+          query = completed.take();
+        } else {
+          // A query must answer within the timeout of starting to run,
+          // and must start running within the timeout of being submitted.
+          long now = System.currentTimeMillis();
+          long wait = timeout;
+          Iterator<AuthorizationQuery> iter = pending.iterator();
+          while (iter.hasNext()) {
+            AuthorizationQuery pendingQuery = iter.next();
+            long remaining = pendingQuery.getDeadline(timeout) - now;
+            if (remaining <= 0L) {
+              iter.remove();
+              timedOut.add(pendingQuery);
+            } else {
+              wait = Math.min(wait, remaining);
+            }
+          }
+          if (pending.isEmpty()) {
+            break;
+          }
+          query = completed.poll(wait, TimeUnit.MILLISECONDS);
+          if (query == null) {
+            continue;
+          }
+        }
+        if (pending.remove(query)) {
+          Collection<AuthorizationResponse> answerSet = query.getAnswers();
+          if (answerSet != null) {
+            accumulateQueryResults(answerSet, query.urlsByDocid);
+            out.flush();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      timedOut.addAll(pending);
+    }
+
+    // Return INDETERMINATE for documents from connectors that did not
+    // respond in time.
+    for (AuthorizationQuery query : timedOut) {
+      query.future.cancel(true);
+      LOGGER.warning("Authorization timed out for connector "
+          + query.connectorName + ": " + query.identity);
+      for (String docid : query.urlsByDocid.getDocids()) {
+        addResult(query.urlsByDocid.getResource(docid),
+                  AuthorizationResponse.Status.INDETERMINATE);
+      }
+    }
   }
 
-  private void runManagerQueries(AuthenticationIdentity identity,
-      ConnectorQueries urlsByConnector) {
+  private void submitManagerQueries(AuthenticationIdentity identity,
+      ConnectorQueries urlsByConnector,
+      BlockingQueue<AuthorizationQuery> completed,
+      Set<AuthorizationQuery> pending) {
     for (String connectorName : urlsByConnector.getConnectors()) {
       NDC.pushAppend(connectorName);
       try {
@@ -153,12 +274,18 @@ public class AuthorizationHandler {
         // map to the same repository document (docid).  We should handle the
         // duplicates, somehow?
         QueryResources urlsByDocid = urlsByConnector.getQueryResources(connectorName);
-        List<String> docidList = new ArrayList<String>(urlsByDocid.getDocids());
-        Collection<AuthorizationResponse> answerSet =
-            manager.authorizeDocids(connectorName, docidList, identity);
-        if (answerSet != null) {
-          accumulateQueryResults(answerSet, urlsByDocid);
+        AuthorizationQuery query = new AuthorizationQuery(identity,
+            connectorName, urlsByDocid, NDC.peek(), completed);
+        try {
+          query.future = pool.submit(query);
+        } catch (RejectedExecutionException e) {
+          // The pool has been shut down, so run the query on this thread.
+          FutureTask<Collection<AuthorizationResponse>> task =
+              new FutureTask<Collection<AuthorizationResponse>>(query);
+          query.future = task;
+          task.run();
         }
+        pending.add(query);
       } finally {
         NDC.pop();
       }
@@ -174,19 +301,72 @@ public class AuthorizationHandler {
       if (resource == null) {
         LOGGER.warning("Received unexpected AuthorizationResponse for document "
                        + docid);
-      } else {
-        results.put(resource, response.getStatus());
-        docids.remove(docid);
+      } else if (docids.remove(docid)) {
+        addResult(resource, response.getStatus());
       }
     }
     // Return DENY for documents not returned by connector.
     for (String docid : docids) {
       AuthorizationResource resource = urlsByDocid.getResource(docid);
-      results.put(resource, AuthorizationResponse.Status.DENY);
+      addResult(resource, AuthorizationResponse.Status.DENY);
       if (LOGGER.isLoggable(Level.FINEST)) {
         LOGGER.finest("AUTHORIZED " + docid + ": "
                       + AuthorizationResponse.Status.DENY);
       }
     }
   }
+
+  /**
+   * A request to a single connector to authorize documents for a
+   * single identity.
+   */
+  private class AuthorizationQuery
+      extends TimedCall<Collection<AuthorizationResponse>> {
+    final AuthenticationIdentity identity;
+    final String connectorName;
+    final QueryResources urlsByDocid;
+    private final String context;
+    private final BlockingQueue<AuthorizationQuery> completed;
+    Future<Collection<AuthorizationResponse>> future;
+
+    AuthorizationQuery(AuthenticationIdentity identity, String connectorName,
+        QueryResources urlsByDocid, String context,
+        BlockingQueue<AuthorizationQuery> completed) {
+      this.identity = identity;
+      this.connectorName = connectorName;
+      this.urlsByDocid = urlsByDocid;
+      this.context = context;
+      this.completed = completed;
+    }
+
+    @Override
+    protected Collection<AuthorizationResponse> doCall() {
+      NDC.push(context);
+      try {
+        List<String> docidList =
+            new ArrayList<String>(urlsByDocid.getDocids());
+        return manager.authorizeDocids(connectorName, docidList, identity);
+      } finally {
+        NDC.clear();
+        completed.add(this);
+      }
+    }
+
+    /**
+     * Returns the answers from the connector, or {@code null} if the
+     * connector failed.  This must only be called after the query has
+     * completed.
+     */
+    Collection<AuthorizationResponse> getAnswers() {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        LOGGER.log(Level.WARNING, "Authorization failed for connector "
+                   + connectorName + ": " + identity, e.getCause());
+      }
+      return null;
+    }
+  }
 }
@@ -15,6 +15,7 @@
 package com.google.enterprise.connector.servlet;
 
 import com.google.common.base.Strings;
+import com.google.enterprise.connector.logging.AsyncHandler;
 import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.manager.ConnectorManagerException;
 import com.google.enterprise.connector.manager.Context;
@@ -28,15 +29,12 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.RandomAccessFile;
 import java.util.Date;
 import java.util.logging.Formatter;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
 
 import javax.servlet.ServletOutputStream;
@@ -130,7 +128,16 @@ import javax.servlet.http.HttpServletResponse;
  * </p>
  * <p>Multipart byte ranges are NOT supported (ie bytes=0-100,1000-2000).
  * Byte range requests for log listing pages and ZIP archive files are
- * ignored.</p>
+ * ignored.  A range that starts beyond the end of the log is answered
+ * with 416 (Requested Range Not Satisfiable).</p>
+ *
+ *
+ * <p><br><b>Conditional Requests:</b>
+ * Individual logs are served with Last-Modified and ETag headers.  Requests
+ * with a matching If-None-Match or If-Modified-Since header are answered
+ * with 304 (Not Modified), and byte range requests with an If-Range header
+ * that no longer matches are answered with the whole log.  This lets a
+ * client poll the tail of a growing log cheaply.</p>
  *
  *
  * <p><br><b>Redirects and curl:</b>
@@ -160,6 +167,37 @@ public class GetConnectorLogs extends HttpServlet {
   private static Logger LOGGER =
     Logger.getLogger(GetConnectorLogs.class.getName());
 
+  /** Writes archives of the logs, caching the compressed rotated logs. */
+  private LogArchiver archiver;
+
+  /**
+   * Creates the log archiver, caching the compressed logs in this web
+   * application's private temporary directory, and deletes any compressed
+   * logs left behind there by a previous run.  If the container does not
+   * provide a temporary directory, the system temporary directory is used,
+   * and since that may be shared with other web applications, nothing is
+   * deleted from it.
+   */
+  @Override
+  public void init() {
+    Object tempDir =
+        getServletContext().getAttribute("javax.servlet.context.tempdir");
+    if (tempDir instanceof File) {
+      archiver = new LogArchiver(new File((File) tempDir, "log-archives"));
+      archiver.deleteStaleCacheFiles();
+    } else {
+      archiver = new LogArchiver(new File(System.getProperty("java.io.tmpdir"),
+          "google-connectors-log-archives"));
+    }
+  }
+
+  /** Discards the cached compressed logs. */
+  @Override
+  public void destroy() {
+    archiver.clear();
+    super.destroy();
+  }
+
   /**
    * Retrieves the log files for a connector instance.
    *
@@ -292,34 +330,142 @@ public class GetConnectorLogs extends HttpServlet {
         return;
       }
 
-      // Did the user ask for a byte range?
-      ByteRange range;
-      try {
-        if ((range = ByteRange.parseByteRange(req)) != null) {
-          res.addHeader("Content-Range",
-                        range.contentRange(logFile.length()));
-        }
-      } catch (IllegalArgumentException iae) {
-        res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
-                      iae.toString());
+      fetchLog(req, res, handler, logFile);
+    }
+  }
+
+  /**
+   * Send the requested log file, honoring conditional requests and
+   * byte ranges.
+   *
+   * @param req an HttpServletRequest
+   * @param res an HttpServletResponse
+   * @param handler LogHandler access to either Connector logs or Feed logs.
+   * @param logFile log File to be retrieved.
+   * @throws IOException
+   */
+  private static void fetchLog(HttpServletRequest req,
+      HttpServletResponse res, LogHandler handler, File logFile)
+      throws IOException {
+    // The current log grows while we send it, so send only what is there now.
+    long length = logFile.length();
+    long lastModified = logFile.lastModified();
+    String etag = "\"" + Long.toHexString(length) + '-'
+        + Long.toHexString(lastModified) + "\"";
+    res.setHeader("Accept-Ranges", "bytes");
+    res.setHeader("ETag", etag);
+    res.setDateHeader("Last-Modified", lastModified);
+    if (isNotModified(req, etag, lastModified)) {
+      res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    // Did the user ask for a byte range?
+    ByteRange range;
+    try {
+      range = ByteRange.parseByteRange(req);
+    } catch (IllegalArgumentException iae) {
+      res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE,
+                    iae.toString());
+      return;
+    }
+    if (range != null && !isRangeCurrent(req, etag, lastModified)) {
+      // The client's copy is out of date, so send the whole log.
+      range = null;
+    }
+
+    // Specify either text/plain or xml content type, based on log format.
+    if (handler.isXmlFormat()) {
+      res.setContentType(ServletUtil.MIMETYPE_XML);
+    } else {
+      res.setContentType(ServletUtil.MIMETYPE_TEXT_PLAIN);
+    }
+
+    if (range != null) {
+      long rangeLength = range.actualLength(length);
+      if (rangeLength == 0) {
+        res.setHeader("Content-Range", "bytes */" + length);
+        res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
         return;
       }
-
-      // Specify either text/plain or xml content type, based on log format.
-      if (handler.isXmlFormat()) {
-        res.setContentType(ServletUtil.MIMETYPE_XML);
-      } else {
-        res.setContentType(ServletUtil.MIMETYPE_TEXT_PLAIN);
+      // Byte ranges apply to the uncompressed log, so are sent as is.
+      res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      res.setHeader("Content-Range", range.contentRange(length));
+      res.setHeader("Content-Length", String.valueOf(rangeLength));
+      OutputStream out = res.getOutputStream();
+      try {
+        LogArchiver.transfer(logFile, range.actualStartPosition(length),
+                             rangeLength, out);
+      } finally {
+        out.close();
       }
+    } else {
+      res.setHeader("Vary", "Accept-Encoding");
       OutputStream out = getCompressedOutputStream(req, res);
+      if (out == res.getOutputStream()) {
+        res.setHeader("Content-Length", String.valueOf(length));
+      }
       try {
-        fetchLog(logFile, range, out);
+        LogArchiver.transfer(logFile, 0, length, out);
       } finally {
         out.close();
       }
     }
   }
 
+  /**
+   * Returns {@code true} if the client's copy of the log, as identified
+   * by the If-None-Match or If-Modified-Since headers, is current.
+   */
+  private static boolean isNotModified(HttpServletRequest req, String etag,
+      long lastModified) {
+    String ifNoneMatch = req.getHeader("If-None-Match");
+    if (ifNoneMatch != null) {
+      return matchesETag(ifNoneMatch, etag);
+    }
+    long ifModifiedSince = getDateHeader(req, "If-Modified-Since");
+    // HTTP dates have a resolution of one second.
+    return (ifModifiedSince >= 0)
+        && (lastModified / 1000 <= ifModifiedSince / 1000);
+  }
+
+  /**
+   * Returns {@code true} if a byte range request should be honored,
+   * because there is no If-Range header, or it matches the log.
+   */
+  private static boolean isRangeCurrent(HttpServletRequest req, String etag,
+      long lastModified) {
+    String ifRange = req.getHeader("If-Range");
+    if (ifRange == null) {
+      return true;
+    } else if (ifRange.trim().startsWith("\"")) {
+      return etag.equals(ifRange.trim());
+    } else {
+      long date = getDateHeader(req, "If-Range");
+      return (date >= 0) && (lastModified / 1000 == date / 1000);
+    }
+  }
+
+  /** Returns {@code true} if the list of entity tags includes the etag. */
+  private static boolean matchesETag(String etags, String etag) {
+    for (String tag : etags.split(",")) {
+      tag = tag.trim();
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the date value of a header, or -1 if absent or malformed. */
+  private static long getDateHeader(HttpServletRequest req, String name) {
+    try {
+      return req.getDateHeader(name);
+    } catch (IllegalArgumentException e) {
+      return -1L;
+    }
+  }
+
   /**
    * Specialized {@code doTrace} method that constructs an XML representation
    * of the given request and returns it as the response.
@@ -358,61 +504,18 @@ public class GetConnectorLogs extends HttpServlet {
     return res.getOutputStream();
   }
 
-  /**
-   * Send the requested log file.
-   *
-   * @param logFile log File to be retrieved.
-   * @param range ByteRange depicting a portion of file, may be null.
-   * @param out OutputStream to which to write the log file.
-   * @throws FileNotFoundException, IOException
-   */
-  private static void fetchLog(File logFile, ByteRange range, OutputStream out)
-      throws FileNotFoundException, IOException {
-    long startPos = 0;
-    long length = logFile.length();
-    if (range != null) {
-      startPos = range.actualStartPosition(length);
-      length = range.actualLength(length);
-    }
-
-    byte[] buf = new byte[1024 * 1024];
-    RandomAccessFile in = new RandomAccessFile(logFile, "r");
-    if (startPos > 0) {
-      in.seek(startPos);
-    }
-    while (length > 0) {
-      int byteCount =
-          in.read(buf, 0, (length > buf.length) ? buf.length : (int)length);
-      if (byteCount > 0) {
-        out.write(buf, 0, byteCount);
-        length -= byteCount;
-      } else
-        break;
-    }
-    in.close();
-  }
-
   /**
    * Send a ZIP image containing all the log files.
    *
    * @param handler LogHandler access to either Connector logs or Feed logs.
    * @param out OutputStream to which to write the archived log files.
-   * @throws FileNotFoundException, IOException, ZipException
+   * @throws FileNotFoundException, IOException
    */
-  private static void fetchAllLogs(LogHandler handler, OutputStream out)
-     throws FileNotFoundException, IOException, ZipException {
+  private void fetchAllLogs(LogHandler handler, OutputStream out)
+     throws FileNotFoundException, IOException {
     File[] logs = handler.listLogs();
     if (logs != null) {
-      ZipOutputStream zout = new ZipOutputStream(out);
-      for (int i = 0; i < logs.length; i++) {
-        ZipEntry zentry = new ZipEntry(logs[i].getName());
-        zentry.setSize(logs[i].length());
-        zentry.setTime(logs[i].lastModified());
-        zout.putNextEntry(zentry);
-        fetchLog(logs[i], null, zout);
-        zout.closeEntry();
-      }
-      zout.finish();
+      archiver.writeArchive(logs, out);
     }
   }
 
@@ -606,8 +709,16 @@ public class GetConnectorLogs extends HttpServlet {
     String[] handlers = logMgr.getProperty("handlers").split("[, ]+");
     String handler = null;
     for (int i = 0; i < handlers.length; i++) {
-      if (handlers[i].indexOf("FileHandler") >= 0) {
-        handler = handlers[i];
+      String name = handlers[i];
+      if (name.endsWith(AsyncHandler.class.getSimpleName())) {
+        // Look through the AsyncHandler to the Handler that writes the logs.
+        String target = logMgr.getProperty(name + ".target");
+        if (target != null) {
+          name = target.trim();
+        }
+      }
+      if (name.indexOf("FileHandler") >= 0) {
+        handler = name;
         break;
       }
     }
@@ -102,6 +102,22 @@ public class GetConnectorStatus extends ConnectorManagerGetServlet {
             ServletUtil.XMLTAG_CONNECTOR_SCHEDULES, true);
         out.println(buffer.toString());
       }
+      // The authorization cache statistics are only written if
+      // decisions are being cached.
+      if (connectorStatus.getAuthorizationCacheHits() >= 0) {
+        ServletUtil.writeXMLElement(out, 2,
+            ServletUtil.XMLTAG_AUTHZ_CACHE_HITS,
+            Long.toString(connectorStatus.getAuthorizationCacheHits()));
+        ServletUtil.writeXMLElement(out, 2,
+            ServletUtil.XMLTAG_AUTHZ_CACHE_MISSES,
+            Long.toString(connectorStatus.getAuthorizationCacheMisses()));
+      }
+      // The instantiation time is only written if it is known.
+      if (connectorStatus.getInstantiationMillis() >= 0) {
+        ServletUtil.writeXMLElement(out, 2,
+            ServletUtil.XMLTAG_INSTANTIATION_MILLIS,
+            Long.toString(connectorStatus.getInstantiationMillis()));
+      }
       ServletUtil.writeXMLTag(out, 1, ServletUtil.XMLTAG_CONNECTOR_STATUS,
           true);
     }
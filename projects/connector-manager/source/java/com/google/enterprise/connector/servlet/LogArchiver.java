@@ -0,0 +1,540 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.servlet;
+
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes ZIP archives of log files, and sends portions of log files,
+ * in bounded memory, no matter how large the logs are.
+ * <p>
+ * Rotated log files do not change, so their compressed contents are
+ * cached in temporary files, keyed by the path, size, and modification
+ * time of the log file.  Archives of the same logs then reuse the
+ * compressed data rather than compressing every log again.  Log files
+ * modified recently, such as the current log, are compressed each time.
+ */
+class LogArchiver {
+  private static final Logger LOGGER =
+      Logger.getLogger(LogArchiver.class.getName());
+
+  /** Log files modified more recently than this are not cached. */
+  private static final long MIN_CACHE_AGE_MILLIS = 60 * 1000L;
+
+  /** The largest size or offset a ZIP archive without ZIP64 can hold. */
+  private static final long MAX_ZIP_SIZE = 0xFFFFFFFFL;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** The prefix and suffix of the names of the cached compressed logs. */
+  private static final String CACHE_FILE_PREFIX = "log";
+  private static final String CACHE_FILE_SUFFIX = ".deflated";
+
+  private final File cacheDirectory;
+  private final Clock clock;
+
+  /** The cached compressed log files. */
+  private final Map<File, CachedLog> cache =
+      new LinkedHashMap<File, CachedLog>();
+
+  /**
+   * Constructs a {@code LogArchiver} that caches compressed log files
+   * in the supplied directory.
+   *
+   * @param cacheDirectory a directory for the compressed log files; it
+   *        is created if it does not exist
+   */
+  LogArchiver(File cacheDirectory) {
+    this(cacheDirectory, new SystemClock());
+  }
+
+  /* Used by tests to control the age of the logs. */
+  LogArchiver(File cacheDirectory, Clock clock) {
+    this.cacheDirectory = cacheDirectory;
+    this.clock = clock;
+  }
+
+  /** Returns the number of log files with cached compressed contents. */
+  synchronized int getCacheSize() {
+    return cache.size();
+  }
+
+  /**
+   * Sends a portion of a file.  The servlet output is a stream, not a
+   * socket channel, so {@code FileChannel.transferTo} could not avoid
+   * copying the data anyway.  Instead, the file is copied through a
+   * single {@link #BUFFER_SIZE} buffer, so a large log is sent in
+   * bounded memory and with few writes.
+   *
+   * @param file the file to send
+   * @param start the position of the first byte to send
+   * @param length the number of bytes to send
+   * @param out the {@code OutputStream} to write to
+   * @throws IOException if the file cannot be read, or the output
+   *         cannot be written
+   */
+  static void transfer(File file, long start, long length, OutputStream out)
+      throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      in.getChannel().position(start);
+      byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, length)];
+      long remaining = length;
+      while (remaining > 0) {
+        int count =
+            in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (count < 0) {
+          break;
+        }
+        out.write(buffer, 0, count);
+        remaining -= count;
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes a ZIP archive containing the supplied log files.
+   *
+   * @param logs the log files to archive
+   * @param out the {@code OutputStream} to write to
+   * @throws IOException if a log file cannot be read, or the output
+   *         cannot be written
+   */
+  void writeArchive(File[] logs, OutputStream out) throws IOException {
+    // Snapshot the size and time of each log, since the current log grows.
+    List<LogInfo> infos = new ArrayList<LogInfo>(logs.length);
+    long bound = 22;
+    for (File log : logs) {
+      LogInfo info = new LogInfo(log);
+      infos.add(info);
+      // Deflate may expand the data slightly, plus the headers.
+      bound += info.length + (info.length >> 10) + 256
+          + 2 * info.name.length;
+    }
+    if (bound > MAX_ZIP_SIZE) {
+      // Too large for a ZIP archive without ZIP64 extensions.
+      writeZipOutputStream(infos, out);
+    } else {
+      ZipWriter zip = new ZipWriter(out);
+      for (LogInfo info : infos) {
+        CachedLog cached = getCachedLog(info);
+        if (cached != null) {
+          zip.writeCompressed(info, cached);
+        } else {
+          zip.writeDeflated(info, newCacheFile(info));
+        }
+      }
+      zip.finish();
+    }
+    prune(logs);
+  }
+
+  /** Writes the archive using ZipOutputStream, for very large logs. */
+  private void writeZipOutputStream(List<LogInfo> infos, OutputStream out)
+      throws IOException {
+    ZipOutputStream zout = new ZipOutputStream(out);
+    for (LogInfo info : infos) {
+      ZipEntry zentry = new ZipEntry(info.file.getName());
+      zentry.setSize(info.length);
+      zentry.setTime(info.lastModified);
+      zout.putNextEntry(zentry);
+      transfer(info.file, 0, info.length, zout);
+      zout.closeEntry();
+    }
+    zout.finish();
+  }
+
+  /** Returns the cached compressed log, if it is still current. */
+  private synchronized CachedLog getCachedLog(LogInfo info) {
+    CachedLog cached = cache.get(info.file);
+    if (cached != null && cached.length == info.length
+        && cached.lastModified == info.lastModified
+        && cached.data.exists()) {
+      return cached;
+    }
+    return null;
+  }
+
+  /**
+   * Returns a new file to cache the compressed log in, or {@code null}
+   * if the log should not be cached.
+   */
+  private File newCacheFile(LogInfo info) {
+    if (clock.getTimeMillis() - info.lastModified < MIN_CACHE_AGE_MILLIS) {
+      return null;
+    }
+    if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+      return null;
+    }
+    try {
+      return File.createTempFile(CACHE_FILE_PREFIX, CACHE_FILE_SUFFIX,
+                                 cacheDirectory);
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to cache compressed log file", e);
+      return null;
+    }
+  }
+
+  /** Adds a compressed log to the cache. */
+  private void putCachedLog(LogInfo info, CachedLog cached) {
+    boolean isCached = false;
+    synchronized (this) {
+      // Another request may have cached the same log.
+      if (getCachedLog(info) == null) {
+        CachedLog old = cache.put(info.file, cached);
+        if (old != null) {
+          old.data.delete();
+        }
+        isCached = true;
+      }
+    }
+    if (!isCached) {
+      cached.data.delete();
+    }
+  }
+
+  /** Discards cached compressed logs for log files that no longer exist. */
+  private void prune(File[] logs) {
+    Set<File> current = new HashSet<File>();
+    for (File log : logs) {
+      current.add(log);
+    }
+    List<File> discarded = new ArrayList<File>();
+    synchronized (this) {
+      Iterator<Map.Entry<File, CachedLog>> it = cache.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<File, CachedLog> entry = it.next();
+        if (!current.contains(entry.getKey())
+            || entry.getKey().lastModified() != entry.getValue().lastModified) {
+          discarded.add(entry.getValue().data);
+          it.remove();
+        }
+      }
+    }
+    for (File data : discarded) {
+      data.delete();
+    }
+  }
+
+  /** Discards all the cached compressed logs. */
+  void clear() {
+    prune(new File[0]);
+  }
+
+  /**
+   * Deletes any compressed logs in the cache directory that are not in
+   * the cache, such as those left behind when the Connector Manager
+   * was not shut down cleanly.
+   */
+  void deleteStaleCacheFiles() {
+    File[] files = cacheDirectory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Set<File> cached = new HashSet<File>();
+    synchronized (this) {
+      for (CachedLog log : cache.values()) {
+        cached.add(log.data);
+      }
+    }
+    int count = 0;
+    for (File file : files) {
+      String name = file.getName();
+      if (name.startsWith(CACHE_FILE_PREFIX)
+          && name.endsWith(CACHE_FILE_SUFFIX)
+          && !cached.contains(file) && file.delete()) {
+        count++;
+      }
+    }
+    if (count > 0) {
+      LOGGER.fine("Deleted " + count + " stale compressed logs from "
+          + cacheDirectory);
+    }
+  }
+
+  /** The size and time of a log file, as of the start of the archive. */
+  private static class LogInfo {
+    final File file;
+    final byte[] name;
+    final long length;
+    final long lastModified;
+
+    LogInfo(File file) throws IOException {
+      this.file = file;
+      this.name = file.getName().getBytes("UTF-8");
+      this.length = file.length();
+      this.lastModified = file.lastModified();
+    }
+  }
+
+  /** A log file compressed with raw DEFLATE, and its ZIP entry fields. */
+  private static class CachedLog {
+    final File data;
+    final long length;
+    final long lastModified;
+    final long crc;
+    final long compressedSize;
+
+    CachedLog(File data, long length, long lastModified, long crc,
+        long compressedSize) {
+      this.data = data;
+      this.length = length;
+      this.lastModified = lastModified;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+    }
+  }
+
+  /**
+   * Writes a ZIP archive, with entries that may be copied from data
+   * already compressed.  ZipOutputStream cannot do that.
+   */
+  private class ZipWriter {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int VERSION = 20;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private final OutputStream out;
+    private final byte[] header = new byte[64];
+    private final List<byte[]> centralDirectory = new ArrayList<byte[]>();
+    private long offset = 0L;
+
+    ZipWriter(OutputStream out) {
+      this.out = out;
+    }
+
+    /** Writes an entry whose compressed data is cached. */
+    void writeCompressed(LogInfo info, CachedLog cached) throws IOException {
+      long entryOffset = offset;
+      writeLocalHeader(info, FLAG_UTF8, cached.crc, cached.compressedSize,
+                       info.length);
+      transfer(cached.data, 0, cached.compressedSize, out);
+      offset += cached.compressedSize;
+      addCentralHeader(info, FLAG_UTF8, cached.crc, cached.compressedSize,
+                       entryOffset);
+    }
+
+    /**
+     * Compresses and writes an entry, followed by a data descriptor,
+     * since the compressed size is not known in advance.
+     *
+     * @param cacheFile a file to cache the compressed data in,
+     *        or {@code null}
+     */
+    void writeDeflated(LogInfo info, File cacheFile) throws IOException {
+      int flags = FLAG_UTF8 | FLAG_DATA_DESCRIPTOR;
+      long entryOffset = offset;
+      writeLocalHeader(info, flags, 0, 0, 0);
+
+      CRC32 crc = new CRC32();
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      OutputStream cacheOut =
+          (cacheFile == null) ? null : new FileOutputStream(cacheFile);
+      boolean isCached = false;
+      long compressedSize = 0L;
+      try {
+        byte[] input = new byte[BUFFER_SIZE];
+        byte[] output = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(info.file);
+        try {
+          long remaining = info.length;
+          while (remaining > 0) {
+            int count = in.read(input, 0, (int) Math.min(input.length,
+                                                          remaining));
+            if (count < 0) {
+              throw new IOException("Log file " + info.file.getName()
+                                    + " was truncated");
+            }
+            remaining -= count;
+            crc.update(input, 0, count);
+            deflater.setInput(input, 0, count);
+            while (!deflater.needsInput()) {
+              compressedSize += writeDeflated(deflater, output, cacheOut);
+            }
+          }
+        } finally {
+          in.close();
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+          compressedSize += writeDeflated(deflater, output, cacheOut);
+        }
+        offset += compressedSize;
+
+        setInt(0, DATA_DESCRIPTOR);
+        setInt(4, crc.getValue());
+        setInt(8, compressedSize);
+        setInt(12, info.length);
+        writeHeader(16);
+        addCentralHeader(info, flags, crc.getValue(), compressedSize,
+                         entryOffset);
+
+        if (cacheOut != null) {
+          cacheOut.close();
+          cacheOut = null;
+          // Do not cache a log that changed while it was compressed.
+          if (info.file.lastModified() == info.lastModified) {
+            putCachedLog(info, new CachedLog(cacheFile, info.length,
+                info.lastModified, crc.getValue(), compressedSize));
+            isCached = true;
+          }
+        }
+      } finally {
+        deflater.end();
+        if (cacheOut != null) {
+          cacheOut.close();
+        }
+        if (cacheFile != null && !isCached) {
+          cacheFile.delete();
+        }
+      }
+    }
+
+    /** Writes the next compressed output, returning its length. */
+    private int writeDeflated(Deflater deflater, byte[] output,
+        OutputStream cacheOut) throws IOException {
+      int count = deflater.deflate(output);
+      if (count > 0) {
+        out.write(output, 0, count);
+        if (cacheOut != null) {
+          cacheOut.write(output, 0, count);
+        }
+      }
+      return count;
+    }
+
+    private void writeLocalHeader(LogInfo info, int flags, long crc,
+        long compressedSize, long size) throws IOException {
+      setInt(0, LOCAL_HEADER);
+      setShort(4, VERSION);
+      setShort(6, flags);
+      setShort(8, ZipEntry.DEFLATED);
+      setInt(10, dosTime(info.lastModified));
+      setInt(14, crc);
+      setInt(18, compressedSize);
+      setInt(22, size);
+      setShort(26, info.name.length);
+      setShort(28, 0);
+      writeHeader(30);
+      out.write(info.name);
+      offset += info.name.length;
+    }
+
+    private void addCentralHeader(LogInfo info, int flags, long crc,
+        long compressedSize, long entryOffset) {
+      byte[] entry = new byte[46 + info.name.length];
+      putInt(entry, 0, CENTRAL_HEADER);
+      putShort(entry, 4, VERSION);
+      putShort(entry, 6, VERSION);
+      putShort(entry, 8, flags);
+      putShort(entry, 10, ZipEntry.DEFLATED);
+      putInt(entry, 12, dosTime(info.lastModified));
+      putInt(entry, 16, crc);
+      putInt(entry, 20, compressedSize);
+      putInt(entry, 24, info.length);
+      putShort(entry, 28, info.name.length);
+      // Extra field, comment, disk number, and attributes are all zero.
+      putInt(entry, 42, entryOffset);
+      System.arraycopy(info.name, 0, entry, 46, info.name.length);
+      centralDirectory.add(entry);
+    }
+
+    /** Writes the central directory. */
+    void finish() throws IOException {
+      long directoryOffset = offset;
+      for (byte[] entry : centralDirectory) {
+        out.write(entry);
+        offset += entry.length;
+      }
+      setInt(0, END_OF_CENTRAL_DIRECTORY);
+      setShort(4, 0);
+      setShort(6, 0);
+      setShort(8, centralDirectory.size());
+      setShort(10, centralDirectory.size());
+      setInt(12, offset - directoryOffset);
+      setInt(16, directoryOffset);
+      setShort(20, 0);
+      writeHeader(22);
+      out.flush();
+    }
+
+    private void writeHeader(int length) throws IOException {
+      out.write(header, 0, length);
+      offset += length;
+    }
+
+    private void setShort(int index, int value) {
+      putShort(header, index, value);
+    }
+
+    private void setInt(int index, long value) {
+      putInt(header, index, value);
+    }
+  }
+
+  private static void putShort(byte[] bytes, int index, int value) {
+    bytes[index] = (byte) value;
+    bytes[index + 1] = (byte) (value >> 8);
+  }
+
+  private static void putInt(byte[] bytes, int index, long value) {
+    putShort(bytes, index, (int) (value & 0xFFFF));
+    putShort(bytes, index + 2, (int) ((value >> 16) & 0xFFFF));
+  }
+
+  /** Converts a time to the MS-DOS date and time used in ZIP headers. */
+  private static long dosTime(long millis) {
+    Calendar cal = Calendar.getInstance();
+    cal.setTimeInMillis(millis);
+    int year = cal.get(Calendar.YEAR);
+    if (year < 1980) {
+      return (1 << 21) | (1 << 16);
+    }
+    return ((long) (year - 1980) << 25)
+        | ((cal.get(Calendar.MONTH) + 1) << 21)
+        | (cal.get(Calendar.DAY_OF_MONTH) << 16)
+        | (cal.get(Calendar.HOUR_OF_DAY) << 11)
+        | (cal.get(Calendar.MINUTE) << 5)
+        | (cal.get(Calendar.SECOND) >> 1);
+  }
+}
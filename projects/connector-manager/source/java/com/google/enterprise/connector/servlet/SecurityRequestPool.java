@@ -0,0 +1,231 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.servlet;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.manager.Context;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of threads used to call the connectors concurrently while
+ * handling authentication and authorization requests from the
+ * Search Appliance, so that the time taken to handle a request is the
+ * time taken by the slowest connector, rather than the sum of the times
+ * taken by all the connectors.
+ *
+ * @since 3.4
+ */
+public class SecurityRequestPool {
+  private static final Logger LOGGER =
+      Logger.getLogger(SecurityRequestPool.class.getName());
+
+  /** Idle threads exit after this many seconds. */
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
+  /** The pool used if none is configured in the application context. */
+  private static SecurityRequestPool defaultInstance;
+
+  /** The number of connector calls that may run concurrently. */
+  private int threads = 20;
+
+  /**
+   * The number of milliseconds to wait for a connector to authorize
+   * documents.
+   */
+  private long authorizationTimeout = 0L;
+
+  /**
+   * The number of milliseconds to wait for a connector to authenticate
+   * a user.
+   */
+  private long authenticationTimeout = 0L;
+
+  /** The lazily constructed executor. */
+  private ThreadPoolExecutor executor;
+
+  /**
+   * Returns the {@code SecurityRequestPool} from the application context,
+   * or a pool with the default settings if none is configured.
+   */
+  static synchronized SecurityRequestPool getInstance() {
+    SecurityRequestPool pool = null;
+    try {
+      pool = (SecurityRequestPool) Context.getInstance().getBean(
+          "SecurityRequestPool", SecurityRequestPool.class);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.FINE, "Unable to get SecurityRequestPool bean", e);
+    }
+    if (pool == null) {
+      if (defaultInstance == null) {
+        defaultInstance = new SecurityRequestPool();
+      }
+      pool = defaultInstance;
+    }
+    return pool;
+  }
+
+  /**
+   * Sets the number of connector calls that may run concurrently, for all
+   * requests combined.
+   *
+   * @param threads the number of threads; must be positive
+   */
+  public synchronized void setThreads(int threads) {
+    if (threads <= 0) {
+      throw new IllegalArgumentException("threads must be positive.");
+    }
+    this.threads = threads;
+    if (executor != null) {
+      if (threads > executor.getMaximumPoolSize()) {
+        executor.setMaximumPoolSize(threads);
+        executor.setCorePoolSize(threads);
+      } else {
+        executor.setCorePoolSize(threads);
+        executor.setMaximumPoolSize(threads);
+      }
+    }
+  }
+
+  public synchronized int getThreads() {
+    return threads;
+  }
+
+  /**
+   * Sets the number of milliseconds to wait for a connector to authorize
+   * the documents in a request, counted from when the connector is called.
+   * A query that waits longer than this for a pool thread also times out.
+   * Documents that the connector has not authorized in time are returned as
+   * {@link com.google.enterprise.connector.spi.AuthorizationResponse.Status#INDETERMINATE
+   * INDETERMINATE}.  A value of zero disables the timeout.
+   *
+   * @param authorizationTimeout the timeout in milliseconds; must not
+   *        be negative
+   */
+  public void setAuthorizationTimeout(long authorizationTimeout) {
+    if (authorizationTimeout < 0) {
+      throw new IllegalArgumentException(
+          "authorizationTimeout must not be negative.");
+    }
+    this.authorizationTimeout = authorizationTimeout;
+  }
+
+  public long getAuthorizationTimeout() {
+    return authorizationTimeout;
+  }
+
+  /**
+   * Sets the number of milliseconds to wait for a connector to
+   * authenticate a user, counted from when the connector is called.  A call
+   * that waits longer than this for a pool thread also times out.
+   * Connectors that have not responded in time are reported as failing to
+   * authenticate the user, and the groups returned by the other connectors
+   * are returned.  A value of zero disables the timeout.
+   *
+   * @param authenticationTimeout the timeout in milliseconds; must not
+   *        be negative
+   */
+  public void setAuthenticationTimeout(long authenticationTimeout) {
+    if (authenticationTimeout < 0) {
+      throw new IllegalArgumentException(
+          "authenticationTimeout must not be negative.");
+    }
+    this.authenticationTimeout = authenticationTimeout;
+  }
+
+  public long getAuthenticationTimeout() {
+    return authenticationTimeout;
+  }
+
+  /**
+   * Submits a connector call to be run on one of the pool threads.
+   *
+   * @throws java.util.concurrent.RejectedExecutionException if the
+   *         pool has been shut down
+   */
+  <T> Future<T> submit(TimedCall<T> call) {
+    call.submitTime = System.currentTimeMillis();
+    return getExecutor().submit(call);
+  }
+
+  /**
+   * Shuts down the pool threads.  Calls already submitted are still run.
+   */
+  public synchronized void shutdown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  private synchronized ThreadPoolExecutor getExecutor() {
+    if (executor == null) {
+      // Daemon threads, so that idle threads do not prevent the JVM
+      // from exiting.
+      executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder()
+              .setNameFormat("SecurityRequest-%d").setDaemon(true).build());
+      // Don't hold on to idle threads.
+      executor.allowCoreThreadTimeOut(true);
+    }
+    return executor;
+  }
+
+  /**
+   * A connector call run by the pool.  A call that is running must
+   * complete within the timeout of starting, so that time spent waiting
+   * for a pool thread behind other calls does not count against the
+   * connector.  A call that is still waiting for a pool thread the timeout
+   * after it was submitted has also missed its deadline, so that connectors
+   * that hang and hold every pool thread cannot stall all other requests.
+   */
+  abstract static class TimedCall<T> implements Callable<T> {
+    private volatile long submitTime;
+    private volatile long startTime;
+
+    @Override
+    public final T call() throws Exception {
+      startTime = System.currentTimeMillis();
+      return doCall();
+    }
+
+    /** Calls the connector. */
+    protected abstract T doCall() throws Exception;
+
+    /**
+     * Returns the time by which the call must complete.  The deadline
+     * moves later if the call starts running before its deadline.
+     *
+     * @param timeout the timeout in milliseconds
+     */
+    long getDeadline(long timeout) {
+      long startTime = this.startTime;
+      return ((startTime == 0L) ? submitTime : startTime) + timeout;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "SecurityRequestPool: threads = " + threads
+        + ", authorizationTimeout = " + authorizationTimeout
+        + ", authenticationTimeout = " + authenticationTimeout;
+  }
+}
@@ -160,6 +160,10 @@ public class ServletUtil {
   public static final String XMLTAG_DECISION = "Decision";
 
   public static final String XMLTAG_CONNECTOR_SCHEDULES = "ConnectorSchedules";
+  public static final String XMLTAG_AUTHZ_CACHE_HITS = "AuthzCacheHits";
+  public static final String XMLTAG_AUTHZ_CACHE_MISSES = "AuthzCacheMisses";
+  public static final String XMLTAG_INSTANTIATION_MILLIS =
+      "InstantiationMillis";
   @Deprecated
   public static final String XMLTAG_CONNECTOR_SCHEDULE = "ConnectorSchedule";
   public static final String XMLTAG_DISABLED = "disabled";
@@ -214,30 +214,135 @@ public abstract class Value {
   @Override
   public abstract String toString();
 
-  private static final Calendar CALENDAR = Calendar.getInstance();
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_MILLIS =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_SECS =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_MINS =
-      new SimpleDateFormat("yyyy-MM-dd'T'HH:mmZ");
-  private static final SimpleDateFormat ISO8601_DATE_FORMAT_DATE =
-      new SimpleDateFormat("yyyy-MM-dd");
-  private static final SimpleDateFormat RFC822_DATE_FORMAT =
-      new SimpleDateFormat("EEE', 'dd' 'MMM' 'yyyy' 'HH:mm:ss Z",
-          Locale.ENGLISH);
-
-  static {
-    ISO8601_DATE_FORMAT_MILLIS.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_MILLIS.setLenient(true);
-    ISO8601_DATE_FORMAT_SECS.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_SECS.setLenient(true);
-    ISO8601_DATE_FORMAT_MINS.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_MINS.setLenient(true);
-    ISO8601_DATE_FORMAT_DATE.setCalendar(CALENDAR);
-    ISO8601_DATE_FORMAT_DATE.setLenient(true);
-    RFC822_DATE_FORMAT.setCalendar(CALENDAR);
-    RFC822_DATE_FORMAT.setLenient(true);
+  /** The time zone used to format date values for the feed. */
+  private static volatile TimeZone feedTimeZone = TimeZone.getDefault();
+
+  /**
+   * The date formats for each thread.  SimpleDateFormat is not
+   * thread-safe, and sharing a single set of formats serialized
+   * all of the connector threads.
+   */
+  private static final ThreadLocal<DateFormats> DATE_FORMATS =
+      new ThreadLocal<DateFormats>();
+
+  /**
+   * Returns the date formats for the current thread, using the
+   * current feed time zone.
+   */
+  private static DateFormats getDateFormats() {
+    TimeZone timeZone = feedTimeZone;
+    DateFormats formats = DATE_FORMATS.get();
+    if (formats == null || formats.timeZone != timeZone) {
+      formats = new DateFormats(timeZone);
+      DATE_FORMATS.set(formats);
+    }
+    return formats;
+  }
+
+  /** A set of date formats in a single time zone, for a single thread. */
+  private static class DateFormats {
+    private static final long DAY = -1L;
+
+    final TimeZone timeZone;
+    final CachedDateFormat iso8601Millis;
+    final CachedDateFormat iso8601Secs;
+    final CachedDateFormat iso8601Mins;
+    final CachedDateFormat iso8601Date;
+    final CachedDateFormat rfc822;
+
+    DateFormats(TimeZone timeZone) {
+      this.timeZone = timeZone;
+      // Fix UTC time zone marker. The SimpleDateFormat Z pattern letter
+      // always produces an offset string, e.g., "-0800" or "+000". For
+      // UTC, the use of "GMT" (RFC 822) or "Z" (ISO 8601) is preferred.
+      iso8601Millis = new CachedDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ",
+          timeZone, 1L, "Z");
+      iso8601Secs = new CachedDateFormat("yyyy-MM-dd'T'HH:mm:ssZ",
+          timeZone, 1000L, "Z");
+      iso8601Mins = new CachedDateFormat("yyyy-MM-dd'T'HH:mmZ",
+          timeZone, 1000L, "Z");
+      iso8601Date = new CachedDateFormat("yyyy-MM-dd", timeZone, DAY, null);
+      rfc822 = new CachedDateFormat("EEE', 'dd' 'MMM' 'yyyy' 'HH:mm:ss Z",
+          timeZone, 1000L, "GMT");
+    }
+
+    Date parseIso8601(String s) throws ParseException {
+      Date date = null;
+      try {
+        date = iso8601Millis.format.parse(s);
+      } catch (ParseException e1) {
+        try {
+          date = iso8601Secs.format.parse(s);
+        } catch (ParseException e2) {
+          try {
+            date = iso8601Mins.format.parse(s);
+          } catch (ParseException e3) {
+            date = iso8601Date.format.parse(s);
+          }
+        }
+      }
+      return date;
+    }
+  }
+
+  /**
+   * A date format that remembers the most recently formatted value,
+   * which it returns for any time that formats the same way.  Documents
+   * are often modified at the same time, or on the same day.
+   */
+  private static class CachedDateFormat {
+    final SimpleDateFormat format;
+    private final long resolution;
+    private final String utcMarker;
+
+    /* The formatted value, for times from start, inclusive, to end. */
+    private long start = 0L;
+    private long end = 0L;
+    private String value;
+
+    /**
+     * @param pattern the SimpleDateFormat pattern
+     * @param timeZone the time zone
+     * @param resolution the smallest interval, in milliseconds, that
+     *        the pattern distinguishes, or {@code DateFormats.DAY}
+     * @param utcMarker the replacement for a trailing "+0000" offset,
+     *        or {@code null}
+     */
+    CachedDateFormat(String pattern, TimeZone timeZone, long resolution,
+        String utcMarker) {
+      // None of the formats are localized. RFC 822 is English-only.
+      format = new SimpleDateFormat(pattern, Locale.ENGLISH);
+      format.setCalendar(Calendar.getInstance(timeZone, Locale.ENGLISH));
+      format.setLenient(true);
+      this.resolution = resolution;
+      this.utcMarker = utcMarker;
+    }
+
+    String format(long millis) {
+      if (millis < start || millis >= end) {
+        String formatted = format.format(new Date(millis));
+        if (utcMarker != null && formatted.endsWith("+0000")) {
+          formatted = formatted.substring(0, formatted.length() - 5)
+              + utcMarker;
+        }
+        if (resolution == DateFormats.DAY) {
+          // The format's calendar holds the time just formatted.
+          Calendar calendar = format.getCalendar();
+          calendar.set(Calendar.HOUR_OF_DAY, 0);
+          calendar.set(Calendar.MINUTE, 0);
+          calendar.set(Calendar.SECOND, 0);
+          calendar.set(Calendar.MILLISECOND, 0);
+          start = calendar.getTimeInMillis();
+          calendar.add(Calendar.DATE, 1);
+          end = calendar.getTimeInMillis();
+        } else {
+          start = millis - (((millis % resolution) + resolution) % resolution);
+          end = start + resolution;
+        }
+        value = formatted;
+      }
+      return value;
+    }
   }
 
   /**
@@ -250,7 +355,7 @@ public abstract class Value {
    * @see TimeZone#getDefault
    * @since 2.4.4
    */
-  public static synchronized void setFeedTimeZone(String id) {
+  public static void setFeedTimeZone(String id) {
     TimeZone tz;
     if (id == null || id.length() == 0) {
       id = "default"; // For the log message.
@@ -259,7 +364,7 @@ public abstract class Value {
       tz = TimeZone.getTimeZone(id);
     }
     LOGGER.config("Setting feed time zone to " + id + " = " + tz.getID());
-    CALENDAR.setTimeZone(tz);
+    feedTimeZone = tz;
   }
 
   /**
@@ -267,8 +372,8 @@ public abstract class Value {
    *
    * @since 2.4.4
    */
-  static synchronized String getFeedTimeZone() {
-    return CALENDAR.getTimeZone().getID();
+  static String getFeedTimeZone() {
+    return feedTimeZone.getID();
   }
 
   /**
@@ -281,9 +386,8 @@ public abstract class Value {
    * @param calendar a {@code Calendar}
    * @return a String in ISO-8601 date format
    */
-  public static synchronized String calendarToFeedXml(Calendar calendar) {
-    Date date = calendar.getTime();
-    return ISO8601_DATE_FORMAT_DATE.format(date);
+  public static String calendarToFeedXml(Calendar calendar) {
+    return getDateFormats().iso8601Date.format(calendar.getTimeInMillis());
   }
 
   /**
@@ -294,12 +398,8 @@ public abstract class Value {
    * @param calendar a {@code Calendar}
    * @return a String in RFC 822 format
    */
-  public static synchronized String calendarToRfc822(Calendar calendar) {
-    Date date = calendar.getTime();
-    // Fix UTC time zone marker. The SimpleDateFormat Z pattern letter
-    // always produces an offset string, e.g., "-0800" or "+000". For
-    // UTC, the use of "GMT" (RFC 822) or "Z" (ISO 8601) is preferred.
-    return RFC822_DATE_FORMAT.format(date).replaceFirst("\\+0000$", "GMT");
+  public static String calendarToRfc822(Calendar calendar) {
+    return getDateFormats().rfc822.format(calendar.getTimeInMillis());
   }
 
   /**
@@ -310,39 +410,18 @@ public abstract class Value {
    * @param calendar a {@code Calendar}
    * @return a String in ISO-8601 format
    */
-  public static synchronized String calendarToIso8601(Calendar calendar) {
-    Date date = calendar.getTime();
-    String isoString;
+  public static String calendarToIso8601(Calendar calendar) {
+    long millis = calendar.getTimeInMillis();
+    DateFormats formats = getDateFormats();
     if (calendar.isSet(Calendar.MILLISECOND)) {
-      isoString = ISO8601_DATE_FORMAT_MILLIS.format(date);
+      return formats.iso8601Millis.format(millis);
     } else if (calendar.isSet(Calendar.SECOND)) {
-      isoString = ISO8601_DATE_FORMAT_SECS.format(date);
+      return formats.iso8601Secs.format(millis);
     } else if (calendar.isSet(Calendar.MINUTE)) {
-      isoString = ISO8601_DATE_FORMAT_MINS.format(date);
+      return formats.iso8601Mins.format(millis);
     } else {
-      isoString = ISO8601_DATE_FORMAT_DATE.format(date);
+      return formats.iso8601Date.format(millis);
     }
-    // Fix UTC time zone marker.
-    return isoString.replaceFirst("\\+0000$", "Z");
-  }
-
-  private static synchronized Date iso8601ToDate(String s)
-      throws ParseException {
-    Date date = null;
-    try {
-      date = ISO8601_DATE_FORMAT_MILLIS.parse(s);
-    } catch (ParseException e1) {
-      try {
-        date = ISO8601_DATE_FORMAT_SECS.parse(s);
-      } catch (ParseException e2) {
-        try {
-          date = ISO8601_DATE_FORMAT_MINS.parse(s);
-        } catch (ParseException e3) {
-          date = ISO8601_DATE_FORMAT_DATE.parse(s);
-        }
-      }
-    }
-    return date;
   }
 
   /**
@@ -355,11 +434,15 @@ public abstract class Value {
    * @return a Calendar object
    * @throws ParseException if the the String can not be parsed
    */
-  public static synchronized Calendar iso8601ToCalendar(String dateString)
+  public static Calendar iso8601ToCalendar(String dateString)
       throws ParseException {
     // Fix UTC time zone marker. For parsing, the Z pattern letter
     // does not accept "Z" for UTC.
-    Date date = iso8601ToDate(dateString.replaceFirst("Z$", "+0000"));
+    if (dateString.endsWith("Z")) {
+      dateString =
+          dateString.substring(0, dateString.length() - 1) + "+0000";
+    }
+    Date date = getDateFormats().parseIso8601(dateString);
     Calendar calendar = Calendar.getInstance();
     calendar.setTime(date);
     return calendar;
@@ -196,33 +196,44 @@ public class XmlUtils {
    */
   public static void xmlAppendAttrValue(String attrValue, Appendable buf)
       throws IOException {
-    for (int i = 0; i < attrValue.length(); i++) {
+    // Append runs of characters that need no encoding in a single call.
+    int start = 0;
+    int length = attrValue.length();
+    for (int i = 0; i < length; i++) {
       char c = attrValue.charAt(i);
+      String entity;
       switch (c) {
         case '<':
-          buf.append(XML_LESS_THAN);
+          entity = XML_LESS_THAN;
           break;
         case '&':
-          buf.append(XML_AMPERSAND);
+          entity = XML_AMPERSAND;
           break;
         case '"':
-          buf.append(XML_QUOTE);
+          entity = XML_QUOTE;
           break;
         case '\'':
-          buf.append(XML_APOSTROPHE);
+          entity = XML_APOSTROPHE;
           break;
         case '\t':
         case '\n':
         case '\r':
           // TODO: what happens to white-space?
-          buf.append(c);
-          break;
+          continue;
         default:
           if (c >= 0x20 && c <= 0xFFFD) {
-            buf.append(c);
+            continue;
           }
+          // Drop the invalid character.
+          entity = null;
           break;
       }
+      buf.append(attrValue, start, i);
+      if (entity != null) {
+        buf.append(entity);
+      }
+      start = i + 1;
     }
+    buf.append(attrValue, start, length);
   }
 }
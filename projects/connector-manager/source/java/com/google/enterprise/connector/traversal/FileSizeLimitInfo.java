@@ -35,6 +35,9 @@ public class FileSizeLimitInfo {
   // Default target feed size is 10MB - about 75-100 typical documents.
   private long maxFeedSize = 10 * 1024 * 1024;
 
+  // Default feed spool threshold is 0 - feeds are not spooled to disk.
+  private long feedSpoolThreshold = 0L;
+
   public void setMaxDocumentSize(long maxDocumentSize) {
     if (maxDocumentSize <= 0) {
       throw new IllegalArgumentException("maxDocumentSize must be positive.");
@@ -65,9 +68,44 @@ public class FileSizeLimitInfo {
     return maxFeedSize;
   }
 
+  /**
+   * Sets the size in bytes beyond which an accumulated feed is spooled
+   * to disk, rather than held in memory.  A value of zero disables
+   * spooling.
+   */
+  public void setFeedSpoolThreshold(long feedSpoolThreshold) {
+    if (feedSpoolThreshold < 0) {
+      throw new IllegalArgumentException(
+          "feedSpoolThreshold must not be negative.");
+    }
+    if (feedSpoolThreshold > MAXIMUM_FEED_FILE_SIZE) {
+      this.feedSpoolThreshold = MAXIMUM_FEED_FILE_SIZE;
+    } else {
+      this.feedSpoolThreshold = feedSpoolThreshold;
+    }
+  }
+
+  public long feedSpoolThreshold() {
+    return feedSpoolThreshold;
+  }
+
+  /**
+   * Returns the maximum amount of memory, in bytes, that an accumulated
+   * feed may occupy.  This is the target feed size plus the size of one
+   * maximum size document, or the feed spool threshold, if smaller.
+   */
+  public long maxFeedMemory() {
+    long memory = maxFeedSize + maxDocumentSize;
+    if (feedSpoolThreshold > 0 && feedSpoolThreshold < memory) {
+      memory = feedSpoolThreshold;
+    }
+    return memory;
+  }
+
   @Override
   public String toString() {
     return "FileSizeLimitInfo: maxDocumentSize = " + maxDocumentSize
-           + ", maxFeedSize = " + maxFeedSize;
+           + ", maxFeedSize = " + maxFeedSize
+           + ", feedSpoolThreshold = " + feedSpoolThreshold;
   }
 }
@@ -27,7 +27,9 @@ import java.util.Set;
  * the setters during connector manager start up and never changes afterwards.
  */
 public class ProductionTraversalContext extends SimpleTraversalContext {
-  private MimeTypeMap mimeTypeMap = new MimeTypeMap();
+  // Volatile rather than synchronized, since MIME types are looked up
+  // concurrently for every document by every connector.
+  private volatile MimeTypeMap mimeTypeMap = new MimeTypeMap();
 
   public synchronized void setFileSizeLimitInfo(
       FileSizeLimitInfo fileSizeLimitInfo) {
@@ -39,12 +41,12 @@ public class ProductionTraversalContext extends SimpleTraversalContext {
   }
 
   @Override
-  public synchronized int mimeTypeSupportLevel(String mimeType) {
+  public int mimeTypeSupportLevel(String mimeType) {
     return mimeTypeMap.mimeTypeSupportLevel(mimeType);
   }
 
   @Override
-  public synchronized String preferredMimeType(Set<String> mimeTypes) {
+  public String preferredMimeType(Set<String> mimeTypes) {
     return mimeTypeMap.preferredMimeType(mimeTypes);
   }
 }
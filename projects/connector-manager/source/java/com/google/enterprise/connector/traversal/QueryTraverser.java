@@ -14,6 +14,8 @@
 
 package com.google.enterprise.connector.traversal;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.enterprise.connector.logging.NDC;
 import com.google.enterprise.connector.pusher.FeedException;
 import com.google.enterprise.connector.pusher.PushException;
 import com.google.enterprise.connector.pusher.Pusher;
@@ -30,6 +32,12 @@ import com.google.enterprise.connector.spi.TraversalManager;
 import com.google.enterprise.connector.spi.Value;
 import com.google.enterprise.connector.util.Clock;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -40,6 +48,22 @@ public class QueryTraverser implements Traverser {
   private static final Logger LOGGER =
       Logger.getLogger(QueryTraverser.class.getName());
 
+  /** How long to wait for a document fetcher thread to exit. */
+  private static final long FETCHER_JOIN_MILLIS = 10000L;
+
+  /**
+   * The document fetcher threads that outlived their batch, by connector
+   * name.  A new batch for the connector does not start until its old
+   * fetcher has exited, so a connector never has two DocumentLists open.
+   */
+  private static final ConcurrentMap<String, Thread> lingeringFetchers =
+      new ConcurrentHashMap<String, Thread>();
+
+  /** Daemon threads, so that a stuck fetcher does not block JVM exit. */
+  private static final ThreadFactory fetcherThreadFactory =
+      new ThreadFactoryBuilder()
+          .setNameFormat("DocumentFetcher-%d").setDaemon(true).build();
+
   private final PusherFactory pusherFactory;
   private final TraversalManager queryTraversalManager;
   private final TraversalStateStore stateStore;
@@ -47,10 +71,16 @@ public class QueryTraverser implements Traverser {
   private final TraversalContext traversalContext;
   private final Clock clock;
 
+  /** The number of fetched documents that may wait for the Pusher. */
+  private int pipelineDepth = 0;
+
   // Synchronize access to cancelWork.
   private final Object cancelLock = new Object();
   private boolean cancelWork = false;
 
+  /** The document fetcher of a running pipelined batch, or null. */
+  private volatile DocumentFetcher fetcher;
+
   /**
    * The {@code DocumentStore} parameter is ignored and may be null.
    *
@@ -77,11 +107,50 @@ public class QueryTraverser implements Traverser {
     this.clock = clock;
   }
 
+  /**
+   * Sets the number of documents that may be fetched from the
+   * {@link DocumentList} ahead of the {@link Pusher}.  If positive,
+   * documents are retrieved from the repository on a separate thread,
+   * so that fetching documents overlaps applying the document filters
+   * and building the feed.  This requires that a connector's documents
+   * remain usable after subsequent calls to
+   * {@link DocumentList#nextDocument()}.  A value of zero, the default,
+   * fetches and feeds each document in turn on the traversal thread.
+   *
+   * @param pipelineDepth the number of documents to fetch ahead;
+   *        must not be negative
+   * @since 3.4
+   */
+  public void setPipelineDepth(int pipelineDepth) {
+    if (pipelineDepth < 0) {
+      throw new IllegalArgumentException(
+          "pipelineDepth must not be negative.");
+    }
+    this.pipelineDepth = pipelineDepth;
+  }
+
+  /**
+   * Forgets any document fetcher that outlived its batch for the named
+   * connector.  This is called when the connector is removed, after the
+   * connector instance has been shut down, so that a new connector with
+   * the same name is not held up by the old one.
+   *
+   * @param connectorName the name of the removed connector
+   * @since 3.4
+   */
+  public static void connectorRemoved(String connectorName) {
+    lingeringFetchers.remove(connectorName);
+  }
+
   @Override
   public void cancelBatch() {
     synchronized(cancelLock) {
       cancelWork = true;
     }
+    DocumentFetcher currentFetcher = fetcher;
+    if (currentFetcher != null) {
+      currentFetcher.cancel();
+    }
     LOGGER.fine("Cancelling traversal for connector " + connectorName);
   }
 
@@ -101,6 +170,12 @@ public class QueryTraverser implements Traverser {
         LOGGER.warning("Attempting to run a cancelled QueryTraverser");
       return new BatchResult(TraversalDelayPolicy.ERROR);
     }
+    Thread lingeringFetcher = lingeringFetchers.get(connectorName);
+    if (lingeringFetcher != null && !joinFetcher(lingeringFetcher)) {
+      LOGGER.warning("Traversal for connector " + connectorName
+          + " is still retrieving a document from the previous batch.");
+      return new BatchResult(TraversalDelayPolicy.ERROR);
+    }
     try {
       queryTraversalManager.setBatchHint(batchSize.getHint());
     } catch (RepositoryException e) {
@@ -159,68 +234,74 @@ public class QueryTraverser implements Traverser {
       // Get a Pusher for feeding the returned Documents.
       pusher = pusherFactory.newPusher(connectorName);
 
-      while (true) {
-        if (Thread.currentThread().isInterrupted() || isCancelled()) {
-          LOGGER.fine("Traversal for connector " + connectorName
-                      + " has been interrupted; breaking out of batch run.");
-          break;
-        }
-        if (clock.getTimeMillis() >= timeoutTime) {
-          LOGGER.fine("Traversal batch for connector " + connectorName
-              + " is completing due to time limit.");
-          break;
-        }
-
-        String docid = null;
-        try {
-          LOGGER.finer("Pulling next document from connector " + connectorName);
-          Document nextDocument = resultSet.nextDocument();
-          if (nextDocument == null) {
-            LOGGER.finer("Traversal batch for connector " + connectorName
-                + " at end after processing " + counter + " documents.");
-
+      if (pipelineDepth > 0) {
+        counter = runPipelinedBatch(resultSet, pusher, timeoutTime);
+      } else {
+        while (true) {
+          if (Thread.currentThread().isInterrupted() || isCancelled()) {
+            LOGGER.fine("Traversal for connector " + connectorName
+                        + " has been interrupted; breaking out of batch run.");
             break;
-          } else {
-            // Since there are a couple of places below that could throw
-            // exceptions but not exit the while loop, the counter should be
-            // incremented here to insure it represents documents returned from
-            // the list.  Note the call to nextDocument() could also throw a
-            // RepositoryDocumentException signaling a skipped document in which
-            // case the call will not be counted against the batch maximum.
-            counter++;
-            // Fetch DocId to use in messages.
-            try {
-              docid = Value.getSingleValueString(nextDocument,
-                                                 SpiConstants.PROPNAME_DOCID);
-            } catch (IllegalArgumentException e1) {
-                LOGGER.finer("Unable to get document id for document ("
-                             + nextDocument + "): " + e1.getMessage());
-            } catch (RepositoryException e1) {
-                LOGGER.finer("Unable to get document id for document ("
-                             + nextDocument + "): " + e1.getMessage());
-            }
           }
-          LOGGER.finer("Sending document (" + docid + ") from connector "
-              + connectorName + " to Pusher");
-
-          if (pusher.take(nextDocument) != PusherStatus.OK) {
+          if (clock.getTimeMillis() >= timeoutTime) {
             LOGGER.fine("Traversal batch for connector " + connectorName
-                + " is completing at the request of the Pusher,"
-                + " after processing " + counter + " documents.");
+                + " is completing due to time limit.");
             break;
           }
-        } catch (SkippedDocumentException e) {
-          /* TODO (bmj): This is a temporary solution and should be replaced.
-           * It uses Exceptions for non-exceptional cases.
-           */
-          // Skip this document.  Proceed on to the next one.
-          logSkippedDocument(docid, e);
-        } catch (RepositoryDocumentException e) {
-          // Skip individual documents that fail.  Proceed on to the next one.
-          logSkippedDocument(docid, e);
-        } catch (RuntimeException e) {
-          // Skip individual documents that fail.  Proceed on to the next one.
-          logSkippedDocument(docid, e);
+
+          String docid = null;
+          try {
+            LOGGER.finer("Pulling next document from connector "
+                + connectorName);
+            Document nextDocument = resultSet.nextDocument();
+            if (nextDocument == null) {
+              LOGGER.finer("Traversal batch for connector " + connectorName
+                  + " at end after processing " + counter + " documents.");
+
+              break;
+            } else {
+              // Since there are a couple of places below that could throw
+              // exceptions but not exit the while loop, the counter should
+              // be incremented here to insure it represents documents
+              // returned from the list.  Note the call to nextDocument()
+              // could also throw a RepositoryDocumentException signaling a
+              // skipped document in which case the call will not be counted
+              // against the batch maximum.
+              counter++;
+              // Fetch DocId to use in messages.
+              try {
+                docid = Value.getSingleValueString(nextDocument,
+                                                   SpiConstants.PROPNAME_DOCID);
+              } catch (IllegalArgumentException e1) {
+                  LOGGER.finer("Unable to get document id for document ("
+                               + nextDocument + "): " + e1.getMessage());
+              } catch (RepositoryException e1) {
+                  LOGGER.finer("Unable to get document id for document ("
+                               + nextDocument + "): " + e1.getMessage());
+              }
+            }
+            LOGGER.finer("Sending document (" + docid + ") from connector "
+                + connectorName + " to Pusher");
+
+            if (pusher.take(nextDocument) != PusherStatus.OK) {
+              LOGGER.fine("Traversal batch for connector " + connectorName
+                  + " is completing at the request of the Pusher,"
+                  + " after processing " + counter + " documents.");
+              break;
+            }
+          } catch (SkippedDocumentException e) {
+            /* TODO (bmj): This is a temporary solution and should be replaced.
+             * It uses Exceptions for non-exceptional cases.
+             */
+            // Skip this document.  Proceed on to the next one.
+            logSkippedDocument(docid, e);
+          } catch (RepositoryDocumentException e) {
+            // Skip individual documents that fail.  Proceed on to the next one.
+            logSkippedDocument(docid, e);
+          } catch (RuntimeException e) {
+            // Skip individual documents that fail.  Proceed on to the next one.
+            logSkippedDocument(docid, e);
+          }
         }
       }
       // No more documents. Wrap up any accumulated feed data and send it off.
@@ -287,6 +368,314 @@ public class QueryTraverser implements Traverser {
     return result;
   }
 
+  /**
+   * Feeds the documents retrieved by a {@link DocumentFetcher} running
+   * on a separate thread, so that repository access overlaps the
+   * filtering and feed construction done by the {@link Pusher}.
+   * <p>
+   * Once the batch starts to wind down, whether from the time limit
+   * or at the request of the Pusher, no more documents are fetched, but
+   * every document already fetched is still given to the Pusher.  The
+   * checkpoint taken at the end of the batch therefore never covers a
+   * document that was not fed.
+   *
+   * @return the number of documents returned from the DocumentList
+   */
+  private int runPipelinedBatch(DocumentList resultSet, Pusher pusher,
+      long timeoutTime)
+      throws PushException, FeedException, RepositoryException {
+    DocumentFetcher fetcher =
+        new DocumentFetcher(resultSet, timeoutTime, pipelineDepth);
+    this.fetcher = fetcher;
+    Thread thread = fetcherThreadFactory.newThread(fetcher);
+    thread.start();
+
+    int counter = 0;
+    boolean isStopping = false;
+    boolean isInterrupted = false;
+    try {
+      while (true) {
+        if (!isStopping && isCancelled()) {
+          LOGGER.fine("Traversal for connector " + connectorName
+              + " has been interrupted; breaking out of batch run.");
+          isStopping = true;
+          fetcher.cancel();
+        }
+
+        FetchedDocument fetched;
+        try {
+          fetched = fetcher.take();
+        } catch (InterruptedException e) {
+          // Finish feeding the documents already fetched.
+          LOGGER.fine("Traversal for connector " + connectorName
+              + " has been interrupted; breaking out of batch run.");
+          isInterrupted = true;
+          isStopping = true;
+          fetcher.cancel();
+          continue;
+        }
+        if (fetched.document == null) {
+          if (fetched.error == null) {
+            LOGGER.finer("Traversal batch for connector " + connectorName
+                + " at end after processing " + counter + " documents.");
+            break;
+          } else if (fetched.error instanceof RepositoryException) {
+            throw (RepositoryException) fetched.error;
+          } else if (fetched.error instanceof Error) {
+            throw (Error) fetched.error;
+          } else {
+            throw new RepositoryException(fetched.error);
+          }
+        }
+
+        counter++;
+        if (isCancelled()) {
+          // The batch will be abandoned, so there is no point feeding this.
+          continue;
+        }
+        try {
+          LOGGER.finer("Sending document (" + fetched.docid
+              + ") from connector " + connectorName + " to Pusher");
+          PusherStatus status = pusher.take(fetched.document);
+          if (status == PusherStatus.DISABLED) {
+            // The document was not fed, so we must not checkpoint past it.
+            throw new PushException("Pusher for connector " + connectorName
+                + " has been disabled.");
+          } else if (status != PusherStatus.OK && !isStopping) {
+            LOGGER.fine("Traversal batch for connector " + connectorName
+                + " is completing at the request of the Pusher,"
+                + " after processing " + counter + " documents.");
+            isStopping = true;
+            fetcher.stop();
+          }
+        } catch (RepositoryDocumentException e) {
+          // Skip individual documents that fail.  Proceed on to the next one.
+          logSkippedDocument(fetched.docid, e);
+        } catch (RuntimeException e) {
+          // Skip individual documents that fail.  Proceed on to the next one.
+          logSkippedDocument(fetched.docid, e);
+        }
+      }
+    } finally {
+      // If we are leaving early, the fetcher must not wait for us.  Wait
+      // for it to finish with the DocumentList, so that the next batch
+      // does not use the connector concurrently.
+      fetcher.abandon();
+      this.fetcher = null;
+      if (!joinFetcher(thread)) {
+        LOGGER.warning("Traversal batch for connector " + connectorName
+            + " is ending while still retrieving a document.");
+        lingeringFetchers.put(connectorName, thread);
+      }
+      if (isInterrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * Waits a limited time for a document fetcher thread to exit.
+   * Interrupts of the calling thread are deferred until the wait is over.
+   *
+   * @return {@code true} if the fetcher has exited
+   */
+  private boolean joinFetcher(Thread fetcherThread) {
+    boolean isInterrupted = false;
+    long deadline = System.currentTimeMillis() + FETCHER_JOIN_MILLIS;
+    try {
+      long remaining;
+      while (fetcherThread.isAlive()
+          && (remaining = deadline - System.currentTimeMillis()) > 0) {
+        try {
+          fetcherThread.join(remaining);
+        } catch (InterruptedException e) {
+          isInterrupted = true;
+        }
+      }
+    } finally {
+      if (isInterrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (fetcherThread.isAlive()) {
+      return false;
+    }
+    lingeringFetchers.remove(connectorName, fetcherThread);
+    return true;
+  }
+
+  /**
+   * A document retrieved by a {@link DocumentFetcher}.  If the document
+   * is {@code null}, then either the error is not {@code null}, or the
+   * fetcher has finished.
+   */
+  private static class FetchedDocument {
+    static final FetchedDocument END = new FetchedDocument(null, null, null);
+
+    final Document document;
+    final String docid;
+    final Throwable error;
+
+    FetchedDocument(Document document, String docid, Throwable error) {
+      this.document = document;
+      this.docid = docid;
+      this.error = error;
+    }
+  }
+
+  /**
+   * Retrieves documents from a {@link DocumentList} into a bounded queue,
+   * until the list is exhausted, the batch time limit is reached, or the
+   * fetcher is stopped.  A {@link FetchedDocument#END} marker or an error
+   * is always the last item queued, unless the fetcher is abandoned.
+   */
+  private class DocumentFetcher implements Runnable {
+    /** How often a blocked fetcher checks if it has been abandoned. */
+    private static final long POLL_MILLIS = 1000L;
+
+    private final DocumentList resultSet;
+    private final long timeoutTime;
+    private final BlockingQueue<FetchedDocument> queue;
+    private final String context = NDC.peek();
+
+    private volatile boolean isStopped = false;
+    private volatile boolean isInterrupted = false;
+    private volatile boolean isAbandoned = false;
+    private volatile Thread fetcherThread;
+
+    DocumentFetcher(DocumentList resultSet, long timeoutTime, int depth) {
+      this.resultSet = resultSet;
+      this.timeoutTime = timeoutTime;
+      this.queue = new ArrayBlockingQueue<FetchedDocument>(depth);
+    }
+
+    /** Stops fetching documents, but queues the end marker. */
+    void stop() {
+      isStopped = true;
+    }
+
+    /**
+     * Stops fetching documents, and interrupts the retrieval of the
+     * current document, but queues the end marker.
+     */
+    void cancel() {
+      isStopped = true;
+      interrupt();
+    }
+
+    /**
+     * Stops fetching documents, interrupts the retrieval of the current
+     * document, and discards any that are not queued.
+     */
+    void abandon() {
+      isStopped = true;
+      isAbandoned = true;
+      interrupt();
+    }
+
+    private void interrupt() {
+      isInterrupted = true;
+      Thread thread = fetcherThread;
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+
+    /** Waits for the next fetched document. */
+    FetchedDocument take() throws InterruptedException {
+      return queue.take();
+    }
+
+    @Override
+    public void run() {
+      fetcherThread = Thread.currentThread();
+      NDC.push(context);
+      try {
+        while (!isStopped && !isCancelled()) {
+          if (clock.getTimeMillis() >= timeoutTime) {
+            LOGGER.fine("Traversal batch for connector " + connectorName
+                + " is completing due to time limit.");
+            break;
+          }
+          FetchedDocument fetched = fetch();
+          if (fetched == FetchedDocument.END || (isInterrupted
+              && fetched != null && fetched.error != null)) {
+            // An error after we interrupted the fetch is likely caused by
+            // the interrupt.  Other errors are queued, so that the batch
+            // fails without a checkpoint.
+            break;
+          } else if (fetched != null) {
+            if (!put(fetched) || fetched.error != null) {
+              return;
+            }
+          }
+        }
+        put(FetchedDocument.END);
+      } finally {
+        NDC.remove();
+      }
+    }
+
+    /**
+     * Returns the next document, {@link FetchedDocument#END} if there
+     * are no more documents, or {@code null} if the document was skipped.
+     */
+    private FetchedDocument fetch() {
+      try {
+        LOGGER.finer("Pulling next document from connector "
+            + connectorName);
+        Document nextDocument = resultSet.nextDocument();
+        if (nextDocument == null) {
+          return FetchedDocument.END;
+        }
+        // Fetch DocId to use in messages.
+        String docid = null;
+        try {
+          docid = Value.getSingleValueString(nextDocument,
+                                             SpiConstants.PROPNAME_DOCID);
+        } catch (IllegalArgumentException e1) {
+          LOGGER.finer("Unable to get document id for document ("
+                       + nextDocument + "): " + e1.getMessage());
+        } catch (RepositoryException e1) {
+          LOGGER.finer("Unable to get document id for document ("
+                       + nextDocument + "): " + e1.getMessage());
+        }
+        return new FetchedDocument(nextDocument, docid, null);
+      } catch (RepositoryDocumentException e) {
+        // Skip individual documents that fail.  Proceed on to the next one.
+        logSkippedDocument(null, e);
+      } catch (RuntimeException e) {
+        // Skip individual documents that fail.  Proceed on to the next one.
+        logSkippedDocument(null, e);
+      } catch (Throwable t) {
+        return new FetchedDocument(null, null, t);
+      }
+      return null;
+    }
+
+    /**
+     * Queues a fetched document, waiting for space if necessary.
+     *
+     * @return {@code false} if the fetcher was abandoned
+     */
+    private boolean put(FetchedDocument fetched) {
+      while (true) {
+        try {
+          if (queue.offer(fetched, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            return true;
+          }
+        } catch (InterruptedException e) {
+          // Interrupted by cancel() or abandon().  The batch still waits
+          // for the end marker, unless the fetcher was abandoned.
+        }
+        if (isAbandoned) {
+          return false;
+        }
+      }
+    }
+  }
+
   private String checkpointAndSave(DocumentList pm) {
     String connectorState = null;
     LOGGER.fine("CHECKPOINT: Generating checkpoint for connector "
@@ -14,7 +14,10 @@
 
 package com.google.enterprise.connector.util;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Sets;
 import com.google.enterprise.connector.spi.TraversalContext;
 
@@ -26,8 +29,11 @@ import eu.medsea.util.EncodingGuesser;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -47,9 +53,28 @@ public class MimeTypeDetector {
   public static final String UNKNOWN_MIME_TYPE =
       mimeTypeStringValue(MimeUtil2.UNKNOWN_MIME_TYPE);
 
+  /** The maximum number of filename extensions to cache. */
+  private static final int MAX_EXTENSION_CACHE_SIZE = 1000;
+
+  /** The cached value for extensions that mime-util has no mapping for. */
+  private static final ExtensionMimeTypes NO_MATCH =
+      new ExtensionMimeTypes(Collections.<String>emptySet());
+
   private static MimeUtil2 extensionDetector;
   private static MimeUtil2 magicDetector;
 
+  /**
+   * Caches the MIME types for filename extensions, so that the common
+   * extensions do not need to wait for the shared extensionDetector.
+   * The keys are the extensions that mime-util matched, or
+   * {@link #NO_MATCH} for longer extensions it has no mapping for.
+   * Approximately least recently used entries are evicted when the cache
+   * fills, and the cache is cleared if the TraversalContext changes.
+   * Lookups do not block each other.
+   */
+  private static final Cache<String, ExtensionMimeTypes> extensionCache =
+      CacheBuilder.newBuilder().maximumSize(MAX_EXTENSION_CACHE_SIZE).build();
+
   /**
    * The mime-util library leaks memory like a sieve on each new instance,
    * and is not thread-safe. So we want to share instances of MimeUtil2.
@@ -87,6 +112,8 @@ public class MimeTypeDetector {
     Preconditions.checkNotNull(traversalContext,
                                "traversalContext must not be null.");
     MimeTypeDetector.traversalContext = traversalContext;
+    // The cached preferred MIME types depend on the TraversalContext.
+    extensionCache.invalidateAll();
   }
 
   public MimeTypeDetector() {
@@ -150,8 +177,10 @@ public class MimeTypeDetector {
     // We munge the file name we pass to getMimeTypes so that it will
     // not find the file exists, open it and perform content based
     // detection here.
-    String bestMimeType =
-        pickBestMimeType(getMimeTypes(filename), getMimeTypes(content));
+    ExtensionMimeTypes extensionMimeTypes = getExtensionMimeTypes(filename);
+    String bestMimeType = pickBestMimeType(
+        (extensionMimeTypes == null) ? null : extensionMimeTypes.names,
+        getMimeTypes(content));
     if (LOGGER.isLoggable(Level.FINEST)) {
       LOGGER.finest("MimeType " + bestMimeType + " determined for "
                     + ((filename == null) ? "content." : filename));
@@ -193,9 +222,11 @@ public class MimeTypeDetector {
         InputStreamFactory inputStreamFactory) throws IOException {
     Preconditions.checkArgument((filename != null || inputStreamFactory != null),
         "filename and inputStreamFactory may not both be null");
-    Collection<MimeType> mimeTypes = getMimeTypes(filename);
-    String bestMimeType = pickBestMimeType(mimeTypes);
+    ExtensionMimeTypes extensionMimeTypes = getExtensionMimeTypes(filename);
+    String bestMimeType = (extensionMimeTypes == null)
+        ? UNKNOWN_MIME_TYPE : extensionMimeTypes.getPreferredMimeType();
     if (UNKNOWN_MIME_TYPE.equals(bestMimeType) && inputStreamFactory != null) {
+      Set<String> mimeTypes;
       InputStream is = inputStreamFactory.getInputStream();
       try {
         byte[] bytes = getBytes(is);
@@ -203,7 +234,7 @@ public class MimeTypeDetector {
       } finally {
         is.close();
       }
-      bestMimeType = pickBestMimeType(mimeTypes);
+      bestMimeType = pickBestMimeType(mimeTypes, null);
     }
     if (LOGGER.isLoggable(Level.FINEST)) {
       LOGGER.finest("MimeType " + bestMimeType + " determined for "
@@ -212,23 +243,138 @@ public class MimeTypeDetector {
     return bestMimeType;
   }
 
-  @SuppressWarnings("unchecked")
-  private Collection<MimeType> getMimeTypes(String filename) {
+  /**
+   * Returns the MIME types for the filename extension, or {@code null}
+   * if {@code filename} is {@code null}.
+   */
+  private ExtensionMimeTypes getExtensionMimeTypes(String filename) {
     if (filename == null) {
       return null;
     }
+    // None of mime-util's extensions contain path separators, so the
+    // result depends only on the last path element.
+    return getExtensionMimeTypes(extensions(baseName(filename)), 0);
+  }
+
+  /**
+   * Returns the MIME types for the first of the given extensions, starting
+   * at {@code start}, that mime-util has a mapping for. This mirrors
+   * mime-util, which looks up everything after the first dot, then after
+   * each following dot, until it finds a match.
+   */
+  private static ExtensionMimeTypes getExtensionMimeTypes(
+      List<String> extensions, int start) {
+    for (int i = start; i < extensions.size(); i++) {
+      ExtensionMimeTypes mimeTypes =
+          extensionCache.getIfPresent(extensions.get(i));
+      if (mimeTypes == null) {
+        return detectExtensionMimeTypes(extensions, i);
+      } else if (mimeTypes != NO_MATCH) {
+        return mimeTypes;
+      }
+    }
+    return NO_MATCH;
+  }
+
+  /**
+   * Detects the MIME types for the extension at {@code index}, and caches
+   * them under that extension if mime-util matched it, or {@code NO_MATCH}
+   * if mime-util matched one of the shorter extensions that follow it.
+   */
+  private static ExtensionMimeTypes detectExtensionMimeTypes(
+      List<String> extensions, int index) {
+    String extension = extensions.get(index);
+    Collection<?> detected;
     synchronized (extensionDetector) {
-      return extensionDetector.getMimeTypes(filename);
+      detected = extensionDetector.getMimeTypes("file." + extension);
+    }
+    Set<String> names = mimeTypeNames(detected);
+    ExtensionMimeTypes shorter = getExtensionMimeTypes(extensions, index + 1);
+    ExtensionMimeTypes mimeTypes;
+    if (names.equals(shorter.names)) {
+      mimeTypes = shorter;
+      cacheExtensionMimeTypes(extension, NO_MATCH);
+    } else {
+      mimeTypes = new ExtensionMimeTypes(names);
+      cacheExtensionMimeTypes(extension, mimeTypes);
+    }
+    return mimeTypes;
+  }
+
+  private static void cacheExtensionMimeTypes(String extension,
+      ExtensionMimeTypes mimeTypes) {
+    extensionCache.put(extension, mimeTypes);
+  }
+
+  /**
+   * Returns the extensions of a file name, longest first: everything
+   * after the first dot, then after each following dot.
+   */
+  private static List<String> extensions(String baseName) {
+    List<String> extensions = new ArrayList<String>();
+    for (int index = baseName.indexOf('.'); index >= 0;
+         index = baseName.indexOf('.', index + 1)) {
+      if (index + 1 < baseName.length()) {
+        extensions.add(baseName.substring(index + 1));
+      }
     }
+    return extensions;
   }
 
-  @SuppressWarnings("unchecked")
-  private Collection<MimeType> getMimeTypes(byte[] content) {
+  /** Returns the number of cached filename extensions. */
+  @VisibleForTesting
+  static long getExtensionCacheSize() {
+    return extensionCache.size();
+  }
+
+  /** Returns the last element of a path or URL. */
+  private static String baseName(String filename) {
+    int index = Math.max(filename.lastIndexOf('/'), filename.lastIndexOf('\\'));
+    return filename.substring(index + 1);
+  }
+
+  private Set<String> getMimeTypes(byte[] content) {
     if (content == null) {
       return null;
     }
+    Collection<?> detected;
     synchronized (magicDetector) {
-      return magicDetector.getMimeTypes(content);
+      detected = magicDetector.getMimeTypes(content);
+    }
+    return mimeTypeNames(detected);
+  }
+
+  /**
+   * Returns the names of the known MIME types, preserving the order of
+   * the mimetypes as they are returned by MimeUtil.
+   */
+  private static Set<String> mimeTypeNames(Collection<?> mimeTypes) {
+    Set<String> mimeTypeNames = new LinkedHashSet<String>();
+    for (Object mimeType : mimeTypes) {
+      if (!MimeUtil2.UNKNOWN_MIME_TYPE.equals(mimeType)) {
+        mimeTypeNames.add(mimeTypeStringValue((MimeType) mimeType));
+      }
+    }
+    return Collections.unmodifiableSet(mimeTypeNames);
+  }
+
+  /**
+   * The MIME types for a filename extension, and the preferred one
+   * among them.
+   */
+  private static class ExtensionMimeTypes {
+    final Set<String> names;
+    private volatile String preferredMimeType;
+
+    ExtensionMimeTypes(Set<String> names) {
+      this.names = names;
+    }
+
+    String getPreferredMimeType() {
+      if (preferredMimeType == null) {
+        preferredMimeType = pickBestMimeType(names, null);
+      }
+      return preferredMimeType;
     }
   }
 
@@ -237,32 +383,26 @@ public class MimeTypeDetector {
    * from the MIME types collected by the filename extension MIME type
    * detector and/or the document content MIME type detector.
    *
-   * @param extensionMimeTypes a Collection of MimeTypes as determined by
+   * @param extensionMimeTypes a Set of MIME types as determined by
    *        the filename extension (may be {@code null})
-   * @param contentMimeTypes a Collection of MimeTypes as determined by
+   * @param contentMimeTypes a Set of MIME types as determined by
    *        the document content (may be {@code null})
    * @return most suitable MIME type for the document
    */
-  private String pickBestMimeType(Collection<MimeType> extensionMimeTypes,
-                                  Collection<MimeType> contentMimeTypes) {
-    // Use a LinkedHashSet so we preserve the order of the mimetypes
-    // as they are returned by MimeUtil.
-    Set<String> mimeTypeNames = new LinkedHashSet<String>();
-    if (extensionMimeTypes != null) {
-      for (MimeType mimeType : extensionMimeTypes) {
-        if (!MimeUtil2.UNKNOWN_MIME_TYPE.equals(mimeType)) {
-          mimeTypeNames.add(mimeTypeStringValue(mimeType));
-        }
-      }
-    }
-    if (contentMimeTypes != null) {
-      for (MimeType mimeType : contentMimeTypes) {
-        if (!MimeUtil2.UNKNOWN_MIME_TYPE.equals(mimeType)) {
-          mimeTypeNames.add(mimeTypeStringValue(mimeType));
-        }
-      } 
+  private static String pickBestMimeType(Set<String> extensionMimeTypes,
+                                         Set<String> contentMimeTypes) {
+    Set<String> mimeTypeNames;
+    if (contentMimeTypes == null || contentMimeTypes.isEmpty()) {
+      mimeTypeNames = extensionMimeTypes;
+    } else if (extensionMimeTypes == null || extensionMimeTypes.isEmpty()) {
+      mimeTypeNames = contentMimeTypes;
+    } else {
+      // Use a LinkedHashSet so we preserve the order of the mimetypes
+      // as they are returned by MimeUtil.
+      mimeTypeNames = new LinkedHashSet<String>(extensionMimeTypes);
+      mimeTypeNames.addAll(contentMimeTypes);
     }
-    if (mimeTypeNames.isEmpty()) {
+    if (mimeTypeNames == null || mimeTypeNames.isEmpty()) {
       return UNKNOWN_MIME_TYPE;
     }
     // get the most suitable MIME type for this document
@@ -271,10 +411,6 @@ public class MimeTypeDetector {
     return traversalContext.preferredMimeType(mimeTypeNames);
   }
 
-  private String pickBestMimeType(Collection<MimeType> mimeTypes) {
-    return pickBestMimeType(mimeTypes, null);
-  }
-
   private static String mimeTypeStringValue(MimeType mimeType) {
     return mimeType.getMediaType() + "/" + mimeType.getSubType();
   }
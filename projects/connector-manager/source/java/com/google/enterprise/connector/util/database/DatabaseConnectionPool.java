@@ -14,9 +14,21 @@
 
 package com.google.enterprise.connector.util.database;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.enterprise.connector.util.Clock;
+import com.google.enterprise.connector.util.SystemClock;
+
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -28,17 +40,59 @@ import javax.sql.DataSource;
  * time-consuming to open.  This pool maintains a LIFO stack of open
  * Connections in an attempt to re-use existing Connections to the database.
  * <p>
+ * By default, the pool is unbounded, and each Connection is validated
+ * as it is taken from the pool.  The pool may be configured to:
+ * <ul>
+ * <li>limit the number of Connections in use, with callers waiting
+ * their turn in order for a Connection to be released,</li>
+ * <li>validate only Connections that have been idle for a while,</li>
+ * <li>close Connections that have been idle or open for too long,</li>
+ * <li>log Connections that have not been released for too long.</li>
+ * </ul>
+ * The pool also caches {@link PreparedStatement PreparedStatements} for
+ * each Connection, and collects statistics on the Connections borrowed,
+ * which are available through the {@link DatabaseConnectionPoolMBean}
+ * interface.
+ * <p>
  * This class requires a JDBC driver that supports the {@code isValid}
  * method of {@code java.sql.Connection}, part of the JDBC 4.0
  * specification in Java 6.
  *
  * @since 2.8
  */
-public class DatabaseConnectionPool {
+public class DatabaseConnectionPool implements DatabaseConnectionPoolMBean {
   private static final Logger LOGGER =
       Logger.getLogger(DatabaseConnectionPool.class.getName());
   private final DataSource dataSource;
-  private final LinkedList<Connection> connections = new LinkedList<Connection>();
+
+  /** The idle connections, most recently released first. */
+  private final LinkedList<PooledConnection> connections =
+      new LinkedList<PooledConnection>();
+
+  /** The connections in use. */
+  private final Map<Connection, PooledConnection> borrowed =
+      new IdentityHashMap<Connection, PooledConnection>();
+
+  private Clock clock = new SystemClock();
+
+  /* Configuration */
+  private int maxConnections = 0;
+  private long maxWaitMillis = 30 * 1000L;
+  private long validationIntervalMillis = 0L;
+  private long maxIdleMillis = 0L;
+  private long maxLifetimeMillis = 0L;
+  private long leakThresholdMillis = 0L;
+  private int statementCacheSize = 20;
+
+  /** Limits the connections in use, if maxConnections is positive. */
+  private Semaphore permits = null;
+
+  /* Statistics */
+  private long borrowCount = 0L;
+  private long createCount = 0L;
+  private long totalWaitMillis = 0L;
+  private long maxWaitedMillis = 0L;
+  private long leakCount = 0L;
 
   /**
    * Constructs a pool to hold cached {@link Connection Connections}
@@ -52,6 +106,14 @@ public class DatabaseConnectionPool {
 
   @Override
   protected void finalize() throws Throwable {
+    // Once the pool is unreachable, the borrowed Connections can never be
+    // released, so close them along with the idle ones.
+    synchronized (this) {
+      for (PooledConnection pooled : borrowed.values()) {
+        close(pooled);
+      }
+      borrowed.clear();
+    }
     closeConnections();
   }
 
@@ -64,6 +126,120 @@ public class DatabaseConnectionPool {
     return dataSource;
   }
 
+  /* Sets the Clock used to age the Connections. */
+  @VisibleForTesting
+  void setClock(Clock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Sets the maximum number of {@link Connection Connections} that may be
+   * in use at once.  Further callers wait, in order, for a Connection to
+   * be released.  Zero means no limit, which is the default.  This should
+   * be set before the pool is used.
+   *
+   * @param maxConnections the maximum number of Connections in use, or zero
+   * @since 3.4
+   */
+  public synchronized void setMaxConnections(int maxConnections) {
+    Preconditions.checkArgument(maxConnections >= 0,
+        "maxConnections must not be negative.");
+    Preconditions.checkState(borrowed.isEmpty(),
+        "maxConnections may not be changed while Connections are in use.");
+    this.maxConnections = maxConnections;
+    this.permits = (maxConnections == 0) ? null
+        : new Semaphore(maxConnections, true);
+  }
+
+  @Override
+  public synchronized int getMaxConnections() {
+    return maxConnections;
+  }
+
+  /**
+   * Sets the longest time to wait for a {@link Connection} to be released,
+   * if the maximum number of Connections are in use.  The default is
+   * 30 seconds.
+   *
+   * @param maxWaitMillis the maximum wait, in milliseconds
+   * @since 3.4
+   */
+  public synchronized void setMaxWaitMillis(long maxWaitMillis) {
+    Preconditions.checkArgument(maxWaitMillis >= 0,
+        "maxWaitMillis must not be negative.");
+    this.maxWaitMillis = maxWaitMillis;
+  }
+
+  /**
+   * Sets how long a {@link Connection} may be idle before it is validated
+   * again when taken from the pool.  Zero validates every Connection as it
+   * is taken from the pool, which is the default.
+   *
+   * @param validationIntervalMillis the validation interval, in milliseconds
+   * @since 3.4
+   */
+  public synchronized void setValidationIntervalMillis(
+      long validationIntervalMillis) {
+    Preconditions.checkArgument(validationIntervalMillis >= 0,
+        "validationIntervalMillis must not be negative.");
+    this.validationIntervalMillis = validationIntervalMillis;
+  }
+
+  /**
+   * Sets how long a {@link Connection} may be idle in the pool before it
+   * is closed.  Zero means idle Connections are kept, which is the default.
+   *
+   * @param maxIdleMillis the maximum idle time, in milliseconds
+   * @since 3.4
+   */
+  public synchronized void setMaxIdleMillis(long maxIdleMillis) {
+    Preconditions.checkArgument(maxIdleMillis >= 0,
+        "maxIdleMillis must not be negative.");
+    this.maxIdleMillis = maxIdleMillis;
+  }
+
+  /**
+   * Sets how long a {@link Connection} may be used before it is closed
+   * and replaced.  Zero means Connections are reused indefinitely, which
+   * is the default.
+   *
+   * @param maxLifetimeMillis the maximum lifetime, in milliseconds
+   * @since 3.4
+   */
+  public synchronized void setMaxLifetimeMillis(long maxLifetimeMillis) {
+    Preconditions.checkArgument(maxLifetimeMillis >= 0,
+        "maxLifetimeMillis must not be negative.");
+    this.maxLifetimeMillis = maxLifetimeMillis;
+  }
+
+  /**
+   * Sets how long a {@link Connection} may be in use before it is logged
+   * as a possible leak, along with the stack trace of the caller that took
+   * it.  Zero disables leak detection, which is the default.
+   *
+   * @param leakThresholdMillis the leak threshold, in milliseconds
+   * @since 3.4
+   */
+  public synchronized void setLeakThresholdMillis(long leakThresholdMillis) {
+    Preconditions.checkArgument(leakThresholdMillis >= 0,
+        "leakThresholdMillis must not be negative.");
+    this.leakThresholdMillis = leakThresholdMillis;
+  }
+
+  /**
+   * Sets the number of {@link PreparedStatement PreparedStatements} cached
+   * for each {@link Connection}.  The default is 20.
+   *
+   * @param statementCacheSize the number of statements to cache; must be
+   *        positive
+   * @since 3.4
+   */
+  public synchronized void setStatementCacheSize(int statementCacheSize) {
+    Preconditions.checkArgument(statementCacheSize > 0,
+        "statementCacheSize must be positive.");
+    this.statementCacheSize = statementCacheSize;
+  }
+
   /**
    * Returns a {@link Connection} from the connection pool.
    * If the pool is empty, a new {@code Connection} is
@@ -72,18 +248,94 @@ public class DatabaseConnectionPool {
    * @return a {@link Connection} to the {@link DataSource}
    * @throws SQLException if a Connection cannot be obtained
    */
-  public synchronized Connection getConnection() throws SQLException {
-    while (!connections.isEmpty()) {
-      // Get a cached connection, but check if it is still functional.
-      Connection conn = connections.removeFirst();
-      if (isAlive(conn)) {
-        return conn;
+  public Connection getConnection() throws SQLException {
+    Semaphore permits;
+    long maxWait;
+    synchronized (this) {
+      permits = this.permits;
+      maxWait = maxWaitMillis;
+    }
+    long start = clock.getTimeMillis();
+    if (permits != null) {
+      try {
+        if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+          // The pool may be exhausted by leaked Connections.
+          synchronized (this) {
+            reportLeaks(clock.getTimeMillis());
+          }
+          throw new SQLException("Timed out waiting for a database "
+              + "Connection after " + maxWait + " ms: " + this);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted waiting for a database "
+                               + "Connection");
+      }
+    }
+    boolean isBorrowed = false;
+    try {
+      PooledConnection pooled = takeConnection();
+      boolean isNew = (pooled == null);
+      long now = clock.getTimeMillis();
+      if (isNew) {
+        // Pool is empty.  Get a new connection from the dataSource.
+        pooled = new PooledConnection(dataSource.getConnection(), now);
+      }
+      synchronized (this) {
+        if (isNew) {
+          createCount++;
+        }
+        long waited = now - start;
+        borrowCount++;
+        totalWaitMillis += waited;
+        maxWaitedMillis = Math.max(maxWaitedMillis, waited);
+        pooled.borrowed = now;
+        pooled.isLeakReported = false;
+        pooled.borrower = (leakThresholdMillis > 0)
+            ? new Throwable("Connection borrowed here") : null;
+        borrowed.put(pooled.connection, pooled);
+        reportLeaks(now);
+      }
+      isBorrowed = true;
+      return pooled.connection;
+    } finally {
+      if (!isBorrowed && permits != null) {
+        permits.release();
+      }
+    }
+  }
+
+  /**
+   * Takes a usable {@link Connection} from the pool, closing any that
+   * have expired or appear to be dead.
+   *
+   * @return a usable pooled Connection, or {@code null} if none is left
+   */
+  private PooledConnection takeConnection() {
+    while (true) {
+      PooledConnection pooled;
+      boolean isExpired;
+      boolean validate;
+      long now = clock.getTimeMillis();
+      synchronized (this) {
+        if (connections.isEmpty()) {
+          return null;
+        }
+        pooled = connections.removeFirst();
+        isExpired = isExpired(pooled, now);
+        validate = (now - pooled.lastValidated >= validationIntervalMillis);
       }
-      // Close dead connection.
-      close(conn);
+      // Check if a cached connection is still functional.
+      if (!isExpired && (validate
+          ? isAlive(pooled.connection) : !isClosed(pooled.connection))) {
+        if (validate) {
+          pooled.lastValidated = now;
+        }
+        return pooled;
+      }
+      // Close expired or dead connection.
+      close(pooled);
     }
-    // Pool is empty.  Get a new connection from the dataSource.
-    return dataSource.getConnection();
   }
 
   /**
@@ -92,8 +344,64 @@ public class DatabaseConnectionPool {
    *
    * @param connection a Connection to to return to the pool
    */
-  public synchronized void releaseConnection(Connection connection) {
-    connections.addFirst(connection);
+  public void releaseConnection(Connection connection) {
+    PooledConnection pooled;
+    boolean isExpired;
+    long now = clock.getTimeMillis();
+    synchronized (this) {
+      pooled = borrowed.remove(connection);
+      if (pooled == null) {
+        // Not one of ours, perhaps borrowed before the pool was configured.
+        pooled = new PooledConnection(connection, now);
+      } else if (permits != null) {
+        permits.release();
+      }
+      pooled.lastUsed = now;
+      pooled.borrower = null;
+      isExpired = isExpired(pooled, now);
+      if (!isExpired) {
+        connections.addFirst(pooled);
+      }
+      evictIdleConnections(now);
+    }
+    if (isExpired) {
+      close(pooled);
+    }
+  }
+
+  /**
+   * Returns a {@link PreparedStatement} for the supplied SQL, prepared on
+   * a {@link Connection} taken from this pool.  The statement is cached
+   * with the Connection, and may be returned again to the caller of this
+   * method for the same Connection and SQL.  Callers must not close the
+   * returned statement.  It is closed when the Connection is closed.
+   *
+   * @param connection a Connection taken from this pool, and not yet
+   *        released
+   * @param sql the SQL statement
+   * @return a PreparedStatement with no parameters set
+   * @throws SQLException if the statement could not be prepared
+   * @throws IllegalArgumentException if the Connection is not in use
+   * @since 3.4
+   */
+  public PreparedStatement prepareStatement(Connection connection, String sql)
+      throws SQLException {
+    PooledConnection pooled;
+    synchronized (this) {
+      pooled = borrowed.get(connection);
+    }
+    Preconditions.checkArgument(pooled != null,
+        "Connection was not taken from this pool.");
+    // Only the borrower uses the statements, so no locking is needed.
+    PreparedStatement statement = pooled.statements.get(sql);
+    if (statement == null) {
+      statement = connection.prepareStatement(sql);
+      pooled.statements.put(sql, statement);
+    } else {
+      statement.clearParameters();
+      statement.clearBatch();
+    }
+    return statement;
   }
 
   /**
@@ -101,10 +409,111 @@ public class DatabaseConnectionPool {
    * {@link Connection Connections}.
    */
   public synchronized void closeConnections() {
-    for (Connection conn : connections) {
-      close(conn);
+    for (PooledConnection pooled : connections) {
+      close(pooled);
     }
     connections.clear();
+    if (LOGGER.isLoggable(Level.FINE)) {
+      LOGGER.fine("Closed database connections: " + this);
+    }
+  }
+
+  /** Returns the number of Connections in use. */
+  @Override
+  public synchronized int getActiveCount() {
+    return borrowed.size();
+  }
+
+  /** Returns the number of idle Connections in the pool. */
+  @Override
+  public synchronized int getIdleCount() {
+    return connections.size();
+  }
+
+  /** Returns the number of Connections taken from the pool. */
+  @Override
+  public synchronized long getBorrowCount() {
+    return borrowCount;
+  }
+
+  /** Returns the number of Connections opened by the pool. */
+  @Override
+  public synchronized long getCreateCount() {
+    return createCount;
+  }
+
+  /**
+   * Returns the average time taken to get a Connection, in milliseconds.
+   */
+  @Override
+  public synchronized long getAverageWaitMillis() {
+    return (borrowCount == 0) ? 0 : totalWaitMillis / borrowCount;
+  }
+
+  /** Returns the longest time taken to get a Connection, in milliseconds. */
+  @Override
+  public synchronized long getMaxWaitedMillis() {
+    return maxWaitedMillis;
+  }
+
+  /** Returns the number of Connections reported as possible leaks. */
+  @Override
+  public synchronized long getLeakCount() {
+    return leakCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "DatabaseConnectionPool: maxConnections = " + maxConnections
+        + ", activeCount = " + getActiveCount()
+        + ", idleCount = " + getIdleCount()
+        + ", borrowCount = " + borrowCount
+        + ", createCount = " + createCount
+        + ", averageWaitMillis = " + getAverageWaitMillis()
+        + ", maxWaitedMillis = " + maxWaitedMillis
+        + ", leakCount = " + leakCount;
+  }
+
+  /** Returns {@code true} if the connection should no longer be used. */
+  /* Must be called holding the lock. */
+  private boolean isExpired(PooledConnection pooled, long now) {
+    return (maxLifetimeMillis > 0 && now - pooled.created >= maxLifetimeMillis)
+        || (maxIdleMillis > 0 && now - pooled.lastUsed >= maxIdleMillis);
+  }
+
+  /** Closes the idle connections that have expired. */
+  /* Must be called holding the lock. */
+  private void evictIdleConnections(long now) {
+    if (maxLifetimeMillis == 0 && maxIdleMillis == 0) {
+      return;
+    }
+    // The least recently released connections are at the end.
+    Iterator<PooledConnection> it = connections.descendingIterator();
+    while (it.hasNext()) {
+      PooledConnection pooled = it.next();
+      if (isExpired(pooled, now)) {
+        it.remove();
+        close(pooled);
+      }
+    }
+  }
+
+  /** Logs connections that have been in use too long. */
+  /* Must be called holding the lock. */
+  private void reportLeaks(long now) {
+    if (leakThresholdMillis == 0) {
+      return;
+    }
+    for (PooledConnection pooled : borrowed.values()) {
+      if (!pooled.isLeakReported
+          && now - pooled.borrowed >= leakThresholdMillis) {
+        pooled.isLeakReported = true;
+        leakCount++;
+        LOGGER.log(Level.WARNING, "Database Connection has been in use for "
+            + (now - pooled.borrowed) + " ms, and might have been leaked.",
+            pooled.borrower);
+      }
+    }
   }
 
   /**
@@ -122,12 +531,63 @@ public class DatabaseConnectionPool {
     }
   }
 
-  /** Closes the Connection silently. */
-  private void close(Connection conn) {
+  /** Returns {@code true} if the connection has been closed. */
+  private boolean isClosed(Connection conn) {
     try {
-      conn.close();
+      return conn.isClosed();
+    } catch (SQLException e) {
+      return true;
+    }
+  }
+
+  /** Closes the Connection and its cached statements silently. */
+  private void close(PooledConnection pooled) {
+    for (PreparedStatement statement : pooled.statements.values()) {
+      try {
+        statement.close();
+      } catch (SQLException ignored) {
+      }
+    }
+    pooled.statements.clear();
+    try {
+      pooled.connection.close();
     } catch (SQLException ignored) {
-      
+      // Already closed or dead.
+    }
+  }
+
+  /** A Connection and its pool bookkeeping. */
+  private class PooledConnection {
+    final Connection connection;
+    final long created;
+    long lastUsed;
+    long lastValidated;
+    long borrowed;
+    Throwable borrower;
+    boolean isLeakReported;
+
+    /** The cached statements, least recently used first. */
+    final Map<String, PreparedStatement> statements =
+        new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(
+              Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= statementCacheSize) {
+              return false;
+            }
+            try {
+              eldest.getValue().close();
+            } catch (SQLException ignored) {
+            }
+            return true;
+          }
+        };
+
+    PooledConnection(Connection connection, long now) {
+      this.connection = connection;
+      this.created = now;
+      this.lastUsed = now;
+      this.lastValidated = now;
     }
   }
 }
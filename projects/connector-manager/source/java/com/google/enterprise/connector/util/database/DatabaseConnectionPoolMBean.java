@@ -0,0 +1,51 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.database;
+
+/**
+ * The statistics of a {@link DatabaseConnectionPool}, as exposed through
+ * JMX.  {@link JdbcDatabase} registers its pool with the platform
+ * {@code MBeanServer}, so the statistics may be watched with
+ * {@code jconsole} or any other JMX client.
+ *
+ * @since 3.4
+ */
+public interface DatabaseConnectionPoolMBean {
+  /** Returns the maximum number of Connections in use, or zero. */
+  int getMaxConnections();
+
+  /** Returns the number of Connections in use. */
+  int getActiveCount();
+
+  /** Returns the number of idle Connections in the pool. */
+  int getIdleCount();
+
+  /** Returns the number of Connections taken from the pool. */
+  long getBorrowCount();
+
+  /** Returns the number of Connections opened by the pool. */
+  long getCreateCount();
+
+  /**
+   * Returns the average time taken to get a Connection, in milliseconds.
+   */
+  long getAverageWaitMillis();
+
+  /** Returns the longest time taken to get a Connection, in milliseconds. */
+  long getMaxWaitedMillis();
+
+  /** Returns the number of Connections reported as possible leaks. */
+  long getLeakCount();
+}
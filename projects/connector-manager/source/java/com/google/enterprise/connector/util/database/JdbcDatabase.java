@@ -20,6 +20,7 @@ import com.google.enterprise.connector.spi.DatabaseResourceBundle;
 import com.google.enterprise.connector.spi.SpiConstants.DatabaseType;
 import com.google.enterprise.connector.util.BasicChecksumGenerator;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
@@ -28,6 +29,9 @@ import java.sql.Statement;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
 
 /**
@@ -38,7 +42,8 @@ import javax.sql.DataSource;
  * and the ConnectorManager, such as:
  * <ul><li>Information regarding the underlying database implementation,
  * including the vendor name, version information, and description.</li>
- * <li>Maintaining a ConnectionPool for the DataSource.</li>
+ * <li>Maintaining a ConnectionPool for the DataSource, and optionally
+ * registering its statistics with the platform {@code MBeanServer}.</li>
  * <li>Manufacturing legal database table names base upon a Connector name.</li>
  * <li>Creating database tables based upon a supplied DDL, or verifying
  * that such a table exists.</li>
@@ -60,6 +65,9 @@ public class JdbcDatabase {
   private String description;
   private String resourceBundleExtension;
 
+  /** The JMX name of the connection pool, or null if not registered. */
+  private ObjectName poolMBeanName;
+
   public JdbcDatabase(DataSource dataSource) {
     this.dataSource = dataSource;
     this.connectionPool = new DatabaseConnectionPool(dataSource);
@@ -74,6 +82,60 @@ public class JdbcDatabase {
 
   public synchronized void shutdown() {
     connectionPool.closeConnections();
+    unregisterPoolMBean();
+  }
+
+  /**
+   * Returns the JMX name under which the connection pool statistics are
+   * registered, or {@code null} if they are not registered.
+   *
+   * @return the {@link ObjectName} of the {@link DatabaseConnectionPoolMBean}
+   * @since 3.4
+   */
+  public synchronized ObjectName getPoolMBeanName() {
+    return poolMBeanName;
+  }
+
+  /**
+   * Registers the connection pool with the platform {@code MBeanServer}.
+   * Failures are logged, since the statistics are not essential.  The
+   * {@code MBeanServer} holds on to the pool until {@link #shutdown} is
+   * called, so only register databases that will be shut down.
+   *
+   * @since 3.4
+   */
+  public synchronized void registerPoolMBean() {
+    if (poolMBeanName != null) {
+      return;
+    }
+    try {
+      ObjectName name = new ObjectName(
+          "com.google.enterprise.connector:type=DatabaseConnectionPool,name="
+          + ObjectName.quote(productName + "@"
+              + Integer.toHexString(System.identityHashCode(this))));
+      ManagementFactory.getPlatformMBeanServer()
+          .registerMBean(connectionPool, name);
+      poolMBeanName = name;
+    } catch (JMException e) {
+      LOGGER.log(Level.WARNING,
+          "Failed to register the database connection pool with JMX", e);
+    }
+  }
+
+  /** Unregisters the connection pool from the {@code MBeanServer}. */
+  private synchronized void unregisterPoolMBean() {
+    if (poolMBeanName != null) {
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(poolMBeanName)) {
+          server.unregisterMBean(poolMBeanName);
+        }
+      } catch (JMException e) {
+        LOGGER.log(Level.WARNING,
+            "Failed to unregister the database connection pool from JMX", e);
+      }
+      poolMBeanName = null;
+    }
   }
 
   /**
@@ -0,0 +1,252 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads records in the binary snapshot format described in
+ * {@link BinarySnapshot}.
+ */
+class BinaryRecordReader implements SnapshotReader.RecordReader, Closeable {
+  private static final Logger LOG =
+      Logger.getLogger(BinaryRecordReader.class.getName());
+
+  private final InputStream in;
+  private final String inputPath;
+  private final Inflater inflater;
+  private final CRC32 crc = new CRC32();
+
+  /** The stored data of the current block. */
+  private byte[] stored = new byte[0];
+
+  /** The uncompressed data of the current block. */
+  private byte[] block = new byte[0];
+  private int blockLength = 0;
+  private final int[] position = { 0 };
+  private long blockRecordsRemaining = 0;
+
+  /** The number of records read or skipped. */
+  private long recordCount = 0;
+  private boolean done = false;
+
+  /**
+   * Constructs a {@code BinaryRecordReader}, reading and verifying
+   * the snapshot header.
+   *
+   * @param in the input stream, positioned at the start of the snapshot
+   * @param inputPath path to the snapshot, for logging purposes
+   * @throws SnapshotReaderException if the header is not valid
+   */
+  BinaryRecordReader(InputStream in, String inputPath)
+      throws SnapshotReaderException {
+    this.in = in;
+    this.inputPath = inputPath;
+    byte[] header = new byte[BinarySnapshot.HEADER_LENGTH];
+    try {
+      ByteStreams.readFully(in, header);
+    } catch (IOException e) {
+      throw new SnapshotReaderException(
+          "failed to read snapshot header (" + inputPath + ")", e);
+    }
+    if (!BinarySnapshot.isBinarySnapshot(header, header.length)) {
+      throw new SnapshotReaderException(
+          "not a binary snapshot (" + inputPath + ")");
+    }
+    int version = header[BinarySnapshot.MAGIC.length];
+    if (version != BinarySnapshot.VERSION) {
+      throw new SnapshotReaderException("unsupported snapshot version "
+          + version + " (" + inputPath + ")");
+    }
+    int compression = header[BinarySnapshot.MAGIC.length + 1];
+    if (compression == BinarySnapshot.COMPRESSION_DEFLATE) {
+      inflater = new Inflater();
+    } else if (compression == BinarySnapshot.COMPRESSION_NONE) {
+      inflater = null;
+    } else {
+      throw new SnapshotReaderException("unsupported snapshot compression "
+          + compression + " (" + inputPath + ")");
+    }
+  }
+
+  @Override
+  public String readRecord() throws SnapshotReaderException {
+    try {
+      while (blockRecordsRemaining == 0) {
+        if (nextBlock(0) < 0) {
+          return null;
+        }
+      }
+      int length = BinarySnapshot.readVarInt(block, position, blockLength);
+      if (length > blockLength - position[0]) {
+        throw new IOException("Record extends beyond the end of the block");
+      }
+      String stringForm =
+          new String(block, position[0], length, Charsets.UTF_8);
+      position[0] += length;
+      blockRecordsRemaining--;
+      recordCount++;
+      return stringForm;
+    } catch (IOException e) {
+      throw new SnapshotReaderException(
+          String.format("failed to read snapshot record (%s, record %d)",
+              inputPath, recordCount + 1), e);
+    }
+  }
+
+  /**
+   * Skips up to {@code number} records, skipping whole blocks without
+   * reading them where possible.
+   *
+   * @return the number of records skipped, which is less than
+   *         {@code number} only if the end of the snapshot was reached
+   */
+  long skipRecords(long number) throws SnapshotReaderException {
+    long skipped = 0;
+    try {
+      while (skipped < number) {
+        if (blockRecordsRemaining == 0) {
+          long blockSkipped = nextBlock(number - skipped);
+          if (blockSkipped < 0) {
+            break;
+          }
+          skipped += blockSkipped;
+          continue;
+        }
+        int length = BinarySnapshot.readVarInt(block, position, blockLength);
+        position[0] += length;
+        blockRecordsRemaining--;
+        recordCount++;
+        skipped++;
+      }
+    } catch (IOException e) {
+      throw new SnapshotReaderException(
+          String.format("failed to skip snapshot records (%s, record %d)",
+              inputPath, recordCount + 1), e);
+    }
+    return skipped;
+  }
+
+  /**
+   * Reads the next block header.  If the block contains no more than
+   * {@code skip} records, the block is skipped without being read.
+   * Otherwise, the block is read, verified, and uncompressed.
+   *
+   * @return the number of records skipped, or -1 if there are no more
+   *         complete blocks
+   */
+  private long nextBlock(long skip) throws IOException {
+    if (done) {
+      return -1;
+    }
+    long records;
+    int uncompressedLength;
+    int storedLength;
+    long checksum;
+    try {
+      records = BinarySnapshot.readVarInt(in);
+      if (records < 0) {
+        done = true;
+        return -1;
+      }
+      uncompressedLength = toInt(BinarySnapshot.readVarInt(in));
+      storedLength = toInt(BinarySnapshot.readVarInt(in));
+      checksum = 0;
+      for (int i = 0; i < 4; i++) {
+        int b = in.read();
+        if (b < 0) {
+          throw new EOFException();
+        }
+        checksum = (checksum << 8) | b;
+      }
+      if (records <= skip) {
+        ByteStreams.skipFully(in, storedLength);
+        recordCount += records;
+        return records;
+      }
+      if (stored.length < storedLength) {
+        stored = new byte[storedLength];
+      }
+      ByteStreams.readFully(in, stored, 0, storedLength);
+    } catch (EOFException e) {
+      // A partial block can only be at the end of a snapshot that was not
+      // closed cleanly.  The records in it were never synced to disk.
+      LOG.warning("Ignoring partial block at end of snapshot " + inputPath);
+      done = true;
+      return -1;
+    }
+
+    crc.reset();
+    crc.update(stored, 0, storedLength);
+    if (crc.getValue() != checksum) {
+      if (in.read() < 0) {
+        LOG.warning("Ignoring corrupt block at end of snapshot " + inputPath);
+        done = true;
+        return -1;
+      }
+      throw new IOException("Snapshot block checksum mismatch");
+    }
+
+    if (inflater == null) {
+      block = stored;
+      blockLength = storedLength;
+    } else {
+      if (block.length < uncompressedLength || block == stored) {
+        block = new byte[uncompressedLength];
+      }
+      inflater.reset();
+      inflater.setInput(stored, 0, storedLength);
+      try {
+        blockLength = inflater.inflate(block, 0, uncompressedLength);
+      } catch (DataFormatException e) {
+        throw new IOException("Invalid compressed snapshot block", e);
+      }
+      if (!inflater.finished()) {
+        throw new IOException("Snapshot block larger than expected");
+      }
+    }
+    if (blockLength != uncompressedLength) {
+      throw new IOException("Snapshot block length mismatch");
+    }
+    position[0] = 0;
+    blockRecordsRemaining = records;
+    return 0;
+  }
+
+  private static int toInt(long value) throws IOException {
+    if (value < 0 || value > Integer.MAX_VALUE) {
+      throw new IOException("Invalid snapshot block length " + value);
+    }
+    return (int) value;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (inflater != null) {
+      inflater.end();
+    }
+    in.close();
+  }
+}
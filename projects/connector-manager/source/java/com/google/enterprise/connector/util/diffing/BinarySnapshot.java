@@ -0,0 +1,137 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Constants and utilities for the binary snapshot format.
+ * <p>
+ * A binary snapshot begins with a header consisting of the four byte
+ * {@link #MAGIC} number, a version byte, and a compression byte.  The
+ * header is followed by zero or more blocks of records.  Each block
+ * consists of:
+ * <ul>
+ * <li>the number of records in the block, as a varint</li>
+ * <li>the uncompressed length of the block data, as a varint</li>
+ * <li>the stored length of the block data, as a varint</li>
+ * <li>the CRC32 of the stored block data, as four bytes, big-endian</li>
+ * <li>the stored block data</li>
+ * </ul>
+ * The uncompressed block data consists of the records, each of which
+ * is the varint length of the UTF-8 encoding of the record's string form,
+ * followed by those bytes.  The string form is the same one written by
+ * the text format, so the binary format changes only the framing of the
+ * records, not their contents.
+ * <p>
+ * The block headers serve as an index, allowing a reader to skip whole
+ * blocks of records without reading or decompressing the block data.
+ * Blocks are written whole, so a snapshot that was not closed cleanly
+ * ends with at most one partial block, which readers ignore.
+ */
+final class BinarySnapshot {
+  private BinarySnapshot() {
+  }
+
+  /** The magic number. The first byte is not valid in the text format. */
+  static final byte[] MAGIC = { (byte) 0x89, 'S', 'N', 'P' };
+
+  /** The current format version. */
+  static final int VERSION = 1;
+
+  /** Block data is stored uncompressed. */
+  static final int COMPRESSION_NONE = 0;
+
+  /** Block data is compressed with Deflate. */
+  static final int COMPRESSION_DEFLATE = 1;
+
+  /** The target uncompressed size of a block. */
+  static final int BLOCK_SIZE = 64 * 1024;
+
+  /** The length of the header. */
+  static final int HEADER_LENGTH = MAGIC.length + 2;
+
+  /**
+   * Returns {@code true} if the supplied bytes begin with the
+   * {@link #MAGIC} number.
+   */
+  static boolean isBinarySnapshot(byte[] bytes, int length) {
+    if (length < MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (bytes[i] != MAGIC[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Writes a non-negative value as an unsigned varint. */
+  static void writeVarInt(OutputStream out, long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  /**
+   * Reads an unsigned varint.
+   *
+   * @return the value read, or -1 if the stream is at its end
+   * @throws EOFException if the stream ends in the middle of the varint
+   * @throws IOException if the varint is malformed
+   */
+  static long readVarInt(InputStream in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = in.read();
+      if (b < 0) {
+        if (shift == 0) {
+          return -1;
+        }
+        throw new EOFException("Truncated varint");
+      }
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  /** Reads a varint from {@code buf} at {@code pos[0]}, advancing it. */
+  static int readVarInt(byte[] buf, int[] pos, int limit) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      if (pos[0] >= limit) {
+        throw new EOFException("Truncated varint");
+      }
+      int b = buf[pos[0]++];
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) {
+          break;
+        }
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+}
@@ -0,0 +1,203 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.NullOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes snapshot records in the binary snapshot format described in
+ * {@link BinarySnapshot}.  Records are accumulated into blocks, which are
+ * written when they reach {@link BinarySnapshot#BLOCK_SIZE} bytes, or
+ * when the records are synced.  Since every sync ends a block, callers
+ * should sync infrequently (see
+ * {@link DocumentSnapshotRepositoryMonitorManagerImpl#BINARY_SYNC_RECORDS})
+ * for the blocks to be large enough to index and compress usefully.
+ */
+class BinarySnapshotWriter extends SnapshotWriter {
+  private final OutputStream out;
+  private final Deflater deflater;
+  private final CRC32 crc = new CRC32();
+
+  /** The uncompressed records in the current block. */
+  private final BlockBuffer block = new BlockBuffer(BinarySnapshot.BLOCK_SIZE);
+  private int blockRecords = 0;
+
+  /** The header and stored data of the block being written. */
+  private final BlockBuffer stored = new BlockBuffer(BinarySnapshot.BLOCK_SIZE);
+
+  private byte[] deflateBuffer;
+
+  /**
+   * Creates a BinarySnapshotWriter that writes to {@code out}.
+   *
+   * @param out the output stream, positioned at the start of the snapshot
+   * @param fileDescriptor if non-{code null}, this will be synced to disk
+   *        after every {@code syncRecords} records, or every
+   *        {@code syncMillis} milliseconds
+   * @param path name of output, for logging purposes
+   * @param compress if {@code true}, blocks are compressed
+   * @param syncRecords the maximum number of records to write between
+   *        syncs; must be positive
+   * @param syncMillis the maximum time, in milliseconds, between syncs
+   *        while records are being written, or 0 for no time limit
+   * @throws SnapshotWriterException on any error
+   */
+  BinarySnapshotWriter(OutputStream out, FileDescriptor fileDescriptor,
+      String path, boolean compress, int syncRecords, long syncMillis)
+      throws SnapshotWriterException {
+    // The superclass Writer is not used, but cannot be null.
+    super(new OutputStreamWriter(new NullOutputStream()), fileDescriptor,
+          path, syncRecords, syncMillis);
+    this.out = out;
+    this.deflater = (compress) ? new Deflater(Deflater.BEST_SPEED) : null;
+    try {
+      out.write(BinarySnapshot.MAGIC);
+      out.write(BinarySnapshot.VERSION);
+      out.write((compress) ? BinarySnapshot.COMPRESSION_DEFLATE
+                : BinarySnapshot.COMPRESSION_NONE);
+    } catch (IOException e) {
+      throw new SnapshotWriterException("failed to write snapshot header", e);
+    }
+  }
+
+  @Override
+  public void write(DocumentSnapshot snapshot) throws SnapshotWriterException,
+      IllegalArgumentException {
+    String stringForm = snapshot.toString();
+    if (stringForm == null) {
+      throw new IllegalArgumentException(
+          "DocumentSnapshot.toString returned null.");
+    }
+    byte[] bytes = stringForm.getBytes(Charsets.UTF_8);
+    try {
+      BinarySnapshot.writeVarInt(block, bytes.length);
+      block.write(bytes, 0, bytes.length);
+      blockRecords++;
+      ++count;
+      if (block.size() >= BinarySnapshot.BLOCK_SIZE) {
+        writeBlock();
+      }
+    } catch (IOException e) {
+      throw new SnapshotWriterException("failed to write snapshot record", e);
+    }
+    if (isSyncDue()) {
+      sync();
+    }
+  }
+
+  @Override
+  public void sync() throws SnapshotWriterException {
+    if (syncedCount == count) {
+      return;
+    }
+    try {
+      writeBlock();
+      out.flush();
+      if (fileDescriptor != null) {
+        fileDescriptor.sync();
+      }
+      syncedCount = count;
+      lastSyncTime = System.currentTimeMillis();
+    } catch (IOException e) {
+      throw new SnapshotWriterException("failed to sync snapshot", e);
+    }
+  }
+
+  @Override
+  public void close() throws SnapshotWriterException {
+    try {
+      sync();
+    } finally {
+      if (deflater != null) {
+        deflater.end();
+      }
+      try {
+        out.close();
+      } catch (IOException e) {
+        throw new SnapshotWriterException("failed to close snapshot", e);
+      }
+    }
+  }
+
+  /** Writes the current block, if it has any records. */
+  private void writeBlock() throws IOException {
+    if (blockRecords == 0) {
+      return;
+    }
+    byte[] data;
+    int dataLength;
+    if (deflater == null) {
+      data = block.getBuffer();
+      dataLength = block.size();
+    } else {
+      deflater.reset();
+      deflater.setInput(block.getBuffer(), 0, block.size());
+      deflater.finish();
+      if (deflateBuffer == null) {
+        deflateBuffer = new byte[BinarySnapshot.BLOCK_SIZE];
+      }
+      dataLength = 0;
+      while (!deflater.finished()) {
+        if (dataLength == deflateBuffer.length) {
+          byte[] newBuffer = new byte[deflateBuffer.length * 2];
+          System.arraycopy(deflateBuffer, 0, newBuffer, 0, dataLength);
+          deflateBuffer = newBuffer;
+        }
+        dataLength += deflater.deflate(deflateBuffer, dataLength,
+                                       deflateBuffer.length - dataLength);
+      }
+      data = deflateBuffer;
+    }
+    crc.reset();
+    crc.update(data, 0, dataLength);
+    long checksum = crc.getValue();
+
+    // Write the whole block at once, to minimize the chance of a
+    // partial block after a crash.
+    stored.reset();
+    BinarySnapshot.writeVarInt(stored, blockRecords);
+    BinarySnapshot.writeVarInt(stored, block.size());
+    BinarySnapshot.writeVarInt(stored, dataLength);
+    stored.write((int) (checksum >>> 24));
+    stored.write((int) (checksum >>> 16));
+    stored.write((int) (checksum >>> 8));
+    stored.write((int) checksum);
+    stored.write(data, 0, dataLength);
+    out.write(stored.getBuffer(), 0, stored.size());
+
+    block.reset();
+    blockRecords = 0;
+  }
+
+  /** A ByteArrayOutputStream that exposes its buffer. */
+  private static class BlockBuffer extends ByteArrayOutputStream {
+    BlockBuffer(int size) {
+      super(size);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
+  }
+}
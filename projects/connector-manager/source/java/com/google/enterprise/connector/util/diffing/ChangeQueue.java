@@ -33,6 +33,9 @@ import java.util.logging.Logger;
 public class ChangeQueue implements ChangeSource {
   private final BlockingQueue<Change> pendingChanges;
 
+  /** The maximum number of pending changes. */
+  private final int size;
+
   /** Milliseconds to sleep after a scan that finds no changes. */
   private volatile long sleepInterval;
 
@@ -227,6 +230,7 @@ public class ChangeQueue implements ChangeSource {
   private ChangeQueue(int size, long sleepInterval, 
       boolean introduceDelayAfterEachScan, CrawlActivityLogger activityLogger) {
     pendingChanges = new ArrayBlockingQueue<Change>(size);
+    this.size = size;
     this.sleepInterval = sleepInterval;
     this.activityLogger = activityLogger;
     this.introduceDelayAfterEveryScan = introduceDelayAfterEachScan;
@@ -263,6 +267,11 @@ public class ChangeQueue implements ChangeSource {
     }
   }
 
+  /** Returns the maximum number of pending changes. */
+  int getSize() {
+    return size;
+  }
+
   /**
    * Sets the sleepInterval in milliseconds, normally passed from the
    * retry delay in a TraversalSchedule.
@@ -20,17 +20,22 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONWriter;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
@@ -42,6 +47,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 /**
  * Queue of {@code CheckpointAndChange} objects to be processed by the
@@ -52,6 +58,14 @@ import java.util.logging.Logger;
  * {@code CheckpointAndChange} objects remain until the client
  * indicates they have completed processing by calling {@link #resume(String)}
  * with the object's checkpoint or a later object's checkpoint.
+ * <p>
+ * The queue is persisted in a recovery file that holds a snapshot of the
+ * queue, followed by a journal of checksummed records, one for each call to
+ * {@link #resume(String)} that changed the queue.  Each record holds only
+ * the completed checkpoint, the newly enqueued changes, and the monitor
+ * restart points they advanced, so the cost of a batch does not grow with
+ * the size of the queue.  Once the journal grows larger than the snapshot,
+ * the queue is compacted into a new recovery file.
  *
  * @since 2.8
  */
@@ -65,6 +79,10 @@ public class CheckpointAndChangeQueue {
   private static final String RECOVERY_FILE_PREFIX = "recovery.";
   private static final String QUEUE_JSON_TAG = "Q";
   private static final String MONITOR_STATE_JSON_TAG = "MON";
+  private static final String COMPLETED_JSON_TAG = "DONE";
+
+  /** The journal is not compacted until it reaches this size. */
+  private static final long DEFAULT_MINIMUM_COMPACTION_BYTES = 64 * 1024L;
 
   private final AtomicInteger maximumQueueSize =
       new AtomicInteger(DEFAULT_MAXIMUM_QUEUE_SIZE);
@@ -77,6 +95,15 @@ public class CheckpointAndChangeQueue {
   private final File persistDir;  // place to persist enqueued values
   private MonitorRestartState monitorPoints = new MonitorRestartState();
 
+  /*
+   * The recovery file to which journal records are appended, or null if
+   * the next call to resume must write a new snapshot.
+   */
+  private RecoveryFile journalFile;
+  private long snapshotLength;
+  private long journalLength;
+  private long minimumCompactionBytes = DEFAULT_MINIMUM_COMPACTION_BYTES;
+
   /** Convenient way to log some IOException instances. */
   private static class LoggingIoException extends IOException {
     LoggingIoException(String msg) {
@@ -251,6 +278,50 @@ public class CheckpointAndChangeQueue {
       }
     }
 
+    /**
+     * Returns the length of the snapshot, up to and including the
+     * sentinel, at the start of this file.  Any journal records follow.
+     *
+     * @throws IOException if the file does not contain a complete snapshot
+     */
+    long getSnapshotLength() throws IOException {
+      InputStream in = new BufferedInputStream(new FileInputStream(this));
+      try {
+        long length = 0;
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        int b;
+        while ((b = in.read()) != -1) {
+          length++;
+          if (inString) {
+            if (escaped) {
+              escaped = false;
+            } else if (b == '\\') {
+              escaped = true;
+            } else if (b == '"') {
+              inString = false;
+            }
+          } else if (b == '"') {
+            inString = true;
+          } else if (b == '{' || b == '[') {
+            depth++;
+          } else if ((b == '}' || b == ']') && --depth == 0) {
+            // The snapshot ended; the sentinel must follow.
+            for (int i = 0; i < SENTINAL.length(); i++) {
+              if (in.read() != SENTINAL.charAt(i)) {
+                throw new IOException("Read invalid recovery file.");
+              }
+            }
+            return length + SENTINAL.length();
+          }
+        }
+        throw new IOException("Read invalid recovery file.");
+      } finally {
+        in.close();
+      }
+    }
+
     /** A delete method that logs failures. */
     public void logOnFailDelete() {
       boolean deleted = super.delete();
@@ -409,6 +480,182 @@ public class CheckpointAndChangeQueue {
   private void loadUpFromRecoveryState(RecoveryFile file) throws IOException {
     // TODO(pjo): Move this method into RecoveryFile.
     new LoadingQueueReader().readJson(file);
+    replayJournal(file);
+  }
+
+  /**
+   * Applies the journal records that follow the snapshot in the recovery
+   * file.  An incomplete or corrupt record at the end of the journal,
+   * left by a failed write, is discarded along with anything after it.
+   */
+  private void replayJournal(RecoveryFile file) throws IOException {
+    long snapshotEnd = file.getSnapshotLength();
+    long journalEnd = snapshotEnd;
+    int records = 0;
+    InputStream in = new BufferedInputStream(new FileInputStream(file));
+    try {
+      long skipped = 0;
+      while (skipped < snapshotEnd) {
+        long count = in.skip(snapshotEnd - skipped);
+        if (count <= 0) {
+          throw new IOException("Read invalid recovery file.");
+        }
+        skipped += count;
+      }
+      // Each record is a newline, a checksum, a space, and a JSON object.
+      ByteArrayOutputStream record = new ByteArrayOutputStream();
+      int b = in.read();
+      while (b == '\n') {
+        record.reset();
+        while ((b = in.read()) != -1 && b != '\n') {
+          record.write(b);
+        }
+        if (!replayRecord(record.toByteArray())) {
+          break;
+        }
+        journalEnd += 1 + record.size();
+        records++;
+      }
+    } finally {
+      in.close();
+    }
+
+    if (journalEnd < file.length()) {
+      LOG.warning("Discarding incomplete journal record in recovery file: "
+          + file.getAbsolutePath());
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(journalEnd);
+      } finally {
+        raf.close();
+      }
+    }
+    LOG.fine("Replayed " + records + " journal records from recovery file");
+    journalFile = file;
+    snapshotLength = snapshotEnd;
+    journalLength = journalEnd - snapshotEnd;
+  }
+
+  /**
+   * Applies a single journal record.
+   *
+   * @return {@code true} if the record was applied, or {@code false}
+   *         if the record is incomplete or corrupt
+   */
+  private boolean replayRecord(byte[] record) throws IOException {
+    if (record.length < 10 || record[8] != ' ') {
+      return false;
+    }
+    long checksum;
+    try {
+      checksum = Long.parseLong(new String(record, 0, 8, Charsets.UTF_8), 16);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    CRC32 crc = new CRC32();
+    crc.update(record, 9, record.length - 9);
+    if (crc.getValue() != checksum) {
+      return false;
+    }
+
+    try {
+      JSONObject json = new JSONObject(
+          new String(record, 9, record.length - 9, Charsets.UTF_8));
+      JSONArray queue = json.getJSONArray(QUEUE_JSON_TAG);
+      List<CheckpointAndChange> added =
+          new ArrayList<CheckpointAndChange>(queue.length());
+      for (int i = 0; i < queue.length(); i++) {
+        added.add(new CheckpointAndChange(queue.getJSONObject(i),
+            internalDocumentHandleFactory, clientDocumentHandleFactory));
+      }
+      MonitorRestartState advanced =
+          new MonitorRestartState(json.getJSONObject(MONITOR_STATE_JSON_TAG));
+
+      if (json.has(COMPLETED_JSON_TAG)) {
+        removeCompletedChanges(json.getString(COMPLETED_JSON_TAG));
+      }
+      checkpointAndChangeList.addAll(added);
+      monitorPoints.points.putAll(advanced.points);
+      return true;
+    } catch (JSONException e) {
+      throw new IOException("Failed reading persisted JSON queue.", e);
+    }
+  }
+
+  /**
+   * Appends a journal record to the recovery file.
+   *
+   * @param checkpointString the checkpoint of the completed changes,
+   *        or {@code null}
+   * @param added the newly enqueued changes
+   */
+  private void appendRecoveryState(String checkpointString,
+      List<CheckpointAndChange> added) throws IOException {
+    byte[] record;
+    try {
+      JSONObject json = new JSONObject();
+      if (checkpointString != null) {
+        json.put(COMPLETED_JSON_TAG, checkpointString);
+      }
+      JSONArray queue = new JSONArray();
+      for (CheckpointAndChange guaranteed : added) {
+        queue.put(guaranteed.getJson());
+      }
+      json.put(QUEUE_JSON_TAG, queue);
+      MonitorRestartState advanced = new MonitorRestartState();
+      advanced.updateOnGuaranteed(added);
+      json.put(MONITOR_STATE_JSON_TAG, advanced.getJson());
+
+      byte[] bytes = json.toString().getBytes(Charsets.UTF_8);
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      String header = String.format("\n%08x ", crc.getValue());
+      record = new byte[header.length() + bytes.length];
+      System.arraycopy(header.getBytes(Charsets.UTF_8), 0, record, 0,
+                       header.length());
+      System.arraycopy(bytes, 0, record, header.length(), bytes.length);
+    } catch (JSONException e) {
+      throw new IOException("Failed writing recovery file.", e);
+    }
+
+    // If the append fails, the next resume writes a new snapshot.
+    RecoveryFile recoveryFile = journalFile;
+    journalFile = null;
+    FileOutputStream outStream = new FileOutputStream(recoveryFile, true);
+    try {
+      outStream.write(record);
+      outStream.flush();
+      outStream.getFD().sync();
+    } finally {
+      outStream.close();
+    }
+    journalFile = recoveryFile;
+    journalLength += record.length;
+  }
+
+  /**
+   * Writes a snapshot of the queue to a new recovery file, replacing
+   * the current recovery file and its journal.
+   */
+  private void compactRecoveryState() throws IOException {
+    journalFile = null;
+    RecoveryFile recoveryFile = new RecoveryFile(persistDir);
+    try {
+      try {
+        writeRecoveryState(recoveryFile);
+      } finally {
+        removeExcessRecoveryState();
+      }
+    } catch (IOException e) {
+      // Avoid filling the disk with recovery files, if we cannot recover.
+      if (recoveryFile.exists()) {
+        recoveryFile.delete();
+      }
+      throw e;
+    }
+    journalFile = recoveryFile;
+    snapshotLength = recoveryFile.length();
+    journalLength = 0L;
   }
 
   private RecoveryFile[] allRecoveryFiles() throws IOException {
@@ -434,6 +681,7 @@ public class CheckpointAndChangeQueue {
     LOG.info("Starting CheckpointAndChangeQueue from " + checkpointString);
     ensurePersistDirExists();
     checkpointAndChangeList.clear();
+    journalFile = null;
     lastCheckpoint = constructLastCheckpoint(checkpointString);
     if (null == checkpointString) {
       removeAllRecoveryState();
@@ -460,24 +708,18 @@ public class CheckpointAndChangeQueue {
    */
   synchronized List<CheckpointAndChange> resume(String checkpointString)
       throws IOException {
-    removeCompletedChanges(checkpointString);
+    boolean completed = removeCompletedChanges(checkpointString);
+    int pending = checkpointAndChangeList.size();
     loadUpFromChangeSource();
-    monitorPoints.updateOnGuaranteed(checkpointAndChangeList);
-    RecoveryFile recoveryFile = new RecoveryFile(persistDir);
-    try {
-      try {
-        writeRecoveryState(recoveryFile);
-      } finally {
-        // TODO: Enhance with mechanism that remembers
-        // information about recovery files to avoid re-reading.
-        removeExcessRecoveryState();
-      }
-    } catch (IOException e) {
-      // Avoid filling the disk with recovery files, if we cannot recover.
-      if (recoveryFile.exists()) {
-        recoveryFile.delete();
-      }
-      throw e;
+    List<CheckpointAndChange> added = new ArrayList<CheckpointAndChange>(
+        checkpointAndChangeList.subList(pending,
+                                        checkpointAndChangeList.size()));
+    monitorPoints.updateOnGuaranteed(added);
+    if (journalFile == null
+        || journalLength > Math.max(snapshotLength, minimumCompactionBytes)) {
+      compactRecoveryState();
+    } else if (completed || !added.isEmpty()) {
+      appendRecoveryState(checkpointString, added);
     }
     return getList();
   }
@@ -486,6 +728,16 @@ public class CheckpointAndChangeQueue {
     this.maximumQueueSize.set(maximumQueueSize);
   }
 
+  /**
+   * Sets the size the journal must reach before the queue is compacted
+   * into a new recovery file.  The journal is also not compacted until
+   * it is larger than the snapshot it follows.
+   */
+  @VisibleForTesting
+  synchronized void setMinimumCompactionBytes(long minimumCompactionBytes) {
+    this.minimumCompactionBytes = minimumCompactionBytes;
+  }
+
   private List<CheckpointAndChange> getList() {
     return Collections.unmodifiableList(checkpointAndChangeList);
   }
@@ -520,10 +772,10 @@ public class CheckpointAndChangeQueue {
     writer.endObject();
   }
 
-  private void removeCompletedChanges(String checkpointString) {
-    if (checkpointString == null) {
-      return;
-    } else {
+  /** Returns {@code true} if any changes were removed. */
+  private boolean removeCompletedChanges(String checkpointString) {
+    boolean removed = false;
+    if (checkpointString != null) {
       DiffingConnectorCheckpoint checkpoint
           = DiffingConnectorCheckpoint.fromJsonString(checkpointString);
       Iterator<CheckpointAndChange> iterator =
@@ -538,11 +790,13 @@ public class CheckpointAndChangeQueue {
         } else {
           // Has been sent.  Remove it.
           iterator.remove();
+          removed = true;
           // Monitors can consider these changes sent too.
           // monitorPoints.updateOnCompleted(current.getChange());
         }
       }
     }
+    return removed;
   }
 
   private void loadUpFromChangeSource() {
@@ -24,6 +24,7 @@ import com.google.enterprise.connector.spi.TraversalScheduleAware;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.LinkedList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,6 +55,12 @@ import java.util.logging.Logger;
  * <p>
  * When an API to do that is available, this implementation should be fixed
  * to use it.
+ * <p>
+ * If the {@link SnapshotStore} group commits snapshot records, the
+ * callbacks for detected changes are held back until the snapshot records
+ * that their {@link MonitorCheckpoint MonitorCheckpoints} refer to have been
+ * synced to disk, so that a checkpoint never refers to a record that could
+ * be lost in a crash.
  *
  * @since 2.8
  */
@@ -125,6 +132,21 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
     public void passPausing(int sleepms) throws InterruptedException;
   }
 
+  /**
+   * A {@link Callback} that is also told when a pass is abandoned before
+   * it completes, and when the monitor stops.
+   */
+  static interface AbortableCallback extends Callback {
+    /**
+     * Called when a pass fails before {@link #passComplete}.  The monitor
+     * will recover and start a new pass.
+     */
+    public void passAborted() throws InterruptedException;
+
+    /** Called when the monitor thread exits, for whatever reason. */
+    public void monitorStopped();
+  }
+
   /** This connector instance's current traversal schedule. */
   private volatile TraversalSchedule traversalSchedule;
 
@@ -158,6 +180,10 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
   /* The monitor should exit voluntarily if set to false */
   private volatile boolean isRunning = true;
 
+  /* Changes waiting for their snapshot records to be synced to disk. */
+  private final LinkedList<PendingChange> pendingChanges =
+      new LinkedList<PendingChange>();
+
   /**
    * Creates a DocumentSnapshotRepositoryMonitor that monitors the
    * Repository rooted at {@code root}.
@@ -218,6 +244,9 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
     } catch (InterruptedException ie) {
       LOG.info("Repository Monitor " + name + " received stop signal. " + this);
     } finally {
+      if (callback instanceof AbortableCallback) {
+        ((AbortableCallback) callback).monitorStopped();
+      }
       // Call NDC.remove() via reflection, if possible.
       invoke(ndcRemove);
     }
@@ -251,6 +280,10 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
       String msg = "Failed reading repository.";
       LOG.log(Level.SEVERE, msg, e);
     }
+    // The pass was abandoned before passComplete.
+    if (callback instanceof AbortableCallback) {
+      ((AbortableCallback) callback).passAborted();
+    }
   }
 
   /**
@@ -287,7 +320,7 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
     } else {
       try {
         SnapshotStore.stitch(snapshotStore.getDirectory(), guaranteeCheckpoint,
-            documentSnapshotFactory);
+            documentSnapshotFactory, snapshotStore.getFormat());
         LOG.info("Repository Monitor " + name + " restiched snapshot.");
       } catch (IOException e) {
         String msg = "Repository Monitor " + name + " has failed and stopped.";
@@ -331,11 +364,19 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
         }
         processDeletes(ss);
         safelyProcessDocumentSnapshot(ss);
+        deliverDurableChanges();
       }
       // Take care of any trailing paths in the snapshot.
       processDeletes(null);
 
+      // Make sure the whole snapshot is on disk before delivering
+      // the remaining changes.
+      snapshotWriter.sync();
+      deliverDurableChanges();
     } finally {
+      // Changes that were never delivered will be found again on
+      // the next pass.
+      pendingChanges.clear();
       try {
         snapshotStore.close(snapshotReader, snapshotWriter);
       } catch (IOException e) {
@@ -373,7 +414,7 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
     while (current != null
         && (documentSnapshot == null
             || COMPARATOR.compare(documentSnapshot, current) > 0)) {
-      callback.deletedDocument(
+      deferChange(ChangeType.DELETED,
           new DeleteDocumentHandle(current.getDocumentId()), getCheckpoint());
       current = snapshotReader.read();
     }
@@ -414,7 +455,7 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
 
       // Null if filtered due to mime-type.
       if (documentHandle != null) {
-        callback.newDocument(documentHandle, getCheckpoint(-1));
+        deferChange(ChangeType.NEW, documentHandle, getCheckpoint(-1));
       }
     }
   }
@@ -439,11 +480,64 @@ public class DocumentSnapshotRepositoryMonitor implements Runnable {
       // No change.
     } else {
       // Normal change - send the gsa an update.
-      callback.changedDocument(documentHandle, getCheckpoint());
+      deferChange(ChangeType.CHANGED, documentHandle, getCheckpoint());
     }
     current = snapshotReader.read();
   }
 
+  /**
+   * Queues a detected change until the snapshot records its checkpoint
+   * refers to are durable.  If they already are, the change is delivered
+   * to the callback immediately.
+   */
+  private void deferChange(ChangeType changeType,
+      DocumentHandle documentHandle, MonitorCheckpoint checkpoint)
+      throws InterruptedException {
+    pendingChanges.add(
+        new PendingChange(changeType, documentHandle, checkpoint));
+    deliverDurableChanges();
+  }
+
+  /**
+   * Delivers the pending changes, in the order they were detected, whose
+   * checkpoints refer only to snapshot records that have been synced to
+   * disk.
+   */
+  private void deliverDurableChanges() throws InterruptedException {
+    long syncedCount = snapshotWriter.getSyncedRecordCount();
+    while (!pendingChanges.isEmpty()
+        && pendingChanges.getFirst().checkpoint.getOffset2() <= syncedCount) {
+      PendingChange change = pendingChanges.removeFirst();
+      switch (change.changeType) {
+        case NEW:
+          callback.newDocument(change.documentHandle, change.checkpoint);
+          break;
+        case CHANGED:
+          callback.changedDocument(change.documentHandle, change.checkpoint);
+          break;
+        case DELETED:
+          callback.deletedDocument(change.documentHandle, change.checkpoint);
+          break;
+      }
+    }
+  }
+
+  private static enum ChangeType { NEW, CHANGED, DELETED }
+
+  /** A detected change that has not yet been delivered to the callback. */
+  private static class PendingChange {
+    final ChangeType changeType;
+    final DocumentHandle documentHandle;
+    final MonitorCheckpoint checkpoint;
+
+    PendingChange(ChangeType changeType, DocumentHandle documentHandle,
+        MonitorCheckpoint checkpoint) {
+      this.changeType = changeType;
+      this.documentHandle = documentHandle;
+      this.checkpoint = checkpoint;
+    }
+  }
+
   // Public for DocumentSnapshotRepositoryMonitorTest
   @VisibleForTesting
   public void acceptGuarantee(MonitorCheckpoint cp) {
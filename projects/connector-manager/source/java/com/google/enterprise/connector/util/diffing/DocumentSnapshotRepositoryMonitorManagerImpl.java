@@ -14,6 +14,7 @@
 
 package com.google.enterprise.connector.util.diffing;
 
+import com.google.common.base.Preconditions;
 import com.google.enterprise.connector.spi.RepositoryDocumentException;
 import com.google.enterprise.connector.spi.RepositoryException;
 import com.google.enterprise.connector.spi.TraversalSchedule;
@@ -24,6 +25,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -59,12 +61,20 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
 
   private final List<Thread> threads =
       Collections.synchronizedList(new ArrayList<Thread>());
+  private final List<Thread> mergerThreads =
+      Collections.synchronizedList(new ArrayList<Thread>());
   private final Map<String, DocumentSnapshotRepositoryMonitor> fileSystemMonitorsByName =
       Collections.synchronizedMap(new HashMap<String, DocumentSnapshotRepositoryMonitor>());
   private boolean isRunning = false;  // Monitor threads start in off state.
   private final List<? extends SnapshotRepository<? extends DocumentSnapshot>>
       repositories;
 
+  /* The partitions of each PartitionedSnapshotRepository, by name. */
+  private final Map<String, List<? extends SnapshotRepository<
+      ? extends DocumentSnapshot>>> partitionedRepositories =
+      new LinkedHashMap<String, List<? extends SnapshotRepository<
+          ? extends DocumentSnapshot>>>();
+
   private final File snapshotDir;
   private final ChecksumGenerator checksumGenerator;
   private final CheckpointAndChangeQueue checkpointAndChangeQueue;
@@ -72,9 +82,30 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
 
   private final DocumentSnapshotFactory documentSnapshotFactory;
 
+  /*
+   * The default sync intervals for binary snapshots.  Each sync ends a
+   * block, so syncing every record would leave one record per block.
+   */
+  static final int BINARY_SYNC_RECORDS = 1000;
+  static final long BINARY_SYNC_MILLIS = 1000L;
+
+  /*
+   * How often the monitors sync their snapshots to disk, or null to use
+   * the default for the snapshot format.
+   */
+  private Integer snapshotSyncRecords = null;
+  private Long snapshotSyncMillis = null;
+
+  /* The format in which the monitors write new snapshots. */
+  private SnapshotFormat snapshotFormat = SnapshotFormat.TEXT;
+
   /**
    * Constructs {@link DocumentSnapshotRepositoryMonitorManagerImpl}
-   * for the {@link DiffingConnector}.
+   * for the {@link DiffingConnector}.  Each
+   * {@link PartitionedSnapshotRepository} is replaced by its partitions,
+   * each of which is monitored concurrently.  The changes from the
+   * partitions are merged in document ID order before they are added
+   * to the {@code changeQueue}.
    *
    * @param repositories a {@code List} of {@link SnapshotRepository
    *        SnapshotRepositorys}
@@ -93,7 +124,8 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
       File snapshotDir, ChecksumGenerator checksumGenerator,
       ChangeQueue changeQueue,
       CheckpointAndChangeQueue checkpointAndChangeQueue) {
-    this.repositories = repositories;
+    this.repositories =
+        expandPartitions(repositories, partitionedRepositories);
     this.documentSnapshotFactory = documentSnapshotFactory;
     this.snapshotDir = snapshotDir;
     this.checksumGenerator = checksumGenerator;
@@ -101,6 +133,117 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
     this.checkpointAndChangeQueue = checkpointAndChangeQueue;
   }
 
+  /**
+   * Sets the maximum number of snapshot records a monitor writes
+   * between syncs of its snapshot to disk.  The default for
+   * {@link SnapshotFormat#TEXT} snapshots is 1, which syncs every record.
+   * The default for binary snapshots is {@value #BINARY_SYNC_RECORDS},
+   * since each sync ends a block.  Larger values greatly reduce the cost
+   * of monitor passes over large repositories, at the expense of delaying
+   * the delivery of detected changes until their snapshot records are
+   * synced.
+   *
+   * @param snapshotSyncRecords the number of records written between syncs;
+   *        must be positive
+   * @since 3.4
+   */
+  public void setSnapshotSyncRecords(int snapshotSyncRecords) {
+    Preconditions.checkArgument(snapshotSyncRecords > 0,
+        "snapshotSyncRecords must be positive");
+    this.snapshotSyncRecords = snapshotSyncRecords;
+  }
+
+  /**
+   * Sets the maximum time, in milliseconds, a monitor waits between
+   * syncs of its snapshot to disk while writing records.  The default
+   * for {@link SnapshotFormat#TEXT} snapshots is 0, which imposes no time
+   * limit.  The default for binary snapshots is
+   * {@value #BINARY_SYNC_MILLIS} milliseconds, which bounds the delay
+   * added by the larger default {@link #setSnapshotSyncRecords
+   * snapshotSyncRecords}.
+   *
+   * @param snapshotSyncMillis the maximum time between syncs,
+   *        or 0 for no limit
+   * @since 3.4
+   */
+  public void setSnapshotSyncMillis(long snapshotSyncMillis) {
+    Preconditions.checkArgument(snapshotSyncMillis >= 0,
+        "snapshotSyncMillis must not be negative");
+    this.snapshotSyncMillis = snapshotSyncMillis;
+  }
+
+  /**
+   * Sets the {@link SnapshotFormat} in which the monitors write new
+   * snapshots.  The default is {@link SnapshotFormat#TEXT}.  Existing
+   * snapshots in any format are still read, so changing the format
+   * migrates the snapshots as the monitors make their next passes.
+   * Note that earlier versions of the Connector Manager can only read
+   * {@code TEXT} snapshots.
+   *
+   * @param snapshotFormat the format of new snapshots
+   * @since 3.4
+   */
+  public void setSnapshotFormat(SnapshotFormat snapshotFormat) {
+    Preconditions.checkNotNull(snapshotFormat);
+    this.snapshotFormat = snapshotFormat;
+  }
+
+  /**
+   * Returns the configured number of records between syncs, or the
+   * default for the snapshot format.
+   */
+  int getSnapshotSyncRecords() {
+    if (snapshotSyncRecords != null) {
+      return snapshotSyncRecords;
+    }
+    return (snapshotFormat == SnapshotFormat.TEXT) ? 1 : BINARY_SYNC_RECORDS;
+  }
+
+  /**
+   * Returns the configured time between syncs, or the default for the
+   * snapshot format.
+   */
+  long getSnapshotSyncMillis() {
+    if (snapshotSyncMillis != null) {
+      return snapshotSyncMillis;
+    }
+    return (snapshotFormat == SnapshotFormat.TEXT) ? 0L : BINARY_SYNC_MILLIS;
+  }
+
+  /**
+   * Returns the supplied repositories, with any
+   * {@link PartitionedSnapshotRepository} replaced by its partitions.
+   * The partitions of repositories with more than one partition are
+   * added to {@code partitioned}.
+   */
+  private static List<? extends SnapshotRepository<? extends DocumentSnapshot>>
+      expandPartitions(List<? extends SnapshotRepository<
+          ? extends DocumentSnapshot>> repositories,
+      Map<String, List<? extends SnapshotRepository<
+          ? extends DocumentSnapshot>>> partitioned) {
+    List<SnapshotRepository<? extends DocumentSnapshot>> result =
+        new ArrayList<SnapshotRepository<? extends DocumentSnapshot>>();
+    for (SnapshotRepository<? extends DocumentSnapshot> repository
+        : repositories) {
+      if (repository instanceof PartitionedSnapshotRepository) {
+        List<? extends SnapshotRepository<? extends DocumentSnapshot>>
+            partitions = ((PartitionedSnapshotRepository<?>) repository)
+            .getPartitions();
+        Preconditions.checkArgument(!partitions.isEmpty(),
+            "Repository " + repository.getName() + " has no partitions");
+        LOG.config("Repository " + repository.getName() + " has "
+            + partitions.size() + " partitions");
+        result.addAll(partitions);
+        if (partitions.size() > 1) {
+          partitioned.put(repository.getName(), partitions);
+        }
+      } else {
+        result.add(repository);
+      }
+    }
+    return result;
+  }
+
   private void flagAllMonitorsToStop() {
     for (SnapshotRepository<? extends DocumentSnapshot> repository
         : repositories) {
@@ -119,10 +262,12 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
 
   @Override
   public synchronized void stop() {
-    for (Thread thread : threads) {
+    List<Thread> allThreads = new ArrayList<Thread>(threads);
+    allThreads.addAll(mergerThreads);
+    for (Thread thread : allThreads) {
       thread.interrupt();
     }
-    for (Thread thread : threads) {
+    for (Thread thread : allThreads) {
       try {
         thread.join(MAX_SHUTDOWN_MS);
         if (thread.isAlive()) {
@@ -134,6 +279,7 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
       }
     }
     threads.clear();
+    mergerThreads.clear();
 
     /* in case thread.interrupt doesn't stop monitors */
     flagAllMonitorsToStop();
@@ -165,11 +311,13 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
         delete(dir);
       } else {
         SnapshotStore.stitch(dir, monitorPoints.get(monitorName),
-            documentSnapshotFactory);
+            documentSnapshotFactory, snapshotFormat);
       }
 
       SnapshotStore snapshotStore = new SnapshotStore(dir,
-          documentSnapshotFactory);
+          documentSnapshotFactory, getSnapshotSyncRecords(),
+          getSnapshotSyncMillis(),
+          snapshotFormat);
 
       snapshotStores.put(monitorName, snapshotStore);
     }
@@ -257,12 +405,13 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
    */
   private Thread newMonitorThread(
       SnapshotRepository<? extends DocumentSnapshot> repository,
-      SnapshotStore snapshotStore, MonitorCheckpoint startCp)
+      SnapshotStore snapshotStore, MonitorCheckpoint startCp,
+      DocumentSnapshotRepositoryMonitor.Callback callback)
       throws RepositoryDocumentException {
     String monitorName = makeMonitorNameFromStartPath(repository.getName());
     DocumentSnapshotRepositoryMonitor monitor =
         new DocumentSnapshotRepositoryMonitor(monitorName, repository,
-            snapshotStore, changeQueue.newCallback(), DOCUMENT_SINK, startCp,
+            snapshotStore, callback, DOCUMENT_SINK, startCp,
             documentSnapshotFactory);
     monitor.setTraversalSchedule(traversalSchedule);
     LOG.fine("Adding a new monitor for " + monitorName + ": " + monitor);
@@ -280,13 +429,21 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
   private void startMonitorThreads(Map<String, SnapshotStore> snapshotStores,
       Map<String, MonitorCheckpoint> monitorPoints)
       throws RepositoryDocumentException {
+    Map<SnapshotRepository<? extends DocumentSnapshot>,
+        DocumentSnapshotRepositoryMonitor.Callback> partitionCallbacks =
+        startMergerThreads();
 
     for (SnapshotRepository<? extends DocumentSnapshot> repository
             : repositories) {
       String monitorName = makeMonitorNameFromStartPath(repository.getName());
       SnapshotStore snapshotStore = snapshotStores.get(monitorName);
+      DocumentSnapshotRepositoryMonitor.Callback callback =
+          partitionCallbacks.get(repository);
+      if (callback == null) {
+        callback = changeQueue.newCallback();
+      }
       Thread monitorThread = newMonitorThread(repository, snapshotStore,
-          monitorPoints.get(monitorName));
+          monitorPoints.get(monitorName), callback);
       threads.add(monitorThread);
 
       LOG.info("starting monitor for <" + repository.getName() + ">");
@@ -296,6 +453,39 @@ public class DocumentSnapshotRepositoryMonitorManagerImpl
     }
   }
 
+  /**
+   * Creates a {@link PartitionMerger} thread for each partitioned
+   * repository.
+   *
+   * @return the callbacks for the partitions' monitors
+   */
+  private Map<SnapshotRepository<? extends DocumentSnapshot>,
+      DocumentSnapshotRepositoryMonitor.Callback> startMergerThreads() {
+    Map<SnapshotRepository<? extends DocumentSnapshot>,
+        DocumentSnapshotRepositoryMonitor.Callback> callbacks =
+        new HashMap<SnapshotRepository<? extends DocumentSnapshot>,
+            DocumentSnapshotRepositoryMonitor.Callback>();
+    for (Map.Entry<String, List<? extends SnapshotRepository<
+             ? extends DocumentSnapshot>>> entry
+         : partitionedRepositories.entrySet()) {
+      List<? extends SnapshotRepository<? extends DocumentSnapshot>>
+          partitions = entry.getValue();
+      PartitionMerger merger = new PartitionMerger(entry.getKey(),
+          changeQueue.newCallback(), partitions.size(), changeQueue.getSize());
+      for (int i = 0; i < partitions.size(); i++) {
+        callbacks.put(partitions.get(i), merger.getCallback(i));
+      }
+      Thread mergerThread = new Thread(merger);
+      mergerThreads.add(mergerThread);
+
+      LOG.info("starting partition merger for <" + entry.getKey() + ">");
+      mergerThread.setName(entry.getKey() + "-merger");
+      mergerThread.setDaemon(true);
+      mergerThread.start();
+    }
+    return callbacks;
+  }
+
   @Override
   public synchronized boolean isRunning() {
     return isRunning;
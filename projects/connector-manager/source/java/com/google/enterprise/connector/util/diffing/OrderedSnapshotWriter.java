@@ -59,6 +59,16 @@ class OrderedSnapshotWriter extends SnapshotWriter {
     }
   }
 
+  @Override
+  public boolean isSyncDue() {
+    return delegate.isSyncDue();
+  }
+
+  @Override
+  public void sync() throws SnapshotWriterException {
+    delegate.sync();
+  }
+
   @Override
   public void close() throws SnapshotWriterException {
     delegate.close();
@@ -73,4 +83,9 @@ class OrderedSnapshotWriter extends SnapshotWriter {
   public long getRecordCount() {
     return delegate.getRecordCount();
   }
+
+  @Override
+  public long getSyncedRecordCount() {
+    return delegate.getSyncedRecordCount();
+  }
 }
@@ -0,0 +1,268 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Merges the changes found by the monitors of the partitions of a
+ * {@link PartitionedSnapshotRepository} into a single stream, in
+ * {@link DocumentSnapshotComparator} order, so that the order in which
+ * the changes are enqueued does not depend on thread scheduling.
+ * <p>
+ * Each partition's monitor delivers its changes to its own
+ * {@link #getCallback callback}, which buffers up to a fixed number of
+ * changes.  The merger passes the buffered changes to the target
+ * callback one partition at a time, in partition order, for each round
+ * of passes.  Because the partitions cover contiguous ranges of document
+ * IDs, this is the order of a single pass over the whole repository.
+ * A partition's monitor does not start its next pass until the round
+ * that includes its current pass is complete.
+ * <p>
+ * If a partition's pass is aborted, its changes that have not yet been
+ * merged are dropped, and the partition contributes nothing more to the
+ * round.  The recovered monitor finds those changes again on its next
+ * pass, which is merged in the following round.  If a partition's
+ * monitor stops, the remaining partitions continue to be merged without
+ * it.
+ */
+class PartitionMerger implements Runnable {
+  private static final Logger LOG =
+      Logger.getLogger(PartitionMerger.class.getName());
+
+  /** How often to check whether a partition's monitor has stopped. */
+  private static final long POLL_MILLIS = 1000L;
+
+  private final String name;
+  private final DocumentSnapshotRepositoryMonitor.Callback target;
+  private final List<PartitionCallback> partitions;
+
+  /**
+   * Constructs a merger.
+   *
+   * @param name the name of the partitioned repository, for logging
+   * @param target the callback that receives the merged changes
+   * @param partitionCount the number of partitions
+   * @param bufferSize the maximum number of changes buffered for
+   *        each partition
+   */
+  PartitionMerger(String name,
+      DocumentSnapshotRepositoryMonitor.Callback target, int partitionCount,
+      int bufferSize) {
+    Preconditions.checkArgument(partitionCount > 0,
+        "partitionCount must be positive");
+    Preconditions.checkArgument(bufferSize > 0,
+        "bufferSize must be positive");
+    this.name = name;
+    this.target = target;
+    this.partitions = new ArrayList<PartitionCallback>(partitionCount);
+    for (int i = 0; i < partitionCount; i++) {
+      partitions.add(new PartitionCallback(bufferSize));
+    }
+  }
+
+  /**
+   * Returns the callback for the monitor of the given partition.
+   *
+   * @param partition the index of the partition, in document ID order
+   */
+  DocumentSnapshotRepositoryMonitor.Callback getCallback(int partition) {
+    return partitions.get(partition);
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        mergeOneRound();
+      }
+    } catch (InterruptedException e) {
+      LOG.info("Partition merger for " + name + " received stop signal.");
+    }
+  }
+
+  /**
+   * Passes one pass of changes from each partition, in partition order,
+   * to the target callback, then lets the partitions start their next
+   * passes.
+   */
+  private void mergeOneRound() throws InterruptedException {
+    target.passBegin();
+    MonitorCheckpoint checkpoint = null;
+    List<PartitionCallback> completed =
+        new ArrayList<PartitionCallback>(partitions.size());
+    for (PartitionCallback partition : partitions) {
+      mergePartition:
+      while (true) {
+        BufferedChange change = nextChange(partition);
+        if (change == null) {
+          if (!partition.stopReported) {
+            partition.stopReported = true;
+            LOG.warning("Monitor for partition "
+                + partitions.indexOf(partition) + " of " + name
+                + " has stopped; merging the remaining partitions"
+                + " without it.");
+          }
+          break;
+        }
+        switch (change.changeType) {
+          case NEW:
+            target.newDocument(change.documentHandle, change.checkpoint);
+            break;
+          case CHANGED:
+            target.changedDocument(change.documentHandle, change.checkpoint);
+            break;
+          case DELETED:
+            target.deletedDocument(change.documentHandle, change.checkpoint);
+            break;
+          case PASS_COMPLETE:
+            checkpoint = change.checkpoint;
+            completed.add(partition);
+            break mergePartition;
+          case PASS_ABORTED:
+            // The monitor is not waiting for this round to complete.
+            break mergePartition;
+        }
+      }
+    }
+    target.passComplete(checkpoint);
+    for (PartitionCallback partition : completed) {
+      partition.roundComplete.release();
+    }
+  }
+
+  /**
+   * Waits for the next change from a partition.
+   *
+   * @return the next change, or {@code null} if the partition's monitor
+   *         has stopped and all of its changes have been taken
+   */
+  private BufferedChange nextChange(PartitionCallback partition)
+      throws InterruptedException {
+    while (true) {
+      // Read the flag before polling, so that a change buffered just
+      // before the monitor stopped is not missed.
+      boolean stopped = partition.stopped;
+      BufferedChange change = stopped ? partition.buffer.poll()
+          : partition.buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+      if (change != null) {
+        return change;
+      } else if (stopped) {
+        return null;
+      }
+    }
+  }
+
+  private static enum ChangeType {
+    NEW, CHANGED, DELETED, PASS_COMPLETE, PASS_ABORTED
+  }
+
+  /**
+   * A change buffered for merging, or a marker for the end of a pass.
+   */
+  private static class BufferedChange {
+    final ChangeType changeType;
+    final DocumentHandle documentHandle;
+    final MonitorCheckpoint checkpoint;
+
+    BufferedChange(ChangeType changeType, DocumentHandle documentHandle,
+        MonitorCheckpoint checkpoint) {
+      this.changeType = changeType;
+      this.documentHandle = documentHandle;
+      this.checkpoint = checkpoint;
+    }
+  }
+
+  /** Buffers the changes from one partition's monitor. */
+  private static class PartitionCallback
+      implements DocumentSnapshotRepositoryMonitor.AbortableCallback {
+    final BlockingQueue<BufferedChange> buffer;
+    final Semaphore roundComplete = new Semaphore(0);
+    volatile boolean stopped = false;
+    boolean stopReported = false;  // Only used by the merger thread.
+    private int changeCount = 0;
+
+    PartitionCallback(int bufferSize) {
+      buffer = new LinkedBlockingQueue<BufferedChange>(bufferSize);
+    }
+
+    @Override
+    public void passBegin() {
+      changeCount = 0;
+    }
+
+    @Override
+    public void newDocument(DocumentHandle documentHandle,
+        MonitorCheckpoint mcp) throws InterruptedException {
+      ++changeCount;
+      buffer.put(new BufferedChange(ChangeType.NEW, documentHandle, mcp));
+    }
+
+    @Override
+    public void changedDocument(DocumentHandle documentHandle,
+        MonitorCheckpoint mcp) throws InterruptedException {
+      ++changeCount;
+      buffer.put(new BufferedChange(ChangeType.CHANGED, documentHandle, mcp));
+    }
+
+    @Override
+    public void deletedDocument(DocumentHandle documentHandle,
+        MonitorCheckpoint mcp) throws InterruptedException {
+      ++changeCount;
+      buffer.put(new BufferedChange(ChangeType.DELETED, documentHandle, mcp));
+    }
+
+    /** Waits until the changes from this pass have all been merged. */
+    @Override
+    public void passComplete(MonitorCheckpoint mcp)
+        throws InterruptedException {
+      buffer.put(new BufferedChange(ChangeType.PASS_COMPLETE, null, mcp));
+      roundComplete.acquire();
+    }
+
+    /**
+     * Drops the changes from this pass that have not been merged yet.
+     * The next pass will find them again.
+     */
+    @Override
+    public void passAborted() throws InterruptedException {
+      buffer.clear();
+      buffer.put(new BufferedChange(ChangeType.PASS_ABORTED, null, null));
+    }
+
+    @Override
+    public void monitorStopped() {
+      stopped = true;
+    }
+
+    @Override
+    public boolean hasEnqueuedAtLeastOneChangeThisPass() {
+      return changeCount > 0;
+    }
+
+    @Override
+    public void passPausing(int sleepms) throws InterruptedException {
+      Thread.sleep(sleepms);
+    }
+  }
+}
@@ -0,0 +1,52 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import java.util.List;
+
+/**
+ * A {@link SnapshotRepository} that can be split into partitions, each
+ * covering a contiguous range of document IDs, in
+ * {@link DocumentSnapshotComparator} order.  The
+ * {@link DocumentSnapshotRepositoryMonitorManagerImpl} monitors each
+ * partition separately and concurrently, with its own snapshots and
+ * {@link MonitorCheckpoint MonitorCheckpoints}, so that a pass over a
+ * large repository can make use of multiple processors.  The changes
+ * found in the partitions are merged in document ID order, so they are
+ * fed in the same order as by a single monitor.
+ * <p>
+ * The partitions must not overlap, and together must cover all of the
+ * documents in the repository.  A document must always be returned by
+ * the same partition, otherwise a document that moves between partitions
+ * might be deleted from the Search Appliance after it is added by
+ * its new partition.  Each partition must have a unique name that does
+ * not change, as the name identifies the partition's snapshots and
+ * checkpoints.  A partition whose name has not been seen before starts
+ * with an empty snapshot, so all its documents are fed as new.
+ *
+ * @since 3.4
+ */
+public interface PartitionedSnapshotRepository<T extends DocumentSnapshot>
+    extends SnapshotRepository<T> {
+  /**
+   * Returns the partitions of this repository, in document ID order.
+   * The iterator of each partition must return only the documents in
+   * that partition, in {@link DocumentSnapshot#getDocumentId()} order.
+   *
+   * @return a non-empty {@code List} of {@link SnapshotRepository}
+   *         partitions
+   */
+  List<? extends SnapshotRepository<? extends T>> getPartitions();
+}
@@ -0,0 +1,46 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+/**
+ * The file formats in which a {@link SnapshotStore} may write snapshots.
+ * Snapshots in any of these formats can be read, so changing the format
+ * of an existing {@code SnapshotStore} migrates it to the new format as
+ * new snapshots are written.
+ *
+ * @since 3.4
+ */
+public enum SnapshotFormat {
+  /**
+   * The original text format, in which each record is written as
+   * <pre>length#stringForm\n</pre> in UTF-8.
+   */
+  TEXT,
+
+  /**
+   * A binary format, in which records are written as varint length
+   * prefixed UTF-8 strings, grouped into checksummed blocks.  The record
+   * body is the same {@link DocumentSnapshot#toString} form used by
+   * {@link #TEXT}; only the framing differs.
+   */
+  BINARY,
+
+  /**
+   * The {@link #BINARY} format, with Deflate compressed blocks.  Since
+   * each sync ends a block, compression is only effective when many
+   * records are written between syncs.
+   */
+  BINARY_COMPRESSED;
+}
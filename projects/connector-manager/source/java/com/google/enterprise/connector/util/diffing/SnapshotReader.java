@@ -14,8 +14,14 @@
 
 package com.google.enterprise.connector.util.diffing;
 
+import com.google.common.base.Charsets;
+
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.CharBuffer;
 
 /**
@@ -29,6 +35,7 @@ public class SnapshotReader {
   
   private final String inputPath;
   private final BufferedReader in;
+  private final Closeable closeable;
   private final long snapshotNumber;
   private final DocumentSnapshotFactory documentSnapshotFactory;
   private long recordNumber;
@@ -146,7 +153,57 @@ public class SnapshotReader {
   }
 
   /**
-   * Constructs a SnapshotReader.
+   * Constructs a SnapshotReader that reads a snapshot in any of the
+   * {@link SnapshotFormat SnapshotFormats}.
+   *
+   * @param in input for the reader
+   * @param inputPath path to the snapshot
+   * @param snapshotNumber the number of the snapshot being read
+   * @throws SnapshotReaderException
+   * @since 3.4
+   */
+  public SnapshotReader(InputStream in, String inputPath,
+      long snapshotNumber,
+      DocumentSnapshotFactory documentSnapshotFactory)
+      throws SnapshotReaderException {
+    this.inputPath = inputPath;
+    this.recordNumber = 0;  //1 based.
+    this.snapshotNumber = snapshotNumber;
+    this.documentSnapshotFactory = documentSnapshotFactory;
+
+    BufferedInputStream bis = new BufferedInputStream(in,
+        BinarySnapshot.BLOCK_SIZE);
+    boolean isBinary;
+    try {
+      byte[] magic = new byte[BinarySnapshot.MAGIC.length];
+      bis.mark(magic.length);
+      int length = 0;
+      int bytes;
+      while (length < magic.length
+          && (bytes = bis.read(magic, length, magic.length - length)) > 0) {
+        length += bytes;
+      }
+      bis.reset();
+      isBinary = BinarySnapshot.isBinarySnapshot(magic, length);
+    } catch (IOException ioe) {
+      throw new SnapshotReaderException(
+          "failed to read snapshot (" + inputPath + ")", ioe);
+    }
+    if (isBinary) {
+      BinaryRecordReader binaryReader = new BinaryRecordReader(bis, inputPath);
+      this.in = null;
+      this.closeable = binaryReader;
+      this.recordReader = binaryReader;
+    } else {
+      this.in = new BufferedReader(new InputStreamReader(bis, Charsets.UTF_8));
+      this.closeable = this.in;
+      this.recordReader = chooseTextRecordReader();
+    }
+  }
+
+  /**
+   * Constructs a SnapshotReader for a snapshot in the
+   * {@link SnapshotFormat#TEXT} format.
    *
    * @param in input for the reader
    * @param inputPath path to the snapshot
@@ -158,6 +215,16 @@ public class SnapshotReader {
       DocumentSnapshotFactory documentSnapshotFactory)
       throws SnapshotReaderException {
     this.in = in;
+    this.closeable = in;
+    this.recordReader = chooseTextRecordReader();
+    this.inputPath = inputPath;
+    this.recordNumber = 0;  //1 based.
+    this.snapshotNumber = snapshotNumber;
+    this.documentSnapshotFactory = documentSnapshotFactory;
+  }
+
+  private RecordReader chooseTextRecordReader()
+      throws SnapshotReaderException {
     /* Initial version of File System connector (2.6) used JSON.
     When diffing library was extracted (2.8) the requirement was loosened to
     allow for arbitrary Strings.  We have two
@@ -168,18 +235,14 @@ public class SnapshotReader {
       int firstChar = in.read();
       in.reset();
       if (firstChar == START_JSON_CHAR) {
-        recordReader = new LineBasedRecordReader();
+        return new LineBasedRecordReader();
       } else {
-        recordReader = new LengthBasedRecordReader();
+        return new LengthBasedRecordReader();
       }
     } catch (IOException ioe) {
       throw new SnapshotReaderException(
           String.format("failed to decide which record reader to use", ioe));
     }
-    this.inputPath = inputPath;
-    this.recordNumber = 0;  //1 based.
-    this.snapshotNumber = snapshotNumber;
-    this.documentSnapshotFactory = documentSnapshotFactory;
   }
 
   /**
@@ -242,6 +305,19 @@ public class SnapshotReader {
    */
   public void skipRecords(long number) throws SnapshotReaderException,
       InterruptedException {
+    if (recordReader instanceof BinaryRecordReader) {
+      // Skip whole blocks of records at a time.
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      long skipped = ((BinaryRecordReader) recordReader).skipRecords(number);
+      if (skipped < number) {
+        throw new SnapshotReaderException(String.format(
+            "failed to skip %d records; snapshot contains only %d",
+            number, skipped));
+      }
+      return;
+    }
     for (int k = 0; k < number; ++k) {
       if (Thread.interrupted()) {
         throw new InterruptedException();
@@ -265,6 +341,6 @@ public class SnapshotReader {
    * Closes the underlying input stream.
    */
   public void close() throws IOException {
-    in.close();
+    closeable.close();
   }
 }
\ No newline at end of file
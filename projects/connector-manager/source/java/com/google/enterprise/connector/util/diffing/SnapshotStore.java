@@ -20,16 +20,14 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Ordering;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.io.Reader;
 import java.io.Writer;
 import java.util.Arrays;
 import java.util.SortedSet;
@@ -53,11 +51,23 @@ public class SnapshotStore {
     return new File(snapshotDir, name);
   }
 
-  private static SnapshotWriter getSnapshotWriter(File snapshotFile)
+  private static SnapshotWriter getSnapshotWriter(File snapshotFile,
+      SnapshotFormat format, int syncRecords, long syncMillis)
       throws IOException, SnapshotWriterException {
     FileOutputStream os = new FileOutputStream(snapshotFile);
-    Writer w = new OutputStreamWriter(os, Charsets.UTF_8);
-    return new SnapshotWriter(w, os.getFD(), snapshotFile.getAbsolutePath());
+    switch (format) {
+      case BINARY:
+      case BINARY_COMPRESSED:
+        return new BinarySnapshotWriter(new BufferedOutputStream(os,
+                BinarySnapshot.BLOCK_SIZE), os.getFD(),
+            snapshotFile.getAbsolutePath(),
+            format == SnapshotFormat.BINARY_COMPRESSED,
+            syncRecords, syncMillis);
+      default:
+        Writer w = new OutputStreamWriter(os, Charsets.UTF_8);
+        return new SnapshotWriter(w, os.getFD(),
+            snapshotFile.getAbsolutePath(), syncRecords, syncMillis);
+    }
   }
 
   private static final Pattern SNAPSHOT_PATTERN =
@@ -65,6 +75,13 @@ public class SnapshotStore {
   private final File snapshotDir;
   private final DocumentSnapshotFactory documentSnapshotFactory;
 
+  // How often new snapshots are synced to disk.
+  private final int syncRecords;
+  private final long syncMillis;
+
+  // The format in which new snapshots are written.
+  private final SnapshotFormat format;
+
   // Whether there is a current writer or not.
   private boolean aWriterIsActive = false;
 
@@ -80,7 +97,58 @@ public class SnapshotStore {
   public SnapshotStore(File snapshotDirectory,
       DocumentSnapshotFactory documentSnapshotFactory)
       throws SnapshotStoreException {
+    this(snapshotDirectory, documentSnapshotFactory, 1, 0L);
+  }
+
+  /**
+   * Constructs a {@code SnapshotStore} whose snapshot writers group commit
+   * records, syncing them to disk every {@code syncRecords} records or
+   * every {@code syncMillis} milliseconds, whichever comes first.
+   *
+   * @param snapshotDirectory the directory in which to store the snapshots.
+   *        Must be non-{@code null}. If it does not exist, it will be created.
+   * @param documentSnapshotFactory factory for creating DocumentSnapshots
+   * @param syncRecords the maximum number of records written between syncs
+   * @param syncMillis the maximum time, in milliseconds, between syncs,
+   *        or 0 for no time limit
+   * @throws SnapshotStoreException if the snapshot directory does not exist and
+   *         cannot be created
+   * @since 3.4
+   */
+  public SnapshotStore(File snapshotDirectory,
+      DocumentSnapshotFactory documentSnapshotFactory, int syncRecords,
+      long syncMillis) throws SnapshotStoreException {
+    this(snapshotDirectory, documentSnapshotFactory, syncRecords, syncMillis,
+         SnapshotFormat.TEXT);
+  }
+
+  /**
+   * Constructs a {@code SnapshotStore} that writes new snapshots in the
+   * specified format, group committing records to disk every
+   * {@code syncRecords} records or every {@code syncMillis} milliseconds,
+   * whichever comes first.  Existing snapshots in other formats can
+   * still be read.
+   *
+   * @param snapshotDirectory the directory in which to store the snapshots.
+   *        Must be non-{@code null}. If it does not exist, it will be created.
+   * @param documentSnapshotFactory factory for creating DocumentSnapshots
+   * @param syncRecords the maximum number of records written between syncs
+   * @param syncMillis the maximum time, in milliseconds, between syncs,
+   *        or 0 for no time limit
+   * @param format the {@link SnapshotFormat} of new snapshots
+   * @throws SnapshotStoreException if the snapshot directory does not exist and
+   *         cannot be created
+   * @since 3.4
+   */
+  public SnapshotStore(File snapshotDirectory,
+      DocumentSnapshotFactory documentSnapshotFactory, int syncRecords,
+      long syncMillis, SnapshotFormat format) throws SnapshotStoreException {
     Preconditions.checkNotNull(snapshotDirectory);
+    Preconditions.checkNotNull(format);
+    Preconditions.checkArgument(syncRecords > 0,
+        "syncRecords must be positive");
+    Preconditions.checkArgument(syncMillis >= 0,
+        "syncMillis must not be negative");
     if (!snapshotDirectory.exists()) {
       if (!snapshotDirectory.mkdirs()) {
         throw new SnapshotStoreException("failed to create snapshot directory: "
@@ -89,6 +157,9 @@ public class SnapshotStore {
     }
     this.snapshotDir = snapshotDirectory;
     this.documentSnapshotFactory = documentSnapshotFactory;
+    this.syncRecords = syncRecords;
+    this.syncMillis = syncMillis;
+    this.format = format;
     this.oldestSnapshotToKeep = 0;
   }
 
@@ -104,7 +175,8 @@ public class SnapshotStore {
     long nextIndex = (snapshots.isEmpty()) ? 1 : snapshots.first() + 1;
     File out = getSnapshotFile(snapshotDir, nextIndex);
     try {
-      SnapshotWriter writer = getSnapshotWriter(out);
+      SnapshotWriter writer =
+          getSnapshotWriter(out, format, syncRecords, syncMillis);
       aWriterIsActive = true;
       return writer;
     } catch (IOException e) {
@@ -136,7 +208,7 @@ public class SnapshotStore {
     LOG.info("starting with empty snapshot");
     File out = getSnapshotFile(snapshotDir, 0);
     try {
-      SnapshotWriter writer = getSnapshotWriter(out);
+      SnapshotWriter writer = getSnapshotWriter(out, format, 1, 0L);
       writer.close();
     } catch (IOException e) {
       throw new SnapshotStoreException("failed to open snapshot: " + out.getAbsolutePath(), e);
@@ -220,14 +292,23 @@ public class SnapshotStore {
       DocumentSnapshotFactory documentSnapshotFactory)
       throws SnapshotStoreException {
     File input = getSnapshotFile(snapshotDir, number);
+    InputStream is;
     try {
-      InputStream is = new FileInputStream(input);
-      Reader r = new InputStreamReader(is, Charsets.UTF_8);
-      return new SnapshotReader(new BufferedReader(r), input.getAbsolutePath(),
-          number, documentSnapshotFactory);
+      is = new FileInputStream(input);
     } catch (FileNotFoundException e) {
       throw new SnapshotStoreException("failed to open snapshot: " + number);
     }
+    try {
+      return new SnapshotReader(is, input.getAbsolutePath(), number,
+          documentSnapshotFactory);
+    } catch (SnapshotReaderException e) {
+      try {
+        is.close();
+      } catch (IOException ignored) {
+        // Report the original failure.
+      }
+      throw e;
+    }
   }
 
   void acceptGuarantee(MonitorCheckpoint cp) {
@@ -252,6 +333,21 @@ public class SnapshotStore {
   public static void stitch(File snapshotDir, MonitorCheckpoint checkpoint,
       DocumentSnapshotFactory documentSnapshotFactory)
       throws IOException, SnapshotStoreException, InterruptedException {
+    stitch(snapshotDir, checkpoint, documentSnapshotFactory,
+           SnapshotFormat.TEXT);
+  }
+
+  /**
+   * Recovers the snapshots in {@code snapshotDir} to the state recorded
+   * in {@code checkpoint}, writing the recovered snapshot in the
+   * specified {@link SnapshotFormat}.  The existing snapshots may be
+   * in any format.
+   *
+   * @since 3.4
+   */
+  public static void stitch(File snapshotDir, MonitorCheckpoint checkpoint,
+      DocumentSnapshotFactory documentSnapshotFactory, SnapshotFormat format)
+      throws IOException, SnapshotStoreException, InterruptedException {
     long readSnapshotIndex = checkpoint.getSnapshotNumber();
     long writeSnapshotIndex = readSnapshotIndex + 1;
     boolean listSnapshotDir = false;
@@ -279,7 +375,10 @@ public class SnapshotStore {
     long recoveryFileIndex = checkpoint.getSnapshotNumber() + 2;
     File out = getSnapshotFile(snapshotDir, recoveryFileIndex);
     boolean iMadeIt = false;
-    SnapshotWriter writer = getSnapshotWriter(out);
+    // The recovery snapshot is not used until it is complete, so it is
+    // only synced to disk when it is closed.
+    SnapshotWriter writer =
+        getSnapshotWriter(out, format, Integer.MAX_VALUE, 0L);
       try {
       SnapshotReader part1 = openSnapshot(snapshotDir,
           checkpoint.getSnapshotNumber() + 1, documentSnapshotFactory);
@@ -336,4 +435,8 @@ public class SnapshotStore {
   File getDirectory() {
     return snapshotDir;
   }
+
+  SnapshotFormat getFormat() {
+    return format;
+  }
 }
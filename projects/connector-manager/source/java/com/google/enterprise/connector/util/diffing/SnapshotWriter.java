@@ -23,6 +23,14 @@ import java.io.Writer;
 
 /**
  * Write snapshot records in CSV format.
+ * <p>
+ * By default, each record is flushed and synced to disk as it is written.
+ * A {@code SnapshotWriter} may instead be configured to group commit
+ * records, syncing them to disk once every {@code syncRecords} records,
+ * or once {@code syncMillis} milliseconds have passed since the last sync,
+ * whichever comes first.  Callers that hand out references to written
+ * records must not do so until {@link #getSyncedRecordCount()} shows them
+ * to be durable.
  *
  * @since 2.8
  */
@@ -34,8 +42,21 @@ public class SnapshotWriter {
   protected long count;
   protected FileDescriptor fileDescriptor;
 
+  /** Sync after this many records have been written. */
+  protected int syncRecords;
+
+  /** Sync once this many milliseconds have passed since the last sync. */
+  protected long syncMillis;
+
+  /** The number of records known to be on disk. */
+  protected long syncedCount;
+
+  /** The time of the last sync. */
+  protected long lastSyncTime;
+
   /**
-   * Creates a SnapshotWriter that appends to {@code output}.
+   * Creates a SnapshotWriter that appends to {@code output}, syncing
+   * each record to disk as it is written.
    *
    * @param output CSV writer that is being wrapped
    * @param fileDescriptor if non-{code null}, this will be flushed after
@@ -45,14 +66,45 @@ public class SnapshotWriter {
    */
   public SnapshotWriter(Writer output, FileDescriptor fileDescriptor,
       String path) throws SnapshotWriterException {
+    this(output, fileDescriptor, path, 1, 0L);
+  }
+
+  /**
+   * Creates a SnapshotWriter that appends to {@code output}, group
+   * committing records to disk.
+   *
+   * @param output CSV writer that is being wrapped
+   * @param fileDescriptor if non-{code null}, this will be synced to disk
+   *        after every {@code syncRecords} records, or every
+   *        {@code syncMillis} milliseconds
+   * @param path name of output, for logging purposes
+   * @param syncRecords the maximum number of records to write between
+   *        syncs; must be positive
+   * @param syncMillis the maximum time, in milliseconds, between syncs
+   *        while records are being written, or 0 for no time limit
+   * @throws SnapshotWriterException on any error
+   * @since 3.4
+   */
+  public SnapshotWriter(Writer output, FileDescriptor fileDescriptor,
+      String path, int syncRecords, long syncMillis)
+      throws SnapshotWriterException {
+    if (syncRecords <= 0 || syncMillis < 0) {
+      throw new IllegalArgumentException("Invalid sync interval: "
+          + syncRecords + " records, " + syncMillis + " milliseconds");
+    }
     this.output = new BufferedWriter(output);
     this.fileDescriptor = fileDescriptor;
     this.path = path;
     this.count = 0;
+    this.syncRecords = syncRecords;
+    this.syncMillis = syncMillis;
+    this.syncedCount = 0;
+    this.lastSyncTime = System.currentTimeMillis();
   }
 
   /**
-   * Appends a record to the output stream.
+   * Appends a record to the output stream.  The record is synced to
+   * disk if the sync interval has been reached.
    *
    * @param snapshot record to write
    * @throws SnapshotWriterException
@@ -62,12 +114,47 @@ public class SnapshotWriter {
       IllegalArgumentException {
     try {
       write(snapshot, output);
+      ++count;
+    } catch (IOException e) {
+      throw new SnapshotWriterException("failed to write snapshot record", e);
+    }
+    if (isSyncDue()) {
+      sync();
+    }
+  }
+
+  /**
+   * Returns {@code true} if there are unsynced records, and either
+   * {@code syncRecords} of them have accumulated or {@code syncMillis}
+   * have passed since the last sync.
+   *
+   * @since 3.4
+   */
+  public boolean isSyncDue() {
+    long unsynced = count - syncedCount;
+    return unsynced >= syncRecords || (unsynced > 0 && syncMillis > 0
+        && System.currentTimeMillis() - lastSyncTime >= syncMillis);
+  }
+
+  /**
+   * Flushes all the records written so far and syncs them to disk.
+   *
+   * @throws SnapshotWriterException
+   * @since 3.4
+   */
+  public void sync() throws SnapshotWriterException {
+    if (syncedCount == count) {
+      return;
+    }
+    try {
+      output.flush();
       if (fileDescriptor != null) {
         fileDescriptor.sync();
       }
-      ++count;
+      syncedCount = count;
+      lastSyncTime = System.currentTimeMillis();
     } catch (IOException e) {
-      throw new SnapshotWriterException("failed to write snapshot record", e);
+      throw new SnapshotWriterException("failed to sync snapshot", e);
     }
   }
 
@@ -84,15 +171,25 @@ public class SnapshotWriter {
     writer.write(LENGTH_DELIMITER);
     writer.write(stringForm);
     writer.write(RECORD_DELIMITER);
-    writer.flush();
   }
 
   /**
-   * Closes the underlying output stream.
+   * Syncs any outstanding records to disk, then closes the underlying
+   * output stream.
    *
    * @throws SnapshotWriterException
    */
   public void close() throws SnapshotWriterException {
+    try {
+      sync();
+    } catch (SnapshotWriterException e) {
+      try {
+        output.close();
+      } catch (IOException ignored) {
+        // Report the original failure.
+      }
+      throw e;
+    }
     try {
       output.close();
     } catch (IOException e) {
@@ -114,6 +211,14 @@ public class SnapshotWriter {
     return count;
   }
 
+  /**
+   * @return the number of records that have been synced to disk.
+   * @since 3.4
+   */
+  public long getSyncedRecordCount() {
+    return syncedCount;
+  }
+
   @VisibleForTesting
   public Writer getOutput() {
     return output;
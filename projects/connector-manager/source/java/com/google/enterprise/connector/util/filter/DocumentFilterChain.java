@@ -26,6 +26,11 @@ import java.util.List;
  * filters.  The filters are constructed from a {@link List} of
  * {@link DocumentFilterFactory DocumentFilterFactories}, and linked
  * together like pop-beads, each using the previous as its source Document.
+ * <p>
+ * The head of a non-empty chain evaluates each property at most once per
+ * document, so repeated lookups of the same property do not rerun the
+ * filters.  Properties with binary values, like the content, are not
+ * cached, and are fetched through the filters on each lookup.
  *
  * @since 2.8
  */
@@ -59,6 +64,8 @@ public class DocumentFilterChain implements DocumentFilterFactory {
    * from each of the {@link DocumentFilterFactory DocumentFilterFactories}
    * in the list.  Returns the head of the chain.  The supplied {@code source}
    * Document will be the input for the tail of the chain.
+   * <p>
+   * The properties of the returned Document are evaluated at most once.
    *
    * @param source the input {@link Document} for the filters
    * @return the head of the chain of filters
@@ -67,8 +74,24 @@ public class DocumentFilterChain implements DocumentFilterFactory {
   public Document newDocumentFilter(Document source)
       throws RepositoryException {
     Preconditions.checkNotNull(source);
+    if (factories.isEmpty()) {
+      return source;
+    }
+    return new MemoizedDocument(newFilters(source));
+  }
+
+  /**
+   * Constructs the chain of filters without caching the properties of
+   * its head.  Nested chains are assembled this way, so that only the
+   * head of the outermost chain caches the properties.
+   */
+  private Document newFilters(Document source) throws RepositoryException {
     for (DocumentFilterFactory factory : factories) {
-      source = factory.newDocumentFilter(source);
+      if (factory instanceof DocumentFilterChain) {
+        source = ((DocumentFilterChain) factory).newFilters(source);
+      } else {
+        source = factory.newDocumentFilter(source);
+      }
     }
     return source;
   }
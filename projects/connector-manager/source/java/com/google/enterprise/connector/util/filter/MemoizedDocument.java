@@ -0,0 +1,193 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.util.filter;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SimpleProperty;
+import com.google.enterprise.connector.spi.SpiConstants;
+import com.google.enterprise.connector.spi.Value;
+import com.google.enterprise.connector.spiimpl.BinaryValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link Document} that evaluates each of the {@link Property Properties}
+ * of its source Document at most once.  The head of a document filter chain
+ * is wrapped in a {@code MemoizedDocument}, so that the repeated lookups of
+ * the same properties by the feed code do not rerun every filter in the
+ * chain.
+ * <p>
+ * The values of the well-known {@link SpiConstants} properties are kept
+ * in a small array, indexed without hashing the property name.  Other
+ * properties are kept in a map that is only created if needed.
+ * <p>
+ * Properties with {@link BinaryValue BinaryValues} are never cached,
+ * since their {@code InputStreams} may only be read once.
+ *
+ * @since 3.4
+ */
+class MemoizedDocument implements Document {
+  /** The well-known property names, mapped to their slots. */
+  private static final ImmutableMap<String, Integer> WELL_KNOWN_SLOTS =
+      wellKnownSlots();
+
+  // The deprecated content URL and security token properties are still
+  // supplied by older connectors, so they keep their slots.
+  @SuppressWarnings("deprecation")
+  private static ImmutableMap<String, Integer> wellKnownSlots() {
+    String[] names = {
+        SpiConstants.PROPNAME_DOCID,
+        SpiConstants.PROPNAME_MIMETYPE,
+        SpiConstants.PROPNAME_ACTION,
+        SpiConstants.PROPNAME_ISPUBLIC,
+        SpiConstants.PROPNAME_AUTHMETHOD,
+        SpiConstants.PROPNAME_LASTMODIFIED,
+        SpiConstants.PROPNAME_SEARCHURL,
+        SpiConstants.PROPNAME_DISPLAYURL,
+        SpiConstants.PROPNAME_TITLE,
+        SpiConstants.PROPNAME_FEEDTYPE,
+        SpiConstants.PROPNAME_DOCUMENTTYPE,
+        SpiConstants.PROPNAME_CONTENTURL,
+        SpiConstants.PROPNAME_SECURITYTOKEN,
+        SpiConstants.PROPNAME_LOCK,
+        SpiConstants.PROPNAME_CRAWL_IMMEDIATELY,
+        SpiConstants.PROPNAME_CRAWL_ONCE,
+        SpiConstants.PROPNAME_PAGERANK,
+        SpiConstants.PROPNAME_FRAGMENT,
+        SpiConstants.PROPNAME_OVERWRITEACLS,
+        SpiConstants.PROPNAME_ACLUSERS,
+        SpiConstants.PROPNAME_ACLGROUPS,
+        SpiConstants.PROPNAME_ACLDENYUSERS,
+        SpiConstants.PROPNAME_ACLDENYGROUPS,
+        SpiConstants.PROPNAME_ACLINHERITANCETYPE,
+        SpiConstants.PROPNAME_ACLINHERITFROM,
+        SpiConstants.PROPNAME_ACLINHERITFROM_DOCID,
+        SpiConstants.PROPNAME_ACLINHERITFROM_FEEDTYPE,
+        SpiConstants.PROPNAME_ACLINHERITFROM_FRAGMENT,
+        SpiConstants.PROPNAME_CONTENT_ENCODING,
+        SpiConstants.PROPNAME_CONTENT_LENGTH,
+    };
+    ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+    for (int i = 0; i < names.length; i++) {
+      builder.put(names[i], i);
+    }
+    return builder.build();
+  }
+
+  /** Marks a property that the source document does not have. */
+  private static final List<Value> NOT_FOUND = Collections.emptyList();
+
+  /** The {@link Document} whose properties are cached. */
+  private final Document source;
+
+  /** The cached values of the well-known properties. */
+  private final Object[] slots = new Object[WELL_KNOWN_SLOTS.size()];
+
+  /** The cached values of other properties, created if needed. */
+  private Map<String, List<Value>> others;
+
+  /** The cached property names. */
+  private Set<String> propertyNames;
+
+  /**
+   * Constructs a {@code MemoizedDocument} with the supplied {@code source}
+   * Document.
+   *
+   * @param source the {@link Document} whose properties are cached
+   */
+  MemoizedDocument(Document source) {
+    this.source = source;
+  }
+
+  @Override
+  public Property findProperty(String name) throws RepositoryException {
+    Integer slot = WELL_KNOWN_SLOTS.get(name);
+    List<Value> values = (slot == null) ? getOther(name) : getSlot(slot);
+    if (values == null) {
+      values = evaluate(name);
+      if (values == null) {
+        // Binary values are not cached, so they were not consumed.
+        return source.findProperty(name);
+      }
+      if (slot == null) {
+        if (others == null) {
+          others = new HashMap<String, List<Value>>();
+        }
+        others.put(name, values);
+      } else {
+        slots[slot] = values;
+      }
+    }
+    return (values == NOT_FOUND) ? null : new SimpleProperty(values);
+  }
+
+  @Override
+  public Set<String> getPropertyNames() throws RepositoryException {
+    if (propertyNames == null) {
+      // Filters often return views of their source's names, which would
+      // be reevaluated on every iteration, so take a copy.
+      propertyNames = Collections.unmodifiableSet(
+          new LinkedHashSet<String>(source.getPropertyNames()));
+    }
+    return propertyNames;
+  }
+
+  @SuppressWarnings("unchecked")
+  private List<Value> getSlot(int slot) {
+    return (List<Value>) slots[slot];
+  }
+
+  private List<Value> getOther(String name) {
+    return (others == null) ? null : others.get(name);
+  }
+
+  /**
+   * Fetches the values of the named property from the source document.
+   *
+   * @return the list of values, {@link #NOT_FOUND} if the source does not
+   *         have the property, or {@code null} if the property has binary
+   *         values and must not be cached
+   */
+  private List<Value> evaluate(String name) throws RepositoryException {
+    // The content property is the one that is sure to be binary, and
+    // reading its values could be expensive.
+    if (SpiConstants.PROPNAME_CONTENT.equals(name)) {
+      return null;
+    }
+    Property property = source.findProperty(name);
+    if (property == null) {
+      return NOT_FOUND;
+    }
+    List<Value> values = new ArrayList<Value>(2);
+    Value value;
+    while ((value = property.nextValue()) != null) {
+      if (value instanceof BinaryValue) {
+        return null;
+      }
+      values.add(value);
+    }
+    return values;
+  }
+}
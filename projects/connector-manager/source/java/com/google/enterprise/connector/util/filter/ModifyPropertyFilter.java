@@ -97,13 +97,26 @@ import java.util.regex.PatternSyntaxException;
    </code></pre>
  * <p>
  * When used with binary values, the entire value is buffered and the
- * modified value is stored in a {@code byte} array.
+ * modified value is stored in a {@code byte} array, unless a
+ * {@link #setMaxMatchLength maximum match length} is set and
+ * {@code overwrite} is {@code true}.  Then the binary values are
+ * modified as they are read, using a sliding window of characters.
+ * The following example removes script elements from HTML content,
+ * without buffering the content:
+ * <pre><code>
+   &lt;bean id="RemoveScripts"
+       class="com.google.enterprise.connector.util.filter.ModifyPropertyFilter"&gt;
+     &lt;property name="propertyName" value="google:content"/&gt;
+     &lt;property name="mimeType" value="text/html"/&gt;
+     &lt;property name="pattern" value="(?s)&amp;lt;script.*?&amp;lt;/script&amp;gt;"/&gt;
+     &lt;property name="overwrite" value="true"/&gt;
+     &lt;property name="maxMatchLength" value="65536"/&gt;
+   &lt;/bean&gt;
+   </code></pre>
  *
  * @since 2.8
  */
 /*
- * TODO: Find a way to process the InputStreams without buffering them,
- * maybe using java.util.Scanner or a similar third-party tool.
  * TODO: Binary values based on byte arrays are likely rare outside
  * the tests, but it might be nice to build the string from the
  * underlying byte array directly, rather than copying it.
@@ -135,6 +148,12 @@ public class ModifyPropertyFilter extends AbstractDocumentFilter {
    */
   protected boolean overwrite = false;
 
+  /**
+   * The maximum length of a match in binary values, or zero to buffer
+   * binary values entirely.
+   */
+  protected int maxMatchLength = 0;
+
   /**
    * Sets the the name of the {@link Property} to filter.
    * <p>
@@ -231,6 +250,24 @@ public class ModifyPropertyFilter extends AbstractDocumentFilter {
     this.overwrite = overwrite;
   }
 
+  /**
+   * Sets the maximum length, in characters, of a match in binary values.
+   * If positive, and {@code overwrite} is {@code true}, binary values are
+   * modified as they are read, rather than buffered entirely in memory.
+   * Matches longer than this might not be replaced.  If zero, binary
+   * values are buffered.  The default is zero.  Binary values in stateful
+   * encodings, such as ISO-2022-JP, are always buffered.
+   *
+   * @param maxMatchLength the maximum length of a match, or zero
+   * @throws IllegalArgumentException if {@code maxMatchLength} is negative
+   * @since 3.4
+   */
+  public void setMaxMatchLength(int maxMatchLength) {
+    Preconditions.checkArgument(maxMatchLength >= 0,
+                                "maxMatchLength may not be negative");
+    this.maxMatchLength = maxMatchLength;
+  }
+
   /**
    * Sets the the name of the character encoding type to be used.
    *
@@ -292,6 +329,22 @@ public class ModifyPropertyFilter extends AbstractDocumentFilter {
         }
         // It's a Binary Value, to be read using input stream
         InputStream in = ((BinaryValue) value).getInputStream();
+        if (overwrite && maxMatchLength > 0
+            && RegexReplacingInputStream.isSupported(encoding)) {
+          // Modify the value as it is read. We cannot tell whether it
+          // matched, so the modified value always replaces the original.
+          // The bytes outside the matches, and any content that cannot
+          // be decoded, are passed through unchanged. Stateful encodings
+          // are replaced in memory below.
+          try {
+            values.add(Value.getBinaryValue(new RegexReplacingInputStream(
+                in, encoding, pattern, replacement, maxMatchLength)));
+          } catch (UnsupportedEncodingException e) {
+            throw new RepositoryException("Error while converting"
+                + " data with " + encoding, e);
+          }
+          continue;
+        }
         byte[] data = null;
         try {
           data = ByteStreams.toByteArray(in);
@@ -375,6 +428,10 @@ public class ModifyPropertyFilter extends AbstractDocumentFilter {
     buf.append(encoding);
     buf.append("\" , ");
     buf.append(mimeTypes);
+    if (maxMatchLength > 0) {
+      buf.append(" , ");
+      buf.append(maxMatchLength);
+    }
     buf.append(")");
     return buf.toString();
   }
@@ -0,0 +1,501 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.util.filter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An {@link InputStream} that replaces all the regions of the source
+ * stream that match a regular expression, without reading the whole
+ * source into memory.  The source is decoded into characters, and the
+ * pattern is applied to a sliding window of those characters.  The
+ * replacements are encoded as they are read.  The source bytes between
+ * the matches are passed through unchanged.
+ * <p>
+ * Matches may be no longer than {@code maxMatchLength} characters.
+ * Longer matches might be found only in part, or not at all.  The same
+ * number of characters before the current position are kept for
+ * look-behind and boundary matching.
+ * <p>
+ * If the source cannot be decoded in the given encoding, the rest of
+ * the source, starting after the last replacement, is passed through
+ * unchanged.
+ * <p>
+ * Stateful encodings, such as ISO-2022-JP, are not supported, because
+ * the replacements cannot be encoded independently of the surrounding
+ * source bytes. A byte order mark at the start of a UTF-16 or UTF-32
+ * source is passed through, and the replacements are encoded in the
+ * byte order it specifies.
+ *
+ * @since 3.4
+ */
+class RegexReplacingInputStream extends InputStream {
+  /** The number of bytes read from the source at a time. */
+  private static final int CHUNK_SIZE = 8192;
+
+  /** Probes for {@link #isStateless}, in a few common scripts. */
+  private static final String[] PROBES =
+      { "a", "\u00e9", "\u0416", "\u05d0", "\u3042", "\u4e2d", "\uac00" };
+
+  private final InputStream in;
+  private final Charset charset;
+  private final CharsetDecoder decoder;
+  private CharsetEncoder encoder;
+  private final Pattern pattern;
+  private final String replacement;
+  private final int maxMatchLength;
+
+  /** The window of decoded characters. */
+  private final StringBuilder window = new StringBuilder();
+
+  /**
+   * The source offsets of the characters in the window, recorded as they
+   * are decoded. The bytes of {@code window.charAt(i)} start at
+   * {@code offsets[i]}, and the bytes of the last character end at
+   * {@code offsets[window.length()]}.
+   */
+  private long[] offsets = new long[2 * CHUNK_SIZE];
+
+  /** The position in the window of the first unprocessed character. */
+  private int position = 0;
+
+  /**
+   * The source bytes, starting with the first unprocessed character,
+   * are in {@code raw[rawStart]} to {@code raw[rawEnd - 1]}. The source
+   * offset of {@code raw[0]} is {@code rawOffset}.
+   */
+  private byte[] raw = new byte[2 * CHUNK_SIZE];
+  private int rawStart = 0;
+  private int rawEnd = 0;
+  private long rawOffset = 0L;
+
+  /**
+   * The source bytes that have not been decoded yet. The source offset
+   * of the start of the buffer is {@code undecodedOffset}.
+   */
+  private final ByteBuffer undecoded = ByteBuffer.allocate(2 * CHUNK_SIZE);
+  private long undecodedOffset = 0L;
+
+  /** Holds a single decoded character, or a surrogate pair. */
+  private final CharBuffer decoded = CharBuffer.allocate(2);
+  private final byte[] chunk = new byte[CHUNK_SIZE];
+
+  /** {@code true} if the source has been fully read. */
+  private boolean isEof = false;
+
+  /** {@code true} if the start of the source has been processed. */
+  private boolean isStarted = false;
+
+  /** {@code true} if all the modified characters have been encoded. */
+  private boolean isDone = false;
+
+  /**
+   * {@code true} if the source could not be decoded, and the rest of it
+   * is being passed through.
+   */
+  private boolean isPassThrough = false;
+
+  private final StringBuffer replaced = new StringBuffer();
+
+  /** The modified bytes are written into this buffer. */
+  private final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+
+  /** The modified bytes that have not been read yet. */
+  private byte[] bytes = new byte[0];
+  private int offset = 0;
+
+  /**
+   * Constructs a {@code RegexReplacingInputStream}.
+   *
+   * @param in the source {@link InputStream}
+   * @param encoding the character encoding of the source, which is also
+   *        used to encode the replacements
+   * @param pattern the pattern to match
+   * @param replacement the replacement for the matching regions, which
+   *        may refer to capturing groups in the pattern
+   * @param maxMatchLength the maximum length of a match, in characters
+   * @throws UnsupportedEncodingException if the encoding is not supported,
+   *         or if it is a stateful encoding
+   * @see #isSupported
+   */
+  RegexReplacingInputStream(InputStream in, String encoding, Pattern pattern,
+      String replacement, int maxMatchLength)
+      throws UnsupportedEncodingException {
+    if (maxMatchLength <= 0) {
+      throw new IllegalArgumentException("maxMatchLength must be positive.");
+    }
+    this.charset = getCharset(encoding);
+    this.in = in;
+    this.decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPORT)
+        .onUnmappableCharacter(CodingErrorAction.REPORT);
+    this.encoder = newEncoder(getByteOrderCharset(charset, false));
+    this.pattern = pattern;
+    this.replacement = replacement;
+    this.maxMatchLength = maxMatchLength;
+  }
+
+  /**
+   * Returns {@code true} if the given encoding can be used with this
+   * stream. Stateful encodings are not supported.
+   *
+   * @param encoding a character encoding name
+   */
+  static boolean isSupported(String encoding) {
+    try {
+      getCharset(encoding);
+      return true;
+    } catch (UnsupportedEncodingException e) {
+      return false;
+    }
+  }
+
+  private static Charset getCharset(String encoding)
+      throws UnsupportedEncodingException {
+    Charset charset;
+    try {
+      if (!Charset.isSupported(encoding)) {
+        throw new UnsupportedEncodingException(encoding);
+      }
+      charset = Charset.forName(encoding);
+    } catch (IllegalCharsetNameException e) {
+      throw new UnsupportedEncodingException(encoding);
+    }
+    if (!charset.canEncode()
+        || !isStateless(newEncoder(getByteOrderCharset(charset, false)))) {
+      throw new UnsupportedEncodingException(encoding);
+    }
+    return charset;
+  }
+
+  /**
+   * Gets the charset for encoding in the given byte order, for the UTF-16
+   * and UTF-32 charsets that use a byte order mark.
+   */
+  private static Charset getByteOrderCharset(Charset charset,
+      boolean isLittleEndian) {
+    String name = charset.name();
+    if (name.equals("UTF-16") || name.equals("UTF-32")) {
+      return Charset.forName(name + (isLittleEndian ? "LE" : "BE"));
+    } else {
+      return charset;
+    }
+  }
+
+  private static CharsetEncoder newEncoder(Charset charset) {
+    return charset.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  }
+
+  /**
+   * Checks that characters are encoded independently of each other, so
+   * that an encoded replacement can be put between any two source
+   * characters. Encoders that write a byte order mark, or shift sequences,
+   * encode a doubled probe differently from the probe written twice.
+   */
+  private static boolean isStateless(CharsetEncoder encoder) {
+    for (String probe : PROBES) {
+      if (encoder.canEncode(probe)) {
+        byte[] once = encode(encoder, probe, 0, probe.length());
+        byte[] twice = encode(encoder, probe + probe, 0, 2 * probe.length());
+        byte[] expected = Arrays.copyOf(once, 2 * once.length);
+        System.arraycopy(once, 0, expected, once.length, once.length);
+        if (!Arrays.equals(expected, twice)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return bytes[offset++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    int count = Math.min(len, bytes.length - offset);
+    System.arraycopy(bytes, offset, b, off, count);
+    offset += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return bytes.length - offset;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Makes sure there are modified bytes to read.
+   *
+   * @return {@code false} if the end of the stream has been reached
+   */
+  private boolean fill() throws IOException {
+    while (offset == bytes.length) {
+      if (isDone) {
+        return false;
+      }
+      if (isPassThrough) {
+        int count = in.read(chunk);
+        if (count < 0) {
+          isDone = true;
+          return false;
+        }
+        encoded.write(chunk, 0, count);
+      } else {
+        replaceNext();
+      }
+      bytes = encoded.toByteArray();
+      offset = 0;
+      encoded.reset();
+    }
+    return true;
+  }
+
+  /**
+   * Reads the next chunk of the source into the window, and writes the
+   * modified bytes for the characters that can no longer be part of a
+   * later match.
+   */
+  private void replaceNext() throws IOException {
+    while (!isEof && window.length() - position < maxMatchLength + CHUNK_SIZE) {
+      if (!readAndDecode()) {
+        // Pass the unprocessed source bytes through.
+        encoded.write(raw, rawStart, rawEnd - rawStart);
+        rawStart = rawEnd;
+        isPassThrough = true;
+        return;
+      }
+    }
+    if (!isStarted) {
+      isStarted = true;
+      passByteOrderMark();
+    }
+
+    // A match starting before the limit ends within the window.
+    int limit = isEof ? window.length() : window.length() - maxMatchLength;
+    // Do not split a surrogate pair, whose halves cannot be encoded alone.
+    if (limit > 0 && limit < window.length()
+        && Character.isHighSurrogate(window.charAt(limit - 1))) {
+      limit--;
+    }
+    Matcher matcher = pattern.matcher(window);
+    matcher.useTransparentBounds(true);
+    matcher.useAnchoringBounds(false);
+    matcher.region(position, window.length());
+    int appendPosition = 0;
+    while (matcher.find() && matcher.start() < limit) {
+      passThrough(matcher.start());
+      // appendReplacement also appends the text since the previous match,
+      // which has been passed through already.
+      replaced.setLength(0);
+      matcher.appendReplacement(replaced, replacement);
+      encoded.write(encode(encoder, replaced,
+          matcher.start() - appendPosition, replaced.length()));
+      rawStart = getRawIndex(matcher.end());
+      appendPosition = matcher.end();
+      position = matcher.end();
+    }
+    if (position < limit) {
+      passThrough(limit);
+    }
+
+    if (isEof && position == window.length()) {
+      isDone = true;
+    } else {
+      // Keep some context for look-behind and boundary matching.
+      int discard = position - maxMatchLength;
+      if (discard > 0) {
+        System.arraycopy(offsets, discard, offsets, 0,
+            window.length() - discard + 1);
+        window.delete(0, discard);
+        position -= discard;
+      }
+    }
+  }
+
+  /**
+   * Reads a chunk of the source, and appends the characters decoded from
+   * it to the window.
+   *
+   * @return {@code false} if the source could not be decoded
+   */
+  private boolean readAndDecode() throws IOException {
+    int count = in.read(chunk);
+    if (count < 0) {
+      isEof = true;
+    } else {
+      if (rawEnd + count > raw.length) {
+        System.arraycopy(raw, rawStart, raw, 0, rawEnd - rawStart);
+        rawEnd -= rawStart;
+        rawOffset += rawStart;
+        rawStart = 0;
+        if (rawEnd + count > raw.length) {
+          byte[] newRaw = new byte[Math.max(2 * raw.length, rawEnd + count)];
+          System.arraycopy(raw, 0, newRaw, 0, rawEnd);
+          raw = newRaw;
+        }
+      }
+      System.arraycopy(chunk, 0, raw, rawEnd, count);
+      rawEnd += count;
+      undecoded.put(chunk, 0, count);
+    }
+    undecoded.flip();
+    try {
+      // Decode a character at a time, to record the offset of each one.
+      while (true) {
+        decoded.limit(1);
+        CoderResult result = decoder.decode(undecoded, decoded, isEof);
+        if (result.isOverflow() && decoded.position() == 0) {
+          // The next character is a surrogate pair.
+          decoded.limit(2);
+          result = decoder.decode(undecoded, decoded, isEof);
+        }
+        if (result.isError()) {
+          return false;
+        }
+        appendDecoded();
+        if (result.isUnderflow()) {
+          break;
+        }
+      }
+      if (isEof) {
+        while (decoder.flush(decoded).isOverflow()) {
+          appendDecoded();
+        }
+        appendDecoded();
+      }
+      return true;
+    } finally {
+      undecodedOffset += undecoded.position();
+      undecoded.compact();
+    }
+  }
+
+  /**
+   * Moves the decoded characters into the window, and records the
+   * source offset where they end.
+   */
+  private void appendDecoded() {
+    long end = undecodedOffset + undecoded.position();
+    decoded.flip();
+    while (decoded.hasRemaining()) {
+      window.append(decoded.get());
+      if (window.length() == offsets.length) {
+        offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+      }
+      offsets[window.length()] = end;
+    }
+    decoded.clear();
+  }
+
+  /**
+   * Passes through a byte order mark at the start of a UTF-16 or UTF-32
+   * source, which the decoder consumes along with the first character,
+   * and switches the encoder to the byte order that it specifies.
+   */
+  private void passByteOrderMark() {
+    String name = charset.name();
+    int length;
+    if (name.equals("UTF-16")) {
+      length = 2;
+    } else if (name.equals("UTF-32")) {
+      length = 4;
+    } else {
+      return;
+    }
+    if (rawEnd < length) {
+      return;
+    }
+    byte[] mark = Arrays.copyOf(raw, length);
+    byte[] bigEndian = encode(newEncoder(getByteOrderCharset(charset, false)),
+        "\ufeff", 0, 1);
+    byte[] littleEndian = encode(newEncoder(getByteOrderCharset(charset, true)),
+        "\ufeff", 0, 1);
+    if (Arrays.equals(mark, littleEndian)) {
+      encoder = newEncoder(getByteOrderCharset(charset, true));
+    } else if (!Arrays.equals(mark, bigEndian)) {
+      return;
+    }
+    encoded.write(raw, 0, length);
+    rawStart = length;
+    offsets[0] = length;
+  }
+
+  /** Gets the index in {@code raw} of the first byte of a character. */
+  private int getRawIndex(int index) {
+    return (int) (offsets[index] - rawOffset);
+  }
+
+  /**
+   * Writes the source bytes for the characters from the current position
+   * up to {@code end}, and moves the current position there.
+   */
+  private void passThrough(int end) {
+    int rawEndIndex = getRawIndex(end);
+    encoded.write(raw, rawStart, rawEndIndex - rawStart);
+    rawStart = rawEndIndex;
+    position = end;
+  }
+
+  /**
+   * Encodes a range of characters. Unmappable characters are replaced,
+   * so the encoding does not fail.
+   */
+  private static byte[] encode(CharsetEncoder encoder, CharSequence chars,
+      int start, int end) {
+    ByteBuffer buffer;
+    try {
+      buffer = encoder.encode(CharBuffer.wrap(chars, start, end));
+    } catch (CharacterCodingException e) {
+      throw new AssertionError(e);
+    }
+    byte[] result = new byte[buffer.remaining()];
+    buffer.get(result);
+    return result;
+  }
+}
@@ -0,0 +1,145 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.common;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Tests for {@link ContentCompressor}.
+ */
+public class ContentCompressorTest extends TestCase {
+  private ContentCompressor compressor;
+
+  @Override
+  protected void setUp() {
+    compressor = new ContentCompressor();
+  }
+
+  private byte[] roundTrip(byte[] input) throws Exception {
+    InputStream compressed =
+        compressor.compress(new ByteArrayInputStream(input), 1024);
+    byte[] bytes;
+    try {
+      bytes = ByteStreams.toByteArray(compressed);
+    } finally {
+      compressed.close();
+    }
+    return ByteStreams.toByteArray(
+        new InflaterInputStream(new ByteArrayInputStream(bytes)));
+  }
+
+  public void testCompress() throws Exception {
+    byte[] input = new byte[100000];
+    for (int i = 0; i < input.length; i++) {
+      input[i] = (byte) (i % 7);
+    }
+    assertTrue(Arrays.equals(input, roundTrip(input)));
+    // Again, with a reused Deflater.
+    assertTrue(Arrays.equals(input, roundTrip(input)));
+
+    compressor.setLevel(Deflater.BEST_SPEED);
+    compressor.setStrategy(Deflater.HUFFMAN_ONLY);
+    assertTrue(Arrays.equals(input, roundTrip(input)));
+  }
+
+  public void testDeflaterReuse() {
+    Deflater deflater = compressor.getDeflater();
+    compressor.releaseDeflater(deflater);
+    assertSame(deflater, compressor.getDeflater());
+    assertNotSame(deflater, compressor.getDeflater());
+  }
+
+  public void testDeflaterPoolBound() {
+    Deflater[] deflaters =
+        new Deflater[ContentCompressor.MAX_IDLE_DEFLATERS + 1];
+    for (int i = 0; i < deflaters.length; i++) {
+      deflaters[i] = compressor.getDeflater();
+    }
+    for (Deflater deflater : deflaters) {
+      compressor.releaseDeflater(deflater);
+    }
+
+    // The Deflater that did not fit in the pool has been ended.
+    try {
+      deflaters[deflaters.length - 1].getTotalIn();
+      fail("Expected an ended Deflater");
+    } catch (NullPointerException expected) {
+    }
+    assertSame(deflaters[0], compressor.getDeflater());
+  }
+
+  public void testDeflaterSharedByThreads() throws Exception {
+    final Deflater deflater = compressor.getDeflater();
+    Thread thread = new Thread() {
+        @Override
+        public void run() {
+          compressor.releaseDeflater(deflater);
+        }
+      };
+    thread.start();
+    thread.join();
+    assertSame(deflater, compressor.getDeflater());
+  }
+
+  public void testBufferReuse() {
+    byte[] buffer = compressor.getBuffer(1024);
+    assertEquals(1024, buffer.length);
+    compressor.releaseBuffer(buffer);
+    assertEquals(2048, compressor.getBuffer(2048).length);
+    assertSame(buffer, compressor.getBuffer(1024));
+  }
+
+  public void testIsCompressible() {
+    assertTrue(compressor.isCompressible(null));
+    assertTrue(compressor.isCompressible("text/html"));
+    assertTrue(compressor.isCompressible("application/msword"));
+    assertFalse(compressor.isCompressible("image/jpeg"));
+    assertFalse(compressor.isCompressible("IMAGE/JPEG; name=x.jpg"));
+    assertFalse(compressor.isCompressible("video/mp4"));
+    assertFalse(compressor.isCompressible("application/"
+        + "vnd.openxmlformats-officedocument.wordprocessingml.document"));
+  }
+
+  public void testUncompressedMimeTypes() {
+    compressor.setUncompressedMimeTypes(ImmutableSet.of("Text/Plain"));
+    assertFalse(compressor.isCompressible("text/plain"));
+    assertTrue(compressor.isCompressible("image/jpeg"));
+  }
+
+  public void testIllegalSettings() {
+    try {
+      compressor.setLevel(10);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      compressor.setStrategy(3);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+}
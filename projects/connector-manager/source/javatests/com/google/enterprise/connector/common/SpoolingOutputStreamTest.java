@@ -0,0 +1,206 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.common;
+
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link SpoolingOutputStream}.
+ */
+public class SpoolingOutputStreamTest extends TestCase {
+  private static final String TEST_DIR_NAME =
+      "testdata/tmp/SpoolingOutputStreamTest";
+  private final File spoolDir = new File(TEST_DIR_NAME);
+
+  private byte[] data;
+
+  @Override
+  protected void setUp() throws Exception {
+    ConnectorTestUtils.deleteAllFiles(spoolDir);
+    assertTrue(ConnectorTestUtils.mkdirs(spoolDir));
+    data = new byte[200 * 1024];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i % 251);
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    ConnectorTestUtils.deleteAllFiles(spoolDir);
+  }
+
+  private SpoolingOutputStream newStream(int threshold) {
+    return new SpoolingOutputStream(16, threshold, spoolDir);
+  }
+
+  private static byte[] range(byte[] bytes, int length) {
+    return Arrays.copyOf(bytes, length);
+  }
+
+  private static byte[] writeTo(SpoolingOutputStream out) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    out.writeTo(baos);
+    return baos.toByteArray();
+  }
+
+  public void testInMemory() throws Exception {
+    SpoolingOutputStream out = newStream(data.length);
+    out.write(data, 0, 100);
+    out.write(data[100]);
+    out.write(data, 101, data.length - 101);
+    assertFalse(out.isSpooled());
+    assertEquals(data.length, out.size());
+    assertTrue(Arrays.equals(data, out.toByteArray()));
+    assertTrue(Arrays.equals(data, writeTo(out)));
+    assertEquals(0, spoolDir.list().length);
+  }
+
+  public void testSpooled() throws Exception {
+    SpoolingOutputStream out = newStream(1024);
+    out.write(data, 0, 1000);
+    assertFalse(out.isSpooled());
+    out.write(data, 1000, data.length - 1000);
+    assertTrue(out.isSpooled());
+    assertEquals(1, spoolDir.list().length);
+    assertEquals(data.length, out.size());
+    assertTrue(Arrays.equals(data, out.toByteArray()));
+    assertTrue(Arrays.equals(data, writeTo(out)));
+    out.release();
+    assertEquals(0, spoolDir.list().length);
+  }
+
+  public void testZeroThreshold() throws Exception {
+    SpoolingOutputStream out = newStream(0);
+    out.write('x');
+    assertTrue(out.isSpooled());
+    assertEquals("x", out.toString("UTF-8"));
+    out.release();
+  }
+
+  public void testResetInMemory() throws Exception {
+    SpoolingOutputStream out = newStream(data.length);
+    out.write(data, 0, 1000);
+    out.reset(500);
+    assertEquals(500, out.size());
+    out.write(data, 500, 10);
+    assertTrue(Arrays.equals(range(data, 510), out.toByteArray()));
+  }
+
+  public void testResetIntoSpoolBuffer() throws Exception {
+    SpoolingOutputStream out = newStream(1024);
+    out.write(data, 0, 2048);
+    assertTrue(out.isSpooled());
+    out.write(data, 2048, 1000);
+    out.reset(2500);
+    assertEquals(2500, out.size());
+    out.write(data, 2500, 100);
+    assertTrue(Arrays.equals(range(data, 2600), writeTo(out)));
+    out.release();
+  }
+
+  public void testResetIntoSpoolFile() throws Exception {
+    SpoolingOutputStream out = newStream(1024);
+    out.write(data, 0, data.length);
+    assertTrue(out.isSpooled());
+    out.reset(1500);
+    assertEquals(1500, out.size());
+    out.write(data, 1500, 1000);
+    assertEquals(2500, out.size());
+    assertTrue(Arrays.equals(range(data, 2500), writeTo(out)));
+    out.release();
+  }
+
+  public void testIllegalReset() throws Exception {
+    SpoolingOutputStream out = newStream(1024);
+    out.write(data, 0, 10);
+    try {
+      out.reset(11);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      out.reset(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+
+  public void testReadFrom() throws Exception {
+    SpoolingOutputStream out = newStream(4096);
+    out.write(data, 0, 10);
+    out.readFrom(new ByteArrayInputStream(data, 10, data.length - 10));
+    assertTrue(out.isSpooled());
+    assertEquals(data.length, out.size());
+    assertTrue(Arrays.equals(data, writeTo(out)));
+    out.release();
+  }
+
+  /** Tests the stream rolling back the feed while it is being read. */
+  public void testReadFromWithReset() throws Exception {
+    final SpoolingOutputStream out = newStream(1024);
+    out.write(data, 0, 10);
+    InputStream in = new ByteArrayInputStream(data, 10, data.length - 10) {
+        private boolean isReset = false;
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+          if (!isReset && out.size() > 8192) {
+            isReset = true;
+            out.reset(10);
+            return 0;
+          }
+          return (isReset) ? -1 : super.read(b, off, len);
+        }
+      };
+    out.readFrom(in);
+    assertEquals(10, out.size());
+    assertTrue(Arrays.equals(range(data, 10), out.toByteArray()));
+    out.release();
+  }
+
+  public void testWriteToFile() throws Exception {
+    SpoolingOutputStream out = newStream(1024);
+    out.write(data, 0, data.length);
+    File file = new File(spoolDir, "teed");
+    OutputStream os = new FileOutputStream(file);
+    try {
+      out.writeTo(os);
+    } finally {
+      os.close();
+    }
+    out.release();
+
+    byte[] result = new byte[(int) file.length()];
+    InputStream is = new FileInputStream(file);
+    try {
+      assertEquals(result.length, is.read(result));
+    } finally {
+      is.close();
+    }
+    assertTrue(Arrays.equals(data, result));
+  }
+}
@@ -24,6 +24,9 @@ import junit.framework.TestCase;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Tests for {@link ChangeDetectorImpl}. */
 // TODO: Change StoreContext to String (instance name).
@@ -32,16 +35,21 @@ import java.util.List;
 public class ChangeDetectorTest extends TestCase {
   private PersistentStore store;
   private ExceptionalChangeListener listener;
-  private ChangeDetector detector;
+  private ChangeDetectorImpl detector;
 
   private List<String> expectedChanges;
 
   public ChangeDetectorTest() {
   }
 
+  /** Returns the store to look for changes in. */
+  protected PersistentStore newStore() {
+    return new MockPersistentStore();
+  }
+
   @Override
   public void setUp() {
-    store = new MockPersistentStore();
+    store = newStore();
     listener = new ExceptionalChangeListener();
     detector = new ChangeDetectorImpl(store, listener);
 
@@ -276,6 +284,112 @@ public class ChangeDetectorTest extends TestCase {
     assertNoChanges(expectedChanges, listener.getChanges());
   }
 
+  /** Test that connectors are instantiated concurrently. */
+  public void testConcurrentInstantiation() {
+    final int threads = detector.getInstantiationThreads();
+    assertTrue(threads > 1);
+    final CountDownLatch started = new CountDownLatch(threads);
+    final AtomicInteger timeouts = new AtomicInteger();
+    listener = new ExceptionalChangeListener() {
+        @Override
+        public void connectorAdded(String connectorName,
+            Configuration configuration) throws InstantiatorException {
+          // Each instantiation waits until enough are running at once.
+          started.countDown();
+          try {
+            if (!started.await(10, TimeUnit.SECONDS)) {
+              timeouts.incrementAndGet();
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          super.connectorAdded(connectorName, configuration);
+        }
+      };
+    detector = new ChangeDetectorImpl(store, listener);
+
+    for (int i = 0; i < threads * 2; i++) {
+      addConnector("c" + i);
+    }
+    detector.detect();
+    assertEquals(0, timeouts.get());
+    assertEqualsMultiSet(expectedChanges, listener.getChanges());
+    assertEquals(threads * 2, detector.getInstantiationMillis().size());
+    assertTrue(detector.getInstantiationMillis("c0") >= 0);
+
+    removeConnector("c0");
+    detector.detect();
+    assertFalse(detector.getInstantiationMillis().containsKey("c0"));
+    assertEquals(-1L, detector.getInstantiationMillis("c0"));
+  }
+
+  /** Test that changes after shutdown are instantiated on this thread. */
+  public void testShutdown() {
+    addConnector("c1");
+    detector.detect();
+    detector.shutdown();
+
+    expectedChanges.clear();
+    listener.clear();
+    addConnector("c2");
+    addConnector("c3");
+    detector.detect();
+    assertEquals(expectedChanges, listener.getChanges());
+  }
+
+  /** Test retry of failed concurrent instantiations with other changes. */
+  public void testConcurrentRetryInstantiation() {
+    addConnector("c1");
+    addConnector("c2");
+    addConnector("c3");
+    detector.detect();
+    assertEqualsMultiSet(expectedChanges, listener.getChanges());
+
+    // Fail an update and an addition alongside non-instantiating changes.
+    expectedChanges.clear();
+    listener.clear();
+    listener.beBad = true;
+    updateConnector("c1");
+    setSchedule("c2");
+    setCheckpoint("c3");
+    addConnector("c4");
+    detector.detect();
+    assertEqualsMultiSet(expectedChanges, listener.getChanges());
+
+    // Only the failed instantiations are retried.
+    expectedChanges.clear();
+    listener.clear();
+    listener.beBad = false;
+    expectedChanges.add(MockChangeListener.CONFIGURATION_CHANGED + "c1");
+    expectedChanges.add(MockChangeListener.CONNECTOR_ADDED + "c4");
+    detector.detect();
+    assertEqualsMultiSet(expectedChanges, listener.getChanges());
+
+    // There should be no pending changes.
+    expectedChanges.clear();
+    listener.clear();
+    detector.detect();
+    assertNoChanges(expectedChanges, listener.getChanges());
+  }
+
+  /** Test that a single instantiation thread preserves the old ordering. */
+  public void testSerialInstantiation() {
+    detector.setInstantiationThreads(1);
+    addConnector("c1");
+    addConnector("c2");
+    addConnector("c3");
+    detector.detect();
+    assertEquals(expectedChanges, listener.getChanges());
+  }
+
+  public void testIllegalInstantiationThreads() {
+    try {
+      detector.setInstantiationThreads(0);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
   /**
    * A ChangeListener that optionally throws InstantiatorException
    * for configuration changes.  Used to test instantiation retry.
@@ -367,6 +367,24 @@ public class ConnectorCoordinatorBatchTest extends TestCase {
     assertTrue(coordinator.startBatch());
   }
 
+  public void testNextBatchDelay() throws Exception {
+    createPusherAndCoordinator();
+    coordinator.setConnectorSchedule(new Schedule("c1:1000:10000:0-0"));
+    assertEquals(0L, coordinator.getNextBatchDelay());
+    // A POLLING wait delays the next batch by up to the retry delay.
+    coordinator.delayTraversal(TraversalDelayPolicy.POLL);
+    long delay = coordinator.getNextBatchDelay();
+    assertTrue(String.valueOf(delay), delay > 0L && delay <= 10000L);
+    // IMMEDIATE should cancel out any current delay policy.
+    coordinator.delayTraversal(TraversalDelayPolicy.IMMEDIATE);
+    assertEquals(0L, coordinator.getNextBatchDelay());
+    // A disabled schedule will not run until it is changed.
+    Schedule disabled = new Schedule("c1:1000:10000:0-0");
+    disabled.setDisabled(true);
+    coordinator.setConnectorSchedule(disabled);
+    assertEquals(Long.MAX_VALUE, coordinator.getNextBatchDelay());
+  }
+
   public void testCancelBatch() throws Exception {
     createPusherAndCoordinator();
     coordinator.startBatch();
@@ -385,6 +403,24 @@ public class ConnectorCoordinatorBatchTest extends TestCase {
     runBatch(2, 2, 0);
   }
 
+  /**
+   * Tests that a batch whose result has been recorded can still be
+   * canceled until its thread exits.
+   */
+  public void testCancelRecordedBatch() throws Exception {
+    createPusherAndCoordinator();
+    coordinator.startBatch();
+    SyncingConnector.Tracker tracker =
+        SyncingConnector.getTracker();
+    tracker.blockUntilTraversing();
+    coordinator.recordResult(new BatchResult(TraversalDelayPolicy.IMMEDIATE));
+    // The next batch may be scheduled, but the running one is not forgotten.
+    assertTrue(coordinator.shouldRun());
+    coordinator.restartConnectorTraversal();
+    tracker.blockUntilTraversingInterrupted();
+    assertEquals(1, tracker.getInterruptedCount());
+  }
+
   public void testSetConnectorConfig() throws Exception {
     createPusherAndCoordinator();
     coordinator.startBatch();
@@ -558,5 +594,10 @@ public class ConnectorCoordinatorBatchTest extends TestCase {
     public boolean shouldDelay() {
       return false;
     }
+
+    @Override
+    public long getDelayMillis() {
+      return 0L;
+    }
   }
 }
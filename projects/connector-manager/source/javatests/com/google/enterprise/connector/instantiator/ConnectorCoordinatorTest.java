@@ -105,6 +105,33 @@ public class ConnectorCoordinatorTest extends TestCase {
     removeConnector(instance);
   }
 
+  /** Tests overriding the traversal pipeline depth for one connector. */
+  public void testTraversalPipelineDepth() throws Exception {
+    final String typeName = "TestConnectorA";
+    final ConnectorCoordinatorImpl instance = newCoordinator("connector1");
+    instance.setTraversalPipelineDepth(2);
+    assertEquals(2, instance.getTraversalPipelineDepth());
+
+    updateConnectorTest(instance, typeName, false,
+        "{Username:foo, Password:bar, Color:red, "
+        + "RepositoryFile:MockRepositoryEventLog3.txt, "
+        + PropertiesUtils.GOOGLE_TRAVERSAL_PIPELINE_DEPTH + ":5}");
+    assertEquals(5, instance.getTraversalPipelineDepth());
+
+    // An invalid value falls back to the default.
+    updateConnectorTest(instance, typeName, true,
+        "{Username:foo, Password:bar, Color:red, "
+        + "RepositoryFile:MockRepositoryEventLog3.txt, "
+        + PropertiesUtils.GOOGLE_TRAVERSAL_PIPELINE_DEPTH + ":-1}");
+    assertEquals(2, instance.getTraversalPipelineDepth());
+
+    updateConnectorTest(instance, typeName, true,
+        "{Username:foo, Password:bar, Color:red, "
+        + "RepositoryFile:MockRepositoryEventLog3.txt}");
+    assertEquals(2, instance.getTraversalPipelineDepth());
+    removeConnector(instance);
+  }
+
   public void testCreateUpdateDestroy() throws Exception {
     final String typeName = "TestConnectorB";
     final String name = "connector2";
@@ -18,4 +18,8 @@ package com.google.enterprise.connector.instantiator;
 public class MockChangeDetector implements ChangeDetector {
   public void detect() {
   }
+
+  public long getInstantiationMillis(String connectorName) {
+    return -1L;
+  }
 }
@@ -17,6 +17,7 @@ package com.google.enterprise.connector.instantiator;
 import com.google.enterprise.connector.scheduler.Schedule;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -33,7 +34,8 @@ class MockChangeListener implements ChangeListener {
   public static final String CONFIGURATION_CHANGED = "configurationChanged: ";
   public static final String SCHEDULE_CHANGED = "scheduleChanged: ";
 
-  private final List<String> changes = new ArrayList<String>();
+  private final List<String> changes =
+      Collections.synchronizedList(new ArrayList<String>());
 
   /**
    * Gets the changes that this listener has received.
@@ -194,6 +194,11 @@ class MockConnectorCoordinator implements ConnectorCoordinator {
     return true;
   }
 
+  public synchronized long getNextBatchDelay() {
+    return (taskHandle != null && !taskHandle.isDone()) ? Long.MAX_VALUE
+        : hostLoadManager.getDelayMillis();
+  }
+
   public String getConnectorState() {
     return stateStore.getTraversalState();
   }
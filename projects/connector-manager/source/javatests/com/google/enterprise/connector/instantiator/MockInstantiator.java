@@ -266,6 +266,17 @@ public class MockInstantiator implements Instantiator {
     getConnectorCoordinator(connectorName).startBatch();
   }
 
+  @Override
+  public long getNextBatchDelay(String connectorName)
+      throws ConnectorNotFoundException {
+    return getConnectorCoordinator(connectorName).getNextBatchDelay();
+  }
+
+  @Override
+  public long getInstantiationMillis(String connectorName) {
+    return -1L;
+  }
+
   @Override
   public ConfigureResponse getConfigFormForConnector(String connectorName,
       String connectorTypeName, Locale locale) throws ConnectorNotFoundException
@@ -0,0 +1,139 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.instantiator;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.persist.ConnectorStamps;
+import com.google.enterprise.connector.persist.MockPersistentStore;
+import com.google.enterprise.connector.persist.PersistentStore;
+import com.google.enterprise.connector.persist.Stamp;
+import com.google.enterprise.connector.persist.StampedPersistentStore;
+import com.google.enterprise.connector.persist.StoreContext;
+import com.google.enterprise.connector.scheduler.Schedule;
+
+import java.util.Collections;
+
+/**
+ * Runs the {@link ChangeDetectorImpl} tests against a store that
+ * supplies an inventory stamp.
+ */
+public class StampedChangeDetectorTest extends ChangeDetectorTest {
+  private StampedStore stampedStore;
+
+  @Override
+  protected PersistentStore newStore() {
+    stampedStore = new StampedStore();
+    return stampedStore;
+  }
+
+  /** Tests that the inventory is only read if the store has changed. */
+  public void testInventoryReadOnlyOnChange() {
+    MockChangeListener listener = new MockChangeListener();
+    ChangeDetector detector = new ChangeDetectorImpl(stampedStore, listener);
+    StoreContext context = new StoreContext("c1", "testType");
+    stampedStore.storeConnectorConfiguration(context, new Configuration(
+        "testType", Collections.<String, String>emptyMap(), null));
+    detector.detect();
+    assertEquals(1, stampedStore.inventoryCount);
+    assertEquals(1, listener.getChanges().size());
+
+    listener.clear();
+    detector.detect();
+    detector.detect();
+    assertEquals(1, stampedStore.inventoryCount);
+    assertTrue(listener.getChanges().isEmpty());
+
+    stampedStore.storeConnectorState(context, "checkpoint");
+    detector.detect();
+    assertEquals(2, stampedStore.inventoryCount);
+    assertEquals(1, listener.getChanges().size());
+  }
+
+  /** A store whose stamp is the number of changes made to it. */
+  private static class StampedStore extends MockPersistentStore
+      implements StampedPersistentStore {
+    int changes = 0;
+    int inventoryCount = 0;
+
+    @Override
+    public synchronized Stamp getInventoryStamp() {
+      return new ChangeStamp(changes);
+    }
+
+    @Override
+    public ImmutableMap<StoreContext, ConnectorStamps> getInventory() {
+      synchronized (this) {
+        inventoryCount++;
+      }
+      return super.getInventory();
+    }
+
+    private synchronized void changed() {
+      changes++;
+    }
+
+    @Override
+    public void storeConnectorState(StoreContext context, String state) {
+      changed();
+      super.storeConnectorState(context, state);
+    }
+
+    @Override
+    public void removeConnectorState(StoreContext context) {
+      changed();
+      super.removeConnectorState(context);
+    }
+
+    @Override
+    public void storeConnectorConfiguration(StoreContext context,
+        Configuration configuration) {
+      changed();
+      super.storeConnectorConfiguration(context, configuration);
+    }
+
+    @Override
+    public void removeConnectorConfiguration(StoreContext context) {
+      changed();
+      super.removeConnectorConfiguration(context);
+    }
+
+    @Override
+    public void storeConnectorSchedule(StoreContext context,
+        Schedule schedule) {
+      changed();
+      super.storeConnectorSchedule(context, schedule);
+    }
+
+    @Override
+    public void removeConnectorSchedule(StoreContext context) {
+      changed();
+      super.removeConnectorSchedule(context);
+    }
+  }
+
+  private static class ChangeStamp implements Stamp {
+    final int version;
+
+    ChangeStamp(int version) {
+      this.version = version;
+    }
+
+    @Override
+    public int compareTo(Stamp other) {
+      return version - ((ChangeStamp) other).version;
+    }
+  }
+}
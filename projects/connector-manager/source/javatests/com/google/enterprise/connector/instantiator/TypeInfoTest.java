@@ -23,9 +23,14 @@ import com.google.enterprise.connector.instantiator.TypeInfo.TypeInfoException;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.FileSystemResource;
 import org.springframework.core.io.Resource;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -135,4 +140,68 @@ public class TypeInfoTest extends TestCase {
     Assert.assertNull(typeInfo);
   }
 
+  /** Tests that each prototype is parsed once, but registered each time. */
+  public final void testLoadBeanDefinitionsCachesPrototype()
+      throws Exception {
+    Resource r = new FileSystemResource(
+        "testdata/connectorTypeTests/positive/connectorType.xml");
+    TypeInfo typeInfo = TypeInfo.fromSpringResourceAndThrow(r);
+    Resource prototype = typeInfo.getConnectorInstancePrototype();
+
+    DefaultListableBeanFactory first = new DefaultListableBeanFactory();
+    DefaultListableBeanFactory second = new DefaultListableBeanFactory();
+    int count = typeInfo.loadBeanDefinitions(prototype, first);
+    assertTrue(count > 0);
+    assertEquals(count, typeInfo.loadBeanDefinitions(prototype, second));
+    assertEquals(1, typeInfo.getParsedPrototypeCount());
+
+    String[] names = first.getBeanDefinitionNames();
+    assertTrue(Arrays.equals(names, second.getBeanDefinitionNames()));
+    for (String name : names) {
+      assertNotSame(first.getBeanDefinition(name),
+                    second.getBeanDefinition(name));
+    }
+
+    // Identical XML content shares a cache entry.
+    byte[] xml = readResource(prototype);
+    typeInfo.loadBeanDefinitions(new ByteArrayResource(xml),
+                                 new DefaultListableBeanFactory());
+    DefaultListableBeanFactory third = new DefaultListableBeanFactory();
+    assertEquals(count,
+        typeInfo.loadBeanDefinitions(new ByteArrayResource(xml), third));
+    assertEquals(2, typeInfo.getParsedPrototypeCount());
+    assertTrue(Arrays.equals(names, third.getBeanDefinitionNames()));
+  }
+
+  /** Tests that the parsed prototype cache is bounded. */
+  public final void testLoadBeanDefinitionsBounded() throws Exception {
+    Resource r = new FileSystemResource(
+        "testdata/connectorTypeTests/positive/connectorType.xml");
+    TypeInfo typeInfo = TypeInfo.fromSpringResourceAndThrow(r);
+    String xml = new String(
+        readResource(typeInfo.getConnectorInstancePrototype()), "UTF-8");
+
+    for (int i = 0; i < TypeInfo.MAX_PARSED_PROTOTYPES + 5; i++) {
+      Resource prototype =
+          new ByteArrayResource((xml + "<!-- " + i + " -->").getBytes("UTF-8"));
+      typeInfo.loadBeanDefinitions(prototype, new DefaultListableBeanFactory());
+      assertTrue(typeInfo.getParsedPrototypeCount()
+                 <= TypeInfo.MAX_PARSED_PROTOTYPES);
+    }
+  }
+
+  private static byte[] readResource(Resource resource) throws Exception {
+    InputStream in = resource.getInputStream();
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int bytes;
+      while ((bytes = in.read(buffer)) != -1) {
+        out.write(buffer, 0, bytes);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
 }
@@ -0,0 +1,266 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.logging;
+
+import com.google.enterprise.connector.logging.AsyncHandler.OverflowPolicy;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Tests for {@link AsyncHandler}.
+ */
+public class AsyncHandlerTest extends TestCase {
+
+  /** Collects the formatted records, optionally waiting on a latch. */
+  private static class CollectingHandler extends Handler {
+    final List<String> messages =
+        Collections.synchronizedList(new ArrayList<String>());
+    final List<String> threads =
+        Collections.synchronizedList(new ArrayList<String>());
+    CountDownLatch latch = null;
+    int flushCount = 0;
+    boolean isClosed = false;
+
+    CollectingHandler() {
+      setFormatter(new Formatter() {
+          private final LayoutPattern layout = new LayoutPattern("%m");
+          @Override
+          public String format(LogRecord record) {
+            return layout.format(record);
+          }
+        });
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+      if (latch != null) {
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      threads.add(Thread.currentThread().getName());
+      messages.add(getFormatter().format(record));
+    }
+
+    @Override
+    public synchronized void flush() {
+      flushCount++;
+    }
+
+    @Override
+    public void close() {
+      isClosed = true;
+    }
+  }
+
+  private static LogRecord newRecord(String message) {
+    return new LogRecord(Level.INFO, message);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    MDC.remove();
+    NDC.remove();
+  }
+
+  public void testPublishInOrder() throws Exception {
+    CollectingHandler target = new CollectingHandler();
+    AsyncHandler handler = new AsyncHandler(target, 16, OverflowPolicy.BLOCK);
+    List<String> expected = new ArrayList<String>();
+    for (int i = 0; i < 100; i++) {
+      handler.publish(newRecord("message " + i));
+      expected.add("message " + i);
+    }
+    handler.flush();
+    assertEquals(expected, target.messages);
+    assertEquals(0, handler.getQueueDepth());
+    assertEquals(0, handler.getDroppedCount());
+    assertFalse(target.threads.contains(Thread.currentThread().getName()));
+    assertTrue(target.flushCount > 0);
+    handler.close();
+  }
+
+  public void testCapacity() throws Exception {
+    CollectingHandler target = new CollectingHandler();
+    AsyncHandler handler = new AsyncHandler(target, 100, OverflowPolicy.DROP);
+    assertEquals(128, handler.getCapacity());
+    handler.close();
+    try {
+      new AsyncHandler(target, 0, OverflowPolicy.DROP);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+
+  /** Test that the context of the logging thread is used. */
+  public void testDiagnosticContext() throws Exception {
+    CollectingHandler target = new CollectingHandler();
+    target.setFormatter(new Formatter() {
+        private final LayoutPattern layout =
+            new LayoutPattern("%t %x %X{Astronaut} %C %M: %m");
+        @Override
+        public String format(LogRecord record) {
+          return layout.format(record);
+        }
+      });
+    AsyncHandler handler = new AsyncHandler(target, 16, OverflowPolicy.BLOCK);
+    String threadName = Thread.currentThread().getName();
+    Logger logger = Logger.getAnonymousLogger();
+    logger.setUseParentHandlers(false);
+    logger.addHandler(handler);
+    NDC.push("Apollo 11");
+    MDC.put("Astronaut", "Neil Armstrong");
+    logger.info("one small step");
+    NDC.clear();
+    MDC.clear();
+    handler.flush();
+    logger.removeHandler(handler);
+    assertEquals(threadName + " Apollo 11 Neil Armstrong "
+        + getClass().getName() + " testDiagnosticContext: one small step",
+        target.messages.get(0));
+    handler.close();
+  }
+
+  public void testDropPolicy() throws Exception {
+    CollectingHandler target = new CollectingHandler();
+    target.latch = new CountDownLatch(1);
+    AsyncHandler handler = new AsyncHandler(target, 2, OverflowPolicy.DROP);
+
+    // The writer thread takes the first record and waits on the latch,
+    // the queue holds two more, and the rest are dropped.
+    handler.publish(newRecord("first"));
+    while (handler.getQueueDepth() > 0) {
+      Thread.sleep(10);
+    }
+    for (int i = 0; i < 10; i++) {
+      handler.publish(newRecord("message " + i));
+    }
+    assertEquals(8, handler.getDroppedCount());
+    target.latch.countDown();
+    handler.flush();
+    // Wait for the writer thread to report the dropped records.
+    for (int i = 0; i < 100 && target.messages.size() < 4; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(4, target.messages.size());
+    assertEquals("first", target.messages.get(0));
+    assertEquals("message 0", target.messages.get(1));
+    assertEquals("message 1", target.messages.get(2));
+    assertTrue(target.messages.get(3),
+               target.messages.get(3).startsWith("Dropped 8 log records"));
+    handler.close();
+  }
+
+  public void testBlockPolicy() throws Exception {
+    final CollectingHandler target = new CollectingHandler();
+    target.latch = new CountDownLatch(1);
+    AsyncHandler handler = new AsyncHandler(target, 1, OverflowPolicy.BLOCK);
+    Thread releaser = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(200);
+          } catch (InterruptedException e) {
+            // Release early.
+          }
+          target.latch.countDown();
+        }
+      };
+    releaser.start();
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      handler.publish(newRecord("message " + i));
+    }
+    assertTrue(System.currentTimeMillis() - start >= 100);
+    releaser.join();
+    handler.flush();
+    assertEquals(5, target.messages.size());
+    assertEquals(0, handler.getDroppedCount());
+    handler.close();
+  }
+
+  public void testConcurrentPublishers() throws Exception {
+    CollectingHandler target = new CollectingHandler();
+    final AsyncHandler handler =
+        new AsyncHandler(target, 8, OverflowPolicy.BLOCK);
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final String prefix = "thread " + i + ": ";
+      threads[i] = new Thread() {
+          @Override
+          public void run() {
+            for (int j = 0; j < 500; j++) {
+              handler.publish(newRecord(prefix + j));
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    handler.flush();
+    assertEquals(2000, target.messages.size());
+    assertEquals(0, handler.getDroppedCount());
+
+    // Each thread's records are written in order.
+    for (int i = 0; i < threads.length; i++) {
+      int next = 0;
+      for (String message : target.messages) {
+        if (message.startsWith("thread " + i + ": ")) {
+          assertEquals("thread " + i + ": " + next++, message);
+        }
+      }
+      assertEquals(500, next);
+    }
+    handler.close();
+  }
+
+  public void testClose() throws Exception {
+    CollectingHandler target = new CollectingHandler();
+    AsyncHandler handler = new AsyncHandler(target, 16, OverflowPolicy.BLOCK);
+    handler.publish(newRecord("before"));
+    handler.close();
+    assertTrue(target.isClosed);
+    assertEquals(1, target.messages.size());
+    handler.publish(newRecord("after"));
+    assertEquals(1, target.messages.size());
+  }
+
+  public void testLevel() throws Exception {
+    CollectingHandler target = new CollectingHandler();
+    AsyncHandler handler = new AsyncHandler(target, 16, OverflowPolicy.BLOCK);
+    handler.setLevel(Level.WARNING);
+    handler.publish(newRecord("info"));
+    handler.publish(new LogRecord(Level.SEVERE, "severe"));
+    handler.flush();
+    assertEquals(Collections.singletonList("severe"), target.messages);
+    handler.close();
+  }
+}
@@ -16,7 +16,12 @@ package com.google.enterprise.connector.logging;
 
 import junit.framework.TestCase;
 
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.SimpleFormatter;
@@ -434,4 +439,77 @@ public class LayoutPatternTest extends TestCase {
 
     MDC.clear();
   }
-}
\ No newline at end of file
+
+  /** Test that a cached Date is not reused for a different second. */
+  public void testCachedDate() {
+    LayoutPattern layout = new LayoutPattern("%d");
+    assertEquals("1969-08-20 20:17:40", layout.format(logRecord));
+    logRecord.setMillis(logRecord.getMillis() + 1000L);
+    assertEquals("1969-08-20 20:17:41", layout.format(logRecord));
+    logRecord.setMillis(logRecord.getMillis() - 1000L);
+    assertEquals("1969-08-20 20:17:40", layout.format(logRecord));
+  }
+
+  /** Test formatting Dates with milliseconds, which are not cached. */
+  public void testMillisecondDate() {
+    logRecord.setMillis(1234567890123L);
+    LayoutPattern layout = new LayoutPattern("%d{ss.SSS}");
+    assertEquals("30.123", layout.format(logRecord));
+    logRecord.setMillis(1234567890456L);
+    assertEquals("30.456", layout.format(logRecord));
+  }
+
+  /** Test formatting Dates concurrently from several threads. */
+  public void testConcurrentDates() throws Exception {
+    final LayoutPattern layout = new LayoutPattern("%d{yyyy-MM-dd HH:mm:ss}");
+    final List<String> errors =
+        Collections.synchronizedList(new ArrayList<String>());
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      final long base = 1000000000000L + i * 86400000L;
+      threads[i] = new Thread() {
+          @Override
+          public void run() {
+            SimpleDateFormat expected =
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            for (int j = 0; j < 2000; j++) {
+              long millis = base + j * 777L;
+              LogRecord record = new LogRecord(Level.INFO, "");
+              record.setMillis(millis);
+              String date = expected.format(new Date(millis));
+              String output = layout.format(record);
+              if (!date.equals(output)) {
+                errors.add(date + " != " + output);
+              }
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(errors.toString(), 0, errors.size());
+  }
+
+  /** Test formatting with a captured diagnostic context installed. */
+  public void testInstalledContext() {
+    String pattern = "[%t %x %X{Astronaut}] %M";
+    NDC.push("Apollo 11");
+    MDC.put("Astronaut", "Neil Armstrong");
+    DiagnosticContext context = DiagnosticContext.capture();
+    NDC.clear();
+    MDC.clear();
+    Thread.currentThread().setName("Houston");
+    checkFormat(pattern, "[Houston  ] moonWalk");
+
+    DiagnosticContext.install(context);
+    try {
+      checkFormat(pattern, "[" + threadName + " Apollo 11 Neil Armstrong] "
+                  + "moonWalk");
+    } finally {
+      DiagnosticContext.install(null);
+    }
+    checkFormat(pattern, "[Houston  ] moonWalk");
+  }
+}
@@ -0,0 +1,159 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.manager;
+
+import com.google.common.collect.ImmutableList;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthenticationResponse;
+import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
+import com.google.enterprise.connector.util.Clock;
+
+import junit.framework.TestCase;
+
+/** Tests for {@link AuthenticationCache}. */
+public class AuthenticationCacheTest extends TestCase {
+  private static final String CONNECTOR1 = "connector1";
+  private static final String CONNECTOR2 = "connector2";
+
+  private final AuthenticationIdentity alice =
+      new SimpleAuthenticationIdentity("alice", "secret");
+  private final AuthenticationResponse success =
+      new AuthenticationResponse(true, null, ImmutableList.of("staff"));
+
+  private FakeClock clock;
+  private AuthenticationCache cache;
+
+  @Override
+  protected void setUp() {
+    clock = new FakeClock();
+    cache = new AuthenticationCache();
+    cache.setClock(clock);
+    cache.setTtlSeconds(60);
+  }
+
+  public void testDisabledByDefault() {
+    AuthenticationCache defaultCache = new AuthenticationCache();
+    assertFalse(defaultCache.isEnabled());
+    defaultCache.put(CONNECTOR1, alice, success);
+    assertEquals(0, defaultCache.size());
+    assertNull(defaultCache.get(CONNECTOR1, alice));
+  }
+
+  public void testZeroSizeDisables() {
+    cache.setMaximumSize(0);
+    assertFalse(cache.isEnabled());
+    cache.put(CONNECTOR1, alice, success);
+    assertEquals(0, cache.size());
+  }
+
+  public void testTtl() {
+    assertTrue(cache.isEnabled());
+    cache.put(CONNECTOR1, alice, success);
+    assertSame(success, cache.get(CONNECTOR1, alice));
+
+    clock.advance(59 * 1000L);
+    assertSame(success, cache.get(CONNECTOR1, alice));
+
+    clock.advance(1000L);
+    assertNull(cache.get(CONNECTOR1, alice));
+    assertEquals(0, cache.size());
+  }
+
+  public void testFailureNotCached() {
+    cache.put(CONNECTOR1, alice, new AuthenticationResponse(false, null));
+    assertNull(cache.get(CONNECTOR1, alice));
+    assertEquals(0, cache.size());
+  }
+
+  public void testKeyedByIdentityAndConnector() {
+    cache.put(CONNECTOR1, alice, success);
+    assertNull(cache.get(CONNECTOR2, alice));
+    assertNull(cache.get(CONNECTOR1,
+        new SimpleAuthenticationIdentity("bob", "secret")));
+    assertNull(cache.get(CONNECTOR1,
+        new SimpleAuthenticationIdentity("alice", "secret", "domain")));
+    assertSame(success, cache.get(CONNECTOR1,
+        new SimpleAuthenticationIdentity("alice", "secret")));
+  }
+
+  public void testKeyedByPassword() {
+    cache.put(CONNECTOR1, alice, success);
+    assertNull(cache.get(CONNECTOR1,
+        new SimpleAuthenticationIdentity("alice", "guess")));
+
+    // A group lookup, with no password, is cached separately.
+    AuthenticationIdentity lookup = new SimpleAuthenticationIdentity("alice");
+    assertNull(cache.get(CONNECTOR1, lookup));
+    cache.put(CONNECTOR1, lookup, success);
+    assertSame(success, cache.get(CONNECTOR1, lookup));
+    assertEquals(2, cache.size());
+  }
+
+  public void testLeastRecentlyUsedEviction() {
+    AuthenticationIdentity bob =
+        new SimpleAuthenticationIdentity("bob", "secret");
+    AuthenticationIdentity carol =
+        new SimpleAuthenticationIdentity("carol", "secret");
+    cache.setMaximumSize(2);
+    cache.put(CONNECTOR1, alice, success);
+    cache.put(CONNECTOR1, bob, success);
+    // Touch alice, so that bob is the least recently used.
+    assertSame(success, cache.get(CONNECTOR1, alice));
+    cache.put(CONNECTOR1, carol, success);
+    assertEquals(2, cache.size());
+    assertSame(success, cache.get(CONNECTOR1, alice));
+    assertNull(cache.get(CONNECTOR1, bob));
+    assertSame(success, cache.get(CONNECTOR1, carol));
+  }
+
+  public void testInvalidate() {
+    cache.put(CONNECTOR1, alice, success);
+    cache.put(CONNECTOR2, alice, success);
+    cache.invalidate(CONNECTOR1);
+    assertEquals(1, cache.size());
+    assertNull(cache.get(CONNECTOR1, alice));
+    assertSame(success, cache.get(CONNECTOR2, alice));
+  }
+
+  public void testIllegalSettings() {
+    try {
+      cache.setMaximumSize(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      cache.setTtlSeconds(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+
+  /** A Clock that only moves when told to. */
+  private static class FakeClock implements Clock {
+    private long time = 1000000L;
+
+    @Override
+    public long getTimeMillis() {
+      return time;
+    }
+
+    void advance(long millis) {
+      time += millis;
+    }
+  }
+}
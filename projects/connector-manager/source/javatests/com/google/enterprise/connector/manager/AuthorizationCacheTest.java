@@ -0,0 +1,241 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
+import com.google.enterprise.connector.spi.AuthorizationResponse.Status;
+import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
+import com.google.enterprise.connector.util.Clock;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/** Tests for {@link AuthorizationCache}. */
+public class AuthorizationCacheTest extends TestCase {
+  private static final String CONNECTOR1 = "connector1";
+  private static final String CONNECTOR2 = "connector2";
+
+  private final AuthenticationIdentity alice =
+      new SimpleAuthenticationIdentity("alice");
+  private final AuthenticationIdentity bob =
+      new SimpleAuthenticationIdentity("bob");
+
+  private FakeClock clock;
+  private AuthorizationCache cache;
+
+  @Override
+  protected void setUp() {
+    clock = new FakeClock();
+    cache = new AuthorizationCache();
+    cache.setClock(clock);
+    cache.setPermitTtlSeconds(60);
+    cache.setDenyTtlSeconds(10);
+  }
+
+  public void testDisabledByDefault() {
+    AuthorizationCache defaultCache = new AuthorizationCache();
+    assertFalse(defaultCache.isEnabled());
+    defaultCache.put(CONNECTOR1, alice, "doc1", Status.PERMIT);
+    assertEquals(0, defaultCache.size());
+    assertNull(defaultCache.get(CONNECTOR1, alice, "doc1"));
+  }
+
+  public void testZeroSizeDisables() {
+    cache.setMaximumSize(0);
+    assertFalse(cache.isEnabled());
+    cache.put(CONNECTOR1, alice, "doc1", Status.PERMIT);
+    assertEquals(0, cache.size());
+  }
+
+  public void testPermitAndDenyTtls() {
+    assertTrue(cache.isEnabled());
+    cache.put(CONNECTOR1, alice, "doc1", Status.PERMIT);
+    cache.put(CONNECTOR1, alice, "doc2", Status.DENY);
+    assertEquals(Status.PERMIT, cache.get(CONNECTOR1, alice, "doc1"));
+    assertEquals(Status.DENY, cache.get(CONNECTOR1, alice, "doc2"));
+
+    clock.advance(10 * 1000L);
+    assertEquals(Status.PERMIT, cache.get(CONNECTOR1, alice, "doc1"));
+    assertNull(cache.get(CONNECTOR1, alice, "doc2"));
+
+    clock.advance(50 * 1000L);
+    assertNull(cache.get(CONNECTOR1, alice, "doc1"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testIndeterminateNotCached() {
+    cache.put(CONNECTOR1, alice, "doc1", Status.INDETERMINATE);
+    assertNull(cache.get(CONNECTOR1, alice, "doc1"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testZeroTtlNotCached() {
+    cache.setDenyTtlSeconds(0);
+    cache.put(CONNECTOR1, alice, "doc1", Status.DENY);
+    assertNull(cache.get(CONNECTOR1, alice, "doc1"));
+  }
+
+  public void testKeyedByIdentityAndConnector() {
+    cache.put(CONNECTOR1, alice, "doc1", Status.PERMIT);
+    assertNull(cache.get(CONNECTOR1, bob, "doc1"));
+    assertNull(cache.get(CONNECTOR2, alice, "doc1"));
+    assertNull(cache.get(CONNECTOR1,
+        new SimpleAuthenticationIdentity("alice", null, "domain"), "doc1"));
+    assertEquals(Status.PERMIT, cache.get(CONNECTOR1,
+        new SimpleAuthenticationIdentity("alice", "password"), "doc1"));
+  }
+
+  public void testLeastRecentlyUsedEviction() {
+    cache.setMaximumSize(2);
+    cache.put(CONNECTOR1, alice, "doc1", Status.PERMIT);
+    cache.put(CONNECTOR1, alice, "doc2", Status.PERMIT);
+    // Touch doc1, so that doc2 is the least recently used.
+    assertEquals(Status.PERMIT, cache.get(CONNECTOR1, alice, "doc1"));
+    cache.put(CONNECTOR1, alice, "doc3", Status.PERMIT);
+    assertEquals(2, cache.size());
+    assertEquals(Status.PERMIT, cache.get(CONNECTOR1, alice, "doc1"));
+    assertNull(cache.get(CONNECTOR1, alice, "doc2"));
+    assertEquals(Status.PERMIT, cache.get(CONNECTOR1, alice, "doc3"));
+  }
+
+  public void testInvalidate() {
+    cache.put(CONNECTOR1, alice, "doc1", Status.PERMIT);
+    cache.put(CONNECTOR1, bob, "doc1", Status.DENY);
+    cache.put(CONNECTOR2, alice, "doc1", Status.PERMIT);
+    cache.invalidate(CONNECTOR1);
+    assertEquals(1, cache.size());
+    assertNull(cache.get(CONNECTOR1, alice, "doc1"));
+    assertNull(cache.get(CONNECTOR1, bob, "doc1"));
+    assertEquals(Status.PERMIT, cache.get(CONNECTOR2, alice, "doc1"));
+  }
+
+  public void testCounters() {
+    assertEquals(0, cache.getHits(CONNECTOR1));
+    assertEquals(0, cache.getMisses(CONNECTOR1));
+    cache.get(CONNECTOR1, alice, "doc1");
+    cache.put(CONNECTOR1, alice, "doc1", Status.PERMIT);
+    cache.get(CONNECTOR1, alice, "doc1");
+    cache.get(CONNECTOR1, alice, "doc1");
+    cache.get(CONNECTOR2, alice, "doc1");
+    assertEquals(2, cache.getHits(CONNECTOR1));
+    assertEquals(1, cache.getMisses(CONNECTOR1));
+    assertEquals(0, cache.getHits(CONNECTOR2));
+    assertEquals(1, cache.getMisses(CONNECTOR2));
+  }
+
+  public void testConnectorTtls() {
+    cache.setConnectorTtlSeconds(CONNECTOR2, 0, 120);
+    cache.put(CONNECTOR2, alice, "doc1", Status.PERMIT);
+    cache.put(CONNECTOR2, alice, "doc2", Status.DENY);
+    assertNull(cache.get(CONNECTOR2, alice, "doc1"));
+    clock.advance(60 * 1000L);
+    assertEquals(Status.DENY, cache.get(CONNECTOR2, alice, "doc2"));
+    clock.advance(60 * 1000L);
+    assertNull(cache.get(CONNECTOR2, alice, "doc2"));
+  }
+
+  public void testConnectorTtlsString() {
+    cache.setPermitTtlSeconds(0);
+    cache.setDenyTtlSeconds(0);
+    assertFalse(cache.isEnabled());
+    cache.setConnectorTtls(" connector1:30:0 , connector2:0:20 ");
+    assertTrue(cache.isEnabled());
+    cache.put(CONNECTOR1, alice, "doc1", Status.PERMIT);
+    cache.put(CONNECTOR1, alice, "doc2", Status.DENY);
+    cache.put(CONNECTOR2, alice, "doc1", Status.PERMIT);
+    cache.put(CONNECTOR2, alice, "doc2", Status.DENY);
+    assertEquals(2, cache.size());
+    assertEquals(Status.PERMIT, cache.get(CONNECTOR1, alice, "doc1"));
+    assertEquals(Status.DENY, cache.get(CONNECTOR2, alice, "doc2"));
+
+    // New overrides replace the old ones.
+    cache.setConnectorTtls("");
+    assertFalse(cache.isEnabled());
+  }
+
+  public void testInvalidConnectorTtlsString() {
+    String[] invalid = { "connector1", "connector1:30", ":30:30",
+                         "connector1:x:30", "connector1:30:-1" };
+    for (String overrides : invalid) {
+      try {
+        cache.setConnectorTtls(overrides);
+        fail("Expected IllegalArgumentException for " + overrides);
+      } catch (IllegalArgumentException expected) {
+        // Expected.
+      }
+    }
+  }
+
+  public void testGetAllAndPutAll() {
+    cache.putAll(CONNECTOR1, alice, Arrays.asList(
+        new AuthorizationResponse(Status.PERMIT, "doc1"),
+        new AuthorizationResponse(Status.DENY, "doc2"),
+        new AuthorizationResponse(Status.INDETERMINATE, "doc3")));
+    assertEquals(2, cache.size());
+
+    Map<String, Status> cached = cache.getAll(CONNECTOR1, alice,
+        Arrays.asList("doc1", "doc2", "doc3", "doc4"));
+    assertEquals(2, cached.size());
+    assertEquals(Status.PERMIT, cached.get("doc1"));
+    assertEquals(Status.DENY, cached.get("doc2"));
+    assertEquals(2, cache.getHits(CONNECTOR1));
+    assertEquals(2, cache.getMisses(CONNECTOR1));
+  }
+
+  public void testInvalidateDropsCounters() {
+    cache.get(CONNECTOR1, alice, "doc1");
+    assertEquals(1, cache.getMisses(CONNECTOR1));
+    cache.invalidate(CONNECTOR1);
+    assertEquals(0, cache.getMisses(CONNECTOR1));
+  }
+
+  public void testIllegalSettings() {
+    try {
+      cache.setMaximumSize(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      cache.setPermitTtlSeconds(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      cache.setDenyTtlSeconds(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+
+  /** A Clock that only moves when told to. */
+  private static class FakeClock implements Clock {
+    private long time = 1000000L;
+
+    @Override
+    public long getTimeMillis() {
+      return time;
+    }
+
+    void advance(long millis) {
+      time += millis;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.manager;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.SimpleAuthenticationIdentity;
+import com.google.enterprise.connector.util.Clock;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/** Tests for {@link IdentityCache}. */
+public class IdentityCacheTest extends TestCase {
+  private static final String CONNECTOR1 = "connector1";
+  private static final String CONNECTOR2 = "connector2";
+
+  private final AuthenticationIdentity alice =
+      new SimpleAuthenticationIdentity("alice");
+
+  private FakeClock clock;
+  private IdentityCache<String> cache;
+
+  @Override
+  protected void setUp() {
+    clock = new FakeClock();
+    cache = new IdentityCache<String>(10);
+    cache.setClock(clock);
+  }
+
+  public void testExpiration() {
+    cache.put(CONNECTOR1, alice, "doc1", "value1", 1000L);
+    assertEquals("value1", cache.get(CONNECTOR1, alice, "doc1"));
+    clock.advance(1000L);
+    assertNull(cache.get(CONNECTOR1, alice, "doc1"));
+    assertEquals(0, cache.size());
+  }
+
+  public void testZeroTtlNotCached() {
+    cache.put(CONNECTOR1, alice, "doc1", "value1", 0L);
+    assertEquals(0, cache.size());
+  }
+
+  public void testNullQualifier() {
+    cache.put(CONNECTOR1, alice, null, "value1", 1000L);
+    assertEquals("value1", cache.get(CONNECTOR1, alice, null));
+    assertNull(cache.get(CONNECTOR1, alice, "doc1"));
+  }
+
+  public void testGetAllAndPutAll() {
+    cache.putAll(CONNECTOR1, alice,
+        ImmutableMap.of("doc1", "value1", "doc2", "value2"), 1000L);
+    Map<String, String> values =
+        cache.getAll(CONNECTOR1, alice, Arrays.asList("doc1", "doc3"));
+    assertEquals(ImmutableMap.of("doc1", "value1"), values);
+  }
+
+  public void testLeastRecentlyUsedEviction() {
+    cache.setMaximumSize(2);
+    cache.put(CONNECTOR1, alice, "doc1", "value1", 1000L);
+    cache.put(CONNECTOR1, alice, "doc2", "value2", 1000L);
+    assertEquals("value1", cache.get(CONNECTOR1, alice, "doc1"));
+    cache.put(CONNECTOR1, alice, "doc3", "value3", 1000L);
+    assertEquals(2, cache.size());
+    assertNull(cache.get(CONNECTOR1, alice, "doc2"));
+  }
+
+  public void testInvalidate() {
+    cache.put(CONNECTOR1, alice, "doc1", "value1", 1000L);
+    cache.put(CONNECTOR1, alice, "doc2", "value2", 1000L);
+    cache.put(CONNECTOR2, alice, "doc1", "value1", 1000L);
+    assertEquals(2, cache.invalidate(CONNECTOR1));
+    assertEquals(1, cache.size());
+    assertEquals("value1", cache.get(CONNECTOR2, alice, "doc1"));
+  }
+
+  /** A Clock that only moves when told to. */
+  private static class FakeClock implements Clock {
+    private long time = 1000000L;
+
+    @Override
+    public long getTimeMillis() {
+      return time;
+    }
+
+    void advance(long millis) {
+      time += millis;
+    }
+  }
+}
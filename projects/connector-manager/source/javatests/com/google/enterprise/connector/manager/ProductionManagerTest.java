@@ -144,6 +144,27 @@ public class ProductionManagerTest extends TestCase {
     assertNull(response.getGroups());
   }
 
+  /** Test authenticate() with an AuthenticationCache. */
+  public void testAuthenticateCached() throws Exception {
+    CountingAuthenticationManager authnManager =
+        new CountingAuthenticationManager();
+    instantiator.addConnector(connectorName, new MockConnector(null,
+        authnManager, null, null, null));
+    AuthenticationCache cache = new AuthenticationCache();
+    cache.setTtlSeconds(60);
+    manager.setAuthenticationCache(cache);
+
+    assertTrue(manager.authenticate(connectorName, identity).isValid());
+    assertTrue(manager.authenticate(connectorName, identity).isValid());
+    assertEquals(1, authnManager.count);
+
+    // Failures are not cached.
+    AuthenticationIdentity nobody = new SimpleAuthenticationIdentity("");
+    assertFalse(manager.authenticate(connectorName, nobody).isValid());
+    assertFalse(manager.authenticate(connectorName, nobody).isValid());
+    assertEquals(3, authnManager.count);
+  }
+
   /** AuthenticationManager that authenticates anybody. */
   private static class AuthenticatingAuthenticationManager
       implements AuthenticationManager {
@@ -152,6 +173,21 @@ public class ProductionManagerTest extends TestCase {
     }
   }
 
+  /**
+   * AuthenticationManager that authenticates anybody with a non-empty
+   * username, and counts the calls.
+   */
+  private static class CountingAuthenticationManager
+      implements AuthenticationManager {
+    int count = 0;
+
+    public AuthenticationResponse authenticate(AuthenticationIdentity id) {
+      count++;
+      return new AuthenticationResponse(id.getUsername().length() > 0,
+                                        id.getUsername());
+    }
+  }
+
   /** AuthenticationManager that throws the given exception. */
   private static class ExceptionalAuthenticationManager
       implements AuthenticationManager {
@@ -206,6 +242,41 @@ public class ProductionManagerTest extends TestCase {
     }
   }
 
+  /** Test authorizeDocids with an AuthorizationCache. */
+  public void testAuthorizeDocidsCached() throws Exception {
+    CountingAuthorizationManager authzManager =
+        new CountingAuthorizationManager();
+    instantiator.addConnector(connectorName, new MockConnector(null, null,
+        authzManager, null, null));
+    AuthorizationCache cache = new AuthorizationCache();
+    cache.setPermitTtlSeconds(60);
+    manager.setAuthorizationCache(cache);
+
+    List<String> docids = Arrays.asList(new String[] { "foo", "bar" });
+    Collection<AuthorizationResponse> authorized =
+        manager.authorizeDocids(connectorName, docids, identity);
+    assertEquals(2, authorized.size());
+    assertEquals(2, authzManager.docidCount);
+
+    // Only the new document should be sent to the connector.
+    docids = Arrays.asList(new String[] { "foo", "bar", "baz" });
+    authorized = manager.authorizeDocids(connectorName, docids, identity);
+    assertEquals(3, authorized.size());
+    for (String docid : docids) {
+      assertTrue(checkContainsDocid(authorized, docid));
+    }
+    assertEquals(3, authzManager.docidCount);
+
+    // A different user is not authorized by the cache.
+    manager.authorizeDocids(connectorName, docids,
+        new SimpleAuthenticationIdentity("foo"));
+    assertEquals(6, authzManager.docidCount);
+
+    ConnectorStatus status = manager.getConnectorStatus(connectorName);
+    assertEquals(2, status.getAuthorizationCacheHits());
+    assertEquals(6, status.getAuthorizationCacheMisses());
+  }
+
   /** Check if the Collection of AuthorizationResponses contains a response
    *  for docid.
    */
@@ -233,6 +304,19 @@ public class ProductionManagerTest extends TestCase {
     }
   }
 
+  /** AuthorizationManager that authorizes all docs, and counts them. */
+  private static class CountingAuthorizationManager
+      extends AuthorizeAllAuthorizationManager {
+    int docidCount = 0;
+
+    @Override
+    public Collection<AuthorizationResponse> authorizeDocids(
+        Collection<String> docids, AuthenticationIdentity identity) {
+      docidCount += docids.size();
+      return super.authorizeDocids(docids, identity);
+    }
+  }
+
   /** AuthorizationManager that throws RepositoryException. */
   private static class ExceptionalAuthorizationManager
       implements AuthorizationManager {
@@ -380,6 +464,8 @@ public class ProductionManagerTest extends TestCase {
                  status.getType());
     assertNotNull(status.getSchedule());
     assertTrue(status.getSchedule().startsWith("#"));
+    assertEquals(-1, status.getAuthorizationCacheHits());
+    assertEquals(-1, status.getAuthorizationCacheMisses());
 
     Schedule sched = new Schedule(connectorName, false, 200, 1000, "1-2");
     String schedStr = sched.toString();
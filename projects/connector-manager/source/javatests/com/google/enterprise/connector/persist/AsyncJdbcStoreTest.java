@@ -0,0 +1,171 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.persist;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Runs the JDBC persistent store tests with asynchronous checkpoints,
+ * and tests the checkpoint writes.
+ */
+public class AsyncJdbcStoreTest extends JdbcStoreTest {
+  /** Long enough that the tests control when the checkpoints are written. */
+  private static final long FLUSH_INTERVAL = 60 * 60 * 1000L;
+
+  private JdbcStore jdbcStore;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    jdbcStore = (JdbcStore) store;
+    jdbcStore.setCheckpointFlushInterval(FLUSH_INTERVAL);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      jdbcStore.shutdown();
+    } finally {
+      super.tearDown();
+    }
+  }
+
+  /** Returns a store that reads the database directly. */
+  private JdbcStore newSynchronousStore() {
+    JdbcStore syncStore = new JdbcStore();
+    syncStore.setDatabase(jdbcDatabase);
+    syncStore.setResourceClassLoader(new TestClassLoader());
+    return syncStore;
+  }
+
+  /** Returns the modify stamp of the stored checkpoint, or -1 if none. */
+  private int getCheckpointStamp(String connectorName) throws Exception {
+    // Nothing creates the table until the first checkpoint is flushed.
+    if (!jdbcDatabase.verifyTableExists("google_connectors", null)) {
+      return -1;
+    }
+    Connection connection = jdbcDatabase.getConnectionPool().getConnection();
+    try {
+      Statement stmt = connection.createStatement();
+      try {
+        ResultSet rs = stmt.executeQuery("SELECT modify_stamp FROM "
+            + "google_connectors WHERE connector_name = '" + connectorName
+            + "' AND property_name = '" + JdbcStore.STATE + "'");
+        return rs.next() ? rs.getInt(1) : -1;
+      } finally {
+        stmt.close();
+      }
+    } finally {
+      jdbcDatabase.getConnectionPool().releaseConnection(connection);
+    }
+  }
+
+  public void testCheckpointsCoalesced() throws Exception {
+    StoreContext context = getStoreContext("coalesced");
+    store.storeConnectorState(context, "one");
+    store.storeConnectorState(context, "two");
+    store.storeConnectorState(context, "three");
+    assertEquals("three", store.getConnectorState(context));
+    assertEquals(-1, getCheckpointStamp("coalesced"));
+
+    jdbcStore.flush();
+    assertEquals(1, getCheckpointStamp("coalesced"));
+    assertEquals("three", store.getConnectorState(context));
+
+    store.storeConnectorState(context, "four");
+    store.storeConnectorState(context, "five");
+    jdbcStore.flush();
+    assertEquals(2, getCheckpointStamp("coalesced"));
+  }
+
+  public void testManyConnectorsFlushedTogether() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      store.storeConnectorState(getStoreContext("connector" + i), "state" + i);
+    }
+    store.storeConnectorState(getStoreContext("connector3"), null);
+    jdbcStore.flush();
+
+    JdbcStore syncStore = newSynchronousStore();
+    for (int i = 0; i < 10; i++) {
+      String expected = (i == 3) ? null : ("state" + i);
+      assertEquals(expected,
+          syncStore.getConnectorState(getStoreContext("connector" + i)));
+    }
+  }
+
+  public void testBackgroundFlush() throws Exception {
+    jdbcStore.setCheckpointFlushInterval(10L);
+    store.storeConnectorState(getStoreContext("background"), "state");
+    JdbcStore syncStore = newSynchronousStore();
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (syncStore.getConnectorState(getStoreContext("background")) == null
+           && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10L);
+    }
+    assertEquals("state",
+        syncStore.getConnectorState(getStoreContext("background")));
+  }
+
+  public void testReadsCachedUntilInventory() throws Exception {
+    StoreContext context = getStoreContext("cached");
+    store.storeConnectorState(context, "mine");
+    jdbcStore.flush();
+
+    // Another Connector Manager changes the checkpoint.
+    newSynchronousStore().storeConnectorState(context, "theirs");
+    assertEquals("mine", store.getConnectorState(context));
+
+    store.getInventory();
+    assertEquals("theirs", store.getConnectorState(context));
+  }
+
+  public void testShutdownStopsWriter() throws Exception {
+    store.storeConnectorState(getStoreContext("shutdown"), "before");
+    jdbcStore.shutdown();
+    assertEquals(1, getCheckpointStamp("shutdown"));
+    assertFalse(hasCheckpointWriterThread());
+
+    // States stored after shutdown are written immediately, without
+    // starting a new writer.
+    store.storeConnectorState(getStoreContext("shutdown"), "after");
+    assertEquals(2, getCheckpointStamp("shutdown"));
+    assertEquals("after", newSynchronousStore().getConnectorState(
+        getStoreContext("shutdown")));
+    assertFalse(hasCheckpointWriterThread());
+  }
+
+  /** Returns true if a checkpoint writer thread is running. */
+  private boolean hasCheckpointWriterThread() {
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith("CheckpointWriter-")
+          && thread.isAlive()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void testIllegalFlushInterval() {
+    try {
+      jdbcStore.setCheckpointFlushInterval(-1L);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+}
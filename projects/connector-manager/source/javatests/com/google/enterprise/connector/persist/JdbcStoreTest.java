@@ -80,9 +80,51 @@ public class JdbcStoreTest extends PersistentStoreTestAbstract {
     jdbcDatabase.getConnectionPool().releaseConnection(connection);
   }
 
+  /**
+   * Tests that the inventory sees changes written by another store on
+   * the same table, whether only checkpoints have changed or not.
+   */
+  public void testInventoryOtherStoreChanges() {
+    JdbcStore other = new JdbcStore();
+    other.setDatabase(jdbcDatabase);
+    other.setResourceClassLoader(new TestClassLoader());
+    StoreContext context = getStoreContext("name");
+    other.storeConnectorConfiguration(context, getConfiguration());
+
+    ConnectorStamps stamps = store.getInventory().get(context);
+    assertNotNull(stamps);
+    assertNull(stamps.getCheckpointStamp());
+    assertNull(stamps.getScheduleStamp());
+
+    other.storeConnectorState(context, getCheckpoint());
+    ConnectorStamps newStamps = store.getInventory().get(context);
+    assertNotNull(newStamps.getCheckpointStamp());
+    assertEquals(0, stamps.getConfigurationStamp().compareTo(
+        newStamps.getConfigurationStamp()));
+    stamps = newStamps;
+
+    other.storeConnectorState(context, getCheckpoint() + "x");
+    newStamps = store.getInventory().get(context);
+    assertTrue(stamps.getCheckpointStamp().compareTo(
+        newStamps.getCheckpointStamp()) != 0);
+    stamps = newStamps;
+
+    other.storeConnectorSchedule(context, getSchedule());
+    newStamps = store.getInventory().get(context);
+    assertNotNull(newStamps.getScheduleStamp());
+    assertEquals(0, stamps.getCheckpointStamp().compareTo(
+        newStamps.getCheckpointStamp()));
+
+    other.removeConnectorState(context);
+    assertNull(store.getInventory().get(context).getCheckpointStamp());
+
+    other.removeConnectorConfiguration(context);
+    assertFalse(store.getInventory().containsKey(context));
+  }
+
   // A ClassLoader that looks for resources relative to the
   // current working directory and the source/resources directory.
-  private class TestClassLoader extends ClassLoader {
+  protected class TestClassLoader extends ClassLoader {
     private static final String RESOURCE_DIR = "source/resources/";
 
     @Override
@@ -71,6 +71,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.SimpleFormatter;
@@ -412,6 +415,14 @@ public class DocPusherTest extends TestCase {
     takeMultiFeed(expectedXml, "MockRepositoryEventLog9.txt");
   }
 
+  /**
+   * Test a multi-record feed that is spooled to disk.
+   */
+  public void testMultiRecordFeedSpooled() throws Exception {
+    fsli.setFeedSpoolThreshold(256);
+    testMultiRecordFeed();
+  }
+
   private void takeMultiFeed(String expectedXml, String repository)
       throws Exception {
     String gsaExpectedResponse = GsaFeedConnection.SUCCESS_RESPONSE;
@@ -593,6 +604,24 @@ public class DocPusherTest extends TestCase {
         resultXML);
   }
 
+  /** Tests that already compressed content is not compressed again. */
+  public void testCompressedMimeTypeContent() throws Exception {
+    String content = "not really a jpeg";
+    Map<String, Object> props = getTestDocumentConfig();
+    props.put(SpiConstants.PROPNAME_MIMETYPE, "image/jpeg");
+    props.put(SpiConstants.PROPNAME_CONTENT, content);
+    Document document = ConnectorTestUtils.createSimpleDocument(props);
+
+    String resultXml = feedCompressedDocument(document);
+    String contentTag =
+        "<content encoding=\"" + ContentEncoding.BASE64BINARY + "\">\n";
+    assertStringContains(contentTag, resultXml);
+    String resultContent = resultXml.substring(
+        resultXml.indexOf(contentTag) + contentTag.length(),
+        resultXml.indexOf("</content>")).trim();
+    assertEquals(content, new String(Base64.decode(resultContent)));
+  }
+
   public void testSimpleBinaryContent() throws Exception {
     String docId = "doc1";
     String content = "hello doc";
@@ -3183,6 +3212,133 @@ public class DocPusherTest extends TestCase {
     // dpusher.flush();      // Let the sleeping threads lie.
   }
 
+  /**
+   * Test that if the bytes of feeds waiting to be sent exceeds the
+   * configured limit, the DocPusher returns an indication to stop
+   * feeding docs.
+   */
+  public void testProximalFeedBacklogBytes() throws Exception {
+    Document document = getTestDocument();
+    // Force 1 document per feed by setting a tiny feed size.
+    FileSizeLimitInfo limit = new FileSizeLimitInfo();
+    limit.setMaxFeedSize(32);
+    limit.setMaxDocumentSize(64 * 1024);
+
+    FeedSenderPool pool = new FeedSenderPool();
+    pool.setConnectorBacklogFeeds(0);
+    pool.setConnectorBacklogBytes(4096);
+    BlockingFeedConnection feedConnection = new BlockingFeedConnection();
+    DocPusher dpusher =
+        new DocPusher(feedConnection, dataSource, limit, dfc, pool);
+    int count;
+    PusherStatus status = PusherStatus.OK;
+    for (count = 0; count < 100; count++) {
+      status = dpusher.take(document, null);
+      if (status != PusherStatus.OK)
+        break;
+    }
+    assertTrue(count > 1);
+    assertTrue(count < 100);
+    assertEquals(PusherStatus.LOCAL_FEED_BACKLOG, status);
+
+    // Once the feeds are sent, the backlog clears.
+    feedConnection.release();
+    dpusher.flush();
+    assertEquals(count + 1, feedConnection.getFeedCount());
+    assertEquals(count + 1, pool.getFeedsSent());
+    pool.shutdown();
+  }
+
+  /**
+   * Test that feeds from a single DocPusher may be sent concurrently.
+   */
+  public void testConcurrentFeeds() throws Exception {
+    Document document = getTestDocument();
+    FileSizeLimitInfo limit = new FileSizeLimitInfo();
+    limit.setMaxFeedSize(32);
+    limit.setMaxDocumentSize(64 * 1024);
+
+    FeedSenderPool pool = new FeedSenderPool();
+    pool.setThreads(3);
+    pool.setConnectorThreads(3);
+    BlockingFeedConnection feedConnection = new BlockingFeedConnection();
+    DocPusher dpusher =
+        new DocPusher(feedConnection, dataSource, limit, dfc, pool);
+    for (int i = 0; i < 6; i++) {
+      assertEquals(PusherStatus.OK, dpusher.take(document, null));
+    }
+    assertTrue(feedConnection.awaitSenders(3));
+    feedConnection.release();
+    dpusher.flush();
+    assertEquals(6, feedConnection.getFeedCount());
+    assertEquals(3, feedConnection.getMaxSenders());
+    pool.shutdown();
+  }
+
+  /**
+   * Test that by default, feeds from a single DocPusher are sent one
+   * at a time.
+   */
+  public void testSerialFeeds() throws Exception {
+    Document document = getTestDocument();
+    FileSizeLimitInfo limit = new FileSizeLimitInfo();
+    limit.setMaxFeedSize(32);
+    limit.setMaxDocumentSize(64 * 1024);
+
+    FeedSenderPool pool = new FeedSenderPool();
+    BlockingFeedConnection feedConnection = new BlockingFeedConnection();
+    DocPusher dpusher =
+        new DocPusher(feedConnection, dataSource, limit, dfc, pool);
+    for (int i = 0; i < 6; i++) {
+      assertEquals(PusherStatus.OK, dpusher.take(document, null));
+    }
+    assertTrue(feedConnection.awaitSenders(1));
+    assertFalse(feedConnection.awaitSenders(2));
+    feedConnection.release();
+    dpusher.flush();
+    assertEquals(6, feedConnection.getFeedCount());
+    assertEquals(1, feedConnection.getMaxSenders());
+    pool.shutdown();
+  }
+
+  /**
+   * Test that the DocPushers of a single connector share its limits
+   * on concurrent and outstanding feeds.
+   */
+  public void testConnectorLimitsShared() throws Exception {
+    Document document = getTestDocument();
+    FileSizeLimitInfo limit = new FileSizeLimitInfo();
+    limit.setMaxFeedSize(32);
+    limit.setMaxDocumentSize(64 * 1024);
+
+    FeedSenderPool pool = new FeedSenderPool();
+    pool.setConnectorBacklogFeeds(4);
+    BlockingFeedConnection feedConnection = new BlockingFeedConnection();
+    DocPusher dpusher1 =
+        new DocPusher(feedConnection, dataSource, limit, dfc, pool);
+    DocPusher dpusher2 =
+        new DocPusher(feedConnection, dataSource, limit, dfc, pool);
+    // Neither DocPusher alone has enough outstanding feeds to be a
+    // backlog, but together they do.
+    PusherStatus status = PusherStatus.OK;
+    int count;
+    for (count = 0; count < 4 && status == PusherStatus.OK; count++) {
+      status = dpusher1.take(document, null);
+      if (status == PusherStatus.OK) {
+        status = dpusher2.take(document, null);
+      }
+    }
+    assertEquals(PusherStatus.LOCAL_FEED_BACKLOG, status);
+    assertTrue(count < 4);
+    assertTrue(feedConnection.awaitSenders(1));
+    assertFalse(feedConnection.awaitSenders(2));
+    feedConnection.release();
+    dpusher1.flush();
+    dpusher2.flush();
+    assertEquals(1, feedConnection.getMaxSenders());
+    pool.shutdown();
+  }
+
   /**
    * Test that if Feed sink appears to be backlogged processing submitted
    * feeds (feeds backed up on the other end of the FeedConnection),
@@ -3473,6 +3629,62 @@ public class DocPusherTest extends TestCase {
     }
   }
 
+  /**
+   * A FeedConnection that blocks all senders until released, keeping
+   * track of the number of concurrent senders.
+   */
+  private static class BlockingFeedConnection extends MockFeedConnection {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final AtomicInteger feedCount = new AtomicInteger();
+    private int senders = 0;
+    private int maxSenders = 0;
+
+    @Override
+    public String sendData(FeedData feedData)
+        throws FeedException, RepositoryException {
+      synchronized(this) {
+        senders++;
+        maxSenders = Math.max(senders, maxSenders);
+        notifyAll();
+      }
+      try {
+        latch.await(30, TimeUnit.SECONDS);
+        feedCount.incrementAndGet();
+        return super.sendData(feedData);
+      } catch (InterruptedException ie) {
+        throw new FeedException("Interrupted", ie);
+      } finally {
+        synchronized(this) {
+          senders--;
+        }
+      }
+    }
+
+    /** Waits up to a second for the number of concurrent senders. */
+    public synchronized boolean awaitSenders(int count)
+        throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 1000L;
+      long now;
+      while (senders < count
+             && (now = System.currentTimeMillis()) < deadline) {
+        wait(deadline - now);
+      }
+      return senders >= count;
+    }
+
+    public void release() {
+      latch.countDown();
+    }
+
+    public int getFeedCount() {
+      return feedCount.get();
+    }
+
+    public synchronized int getMaxSenders() {
+      return maxSenders;
+    }
+  }
+
   /**
    * A FeedConnection that can be backlogged.
    */
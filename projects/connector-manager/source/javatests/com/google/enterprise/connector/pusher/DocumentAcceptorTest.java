@@ -27,6 +27,11 @@ import com.google.enterprise.connector.util.SystemClock;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -109,6 +114,115 @@ public class DocumentAcceptorTest extends TestCase {
     testPusherStatus(PusherStatus.LOW_MEMORY, 500L, 2000L, 2, 2 * 500L);
   }
 
+  /**
+   * Test that the DocumentAcceptor stops waiting as soon as a backlog
+   * clears, rather than sleeping the full interval.
+   */
+  public void testBacklogClears() throws Exception {
+    Document document = ConnectorTestUtils.createSimpleDocument("foo");
+    final MockPusher pusher = new MockPusher();
+    DocumentAcceptorImpl documentAcceptor =
+        new DocumentAcceptorImpl(getName(), pusher);
+    documentAcceptor.setSleepIntervals(2000L, 8000L, 1);
+    documentAcceptor.take(document);
+
+    pusher.setPusherStatus(PusherStatus.GSA_FEED_BACKLOG);
+    Thread clearer = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Thread.sleep(300L);
+          } catch (InterruptedException e) {
+            // Clear the backlog early.
+          }
+          pusher.setPusherStatus(PusherStatus.OK);
+        }
+      };
+    SystemClock clock = new SystemClock();
+    long startTime = clock.getTimeMillis();
+    clearer.start();
+    documentAcceptor.take(document);
+    long stopTime = clock.getTimeMillis();
+    clearer.join();
+    assertEquals(2, pusher.getTotalDocs());
+    assertTrue("Delay " + (stopTime - startTime),
+               300L <= (stopTime - startTime));
+    assertTrue("Delay " + (stopTime - startTime),
+               2000L > (stopTime - startTime));
+  }
+
+  /** Test that a disabled Pusher is replaced without losing the document. */
+  public void testDisabledPusher() throws Exception {
+    MockPusher pusher = new MockPusher();
+    DocumentAcceptorImpl documentAcceptor =
+        new DocumentAcceptorImpl(getName(), pusher);
+    documentAcceptor.take(ConnectorTestUtils.createSimpleDocument("foo"));
+    pusher.setPusherStatus(PusherStatus.DISABLED);
+    documentAcceptor.take(ConnectorTestUtils.createSimpleDocument("bar"));
+    assertEquals(PusherStatus.OK, pusher.getPusherStatus());
+    assertEquals(1, pusher.getTotalDocs());
+  }
+
+  public void testIllegalFeedBuilders() throws Exception {
+    try {
+      new DocumentAcceptorImpl(getName(), new MockPusher(), 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+
+  /** Test many threads feeding documents into several feeds. */
+  public void testConcurrentFeedBuilders() throws Exception {
+    final List<MockPusher> pushers =
+        Collections.synchronizedList(new ArrayList<MockPusher>());
+    PusherFactory pusherFactory = new PusherFactory() {
+        @Override
+        public Pusher newPusher(String connectorName) {
+          MockPusher pusher = new MockPusher(
+              new PrintStream(new ByteArrayOutputStream()));
+          pushers.add(pusher);
+          return pusher;
+        }
+      };
+    final DocumentAcceptorImpl documentAcceptor =
+        new DocumentAcceptorImpl(getName(), pusherFactory, 3);
+
+    final List<Exception> errors =
+        Collections.synchronizedList(new ArrayList<Exception>());
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      final String prefix = "thread" + i + "-";
+      threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              for (int j = 0; j < 50; j++) {
+                documentAcceptor.take(
+                    ConnectorTestUtils.createSimpleDocument(prefix + j));
+              }
+            } catch (Exception e) {
+              errors.add(e);
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(errors.toString(), 0, errors.size());
+
+    documentAcceptor.flush();
+    assertTrue(pushers.toString(), pushers.size() <= 3);
+    int totalDocs = 0;
+    for (MockPusher pusher : pushers) {
+      assertEquals(PusherStatus.DISABLED, pusher.getPusherStatus());
+      totalDocs += pusher.getTotalDocs();
+    }
+    assertEquals(8 * 50, totalDocs);
+  }
+
   private void testPusherStatus(PusherStatus status, long shortSleep,
       long longSleep, int retries, long expectedDelay) throws Exception {
     SystemClock clock = new SystemClock();
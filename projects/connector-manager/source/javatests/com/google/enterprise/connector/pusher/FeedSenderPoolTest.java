@@ -0,0 +1,149 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.pusher;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Tests for {@link FeedSenderPool}.
+ */
+public class FeedSenderPoolTest extends TestCase {
+  private FeedSenderPool pool;
+
+  @Override
+  protected void setUp() {
+    pool = new FeedSenderPool();
+  }
+
+  @Override
+  protected void tearDown() {
+    pool.shutdown();
+  }
+
+  public void testDefaults() {
+    assertEquals(10, pool.getThreads());
+    assertEquals(1, pool.getConnectorThreads());
+    assertEquals(10, pool.getConnectorBacklogFeeds());
+    assertEquals(104857600L, pool.getConnectorBacklogBytes());
+  }
+
+  public void testIllegalValues() {
+    try {
+      pool.setThreads(0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      pool.setConnectorThreads(0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      pool.setConnectorBacklogFeeds(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      pool.setConnectorBacklogBytes(-1L);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+
+  public void testBacklogFeeds() {
+    pool.setConnectorBacklogFeeds(10);
+    pool.setConnectorBacklogBytes(0L);
+    assertFalse(pool.isBacklogged(10, Long.MAX_VALUE));
+    assertTrue(pool.isBacklogged(11, 0L));
+  }
+
+  public void testBacklogBytes() {
+    pool.setConnectorBacklogFeeds(0);
+    pool.setConnectorBacklogBytes(1000L);
+    assertFalse(pool.isBacklogged(Integer.MAX_VALUE, 1000L));
+    assertTrue(pool.isBacklogged(0, 1001L));
+  }
+
+  public void testBacklogDisabled() {
+    pool.setConnectorBacklogFeeds(0);
+    pool.setConnectorBacklogBytes(0L);
+    assertFalse(pool.isBacklogged(Integer.MAX_VALUE, Long.MAX_VALUE));
+  }
+
+  public void testExecute() throws Exception {
+    pool.setThreads(2);
+    final CountDownLatch latch = new CountDownLatch(3);
+    for (int i = 0; i < 3; i++) {
+      pool.execute(new Runnable() {
+          public void run() {
+            latch.countDown();
+          }
+        });
+    }
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+  }
+
+  public void testStatistics() {
+    assertEquals(0L, pool.getAverageSendMillis());
+    assertEquals(0L, pool.getAverageWaitMillis());
+    pool.recordSend("test", 100L, 10L, 20L);
+    pool.recordSend("test", 300L, 30L, 60L);
+    assertEquals(2L, pool.getFeedsSent());
+    assertEquals(400L, pool.getBytesSent());
+    assertEquals(40L, pool.getAverageSendMillis());
+    assertEquals(20L, pool.getAverageWaitMillis());
+    assertEquals(60L, pool.getMaxSendMillis());
+  }
+
+  public void testFailureStatistics() {
+    pool.recordSend("test", 100L, 10L, 20L);
+    pool.recordFailure("test", 300L);
+    assertEquals(1L, pool.getFeedsSent());
+    assertEquals(100L, pool.getBytesSent());
+    assertEquals(1L, pool.getFeedsFailed());
+    assertEquals(300L, pool.getBytesFailed());
+    assertEquals(20L, pool.getAverageSendMillis());
+    assertEquals(10L, pool.getAverageWaitMillis());
+  }
+
+  // Tests that the statistics are exposed through JMX.
+  public void testMBean() throws Exception {
+    assertNull(pool.getMBeanName());
+    pool.registerMBean();
+    ObjectName name = pool.getMBeanName();
+    assertNotNull(name);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertTrue(server.isRegistered(name));
+
+    pool.recordSend("test", 100L, 10L, 20L);
+    assertEquals(1L, server.getAttribute(name, "FeedsSent"));
+    assertEquals(0, server.getAttribute(name, "QueueDepth"));
+
+    pool.shutdown();
+    assertFalse(server.isRegistered(name));
+    assertNull(pool.getMBeanName());
+  }
+}
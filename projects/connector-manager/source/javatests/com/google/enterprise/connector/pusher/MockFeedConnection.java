@@ -16,7 +16,6 @@ package com.google.enterprise.connector.pusher;
 
 import com.google.enterprise.connector.spi.RepositoryException;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 /**
@@ -41,7 +40,7 @@ public class MockFeedConnection implements FeedConnection {
   public String sendData(FeedData feedData)
       throws FeedException, RepositoryException {
     try {
-      ByteArrayOutputStream data = (XmlFeed) feedData;
+      XmlFeed data = (XmlFeed) feedData;
       String dataStr = data.toString("UTF-8");
       buf.append(dataStr);
       System.out.println(dataStr);
@@ -0,0 +1,102 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.pusher;
+
+import com.google.common.base.Charsets;
+import com.google.enterprise.connector.spi.XmlUtils;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link Utf8RecordBuffer}.
+ */
+public class Utf8RecordBufferTest extends TestCase {
+  private Utf8RecordBuffer buffer;
+
+  @Override
+  protected void setUp() {
+    buffer = new Utf8RecordBuffer();
+  }
+
+  private void checkBytes(String expected) throws Exception {
+    byte[] expectedBytes = expected.getBytes(Charsets.UTF_8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    buffer.writeTo(out);
+    assertTrue(Arrays.equals(expectedBytes, out.toByteArray()));
+    assertEquals(expectedBytes.length, buffer.size());
+  }
+
+  public void testAscii() throws Exception {
+    buffer.append("<record").append(' ').append("url=\"x\"", 0, 4);
+    checkBytes("<record url=");
+    assertEquals("<record url=", buffer.toString());
+  }
+
+  public void testMultiByte() throws Exception {
+    String value = "café € 中文 𝄞";
+    buffer.append(value);
+    checkBytes(value);
+    assertEquals(value, buffer.toString());
+  }
+
+  public void testSurrogatePairAcrossAppends() throws Exception {
+    buffer.append('\ud834').append('\udd1e');
+    checkBytes("𝄞");
+  }
+
+  public void testUnpairedSurrogates() throws Exception {
+    buffer.append("a\udd1eb\ud834c");
+    buffer.append('\ud834');
+    checkBytes("a\udd1eb\ud834c\ud834");
+    assertEquals("a?b?c?", buffer.toString());
+  }
+
+  public void testReset() throws Exception {
+    buffer.append("first record");
+    buffer.reset();
+    buffer.append("second");
+    checkBytes("second");
+  }
+
+  public void testGrowth() throws Exception {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      builder.append((char) ('a' + (i % 26)));
+      if (i % 1000 == 0) {
+        builder.append('é');
+      }
+    }
+    String value = builder.toString();
+    buffer.append(value);
+    checkBytes(value);
+
+    // A huge buffer is released on reset, but is still usable.
+    buffer.append(value).append(value).append(value);
+    buffer.reset();
+    assertEquals(0, buffer.size());
+    buffer.append(value);
+    checkBytes(value);
+  }
+
+  public void testXmlUtils() throws Exception {
+    XmlUtils.xmlAppendAttr("name", "café & \"bar\"\u0001", buffer);
+    XmlUtils.xmlAppendEndTag("meta", buffer);
+    checkBytes(" name=\"café &amp; &quot;bar&quot;\"</meta>\n");
+  }
+}
@@ -34,8 +34,13 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests the Scheduler.
@@ -199,4 +204,75 @@ public class TraversalSchedulerTest extends TestCase {
     schedules.addAll(getSchedules("connectorB"));
     runWithSchedules(schedules, createRealInstantiator());
   }
+
+  /**
+   * Tests that a connector is checked again when it is due, and not
+   * before.
+   */
+  public void testNextBatchDelay() throws Exception {
+    CountingInstantiator instantiator = new CountingInstantiator(200L);
+    TraversalScheduler scheduler =
+        new TraversalScheduler(instantiator, new TraversalSignal());
+    scheduler.init();
+    try {
+      Long first = instantiator.batches.poll(5, TimeUnit.SECONDS);
+      assertNotNull(first);
+      Long second = instantiator.batches.poll(5, TimeUnit.SECONDS);
+      assertNotNull(second);
+      assertTrue(String.valueOf(second - first), second - first >= 150L);
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  /**
+   * Tests that a signalled connector is checked immediately, and that
+   * a connector that is not due is not checked.
+   */
+  public void testTraversalSignal() throws Exception {
+    CountingInstantiator instantiator =
+        new CountingInstantiator(Long.MAX_VALUE);
+    TraversalSignal signal = new TraversalSignal();
+    TraversalScheduler scheduler = new TraversalScheduler(instantiator, signal);
+    scheduler.init();
+    try {
+      assertNotNull(instantiator.batches.poll(5, TimeUnit.SECONDS));
+      assertNull(instantiator.batches.poll(500, TimeUnit.MILLISECONDS));
+      signal.signal(MockInstantiator.TRAVERSER_NAME1);
+      assertNotNull(instantiator.batches.poll(5, TimeUnit.SECONDS));
+      assertNull(instantiator.batches.poll(500, TimeUnit.MILLISECONDS));
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  /**
+   * An Instantiator with a single connector, that records the times at
+   * which batches are started, and always returns the same delay until
+   * the next batch.
+   */
+  private class CountingInstantiator extends MockInstantiator {
+    final BlockingQueue<Long> batches = new LinkedBlockingQueue<Long>();
+    private final long delay;
+
+    CountingInstantiator(long delay) {
+      super(new ThreadPool(5, new SystemClock()));
+      this.delay = delay;
+    }
+
+    @Override
+    public Set<String> getConnectorNames() {
+      return Collections.singleton(MockInstantiator.TRAVERSER_NAME1);
+    }
+
+    @Override
+    public void startBatch(String connectorName) {
+      batches.add(System.currentTimeMillis());
+    }
+
+    @Override
+    public long getNextBatchDelay(String connectorName) {
+      return delay;
+    }
+  }
 }
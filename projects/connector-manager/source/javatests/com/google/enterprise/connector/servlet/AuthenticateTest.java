@@ -28,6 +28,8 @@ import junit.framework.TestCase;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -451,20 +453,163 @@ public class AuthenticateTest extends TestCase {
            makeGroups("st&ff", "we'll"));
   }
 
+  /** Tests that the connectors are called concurrently. */
+  public void testConcurrentAuthentication() {
+    final CountDownLatch latch = new CountDownLatch(2);
+    MockManager manager = new MockManager() {
+        @Override
+        public AuthenticationResponse authenticate(String connectorName,
+            AuthenticationIdentity identity) {
+          latch.countDown();
+          try {
+            if (!latch.await(10, TimeUnit.SECONDS)) {
+              return new AuthenticationResponse(false, null);
+            }
+          } catch (InterruptedException e) {
+            return new AuthenticationResponse(false, null);
+          }
+          return super.authenticate(connectorName, identity);
+        }
+      };
+    SecurityRequestPool pool = new SecurityRequestPool();
+    pool.setAuthenticationTimeout(0L);
+    String xmlBody =
+      "<AuthnRequest>\n" +
+      "  <Credentials>\n" +
+      "    <Username>fooUser</Username>\n" +
+      "    <Password>fooPassword</Password>\n" +
+      "  </Credentials>\n" +
+      "</AuthnRequest>";
+
+    String expectedResult =
+      "<CmResponse>\n" +
+      "  <AuthnResponse>\n" +
+      "    <Success ConnectorName=\"connector1\">\n" +
+      "      <Identity>fooUser</Identity>\n" +
+      "    </Success>\n" +
+      "    <Success ConnectorName=\"connector2\">\n" +
+      "      <Identity>fooUser</Identity>\n" +
+      "    </Success>\n" +
+      "  </AuthnResponse>\n" +
+      "</CmResponse>\n";
+    doTest(xmlBody, expectedResult, manager, pool);
+  }
+
+  /**
+   * Tests that time spent waiting for a pool thread does not count
+   * against the authentication timeout.  With a single thread, the
+   * connectors are called one after another and together take longer
+   * than the timeout, but each one responds in time.
+   */
+  public void testQueuedAuthenticationNotTimedOut() {
+    MockManager manager = new MockManager() {
+        @Override
+        public AuthenticationResponse authenticate(String connectorName,
+            AuthenticationIdentity identity) {
+          try {
+            Thread.sleep(400L);
+          } catch (InterruptedException e) {
+            return new AuthenticationResponse(false, null);
+          }
+          return super.authenticate(connectorName, identity);
+        }
+      };
+    SecurityRequestPool pool = new SecurityRequestPool();
+    pool.setThreads(1);
+    pool.setAuthenticationTimeout(1000L);
+    String xmlBody =
+      "<AuthnRequest>\n" +
+      "  <Credentials>\n" +
+      "    <Username>fooUser</Username>\n" +
+      "    <Password>fooPassword</Password>\n" +
+      "  </Credentials>\n" +
+      "</AuthnRequest>";
+
+    String expectedResult =
+      "<CmResponse>\n" +
+      "  <AuthnResponse>\n" +
+      "    <Success ConnectorName=\"connector1\">\n" +
+      "      <Identity>fooUser</Identity>\n" +
+      "    </Success>\n" +
+      "    <Success ConnectorName=\"connector2\">\n" +
+      "      <Identity>fooUser</Identity>\n" +
+      "    </Success>\n" +
+      "  </AuthnResponse>\n" +
+      "</CmResponse>\n";
+    doTest(xmlBody, expectedResult, manager, pool);
+  }
+
+  /**
+   * Tests that a connector that does not respond in time fails, while
+   * the groups from the other connectors are still returned.
+   */
+  public void testAuthenticationTimeout() {
+    MockManager manager = new MockManager() {
+        @Override
+        public AuthenticationResponse authenticate(String connectorName,
+            AuthenticationIdentity identity) {
+          if ("connector1".equals(connectorName)) {
+            try {
+              Thread.sleep(30 * 1000L);
+            } catch (InterruptedException e) {
+              // Cancelled.
+            }
+          }
+          return super.authenticate(connectorName, identity);
+        }
+      };
+    manager.setExpectedIdentity(null, "fooUser", null, makeGroups("staff"));
+    SecurityRequestPool pool = new SecurityRequestPool();
+    pool.setAuthenticationTimeout(500L);
+    String xmlBody =
+      "<AuthnRequest>\n" +
+      "  <Credentials>\n" +
+      "    <Username>fooUser</Username>\n" +
+      "  </Credentials>\n" +
+      "</AuthnRequest>";
+
+    String expectedResult =
+      "<CmResponse>\n" +
+      "  <AuthnResponse>\n" +
+      "    <Success ConnectorName=\"connector1\"/>\n" +
+      "    <Success ConnectorName=\"connector2\">\n" +
+      "      <Identity>fooUser</Identity>\n" +
+      "      <Group>staff</Group>\n" +
+      "    </Success>\n" +
+      "  </AuthnResponse>\n" +
+      "</CmResponse>\n";
+    long start = System.currentTimeMillis();
+    doTest(xmlBody, expectedResult, manager, pool);
+    assertTrue(System.currentTimeMillis() - start < 10 * 1000L);
+  }
+
   private Collection<String> makeGroups(String... groups) {
     return ImmutableList.copyOf(groups);
   }
 
   private void doTest(String xmlBody, String expectedResult, String domain,
       String username, String password, Collection<?> groups) {
-    LOGGER.info("============== " + getName() + " ====================");
-    LOGGER.info("xmlBody:\n" + xmlBody);
     MockManager manager = MockManager.getInstance();
     manager.setShouldVerifyIdentity(true);
     manager.setExpectedIdentity(domain, username, password, groups);
+    doTest(xmlBody, expectedResult, manager, null);
+  }
+
+  /**
+   * Runs the request using the given pool, or the default pool if
+   * {@code pool} is {@code null}.
+   */
+  private void doTest(String xmlBody, String expectedResult,
+      MockManager manager, SecurityRequestPool pool) {
+    LOGGER.info("============== " + getName() + " ====================");
+    LOGGER.info("xmlBody:\n" + xmlBody);
     StringWriter writer = new StringWriter();
     PrintWriter out = new PrintWriter(writer);
-    Authenticate.handleDoPost(xmlBody, manager, out);
+    if (pool == null) {
+      Authenticate.handleDoPost(xmlBody, manager, out);
+    } else {
+      Authenticate.handleDoPost(xmlBody, manager, out, pool);
+    }
     out.flush();
     String result = writer.toString();
     out.close();
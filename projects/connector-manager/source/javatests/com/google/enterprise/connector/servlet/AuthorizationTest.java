@@ -16,11 +16,17 @@ package com.google.enterprise.connector.servlet;
 
 import com.google.enterprise.connector.common.StringUtils;
 import com.google.enterprise.connector.manager.MockManager;
+import com.google.enterprise.connector.spi.AuthenticationIdentity;
+import com.google.enterprise.connector.spi.AuthorizationResponse;
 
 import junit.framework.TestCase;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -109,6 +115,205 @@ public class AuthorizationTest extends TestCase {
     doTest(TEST_XML1, expectedResult, false, null, null, null);
   }
 
+  /**
+   * Tests that the connectors are queried concurrently.  Each connector
+   * waits for all of the others to be called before answering, so a
+   * serial handler would time out.
+   */
+  public void testConcurrentQueries() {
+    final CountDownLatch latch = new CountDownLatch(3);
+    MockManager manager = new MockManager() {
+        @Override
+        public Collection<AuthorizationResponse> authorizeDocids(
+            String connectorName, List<String> docidList,
+            AuthenticationIdentity identity) {
+          latch.countDown();
+          try {
+            if (!latch.await(10, TimeUnit.SECONDS)) {
+              return null;
+            }
+          } catch (InterruptedException e) {
+            return null;
+          }
+          return super.authorizeDocids(connectorName, docidList, identity);
+        }
+      };
+    SecurityRequestPool pool = new SecurityRequestPool();
+    pool.setAuthorizationTimeout(0L);
+    String expectedResult =
+        "<CmResponse>\n" + "  <AuthorizationResponse>\n" + "    <Answer>\n"
+            + "      <Resource connectorname=\"connector1\">"
+            + ServletUtil.PROTOCOL
+            + "connector1.localhost" + ServletUtil.DOCID + "foo1</Resource>\n"
+            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+            + "    <Answer>\n" + "      <Resource connectorname=\"connector2\">"
+            + ServletUtil.PROTOCOL
+            + "connector2.localhost" + ServletUtil.DOCID + "foo2</Resource>\n"
+            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+            + "    <Answer>\n" + "      <Resource connectorname=\"connector3\">"
+            + ServletUtil.PROTOCOL
+            + "connector3.localhost" + ServletUtil.DOCID + "foo3</Resource>\n"
+            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+            + "  </AuthorizationResponse>\n" + "  <StatusId>0</StatusId>\n"
+            + "</CmResponse>\n";
+    doTest(TEST_XML1, expectedResult, manager, pool);
+  }
+
+  /**
+   * Tests that documents from a connector that does not answer in time
+   * are INDETERMINATE, while other connectors still answer.
+   */
+  public void testAuthorizationTimeout() {
+    MockManager manager = new MockManager() {
+        @Override
+        public Collection<AuthorizationResponse> authorizeDocids(
+            String connectorName, List<String> docidList,
+            AuthenticationIdentity identity) {
+          if ("connector3".equals(connectorName)) {
+            try {
+              Thread.sleep(30 * 1000L);
+            } catch (InterruptedException e) {
+              return null;
+            }
+          }
+          return super.authorizeDocids(connectorName, docidList, identity);
+        }
+      };
+    SecurityRequestPool pool = new SecurityRequestPool();
+    pool.setAuthorizationTimeout(500L);
+    String expectedResult =
+        "<CmResponse>\n" + "  <AuthorizationResponse>\n" + "    <Answer>\n"
+            + "      <Resource connectorname=\"connector1\">"
+            + ServletUtil.PROTOCOL
+            + "connector1.localhost" + ServletUtil.DOCID + "foo1</Resource>\n"
+            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+            + "    <Answer>\n" + "      <Resource connectorname=\"connector2\">"
+            + ServletUtil.PROTOCOL
+            + "connector2.localhost" + ServletUtil.DOCID + "foo2</Resource>\n"
+            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+            + "    <Answer>\n" + "      <Resource connectorname=\"connector3\">"
+            + ServletUtil.PROTOCOL
+            + "connector3.localhost" + ServletUtil.DOCID + "foo3</Resource>\n"
+            + "      <Decision>INDETERMINATE</Decision>\n" + "    </Answer>\n"
+            + "  </AuthorizationResponse>\n" + "  <StatusId>0</StatusId>\n"
+            + "</CmResponse>\n";
+    long start = System.currentTimeMillis();
+    doTest(TEST_XML1, expectedResult, manager, pool);
+    assertTrue(System.currentTimeMillis() - start < 10 * 1000L);
+  }
+
+  /**
+   * Tests that time spent waiting for a pool thread does not count
+   * against the authorization timeout.  With a single thread, the
+   * queries run one after another and together take longer than the
+   * timeout, but each one answers in time.
+   */
+  public void testQueuedQueriesNotTimedOut() {
+    MockManager manager = new MockManager() {
+        @Override
+        public Collection<AuthorizationResponse> authorizeDocids(
+            String connectorName, List<String> docidList,
+            AuthenticationIdentity identity) {
+          try {
+            Thread.sleep(400L);
+          } catch (InterruptedException e) {
+            return null;
+          }
+          return super.authorizeDocids(connectorName, docidList, identity);
+        }
+      };
+    SecurityRequestPool pool = new SecurityRequestPool();
+    pool.setThreads(1);
+    pool.setAuthorizationTimeout(1000L);
+    String expectedResult =
+        "<CmResponse>\n" + "  <AuthorizationResponse>\n" + "    <Answer>\n"
+            + "      <Resource connectorname=\"connector1\">"
+            + ServletUtil.PROTOCOL
+            + "connector1.localhost" + ServletUtil.DOCID + "foo1</Resource>\n"
+            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+            + "    <Answer>\n" + "      <Resource connectorname=\"connector2\">"
+            + ServletUtil.PROTOCOL
+            + "connector2.localhost" + ServletUtil.DOCID + "foo2</Resource>\n"
+            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+            + "    <Answer>\n" + "      <Resource connectorname=\"connector3\">"
+            + ServletUtil.PROTOCOL
+            + "connector3.localhost" + ServletUtil.DOCID + "foo3</Resource>\n"
+            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+            + "  </AuthorizationResponse>\n" + "  <StatusId>0</StatusId>\n"
+            + "</CmResponse>\n";
+    doTest(TEST_XML1, expectedResult, manager, pool);
+  }
+
+  /**
+   * Tests that queries waiting for a pool thread held by a hung connector
+   * that ignores interrupts time out, rather than waiting forever.
+   */
+  public void testQueuedQueriesTimeOut() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    MockManager manager = new MockManager() {
+        @Override
+        public Collection<AuthorizationResponse> authorizeDocids(
+            String connectorName, List<String> docidList,
+            AuthenticationIdentity identity) {
+          while (true) {
+            try {
+              release.await();
+              break;
+            } catch (InterruptedException e) {
+              // Hung connectors ignore interrupts.
+            }
+          }
+          return super.authorizeDocids(connectorName, docidList, identity);
+        }
+      };
+    SecurityRequestPool pool = new SecurityRequestPool();
+    pool.setThreads(1);
+    pool.setAuthorizationTimeout(500L);
+    StringWriter writer = new StringWriter();
+    PrintWriter out = new PrintWriter(writer);
+    long start = System.currentTimeMillis();
+    try {
+      new AuthorizationHandler(TEST_XML1, manager, out, pool).handleDoPost();
+    } finally {
+      release.countDown();
+    }
+    out.flush();
+    assertTrue(System.currentTimeMillis() - start < 10 * 1000L);
+    String result = writer.toString();
+    assertEquals(result, 3,
+        result.split("<Decision>INDETERMINATE</Decision>", -1).length - 1);
+  }
+
+  /** Tests answers written as each connector responds. */
+  public void testStreamedResponse() {
+    String queryXml =
+      "<AuthorizationQuery>\n" +
+      "<ConnectorQuery>\n" +
+      "  <Identity source=\"gsa\">CN=foo</Identity>\n" +
+      "  <Resource>" + ServletUtil.PROTOCOL + "connector1.localhost" +
+         ServletUtil.DOCID + "foo1</Resource>\n" +
+      "</ConnectorQuery>\n" +
+      "</AuthorizationQuery>";
+    String expectedResult =
+        "<CmResponse>\n" + "  <AuthorizationResponse>\n" + "    <Answer>\n"
+            + "      <Resource connectorname=\"connector1\">"
+            + ServletUtil.PROTOCOL
+            + "connector1.localhost" + ServletUtil.DOCID + "foo1</Resource>\n"
+            + "      <Decision>PERMIT</Decision>\n" + "    </Answer>\n"
+            + "  </AuthorizationResponse>\n" + "  <StatusId>0</StatusId>\n"
+            + "</CmResponse>\n";
+    MockManager manager = MockManager.getInstance();
+    manager.setShouldVerifyIdentity(false);
+    StringWriter writer = new StringWriter();
+    PrintWriter out = new PrintWriter(writer);
+    AuthorizationHandler authorizationHandler = new AuthorizationHandler(
+        queryXml, manager, out, new SecurityRequestPool());
+    authorizationHandler.handleDoPost();
+    out.flush();
+    assertEquals(StringUtils.normalizeNewlines(expectedResult),
+                 StringUtils.normalizeNewlines(writer.toString()));
+  }
+
   private static final String NULL_CONNECTOR_NAME_RESPONSE = "<CmResponse>\n"
       + "  <StatusId>"
       + ConnectorMessageCode.RESPONSE_NULL_CONNECTOR + "</StatusId>\n"
@@ -553,11 +758,16 @@ public class AuthorizationTest extends TestCase {
     if (verifyIdentity) {
       manager.setExpectedIdentity(domain, username, password, null);
     }
+    doTest(xmlBody, expectedResult, manager, new SecurityRequestPool());
+  }
+
+  private void doTest(String xmlBody, String expectedResult,
+      MockManager manager, SecurityRequestPool pool) {
     StringWriter writer = new StringWriter();
     PrintWriter out = new PrintWriter(writer);
     AuthorizationHandler authorizationHandler =
         AuthorizationHandler.makeAuthorizationHandlerForTest(xmlBody, manager,
-            out);
+            out, pool);
     authorizationHandler.handleDoPost();
     out.flush();
     String result = writer.toString();
@@ -161,4 +161,65 @@ public class GetConnectorStatusTest extends TestCase {
                                  status.getStatus(), null, null, null);
     }
   }
+
+  /** Test ConnectorStatus with authorization cache statistics. */
+  public void testAuthorizationCacheStatistics() {
+    String name = "foo";
+    String type = "Documentum";
+    String expectedResult =
+        "<CmResponse>\n" +
+        "  <StatusId>0</StatusId>\n" +
+        "  <ConnectorStatus>\n" +
+        "    <ConnectorName>" + name + "</ConnectorName>\n" +
+        "    <ConnectorType>" + type + "</ConnectorType>\n" +
+        "    <Status>0</Status>\n" +
+        "    <ConnectorSchedules></ConnectorSchedules>\n" +
+        "    <AuthzCacheHits>12</AuthzCacheHits>\n" +
+        "    <AuthzCacheMisses>34</AuthzCacheMisses>\n" +
+        "  </ConnectorStatus>\n" +
+        "</CmResponse>\n";
+    doTest(new AuthorizationCacheManager(), name, expectedResult);
+  }
+
+  /** Test ConnectorStatus with the instantiation time. */
+  public void testInstantiationMillis() {
+    String name = "foo";
+    String type = "Documentum";
+    String expectedResult =
+        "<CmResponse>\n" +
+        "  <StatusId>0</StatusId>\n" +
+        "  <ConnectorStatus>\n" +
+        "    <ConnectorName>" + name + "</ConnectorName>\n" +
+        "    <ConnectorType>" + type + "</ConnectorType>\n" +
+        "    <Status>0</Status>\n" +
+        "    <ConnectorSchedules></ConnectorSchedules>\n" +
+        "    <InstantiationMillis>56</InstantiationMillis>\n" +
+        "  </ConnectorStatus>\n" +
+        "</CmResponse>\n";
+    doTest(new InstantiationMillisManager(), name, expectedResult);
+  }
+
+  /** A Manager that returns authorization cache statistics. */
+  private static class AuthorizationCacheManager extends MockManager {
+    @Override
+    public ConnectorStatus getConnectorStatus(String connectorName)
+        throws ConnectorNotFoundException {
+      ConnectorStatus status = super.getConnectorStatus(connectorName);
+      return new ConnectorStatus(status.getName(), status.getType(),
+                                 status.getStatus(), null, null, null,
+                                 12L, 34L);
+    }
+  }
+
+  /** A Manager that returns the instantiation time. */
+  private static class InstantiationMillisManager extends MockManager {
+    @Override
+    public ConnectorStatus getConnectorStatus(String connectorName)
+        throws ConnectorNotFoundException {
+      ConnectorStatus status = super.getConnectorStatus(connectorName);
+      return new ConnectorStatus(status.getName(), status.getType(),
+                                 status.getStatus(), null, null, null,
+                                 -1L, -1L, 56L);
+    }
+  }
 }
@@ -0,0 +1,238 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.servlet;
+
+import com.google.enterprise.connector.test.ConnectorTestUtils;
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Tests for {@link LogArchiver}.
+ */
+public class LogArchiverTest extends TestCase {
+  private static final String TEST_DIR_NAME = "testdata/tmp/LogArchiverTest";
+  private final File logDir = new File(TEST_DIR_NAME, "logs");
+  private final File cacheDir = new File(TEST_DIR_NAME, "cache");
+
+  /** A time well after the logs were last modified. */
+  private long now;
+  private AdjustableClock clock;
+  private LogArchiver archiver;
+
+  @Override
+  protected void setUp() throws Exception {
+    ConnectorTestUtils.deleteAllFiles(new File(TEST_DIR_NAME));
+    assertTrue(ConnectorTestUtils.mkdirs(logDir));
+    now = System.currentTimeMillis();
+    clock = new AdjustableClock(now + 3600 * 1000L);
+    archiver = new LogArchiver(cacheDir, clock);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    archiver.clear();
+    ConnectorTestUtils.deleteAllFiles(new File(TEST_DIR_NAME));
+  }
+
+  private static byte[] newData(int length, int seed) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) ('a' + (i * seed) % 26);
+    }
+    return data;
+  }
+
+  private File writeLog(String name, byte[] data) throws IOException {
+    File log = new File(logDir, name);
+    OutputStream out = new FileOutputStream(log);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    // The rotated logs are an hour old.
+    assertTrue(log.setLastModified(now - 3600 * 1000L));
+    return log;
+  }
+
+  private byte[] writeArchive(File... logs) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    archiver.writeArchive(logs, out);
+    return out.toByteArray();
+  }
+
+  /** Checks that the archive holds exactly the named entries and data. */
+  private static void checkArchive(byte[] archive, String[] names,
+      byte[][] contents) throws IOException {
+    ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(archive));
+    try {
+      for (int i = 0; i < names.length; i++) {
+        ZipEntry entry = in.getNextEntry();
+        assertNotNull(entry);
+        assertEquals(names[i], entry.getName());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+          out.write(buffer, 0, count);
+        }
+        assertTrue(names[i], Arrays.equals(contents[i], out.toByteArray()));
+        CRC32 crc = new CRC32();
+        crc.update(contents[i]);
+        assertEquals(crc.getValue(), entry.getCrc());
+      }
+      assertNull(in.getNextEntry());
+    } finally {
+      in.close();
+    }
+  }
+
+  public void testWriteArchive() throws Exception {
+    byte[] data0 = newData(100 * 1024, 7);
+    byte[] data1 = newData(10, 3);
+    byte[] data2 = new byte[0];
+    File[] logs = { writeLog("test.0.log", data0),
+        writeLog("test.1.log", data1), writeLog("test.2.log", data2) };
+
+    byte[] archive = writeArchive(logs);
+    checkArchive(archive,
+        new String[] { "test.0.log", "test.1.log", "test.2.log" },
+        new byte[][] { data0, data1, data2 });
+    assertTrue(archive.length < data0.length);
+
+    // ZipFile reads the central directory, rather than the local headers.
+    File zipFile = new File(TEST_DIR_NAME, "logs.zip");
+    OutputStream out = new FileOutputStream(zipFile);
+    try {
+      out.write(archive);
+    } finally {
+      out.close();
+    }
+    ZipFile zip = new ZipFile(zipFile);
+    try {
+      assertEquals(3, zip.size());
+      assertEquals(data0.length, zip.getEntry("test.0.log").getSize());
+      assertEquals(data1.length, zip.getEntry("test.1.log").getSize());
+      assertEquals(0, zip.getEntry("test.2.log").getSize());
+    } finally {
+      zip.close();
+    }
+  }
+
+  public void testCachedArchive() throws Exception {
+    byte[] data0 = newData(50 * 1024, 5);
+    byte[] data1 = newData(20 * 1024, 11);
+    File[] logs = { writeLog("test.0.log", data0),
+        writeLog("test.1.log", data1) };
+
+    writeArchive(logs);
+    assertEquals(2, archiver.getCacheSize());
+    assertEquals(2, cacheDir.list().length);
+
+    // The second archive is written from the cache.
+    byte[] second = writeArchive(logs);
+    assertEquals(2, archiver.getCacheSize());
+    assertEquals(2, cacheDir.list().length);
+    checkArchive(second, new String[] { "test.0.log", "test.1.log" },
+                 new byte[][] { data0, data1 });
+  }
+
+  public void testRecentLogNotCached() throws Exception {
+    byte[] data = newData(1024, 3);
+    File log = writeLog("test.0.log", data);
+    clock.setTimeMillis(log.lastModified() + 1000L);
+
+    checkArchive(writeArchive(log), new String[] { "test.0.log" },
+                 new byte[][] { data });
+    assertEquals(0, archiver.getCacheSize());
+    assertFalse(cacheDir.exists() && cacheDir.list().length > 0);
+  }
+
+  public void testChangedLogRecompressed() throws Exception {
+    File log = writeLog("test.0.log", newData(1024, 3));
+    writeArchive(log);
+    assertEquals(1, archiver.getCacheSize());
+
+    byte[] data = newData(2048, 7);
+    log = writeLog("test.0.log", data);
+    assertTrue(log.setLastModified(now - 1800 * 1000L));
+    checkArchive(writeArchive(log), new String[] { "test.0.log" },
+                 new byte[][] { data });
+    assertEquals(1, archiver.getCacheSize());
+    assertEquals(1, cacheDir.list().length);
+  }
+
+  public void testPrune() throws Exception {
+    File log0 = writeLog("test.0.log", newData(1024, 3));
+    File log1 = writeLog("test.1.log", newData(1024, 5));
+    writeArchive(log0, log1);
+    assertEquals(2, archiver.getCacheSize());
+
+    // The oldest log has rotated away.
+    assertTrue(log1.delete());
+    writeArchive(log0);
+    assertEquals(1, archiver.getCacheSize());
+    assertEquals(1, cacheDir.list().length);
+
+    archiver.clear();
+    assertEquals(0, archiver.getCacheSize());
+    assertEquals(0, cacheDir.list().length);
+  }
+
+  public void testDeleteStaleCacheFiles() throws Exception {
+    File log0 = writeLog("test.0.log", newData(1024, 3));
+    writeArchive(log0);
+    assertEquals(1, cacheDir.list().length);
+
+    // A compressed log left behind by a previous run, and an unrelated file.
+    File stale = new File(cacheDir, "log12345.deflated");
+    File other = new File(cacheDir, "other.txt");
+    assertTrue(stale.createNewFile());
+    assertTrue(other.createNewFile());
+
+    archiver.deleteStaleCacheFiles();
+    assertFalse(stale.exists());
+    assertTrue(other.exists());
+    assertEquals(1, archiver.getCacheSize());
+    assertEquals(2, cacheDir.list().length);
+  }
+
+  public void testTransfer() throws Exception {
+    byte[] data = newData(100 * 1024, 7);
+    File log = writeLog("test.0.log", data);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    LogArchiver.transfer(log, 1000, 5000, out);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1000, 6000),
+                             out.toByteArray()));
+
+    out.reset();
+    LogArchiver.transfer(log, 0, data.length, out);
+    assertTrue(Arrays.equals(data, out.toByteArray()));
+  }
+}
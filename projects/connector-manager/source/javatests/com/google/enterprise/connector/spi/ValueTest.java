@@ -28,10 +28,12 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Unit tests for the {@link Value} class.
@@ -89,6 +91,77 @@ public class ValueTest extends TestCase {
     Assert.assertEquals("Thu, 01 Jan 1970 00:00:00 GMT", s);
   }
 
+  private static Calendar newCalendar(long millis) {
+    Calendar c = Calendar.getInstance();
+    c.setTimeInMillis(millis);
+    return c;
+  }
+
+  /**
+   * Tests that the cached formatted values are not reused across second
+   * or day boundaries, or after a change to the feed time zone.
+   */
+  public void testCachedDateFormats() {
+    Value.setFeedTimeZone("GMT");
+    assertEquals("Thu, 01 Jan 1970 00:00:00 GMT",
+        Value.calendarToRfc822(newCalendar(999)));
+    assertEquals("Thu, 01 Jan 1970 00:00:01 GMT",
+        Value.calendarToRfc822(newCalendar(1000)));
+    assertEquals("Thu, 01 Jan 1970 00:00:00 GMT",
+        Value.calendarToRfc822(newCalendar(0)));
+    assertEquals("Wed, 31 Dec 1969 23:59:59 GMT",
+        Value.calendarToRfc822(newCalendar(-1)));
+
+    assertEquals("1970-01-01T00:00:00.999Z",
+        Value.calendarToIso8601(newCalendar(999)));
+    assertEquals("1970-01-01T00:00:00.998Z",
+        Value.calendarToIso8601(newCalendar(998)));
+
+    long day = 24 * 60 * 60 * 1000L;
+    assertEquals("1970-01-01", Value.calendarToFeedXml(newCalendar(0)));
+    assertEquals("1970-01-01", Value.calendarToFeedXml(newCalendar(day - 1)));
+    assertEquals("1970-01-02", Value.calendarToFeedXml(newCalendar(day)));
+    assertEquals("1969-12-31", Value.calendarToFeedXml(newCalendar(-1)));
+
+    Value.setFeedTimeZone("GMT-08:00");
+    assertEquals("1970-01-01", Value.calendarToFeedXml(newCalendar(day)));
+    assertEquals("Wed, 31 Dec 1969 16:00:01 -0800",
+        Value.calendarToRfc822(newCalendar(1000)));
+  }
+
+  /** Tests formatting dates concurrently from several threads. */
+  public void testConcurrentDateFormats() throws Exception {
+    Value.setFeedTimeZone("GMT");
+    final SimpleDateFormat expectedFormat =
+        new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS", Locale.ENGLISH);
+    expectedFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      final long base = i * 1000000007L;
+      threads[i] = new Thread() {
+          @Override
+          public void run() {
+            for (long t = base; t < base + 2000 * 997; t += 997) {
+              String expected;
+              synchronized (expectedFormat) {
+                expected = expectedFormat.format(new Date(t)) + "Z";
+              }
+              String actual = Value.calendarToIso8601(newCalendar(t));
+              if (!expected.equals(actual)) {
+                failure.compareAndSet(null, expected + " != " + actual);
+              }
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get(), failure.get());
+  }
+
   /**
    * Represents the prefix and suffix of formatted timestamp strings
    * for a specific date in both the RFC 822 and ISO 8601 formats.
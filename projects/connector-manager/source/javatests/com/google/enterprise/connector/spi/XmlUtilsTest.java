@@ -32,4 +32,15 @@ public class XmlUtilsTest extends TestCase {
     XmlUtils.xmlAppendAttrValue(invalidString, builder);
     assertEquals("begin\u0009\u0020\r\n", builder.toString());
   }
+
+  public void testXmlAppendAttrValueRuns() throws IOException {
+    StringBuilder builder = new StringBuilder();
+    XmlUtils.xmlAppendAttrValue("", builder);
+    assertEquals("", builder.toString());
+    XmlUtils.xmlAppendAttrValue("plain text", builder);
+    assertEquals("plain text", builder.toString());
+    builder.setLength(0);
+    XmlUtils.xmlAppendAttrValue("&&\u0001<a\u0002'", builder);
+    assertEquals("&amp;&amp;&lt;a&#39;", builder.toString());
+  }
 }
@@ -288,6 +288,235 @@ public class QueryTraverserTest extends TestCase {
     checkResult(traversalManager.getDocumentCount(), result);
   }
 
+  public void testPipelinedTimeout() {
+    NeverEndingDocumentlistTraversalManager traversalManager =
+        new NeverEndingDocumentlistTraversalManager(100);
+    QueryTraverser queryTraverser = new QueryTraverser(pusher, traversalManager,
+        stateStore, connectorName, traversalContext, clock);
+    queryTraverser.setPipelineDepth(5);
+
+    BatchResult result = queryTraverser.runBatch(new BatchSize(100));
+    assertTrue(result.getCountProcessed() > 0);
+    checkResult(traversalManager.getDocumentCount(), result);
+    assertEquals(TraversalDelayPolicy.IMMEDIATE, result.getDelayPolicy());
+  }
+
+  public void testPipelinedBatchSize() {
+    LargeDocumentlistTraversalManager traversalManager =
+        new LargeDocumentlistTraversalManager(10);
+    QueryTraverser queryTraverser = new QueryTraverser(pusher, traversalManager,
+        stateStore, connectorName, traversalContext, clock);
+    queryTraverser.setPipelineDepth(5);
+
+    BatchResult result = queryTraverser.runBatch(new BatchSize(10));
+    assertEquals(20, result.getCountProcessed());
+    checkResult(traversalManager.getDocumentCount(), result);
+  }
+
+  /**
+   * Tests that documents fetched ahead of a Pusher that asks to end the
+   * batch are still fed before the checkpoint is taken.
+   */
+  public void testPipelinedPusherBacklog() {
+    pusher = new ValidatingPusher() {
+        @Override
+        public synchronized PusherStatus take(Document document)
+            throws RepositoryException, PushException {
+          super.take(document);
+          return (getPushCount() >= 5)
+              ? PusherStatus.LOCAL_FEED_BACKLOG : PusherStatus.OK;
+        }
+      };
+    LargeDocumentlistTraversalManager traversalManager =
+        new LargeDocumentlistTraversalManager(10);
+    QueryTraverser queryTraverser = new QueryTraverser(pusher, traversalManager,
+        stateStore, connectorName, traversalContext, clock);
+    queryTraverser.setPipelineDepth(5);
+
+    BatchResult result = queryTraverser.runBatch(new BatchSize(100));
+    assertTrue(result.getCountProcessed() >= 5);
+    assertTrue(result.getCountProcessed() < 200);
+    checkResult(traversalManager.getDocumentCount(), result);
+    pusher.throwAssertionError();
+  }
+
+  /**
+   * Tests that a repository error after the Pusher asks to end the batch
+   * still fails the batch, rather than being taken for an interrupt.
+   */
+  public void testPipelinedPusherBacklogRepositoryException() {
+    final boolean[] isFetching = new boolean[1];
+    final boolean[] isBacklogged = new boolean[1];
+    pusher = new ValidatingPusher() {
+        @Override
+        public synchronized PusherStatus take(Document document)
+            throws RepositoryException, PushException {
+          super.take(document);
+          // Stop the fetcher while it is retrieving the next document.
+          waitFor(isFetching);
+          isBacklogged[0] = true;
+          return PusherStatus.LOCAL_FEED_BACKLOG;
+        }
+      };
+    NeverEndingDocumentlistTraversalManager traversalManager =
+        new NeverEndingDocumentlistTraversalManager(100) {
+          @Override public DocumentList startTraversal() {
+            return new NeverEndingDocumentList(this) {
+              @Override public Document nextDocument()
+                  throws RepositoryException {
+                if (getDocumentCount() == 0) {
+                  return super.nextDocument();
+                }
+                // Fail after the fetcher has been stopped.
+                isFetching[0] = true;
+                waitFor(isBacklogged);
+                throw new RepositoryException("Test");
+              }
+            };
+          }
+        };
+    QueryTraverser queryTraverser = new QueryTraverser(pusher,
+        traversalManager, stateStore, connectorName, traversalContext, clock);
+    queryTraverser.setPipelineDepth(5);
+
+    BatchResult result = queryTraverser.runBatch(new BatchSize(100));
+    assertTrue(isBacklogged[0]);
+    assertEquals(TraversalDelayPolicy.ERROR, result.getDelayPolicy());
+    assertEquals(null, stateStore.getTraversalState());
+  }
+
+  /** Waits a limited time for a flag to be set by another thread. */
+  private static void waitFor(boolean[] flag) {
+    long end = System.currentTimeMillis() + 10000L;
+    while (!flag[0] && System.currentTimeMillis() < end) {
+      try {
+        Thread.sleep(50L);
+      } catch (InterruptedException e) {
+        fail("Unexpected interrupt");
+      }
+    }
+  }
+
+  public void testPipelinedCancellation() {
+    final QueryTraverser[] traverserHolder = new QueryTraverser[1];
+    NeverEndingDocumentlistTraversalManager traversalManager =
+        new NeverEndingDocumentlistTraversalManager(100) {
+          @Override synchronized Document newDocument() {
+            if (getDocumentCount() == 5) {
+              traverserHolder[0].cancelBatch();
+            }
+            return super.newDocument();
+          }
+        };
+    QueryTraverser queryTraverser = new QueryTraverser(pusher, traversalManager,
+        stateStore, connectorName, traversalContext, clock);
+    queryTraverser.setPipelineDepth(5);
+    traverserHolder[0] = queryTraverser;
+
+    BatchResult result = queryTraverser.runBatch(new BatchSize(100));
+    assertEquals(TraversalDelayPolicy.ERROR, result.getDelayPolicy());
+    assertEquals(6, traversalManager.getDocumentCount());
+    assertEquals(null, stateStore.getTraversalState());
+  }
+
+  /**
+   * Tests that cancelling a batch interrupts the retrieval of a document,
+   * rather than waiting for it.
+   */
+  public void testPipelinedCancellationInterruptsFetcher() throws Exception {
+    final boolean[] interrupted = new boolean[1];
+    NeverEndingDocumentlistTraversalManager traversalManager =
+        new NeverEndingDocumentlistTraversalManager(100) {
+          @Override synchronized Document newDocument() {
+            if (getDocumentCount() == 2) {
+              try {
+                Thread.sleep(60000L);
+              } catch (InterruptedException e) {
+                interrupted[0] = true;
+                throw new RuntimeException(e);
+              }
+            }
+            return super.newDocument();
+          }
+        };
+    final QueryTraverser queryTraverser = new QueryTraverser(pusher,
+        traversalManager, stateStore, connectorName, traversalContext, clock);
+    queryTraverser.setPipelineDepth(5);
+
+    Thread canceller = new Thread() {
+        @Override public void run() {
+          try {
+            Thread.sleep(200L);
+          } catch (InterruptedException e) {
+            return;
+          }
+          queryTraverser.cancelBatch();
+        }
+      };
+    canceller.start();
+    long start = System.currentTimeMillis();
+    BatchResult result = queryTraverser.runBatch(new BatchSize(100));
+    canceller.join();
+    assertTrue(System.currentTimeMillis() - start < 30000L);
+    assertTrue(interrupted[0]);
+    assertEquals(TraversalDelayPolicy.ERROR, result.getDelayPolicy());
+    assertEquals(null, stateStore.getTraversalState());
+  }
+
+  /**
+   * Tests that a batch ended by a Pusher error waits for the document
+   * being retrieved, so the next batch does not use the connector
+   * concurrently.
+   */
+  public void testPipelinedPushExceptionJoinsFetcher() {
+    pusher = new ValidatingPusher() {
+        @Override
+        public synchronized PusherStatus take(Document document)
+            throws RepositoryException, PushException {
+          throw new PushException("Test");
+        }
+      };
+    final boolean[] isFetching = new boolean[1];
+    NeverEndingDocumentlistTraversalManager traversalManager =
+        new NeverEndingDocumentlistTraversalManager(100) {
+          @Override synchronized Document newDocument() {
+            if (getDocumentCount() == 1) {
+              // A connector that ignores interrupts.
+              isFetching[0] = true;
+              long end = System.currentTimeMillis() + 500L;
+              while (System.currentTimeMillis() < end) {
+                try {
+                  Thread.sleep(50L);
+                } catch (InterruptedException e) {
+                  // Ignored.
+                }
+              }
+              isFetching[0] = false;
+            }
+            return super.newDocument();
+          }
+        };
+    QueryTraverser queryTraverser = new QueryTraverser(pusher,
+        traversalManager, stateStore, connectorName, traversalContext, clock);
+    queryTraverser.setPipelineDepth(5);
+
+    BatchResult result = queryTraverser.runBatch(new BatchSize(100));
+    assertEquals(TraversalDelayPolicy.ERROR, result.getDelayPolicy());
+    assertFalse(isFetching[0]);
+  }
+
+  public void testIllegalPipelineDepth() {
+    QueryTraverser queryTraverser = new QueryTraverser(pusher,
+        new NeverEndingDocumentlistTraversalManager(100), stateStore,
+        connectorName, traversalContext, clock);
+    try {
+      queryTraverser.setPipelineDepth(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+
   private void checkExceptionHandling(Exception exception, Where where,
                                       long documentCount) {
     checkExceptionHandling(exception, where, documentCount, documentCount);
@@ -295,10 +524,16 @@ public class QueryTraverserTest extends TestCase {
 
   private void checkExceptionHandling(Exception exception, Where where,
       long documentCount, long pushCount) {
+    checkExceptionHandling(exception, where, documentCount, pushCount, 0);
+  }
+
+  private void checkExceptionHandling(Exception exception, Where where,
+      long documentCount, long pushCount, int pipelineDepth) {
     ExceptionalTraversalManager traversalManager =
         new ExceptionalTraversalManager(exception, where);
     QueryTraverser queryTraverser = new QueryTraverser(pusher, traversalManager,
         stateStore, connectorName, traversalContext, clock);
+    queryTraverser.setPipelineDepth(pipelineDepth);
     BatchResult result = queryTraverser.runBatch(new BatchSize(10));
     assertEquals(documentCount, result.getCountProcessed());
     assertEquals(pushCount, pusher.getPushCount());
@@ -411,6 +646,28 @@ public class QueryTraverserTest extends TestCase {
          Where.DOCUMENT_CONTENT, 0);
   }
 
+  public void testPipelinedDocumentRepositoryException() {
+    checkExceptionHandling(
+         new RepositoryException("DocumentRepositoryException"),
+         Where.DOCUMENT_CONTENT, 0, 0, 1);
+  }
+
+  public void testPipelinedRepositoryDocumentException() {
+    checkExceptionHandling(
+         new RepositoryDocumentException("RepositoryDocumentException"),
+         Where.DOCUMENT_CONTENT, 2, 1, 1);
+  }
+
+  public void testPipelinedFirstDocumentRepositoryException() {
+    checkExceptionHandling(new RepositoryException("FirstDocumentException"),
+         Where.FIRST_DOCUMENT, 0, 0, 1);
+  }
+
+  public void testPipelinedCheckpointRepositoryException() {
+    checkExceptionHandling(new RepositoryException("CheckpointException"),
+         Where.CHECKPOINT, 0, 0, 1);
+  }
+
   /**
    * A {@link TraversalManager} for a {@link NeverEndingDocumentList}.
    */
@@ -30,6 +30,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 /** Tests for MimeTypeDetector.  */
 public class MimeTypeDetectorTest extends TestCase {
@@ -207,6 +210,101 @@ public class MimeTypeDetectorTest extends TestCase {
     }
   }
 
+  /** Tests that cached extensions are independent of the path. */
+  public void testCachedFileExtension() throws Exception {
+    for (int i = 0; i < 2; i++) {
+      assertEquals("application/pdf", mimeTypeDetector.getMimeType(
+          "x.y/z.pdf", notUsedInputStreamFactory));
+      assertEquals("application/pdf", mimeTypeDetector.getMimeType(
+          "a\\b.c\\BIG.PDF", notUsedInputStreamFactory));
+      assertEquals(MimeTypeDetector.UNKNOWN_MIME_TYPE,
+          mimeTypeDetector.getMimeType("a.pdf/big", (byte[]) null));
+      assertEquals(MimeTypeDetector.UNKNOWN_MIME_TYPE,
+          mimeTypeDetector.getMimeType("a.pdf/big.", (byte[]) null));
+    }
+  }
+
+  /**
+   * Tests that names with several dots are cached under the extension
+   * that mime-util matched, and give the same types as an empty cache.
+   */
+  public void testCachedMultipleDotExtension() throws Exception {
+    String[] names = { "a.gz", "a.tar.gz", "b.tar.gz", "c.gz",
+        "report.2013.05.pdf", "report.2013.06.pdf", "a.b.c.d" };
+    Map<String, String> expected = new HashMap<String, String>();
+    for (String name : names) {
+      setUp();  // Clears the cache.
+      expected.put(name, mimeTypeDetector.getMimeType(name, (byte[]) null));
+    }
+
+    for (int i = 0; i < 2; i++) {
+      for (String name : names) {
+        assertEquals(name, expected.get(name),
+            mimeTypeDetector.getMimeType(name, (byte[]) null));
+      }
+    }
+  }
+
+  /** Tests that unique multiple dot names do not flush the cache. */
+  public void testExtensionCacheSize() throws Exception {
+    for (int i = 0; i < 2000; i++) {
+      assertEquals("application/pdf", mimeTypeDetector.getMimeType(
+          "report." + i + ".pdf", notUsedInputStreamFactory));
+    }
+    assertTrue(String.valueOf(MimeTypeDetector.getExtensionCacheSize()),
+        MimeTypeDetector.getExtensionCacheSize() <= 1000);
+  }
+
+  /** Tests that the cached preferred types follow the TraversalContext. */
+  public void testCachedPreferredMimeType() throws Exception {
+    assertEquals("text/xml", mimeTypeDetector.getMimeType(
+        "a/big.xml", notUsedInputStreamFactory));
+
+    MimeTypeMap mimeTypeMap = new MimeTypeMap();
+    mimeTypeMap.setPreferredMimeTypes(Sets.newHashSet("application/xml"));
+    mimeTypeMap.setSupportedMimeTypes(Sets.newHashSet("text/xml"));
+    ProductionTraversalContext traversalContext =
+        new ProductionTraversalContext();
+    traversalContext.setMimeTypeMap(mimeTypeMap);
+    MimeTypeDetector.setTraversalContext(traversalContext);
+
+    assertEquals("application/xml", mimeTypeDetector.getMimeType(
+        "a/big.xml", notUsedInputStreamFactory));
+  }
+
+  /** Tests detecting MIME types concurrently from several threads. */
+  public void testConcurrentDetection() throws Exception {
+    final String[][] expected = {
+        { "a/big.htm", "text/html" }, { "a/big.xml", "text/xml" },
+        { "a/big.pdf", "application/pdf" },
+        { "a/big.doc", "application/msword" },
+        { "a/big", "text/plain" } };
+    final byte[] text = "I am a string of text".getBytes();
+    final AtomicReference<String> failure = new AtomicReference<String>();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+          @Override
+          public void run() {
+            for (int j = 0; j < 500; j++) {
+              String[] pair = expected[j % expected.length];
+              // Only the file with no extension is detected by content.
+              String actual = mimeTypeDetector.getMimeType(pair[0],
+                  pair[0].indexOf('.') < 0 ? text : null);
+              if (!pair[1].equals(actual)) {
+                failure.compareAndSet(null, pair[0] + ": " + actual);
+              }
+            }
+          }
+        };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(failure.get(), failure.get());
+  }
+
   private static class NotUsedInputStreamFactory implements InputStreamFactory {
     public InputStream getInputStream() {
       throw new UnsupportedOperationException();
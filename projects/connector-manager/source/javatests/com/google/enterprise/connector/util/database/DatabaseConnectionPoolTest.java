@@ -19,11 +19,15 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 
+import com.google.enterprise.connector.util.testing.AdjustableClock;
+
 import org.h2.jdbcx.JdbcDataSource;
 
 import junit.framework.TestCase;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import javax.sql.DataSource;
@@ -125,6 +129,246 @@ public class DatabaseConnectionPoolTest extends TestCase {
     verify(ds, alive, deadAfterSomeTime);
   }
 
+  public void testMaxConnections() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    Connection c2 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1).andReturn(c2);
+    expect(c1.isValid(1)).andReturn(true);
+    replay(ds, c1, c2);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setMaxConnections(2);
+    pool.setMaxWaitMillis(10);
+    assertEquals(c1, pool.getConnection());
+    assertEquals(c2, pool.getConnection());
+    assertEquals(2, pool.getActiveCount());
+    try {
+      pool.getConnection();
+      fail("Expected SQLException");
+    } catch (SQLException expected) {
+      assertTrue(expected.getMessage(),
+                 expected.getMessage().startsWith("Timed out"));
+    }
+
+    // A released connection may be taken again.
+    pool.releaseConnection(c1);
+    assertEquals(c1, pool.getConnection());
+    verify(ds, c1, c2);
+  }
+
+  public void testIllegalSettings() {
+    DatabaseConnectionPool pool =
+        new DatabaseConnectionPool(createMock(DataSource.class));
+    try {
+      pool.setMaxConnections(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      pool.setStatementCacheSize(0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testValidationInterval() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1);
+    // Not validated when reused within the interval, but checked if closed.
+    expect(c1.isClosed()).andReturn(false);
+    expect(c1.isValid(1)).andReturn(true);
+    replay(ds, c1);
+
+    AdjustableClock clock = new AdjustableClock();
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setClock(clock);
+    pool.setValidationIntervalMillis(1000);
+
+    pool.releaseConnection(pool.getConnection());
+    clock.adjustTime(500);
+    assertEquals(c1, pool.getConnection());
+    pool.releaseConnection(c1);
+    clock.adjustTime(1000);
+    assertEquals(c1, pool.getConnection());
+    verify(ds, c1);
+  }
+
+  public void testMaxLifetime() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    Connection c2 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1).andReturn(c2);
+    expect(c1.isValid(1)).andReturn(true);
+    c1.close();
+    replay(ds, c1, c2);
+
+    AdjustableClock clock = new AdjustableClock();
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setClock(clock);
+    pool.setMaxLifetimeMillis(1000);
+
+    assertEquals(c1, pool.getConnection());
+    pool.releaseConnection(c1);
+    clock.adjustTime(600);
+    assertEquals(c1, pool.getConnection());
+    clock.adjustTime(600);
+    // Expired connections are closed when released.
+    pool.releaseConnection(c1);
+    assertEquals(0, pool.getIdleCount());
+    assertEquals(c2, pool.getConnection());
+    verify(ds, c1, c2);
+  }
+
+  public void testMaxIdleTime() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    Connection c2 = createMock(Connection.class);
+    Connection c3 = createMock(Connection.class);
+    Connection c4 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1).andReturn(c2).andReturn(c3)
+        .andReturn(c4);
+    c1.close();
+    c2.close();
+    c3.close();
+    replay(ds, c1, c2, c3, c4);
+
+    AdjustableClock clock = new AdjustableClock();
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setClock(clock);
+    pool.setMaxIdleMillis(1000);
+
+    assertEquals(c1, pool.getConnection());
+    assertEquals(c2, pool.getConnection());
+    assertEquals(c3, pool.getConnection());
+    pool.releaseConnection(c1);
+    clock.adjustTime(600);
+    pool.releaseConnection(c2);
+    clock.adjustTime(600);
+    // Releasing c3 evicts c1.
+    pool.releaseConnection(c3);
+    assertEquals(2, pool.getIdleCount());
+    clock.adjustTime(1000);
+    // Taking a connection discards the idle ones, and opens a new one.
+    assertEquals(c4, pool.getConnection());
+    assertEquals(0, pool.getIdleCount());
+    verify(ds, c1, c2, c3, c4);
+  }
+
+  public void testStatementCache() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    PreparedStatement s1 = createMock(PreparedStatement.class);
+    PreparedStatement s2 = createMock(PreparedStatement.class);
+    expect(ds.getConnection()).andReturn(c1);
+    expect(c1.prepareStatement("one")).andReturn(s1);
+    expect(c1.prepareStatement("two")).andReturn(s2);
+    expect(c1.isValid(1)).andReturn(true);
+    s1.clearParameters();
+    s1.clearBatch();
+    // s1 is evicted from the cache, then s2 is closed with the connection.
+    s1.close();
+    s2.close();
+    c1.close();
+    replay(ds, c1, s1, s2);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setStatementCacheSize(1);
+    Connection connection = pool.getConnection();
+    assertSame(s1, pool.prepareStatement(connection, "one"));
+    pool.releaseConnection(connection);
+    connection = pool.getConnection();
+    assertSame(s1, pool.prepareStatement(connection, "one"));
+    assertSame(s2, pool.prepareStatement(connection, "two"));
+    pool.releaseConnection(connection);
+    pool.closeConnections();
+    verify(ds, c1, s1, s2);
+  }
+
+  public void testPrepareStatementNotBorrowed() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1);
+    replay(ds, c1);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.releaseConnection(pool.getConnection());
+    try {
+      pool.prepareStatement(c1, "SELECT 1");
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+    }
+    verify(ds, c1);
+  }
+
+  public void testStatistics() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    Connection c2 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1).andReturn(c2);
+    expect(c1.isValid(1)).andReturn(true);
+    replay(ds, c1, c2);
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    Connection connection = pool.getConnection();
+    pool.releaseConnection(connection);
+    assertEquals(c1, pool.getConnection());
+    assertEquals(c2, pool.getConnection());
+    assertEquals(3, pool.getBorrowCount());
+    assertEquals(2, pool.getCreateCount());
+    assertEquals(2, pool.getActiveCount());
+    assertEquals(0, pool.getIdleCount());
+    assertTrue(pool.toString(),
+               pool.toString().contains("borrowCount = 3"));
+    verify(ds, c1, c2);
+  }
+
+  public void testLeakCount() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    Connection c2 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1).andReturn(c2);
+    replay(ds, c1, c2);
+
+    AdjustableClock clock = new AdjustableClock();
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setClock(clock);
+    pool.setLeakThresholdMillis(1000);
+
+    assertEquals(c1, pool.getConnection());
+    clock.adjustTime(1500);
+    // Leaks are reported as connections are taken.
+    assertEquals(c2, pool.getConnection());
+    assertEquals(1, pool.getLeakCount());
+    verify(ds, c1, c2);
+  }
+
+  public void testLeakReportedWhenExhausted() throws SQLException {
+    DataSource ds = createMock(DataSource.class);
+    Connection c1 = createMock(Connection.class);
+    expect(ds.getConnection()).andReturn(c1);
+    replay(ds, c1);
+
+    AdjustableClock clock = new AdjustableClock();
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    pool.setClock(clock);
+    pool.setMaxConnections(1);
+    pool.setMaxWaitMillis(1);
+    pool.setLeakThresholdMillis(1000);
+
+    assertEquals(c1, pool.getConnection());
+    clock.adjustTime(1500);
+    // The leaked connection exhausts the pool, and is reported.
+    try {
+      pool.getConnection();
+      fail("Expected SQLException");
+    } catch (SQLException expected) {
+    }
+    assertEquals(1, pool.getLeakCount());
+    verify(ds, c1);
+  }
+
   public void testConnectionPoolwithH2() throws SQLException {
     // Setup in-memory H2 JDBC DataSource;
     JdbcDataSource ds = new JdbcDataSource();
@@ -149,4 +393,27 @@ public class DatabaseConnectionPoolTest extends TestCase {
     pool.closeConnections();    
     assertTrue(newOne.isClosed());
   }
+
+  public void testStatementCacheWithH2() throws SQLException {
+    JdbcDataSource ds = new JdbcDataSource();
+    ds.setURL("jdbc:h2:mem:testdb");
+    ds.setUser("sa");
+    ds.setPassword("sa");
+
+    DatabaseConnectionPool pool = new DatabaseConnectionPool(ds);
+    Connection c = pool.getConnection();
+    PreparedStatement stmt = pool.prepareStatement(c, "SELECT ?");
+    stmt.setInt(1, 42);
+    ResultSet rs = stmt.executeQuery();
+    assertTrue(rs.next());
+    assertEquals(42, rs.getInt(1));
+    rs.close();
+    pool.releaseConnection(c);
+
+    c = pool.getConnection();
+    assertSame(stmt, pool.prepareStatement(c, "SELECT ?"));
+    pool.releaseConnection(c);
+    pool.closeConnections();
+    assertTrue(stmt.isClosed());
+  }
 }
@@ -18,9 +18,12 @@ import junit.framework.TestCase;
 
 import org.h2.jdbcx.JdbcDataSource;
 
+import java.lang.management.ManagementFactory;
 import java.sql.Connection;
 import java.sql.SQLException;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.sql.DataSource;
 
 /**
@@ -125,5 +128,26 @@ public class JdbcDatabaseTest extends TestCase {
   public void testMakeTableNameHyphenatedConnectorName() throws Exception {
     checkMakeTableName("googe_documents_", "hyphenated-name", 64);
   }
-}
 
+  // Tests that the connection pool statistics are exposed through JMX.
+  public void testPoolMBean() throws Exception {
+    // Databases are not registered unless asked.
+    assertNull(database.getPoolMBeanName());
+    database.registerPoolMBean();
+    ObjectName name = database.getPoolMBeanName();
+    assertNotNull(name);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    assertTrue(server.isRegistered(name));
+
+    Connection connection = database.getConnectionPool().getConnection();
+    try {
+      assertEquals(1, server.getAttribute(name, "ActiveCount"));
+    } finally {
+      database.getConnectionPool().releaseConnection(connection);
+    }
+
+    database.shutdown();
+    assertFalse(server.isRegistered(name));
+    assertNull(database.getPoolMBeanName());
+  }
+}
@@ -0,0 +1,192 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.enterprise.connector.util.diffing;
+
+import com.google.common.base.Charsets;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+
+/**
+ * Tests for {@link BinarySnapshotWriter} and reading binary snapshots
+ * with {@link SnapshotReader}.
+ */
+public class BinarySnapshotWriterTest extends TestCase {
+  private ByteArrayOutputStream out;
+
+  @Override
+  protected void setUp() {
+    out = new ByteArrayOutputStream();
+  }
+
+  private BinarySnapshotWriter newWriter(boolean compress, int syncRecords)
+      throws SnapshotWriterException {
+    return new BinarySnapshotWriter(out, null, "test", compress,
+                                    syncRecords, 0L);
+  }
+
+  private static MockDocumentSnapshot snapshot(int k) {
+    // Make the records large enough to span several blocks.
+    char[] padding = new char[200];
+    Arrays.fill(padding, (char) ('a' + (k % 26)));
+    return new MockDocumentSnapshot(String.format("%06d", k),
+        "extra.é中." + new String(padding));
+  }
+
+  private void writeRecords(SnapshotWriter writer, int count)
+      throws SnapshotWriterException {
+    for (int k = 0; k < count; ++k) {
+      writer.write(snapshot(k));
+    }
+  }
+
+  private SnapshotReader newReader(byte[] bytes)
+      throws SnapshotReaderException {
+    return new SnapshotReader(new ByteArrayInputStream(bytes), "test", 1,
+        new MockDocumentSnapshotFactory());
+  }
+
+  private void checkRecords(byte[] bytes, int count) throws Exception {
+    SnapshotReader reader = newReader(bytes);
+    for (int k = 0; k < count; ++k) {
+      assertEquals(snapshot(k), reader.read());
+      assertEquals(k + 1, reader.getRecordNumber());
+    }
+    assertNull(reader.read());
+    reader.close();
+  }
+
+  public void testEmpty() throws Exception {
+    newWriter(false, 1).close();
+    assertEquals(BinarySnapshot.HEADER_LENGTH, out.size());
+    checkRecords(out.toByteArray(), 0);
+  }
+
+  public void testUncompressed() throws Exception {
+    SnapshotWriter writer = newWriter(false, Integer.MAX_VALUE);
+    writeRecords(writer, 1000);
+    writer.close();
+    assertEquals(1000, writer.getRecordCount());
+    assertEquals(1000, writer.getSyncedRecordCount());
+    checkRecords(out.toByteArray(), 1000);
+  }
+
+  public void testCompressed() throws Exception {
+    SnapshotWriter writer = newWriter(true, Integer.MAX_VALUE);
+    writeRecords(writer, 1000);
+    writer.close();
+    byte[] compressed = out.toByteArray();
+    checkRecords(compressed, 1000);
+
+    out = new ByteArrayOutputStream();
+    writer = newWriter(false, Integer.MAX_VALUE);
+    writeRecords(writer, 1000);
+    writer.close();
+    assertTrue(compressed.length < out.size() / 4);
+  }
+
+  public void testSyncWritesBlock() throws Exception {
+    SnapshotWriter writer = newWriter(true, 3);
+    writeRecords(writer, 2);
+    assertEquals(0, writer.getSyncedRecordCount());
+    assertEquals(BinarySnapshot.HEADER_LENGTH, out.size());
+    writer.write(snapshot(2));
+    assertEquals(3, writer.getSyncedRecordCount());
+    checkRecords(out.toByteArray(), 3);
+    writer.close();
+  }
+
+  public void testSkipRecords() throws Exception {
+    SnapshotWriter writer = newWriter(true, 7);
+    writeRecords(writer, 1000);
+    writer.close();
+
+    for (int skip : new int[] { 0, 1, 6, 7, 8, 500, 999, 1000 }) {
+      SnapshotReader reader = newReader(out.toByteArray());
+      reader.skipRecords(skip);
+      if (skip < 1000) {
+        assertEquals(snapshot(skip), reader.read());
+      } else {
+        assertNull(reader.read());
+      }
+      reader.close();
+    }
+  }
+
+  public void testSkipTooManyRecords() throws Exception {
+    SnapshotWriter writer = newWriter(false, 10);
+    writeRecords(writer, 25);
+    writer.close();
+    SnapshotReader reader = newReader(out.toByteArray());
+    try {
+      reader.skipRecords(26);
+      fail("Expected SnapshotReaderException");
+    } catch (SnapshotReaderException expected) {
+      // Expected.
+    }
+  }
+
+  /** A snapshot that ends in a partial block, as after a crash. */
+  public void testPartialBlock() throws Exception {
+    SnapshotWriter writer = newWriter(false, 10);
+    writeRecords(writer, 20);
+    int synced = out.size();
+    writeRecords(writer, 10);
+    writer.close();
+    byte[] bytes = out.toByteArray();
+    for (int length = synced; length < bytes.length; length += 101) {
+      checkRecords(Arrays.copyOf(bytes, length), 20);
+    }
+  }
+
+  /** A snapshot whose last block is corrupt, as after a crash. */
+  public void testCorruptLastBlock() throws Exception {
+    SnapshotWriter writer = newWriter(true, 10);
+    writeRecords(writer, 30);
+    writer.close();
+    byte[] bytes = out.toByteArray();
+    bytes[bytes.length - 5] ^= 0xFF;
+    checkRecords(bytes, 20);
+  }
+
+  public void testCorruptBlock() throws Exception {
+    SnapshotWriter writer = newWriter(false, 10);
+    writeRecords(writer, 10);
+    int corrupt = out.size() - 5;
+    writeRecords(writer, 10);
+    writer.close();
+    byte[] bytes = out.toByteArray();
+    bytes[corrupt] ^= 0xFF;
+    SnapshotReader reader = newReader(bytes);
+    try {
+      reader.read();
+      fail("Expected SnapshotReaderException");
+    } catch (SnapshotReaderException expected) {
+      // Expected.
+    }
+  }
+
+  public void testTextSnapshot() throws Exception {
+    SnapshotWriter writer = new SnapshotWriter(
+        new OutputStreamWriter(out, Charsets.UTF_8), null, "test");
+    writeRecords(writer, 100);
+    writer.close();
+    checkRecords(out.toByteArray(), 100);
+  }
+}
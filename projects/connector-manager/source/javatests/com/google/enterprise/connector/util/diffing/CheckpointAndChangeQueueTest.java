@@ -28,6 +28,7 @@ import junit.framework.TestCase;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
@@ -633,6 +634,120 @@ public class CheckpointAndChangeQueueTest extends TestCase {
     assertTrue(1 == persistDir.listFiles().length);
   }
 
+  public void testJournalAppendsToRecoveryFile() throws IOException {
+    ChangeSource changeSource = new MockChangeSource(20);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.start(null);
+    List<CheckpointAndChange> batch = q.resume(null);
+    File[] files = persistDir.listFiles();
+    assertEquals(1, files.length);
+    File recoveryFile = files[0];
+    long length = recoveryFile.length();
+
+    for (int i = 0; i < 5; i++) {
+      String checkpoint = batch.get(1).getCheckpoint().toString();
+      batch = q.resume(checkpoint);
+      files = persistDir.listFiles();
+      assertEquals(1, files.length);
+      assertEquals(recoveryFile, files[0]);
+      assertTrue(recoveryFile.length() > length);
+      length = recoveryFile.length();
+    }
+
+    // Resuming without changes does not append to the journal.
+    String checkpoint = batch.get(0).getCheckpoint().toString();
+    q.resume(checkpoint);
+    length = recoveryFile.length();
+    q.resume(checkpoint);
+    assertEquals(length, recoveryFile.length());
+  }
+
+  public void testJournalCompaction() throws IOException {
+    ChangeSource changeSource = new MockChangeSource(20);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.setMinimumCompactionBytes(0L);
+    q.start(null);
+    List<CheckpointAndChange> batch = q.resume(null);
+    String original = persistDir.listFiles()[0].getName();
+
+    // The journal soon outgrows the snapshot of two changes.
+    String checkpoint = null;
+    for (int i = 0; i < 4; i++) {
+      checkpoint = batch.get(1).getCheckpoint().toString();
+      batch = q.resume(checkpoint);
+      assertEquals(1, persistDir.listFiles().length);
+    }
+    assertFalse(original.equals(persistDir.listFiles()[0].getName()));
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    q2.start(checkpoint);
+    assertEquals(batch, q2.resume(checkpoint));
+    assertEquals(q.getMonitorRestartPoints(), q2.getMonitorRestartPoints());
+  }
+
+  public void testRecoveryDiscardsIncompleteJournalRecord()
+      throws IOException {
+    ChangeSource changeSource = new MockChangeSource(10);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.start(null);
+    List<CheckpointAndChange> firstBatch = q.resume(null);
+    String checkpoint = firstBatch.get(1).getCheckpoint().toString();
+    List<CheckpointAndChange> secondBatch = q.resume(checkpoint);
+
+    // Simulate a crash while appending a record.
+    File recoveryFile = persistDir.listFiles()[0];
+    long length = recoveryFile.length();
+    FileWriter writer = new FileWriter(recoveryFile, true);
+    writer.write("\n0badf00d {\"DONE\":");
+    writer.close();
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    q2.start(checkpoint);
+    assertEquals(length, recoveryFile.length());
+    assertEquals(secondBatch, q2.resume(null));
+  }
+
+  public void testRecoveryDiscardsCorruptJournalRecord() throws IOException {
+    ChangeSource changeSource = new MockChangeSource(10);
+    CheckpointAndChangeQueue q = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q.setMaximumQueueSize(2);
+    q.start(null);
+    // The returned list is a view of the queue, so copy it.
+    List<CheckpointAndChange> firstBatch =
+        new ArrayList<CheckpointAndChange>(q.resume(null));
+    File recoveryFile = persistDir.listFiles()[0];
+    long length = recoveryFile.length();
+    String checkpoint = firstBatch.get(1).getCheckpoint().toString();
+    q.resume(checkpoint);
+
+    // Damage the last byte of the journal record, so its checksum fails.
+    RandomAccessFile raf = new RandomAccessFile(recoveryFile, "rw");
+    try {
+      raf.seek(raf.length() - 1);
+      raf.write(' ');
+    } finally {
+      raf.close();
+    }
+
+    CheckpointAndChangeQueue q2 = new CheckpointAndChangeQueue(changeSource,
+        persistDir, internalFactory, clientFactory);
+    q2.setMaximumQueueSize(2);
+    q2.start(checkpoint);
+    assertEquals(length, recoveryFile.length());
+    assertEquals(firstBatch, q2.resume(null));
+  }
+
   public void testTrackingMonitorState() throws IOException {
     final String MON_A = "A Monitor";
     final String MON_B = "I am mon B";
@@ -15,10 +15,17 @@
 package com.google.enterprise.connector.util.diffing;
 
 import com.google.enterprise.connector.spi.TraversalSchedule;
+import com.google.enterprise.connector.util.BasicChecksumGenerator;
+import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
 
 import junit.framework.TestCase;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Tests for {@link DocumentSnapshotRepositoryMonitorManagerImpl}.
@@ -104,4 +111,242 @@ public class DocumentSnapshotRepositoryMonitorManagerImplTest extends TestCase {
         false, false));
     assertEquals(8074000, queue.getSleepInterval());
   }
+
+  /** Tests that the default sync intervals depend on the snapshot format. */
+  public void testSnapshotSyncDefaults() {
+    DocumentSnapshotRepositoryMonitorManagerImpl manager =
+        new DocumentSnapshotRepositoryMonitorManagerImpl(
+            new ArrayList<SnapshotRepository<? extends DocumentSnapshot>>(),
+            null, null, null, new ChangeQueue(10, 0L, null), null);
+
+    assertEquals(1, manager.getSnapshotSyncRecords());
+    assertEquals(0L, manager.getSnapshotSyncMillis());
+
+    manager.setSnapshotFormat(SnapshotFormat.BINARY_COMPRESSED);
+    assertEquals(DocumentSnapshotRepositoryMonitorManagerImpl
+        .BINARY_SYNC_RECORDS, manager.getSnapshotSyncRecords());
+    assertEquals(DocumentSnapshotRepositoryMonitorManagerImpl
+        .BINARY_SYNC_MILLIS, manager.getSnapshotSyncMillis());
+
+    manager.setSnapshotSyncRecords(1);
+    manager.setSnapshotSyncMillis(0L);
+    assertEquals(1, manager.getSnapshotSyncRecords());
+    assertEquals(0L, manager.getSnapshotSyncMillis());
+  }
+
+  /** A snapshot of a document that is new to the repository. */
+  private static class NewDocumentSnapshot extends MockDocumentSnapshot {
+    NewDocumentSnapshot(String documentId) {
+      super(documentId, "extra");
+    }
+
+    @Override
+    public DocumentHandle getUpdate(DocumentSnapshot onGsa) {
+      return new MockDocumentHandle(getDocumentId(), getExtra());
+    }
+  }
+
+  /** A repository of new documents with IDs in the range [start, end). */
+  private static class RangeRepository
+      implements SnapshotRepository<DocumentSnapshot> {
+    private final String name;
+    private final List<DocumentSnapshot> snapshots =
+        new ArrayList<DocumentSnapshot>();
+
+    RangeRepository(String name, int start, int end) {
+      this.name = name;
+      for (int k = start; k < end; ++k) {
+        snapshots.add(new NewDocumentSnapshot(String.format("doc%03d", k)));
+      }
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public Iterator<DocumentSnapshot> iterator() {
+      return snapshots.iterator();
+    }
+
+    List<String> getDocumentIds() {
+      List<String> documentIds = new ArrayList<String>();
+      for (DocumentSnapshot snapshot : snapshots) {
+        documentIds.add(snapshot.getDocumentId());
+      }
+      return documentIds;
+    }
+  }
+
+  /** A repository split into three partitions. */
+  private static class ThreePartitionRepository extends RangeRepository
+      implements PartitionedSnapshotRepository<DocumentSnapshot> {
+    ThreePartitionRepository() {
+      super("partitioned", 0, 30);
+    }
+
+    @Override
+    public List<RangeRepository> getPartitions() {
+      List<RangeRepository> partitions = new ArrayList<RangeRepository>();
+      partitions.add(new RangeRepository("partitioned/0", 0, 10));
+      partitions.add(new RangeRepository("partitioned/1", 10, 20));
+      partitions.add(new RangeRepository("partitioned/2", 20, 30));
+      return partitions;
+    }
+  }
+
+  /** A repository that fails after returning some of its documents. */
+  private static class FailingRangeRepository extends RangeRepository {
+    private final int failAfter;
+
+    FailingRangeRepository(String name, int start, int end, int failAfter) {
+      super(name, start, end);
+      this.failAfter = failAfter;
+    }
+
+    @Override
+    public Iterator<DocumentSnapshot> iterator() {
+      final Iterator<DocumentSnapshot> iterator = super.iterator();
+      return new Iterator<DocumentSnapshot>() {
+        private int count = 0;
+
+        @Override
+        public boolean hasNext() {
+          return iterator.hasNext();
+        }
+
+        @Override
+        public DocumentSnapshot next() {
+          if (count++ == failAfter) {
+            throw new SnapshotRepositoryRuntimeException("Failed mid-pass",
+                new Exception());
+          }
+          return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+
+  /** A repository split into three partitions, the second of which fails. */
+  private static class FailingPartitionRepository extends RangeRepository
+      implements PartitionedSnapshotRepository<DocumentSnapshot> {
+    FailingPartitionRepository() {
+      super("partitioned", 0, 30);
+    }
+
+    @Override
+    public List<RangeRepository> getPartitions() {
+      List<RangeRepository> partitions = new ArrayList<RangeRepository>();
+      partitions.add(new RangeRepository("partitioned/0", 0, 10));
+      partitions.add(new FailingRangeRepository("partitioned/1", 10, 20, 5));
+      partitions.add(new RangeRepository("partitioned/2", 20, 30));
+      return partitions;
+    }
+  }
+
+  /**
+   * Tests that each partition of a {@link PartitionedSnapshotRepository}
+   * is monitored by its own thread, with its own checkpoints, and that
+   * the changes are merged in document ID order.
+   */
+  public void testPartitionedRepository() throws Exception {
+    TestDirectoryManager testDirectoryManager = new TestDirectoryManager(this);
+    File snapshotDir = testDirectoryManager.makeDirectory("snapshots");
+    File persistDir = testDirectoryManager.makeDirectory("queue");
+    ChangeQueue queue = new ChangeQueue(100, 60000L,
+        new ChangeQueue.DefaultCrawlActivityLogger());
+    CheckpointAndChangeQueue checkpointAndChangeQueue =
+        new CheckpointAndChangeQueue(queue, persistDir,
+        new DeleteDocumentHandleFactory(), new MockDocumentHandleFactory());
+    List<SnapshotRepository<? extends DocumentSnapshot>> repositories =
+        new ArrayList<SnapshotRepository<? extends DocumentSnapshot>>();
+    repositories.add(new ThreePartitionRepository());
+
+    DocumentSnapshotRepositoryMonitorManagerImpl manager =
+        new DocumentSnapshotRepositoryMonitorManagerImpl(repositories,
+            new MockDocumentSnapshotFactory(), snapshotDir,
+            new BasicChecksumGenerator("SHA1"), queue,
+            checkpointAndChangeQueue);
+    manager.setTraversalSchedule(new MockTraversalSchedule());
+    manager.start(null);
+    try {
+      assertEquals(3, manager.getThreadCount());
+
+      List<String> documentIds = new ArrayList<String>();
+      Set<String> monitorNames = new HashSet<String>();
+      long deadline = System.currentTimeMillis() + 10000L;
+      while (documentIds.size() < 30
+             && System.currentTimeMillis() < deadline) {
+        Change change = queue.getNextChange();
+        if (change != null) {
+          documentIds.add(change.getDocumentHandle().getDocumentId());
+          monitorNames.add(change.getMonitorCheckpoint().getMonitorName());
+        }
+      }
+      assertEquals(new RangeRepository("expected", 0, 30).getDocumentIds(),
+          documentIds);
+      assertEquals(3, monitorNames.size());
+      assertEquals(3, snapshotDir.listFiles().length);
+    } finally {
+      manager.stop();
+    }
+  }
+
+  /**
+   * Tests that a partition whose pass fails, and whose monitor then
+   * stops, does not stop the changes from the other partitions.
+   */
+  public void testFailingPartition() throws Exception {
+    TestDirectoryManager testDirectoryManager = new TestDirectoryManager(this);
+    File snapshotDir = testDirectoryManager.makeDirectory("snapshots");
+    File persistDir = testDirectoryManager.makeDirectory("queue");
+    ChangeQueue queue = new ChangeQueue(100, 60000L,
+        new ChangeQueue.DefaultCrawlActivityLogger());
+    CheckpointAndChangeQueue checkpointAndChangeQueue =
+        new CheckpointAndChangeQueue(queue, persistDir,
+        new DeleteDocumentHandleFactory(), new MockDocumentHandleFactory());
+    List<SnapshotRepository<? extends DocumentSnapshot>> repositories =
+        new ArrayList<SnapshotRepository<? extends DocumentSnapshot>>();
+    repositories.add(new FailingPartitionRepository());
+
+    DocumentSnapshotRepositoryMonitorManagerImpl manager =
+        new DocumentSnapshotRepositoryMonitorManagerImpl(repositories,
+            new MockDocumentSnapshotFactory(), snapshotDir,
+            new BasicChecksumGenerator("SHA1"), queue,
+            checkpointAndChangeQueue);
+    manager.setTraversalSchedule(new MockTraversalSchedule());
+    // Without an initial checkpoint, the failed monitor cannot recover.
+    manager.start(null);
+    try {
+      List<String> documentIds = new ArrayList<String>();
+      long deadline = System.currentTimeMillis() + 10000L;
+      while (!documentIds.contains("doc029")
+             && System.currentTimeMillis() < deadline) {
+        Change change = queue.getNextChange();
+        if (change != null) {
+          documentIds.add(change.getDocumentHandle().getDocumentId());
+        }
+      }
+
+      // The first partition, whatever the second partition delivered
+      // before it failed, then the third partition.
+      List<String> expected = new RangeRepository("expected", 0, 10)
+          .getDocumentIds();
+      int failed = documentIds.size() - 20;
+      assertTrue(documentIds.toString(), failed >= 0 && failed <= 5);
+      expected.addAll(new RangeRepository("expected", 10, 10 + failed)
+          .getDocumentIds());
+      expected.addAll(new RangeRepository("expected", 20, 30)
+          .getDocumentIds());
+      assertEquals(expected, documentIds);
+    } finally {
+      manager.stop();
+    }
+  }
 }
@@ -16,9 +16,18 @@ package com.google.enterprise.connector.util.diffing;
 
 import com.google.enterprise.connector.spi.TraversalSchedule;
 import com.google.enterprise.connector.util.diffing.DocumentSnapshotRepositoryMonitor;
+import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager;
 
 import junit.framework.TestCase;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * Tests for {@link DocumentSnapshotRepositoryMonitor}.
  */
@@ -160,4 +169,147 @@ public class DocumentSnapshotRepositoryMonitorTest extends TestCase {
           "but got NullPointerException instead.");
     }
   }
+
+  /** A snapshot of a document that is new to the repository. */
+  private static class NewDocumentSnapshot extends MockDocumentSnapshot {
+    NewDocumentSnapshot(String documentId) {
+      super(documentId, "extra");
+    }
+
+    @Override
+    public DocumentHandle getUpdate(DocumentSnapshot onGsa) {
+      return new MockDocumentHandle(getDocumentId(), getExtra());
+    }
+  }
+
+  /** A repository of new documents. */
+  private static class NewDocumentRepository
+      implements SnapshotRepository<DocumentSnapshot> {
+    private final List<DocumentSnapshot> snapshots =
+        new ArrayList<DocumentSnapshot>();
+
+    NewDocumentRepository(int count) {
+      for (int k = 0; k < count; ++k) {
+        snapshots.add(new NewDocumentSnapshot(String.format("doc%03d", k)));
+      }
+    }
+
+    @Override
+    public String getName() {
+      return "new";
+    }
+
+    @Override
+    public Iterator<DocumentSnapshot> iterator() {
+      return snapshots.iterator();
+    }
+  }
+
+  /**
+   * A callback that verifies that the snapshot records each checkpoint
+   * refers to are already in the snapshot file, and stops the monitor at
+   * the end of the first pass.
+   */
+  private static class DurabilityCheckingCallback
+      extends NullCallback {
+    private final File snapshotFile;
+    final List<String> documentIds = new ArrayList<String>();
+    MonitorCheckpoint lastCheckpoint;
+
+    DurabilityCheckingCallback(File snapshotFile) {
+      this.snapshotFile = snapshotFile;
+    }
+
+    @Override
+    public void newDocument(DocumentHandle dh, MonitorCheckpoint mcp) {
+      assertDurable(mcp);
+      documentIds.add(dh.getDocumentId());
+    }
+
+    @Override
+    public void passComplete(MonitorCheckpoint mcp)
+        throws InterruptedException {
+      assertDurable(mcp);
+      lastCheckpoint = mcp;
+      throw new InterruptedException();
+    }
+
+    private void assertDurable(MonitorCheckpoint mcp) {
+      try {
+        SnapshotReader reader = new SnapshotReader(new BufferedReader(
+            new FileReader(snapshotFile)), snapshotFile.getPath(), 1,
+            new MockDocumentSnapshotFactory());
+        try {
+          long count = 0;
+          while (reader.read() != null) {
+            count++;
+          }
+          assertTrue("Checkpoint " + mcp + " refers to unsynced records; "
+              + count + " records on disk.", mcp.getOffset2() <= count);
+        } finally {
+          reader.close();
+        }
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      } catch (SnapshotReaderException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  /** A callback that ignores everything. */
+  private static class NullCallback
+      implements DocumentSnapshotRepositoryMonitor.Callback {
+    @Override
+    public void passBegin() {}
+
+    @Override
+    public void changedDocument(DocumentHandle dh, MonitorCheckpoint mcp)
+        throws InterruptedException {}
+
+    @Override
+    public void deletedDocument(DocumentHandle dh, MonitorCheckpoint mcp)
+        throws InterruptedException {}
+
+    @Override
+    public void newDocument(DocumentHandle dh, MonitorCheckpoint mcp)
+        throws InterruptedException {}
+
+    @Override
+    public void passComplete(MonitorCheckpoint mcp)
+        throws InterruptedException {}
+
+    @Override
+    public boolean hasEnqueuedAtLeastOneChangeThisPass() {
+      return true;
+    }
+
+    @Override
+    public void passPausing(int sleepms) throws InterruptedException {}
+  }
+
+  /**
+   * Tests that with group commit, changes are delivered in order, and
+   * only once the snapshot records their checkpoints refer to are synced.
+   */
+  public void testGroupCommitCheckpointsAreDurable() throws Exception {
+    TestDirectoryManager testDirectoryManager = new TestDirectoryManager(this);
+    File snapshotDir = testDirectoryManager.makeDirectory("snapshots");
+    SnapshotStore store = new SnapshotStore(snapshotDir,
+        new MockDocumentSnapshotFactory(), 7, 0L);
+    DurabilityCheckingCallback callback =
+        new DurabilityCheckingCallback(new File(snapshotDir, "snap.1"));
+    DocumentSnapshotRepositoryMonitor monitor =
+        new DocumentSnapshotRepositoryMonitor("test",
+            new NewDocumentRepository(25), store, callback, null, null,
+            new MockDocumentSnapshotFactory());
+    monitor.run();
+
+    assertEquals(25, callback.documentIds.size());
+    for (int k = 0; k < 25; ++k) {
+      assertEquals(String.format("doc%03d", k), callback.documentIds.get(k));
+    }
+    assertNotNull(callback.lastCheckpoint);
+    assertEquals(25, callback.lastCheckpoint.getOffset2());
+  }
 }
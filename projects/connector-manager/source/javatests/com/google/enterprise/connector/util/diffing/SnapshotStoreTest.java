@@ -20,7 +20,9 @@ import com.google.enterprise.connector.util.diffing.testing.TestDirectoryManager
 
 import junit.framework.TestCase;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.util.Set;
 
@@ -163,6 +165,106 @@ public class SnapshotStoreTest extends TestCase {
     store.close(reader, null);
   }
 
+  /**
+   * Make sure that a group committed snapshot that was not closed, as
+   * after a crash, can be recovered from a checkpoint that refers only
+   * to synced records.
+   */
+  public void testGroupCommitRecovery() throws Exception {
+    store = new SnapshotStore(snapshotDir, new MockDocumentSnapshotFactory(),
+        10, 0L);
+
+    // Create the first snapshot with modification time 12345.
+    SnapshotWriter ss1 = store.openNewSnapshotWriter();
+    writeRecords(ss1, "12345");
+    store.close(null, ss1);
+
+    // Write part of a second snapshot, and then "crash" without closing it.
+    SnapshotWriter ss2 = store.openNewSnapshotWriter();
+    try {
+      for (int k = 0; k < 25; ++k) {
+        ss2.write(new MockDocumentSnapshot(k + ".23456", "extra.k"));
+      }
+      assertEquals(25, ss2.getRecordCount());
+      assertEquals(20, ss2.getSyncedRecordCount());
+
+      // Only the synced records are in the snapshot file.
+      SnapshotReader partial = new SnapshotReader(new BufferedReader(
+          new FileReader(new File(snapshotDir, "snap.2"))), "snap.2", 2,
+          new MockDocumentSnapshotFactory());
+      int count = 0;
+      while (partial.read() != null) {
+        count++;
+      }
+      partial.close();
+      assertEquals(20, count);
+
+      // The last checkpoint the monitor could have issued.
+      MonitorCheckpoint cp =
+          new MonitorCheckpoint("foo", 1, 20, ss2.getSyncedRecordCount());
+      SnapshotStore.stitch(snapshotDir, cp, new MockDocumentSnapshotFactory());
+    } finally {
+      ss2.getOutput().close();
+    }
+
+    SnapshotStore after = new SnapshotStore(snapshotDir,
+        new MockDocumentSnapshotFactory());
+    SnapshotReader reader = after.openMostRecentSnapshot();
+    assertEquals(3, reader.getSnapshotNumber());
+
+    // Snapshot should contain the 20 synced records from snapshot 2 and
+    // the rest from snapshot 1.
+    for (int k = 0; k < 100; ++k) {
+      DocumentSnapshot rec = reader.read();
+      assertNotNull(rec);
+      String suffix = (k < 20) ? "23456" : "12345";
+      assertTrue(rec.getDocumentId().endsWith(suffix));
+    }
+    assertNull(reader.read());
+    after.close(reader, null);
+  }
+
+  /**
+   * Make sure that a store writing binary snapshots can read existing
+   * text snapshots, and recover from a checkpoint spanning both formats.
+   */
+  public void testMigrateToBinary() throws Exception {
+    // Create the first snapshot in the text format.
+    SnapshotWriter ss1 = store.openNewSnapshotWriter();
+    writeRecords(ss1, "12345");
+    store.close(null, ss1);
+
+    store = new SnapshotStore(snapshotDir, new MockDocumentSnapshotFactory(),
+        1000, 0L, SnapshotFormat.BINARY_COMPRESSED);
+    SnapshotReader reader = store.openMostRecentSnapshot();
+    assertEquals(1, reader.getSnapshotNumber());
+    SnapshotWriter ss2 = store.openNewSnapshotWriter();
+    for (DocumentSnapshot rec = reader.read(); rec != null;
+         rec = reader.read()) {
+      ss2.write(new MockDocumentSnapshot(
+          rec.getDocumentId().replace("12345", "23456"), "extra.k"));
+    }
+    store.close(reader, ss2);
+    assertTrue(new File(snapshotDir, "snap.2").length()
+               < new File(snapshotDir, "snap.1").length());
+
+    MonitorCheckpoint cp = new MonitorCheckpoint("foo", 1, 7, 7);
+    SnapshotStore.stitch(snapshotDir, cp, new MockDocumentSnapshotFactory(),
+        SnapshotFormat.BINARY);
+    SnapshotStore after = new SnapshotStore(snapshotDir,
+        new MockDocumentSnapshotFactory());
+    reader = after.openMostRecentSnapshot();
+    assertEquals(3, reader.getSnapshotNumber());
+    for (int k = 0; k < 100; ++k) {
+      DocumentSnapshot rec = reader.read();
+      assertNotNull(rec);
+      String suffix = (k < 7) ? "23456" : "12345";
+      assertTrue(rec.getDocumentId().endsWith(suffix));
+    }
+    assertNull(reader.read());
+    after.close(reader, null);
+  }
+
   public void testStitchWithInterrupt() throws Exception {
     // Create the first snapshot with modification time 12345.
     SnapshotWriter ss1 = store.openNewSnapshotWriter();
@@ -145,4 +145,69 @@ public class SnapshotWriterTest extends TestCase {
     }
     assertEquals(100, writer.getRecordCount());
   }
+
+  public void testGroupCommitRecords() throws SnapshotStoreException {
+    writer = new SnapshotWriter(sw, null, "string", 10, 0L);
+    for (int k = 0; k < 25; ++k) {
+      writer.write(new MockDocumentSnapshot(Integer.toString(k), "extra." + k));
+      assertEquals(k + 1, writer.getRecordCount());
+      assertEquals(((k + 1) / 10) * 10, writer.getSyncedRecordCount());
+    }
+    assertEquals(20, countRecords(sw.toString()));
+    assertFalse(writer.isSyncDue());
+
+    writer.sync();
+    assertEquals(25, writer.getSyncedRecordCount());
+    assertEquals(25, countRecords(sw.toString()));
+    writer.close();
+  }
+
+  public void testGroupCommitMillis() throws Exception {
+    writer = new SnapshotWriter(sw, null, "string", Integer.MAX_VALUE, 10L);
+    writer.write(new MockDocumentSnapshot("0", "extra.0"));
+    Thread.sleep(50L);
+    assertTrue(writer.isSyncDue());
+    writer.write(new MockDocumentSnapshot("1", "extra.1"));
+    assertEquals(2, writer.getSyncedRecordCount());
+    assertFalse(writer.isSyncDue());
+    writer.close();
+  }
+
+  public void testCloseSyncs() throws SnapshotStoreException {
+    writer = new SnapshotWriter(sw, null, "string", Integer.MAX_VALUE, 0L);
+    for (int k = 0; k < 5; ++k) {
+      writer.write(new MockDocumentSnapshot(Integer.toString(k), "extra." + k));
+    }
+    assertEquals(0, writer.getSyncedRecordCount());
+    writer.close();
+    assertEquals(5, writer.getSyncedRecordCount());
+    assertEquals(5, countRecords(sw.toString()));
+  }
+
+  public void testIllegalSyncInterval() throws SnapshotStoreException {
+    try {
+      new SnapshotWriter(sw, null, "string", 0, 0L);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+    try {
+      new SnapshotWriter(sw, null, "string", 1, -1L);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+
+  private static int countRecords(String snapshot)
+      throws SnapshotStoreException {
+    SnapshotReader reader =
+        new SnapshotReader(new BufferedReader(new StringReader(snapshot)),
+            "test", 1, new MockDocumentSnapshotFactory());
+    int count = 0;
+    while (reader.read() != null) {
+      count++;
+    }
+    return count;
+  }
 }
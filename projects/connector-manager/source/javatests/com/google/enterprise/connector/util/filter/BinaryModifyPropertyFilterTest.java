@@ -122,4 +122,34 @@ public class BinaryModifyPropertyFilterTest extends ModifyPropertyFilterTest{
         Collections.singleton(PROP1), PATTERN, true);
     checkDocument(filter, createProperties(false));
   }
+
+  /** Test that binary values are modified as they are read. */
+  public void testStreamingFilter() throws Exception {
+    ModifyPropertyFilter factory =
+        createBasicFilter(Collections.singleton(PROP3), PATTERN, true);
+    factory.setMaxMatchLength(10);
+    Map<String, List<Value>> expectedProps = createProperties();
+    expectedProps.put(PROP3, valueList(CLEAN_STRING, EXTRA_STRING));
+    checkDocument(factory.newDocumentFilter(createDocument()), expectedProps);
+  }
+
+  /** Test that the streaming filter is not used to augment values. */
+  public void testStreamingFilterNoOverwrite() throws Exception {
+    ModifyPropertyFilter factory =
+        createBasicFilter(Collections.singleton(PROP3), PATTERN, false);
+    factory.setMaxMatchLength(10);
+    Map<String, List<Value>> expectedProps = createProperties();
+    expectedProps.put(PROP3, valueList(TEST_STRING, CLEAN_STRING, EXTRA_STRING));
+    checkDocument(factory.newDocumentFilter(createDocument()), expectedProps);
+  }
+
+  public void testIllegalMaxMatchLength() throws Exception {
+    ModifyPropertyFilter factory = new ModifyPropertyFilter();
+    try {
+      factory.setMaxMatchLength(-1);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
 }
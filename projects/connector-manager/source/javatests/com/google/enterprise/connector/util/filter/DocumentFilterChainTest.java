@@ -15,11 +15,16 @@
 package com.google.enterprise.connector.util.filter;
 
 import com.google.enterprise.connector.spi.Document;
+import com.google.enterprise.connector.spi.Property;
+import com.google.enterprise.connector.spi.RepositoryException;
+import com.google.enterprise.connector.spi.SimpleDocument;
+import com.google.enterprise.connector.spi.SpiConstants;
 import com.google.enterprise.connector.spi.Value;
 
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Tests DocumentFilterChain.
@@ -83,4 +88,84 @@ public class DocumentFilterChainTest extends DocumentFilterTest {
         newFactory(PROP1, "foobar", SPACE), newFactory(PROP3, "xyzzy", SPACE)));
     checkDocument(chain.newDocumentFilter(createDocument()), createProperties());
   }
+
+  /** A filter that counts the lookups that reach it. */
+  private static class CountingFilter extends AbstractDocumentFilter {
+    int findCount = 0;
+    int namesCount = 0;
+
+    @Override
+    public Property findProperty(Document source, String name)
+        throws RepositoryException {
+      findCount++;
+      return source.findProperty(name);
+    }
+
+    @Override
+    public Set<String> getPropertyNames(Document source)
+        throws RepositoryException {
+      namesCount++;
+      return source.getPropertyNames();
+    }
+  }
+
+  /** Test that each property is evaluated by the filters only once. */
+  public void testPropertiesEvaluatedOnce() throws Exception {
+    CountingFilter counter = new CountingFilter();
+    DocumentFilterChain chain = new DocumentFilterChain(factoryList(
+        counter, newFactory(PROP1, PATTERN, SPACE)));
+    Map<String, List<Value>> expectedProps = createProperties();
+    expectedProps.put(PROP1, valueList(TEST_STRING, CLEAN_STRING));
+    Document document = chain.newDocumentFilter(createDocument());
+    checkDocument(document, expectedProps);
+    checkDocument(document, expectedProps);
+    assertEquals(expectedProps.size(), counter.findCount);
+    assertEquals(1, counter.namesCount);
+
+    // Missing properties are remembered as well.
+    assertNull(document.findProperty("nonexistent"));
+    assertNull(document.findProperty("nonexistent"));
+    assertEquals(expectedProps.size() + 1, counter.findCount);
+  }
+
+  /** Test that binary values are fetched through the filters every time. */
+  public void testBinaryValuesNotCached() throws Exception {
+    CountingFilter counter = new CountingFilter();
+    DocumentFilterChain chain = new DocumentFilterChain(factoryList(counter));
+    Map<String, List<Value>> props = createProperties();
+    Value binary = Value.getBinaryValue("content".getBytes("UTF-8"));
+    List<Value> content = new LinkedList<Value>();
+    content.add(binary);
+    props.put(SpiConstants.PROPNAME_CONTENT, content);
+    props.put(PROP7, content);
+    Document document = chain.newDocumentFilter(new SimpleDocument(props));
+
+    for (String name : new String[] { SpiConstants.PROPNAME_CONTENT, PROP7 }) {
+      int count = counter.findCount;
+      for (int i = 0; i < 2; i++) {
+        Property prop = document.findProperty(name);
+        assertSame(binary, prop.nextValue());
+        assertNull(prop.nextValue());
+      }
+      assertTrue(counter.findCount - count >= 2);
+    }
+    assertEquals("content", getStringFromBinaryValue(binary));
+  }
+
+  /** Test that nested chains cache the properties only at the head. */
+  public void testNestedChains() throws Exception {
+    CountingFilter counter = new CountingFilter();
+    DocumentFilterChain inner = new DocumentFilterChain(factoryList(
+        counter, newFactory(PROP1, PATTERN, SPACE)));
+    DocumentFilterChain chain = new DocumentFilterChain(factoryList(
+        inner, newFactory(PROP3, PATTERN, SPACE)));
+    Map<String, List<Value>> expectedProps = createProperties();
+    expectedProps.put(PROP1, valueList(TEST_STRING, CLEAN_STRING));
+    expectedProps.put(PROP3, valueList(TEST_STRING, CLEAN_STRING, EXTRA_STRING));
+    Document document = chain.newDocumentFilter(createDocument());
+    assertTrue(document instanceof MemoizedDocument);
+    checkDocument(document, expectedProps);
+    checkDocument(document, expectedProps);
+    assertEquals(expectedProps.size(), counter.findCount);
+  }
 }
@@ -0,0 +1,206 @@
+// Copyright 2013 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.google.enterprise.connector.util.filter;
+
+import com.google.common.io.ByteStreams;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Tests {@link RegexReplacingInputStream}.
+ */
+public class RegexReplacingInputStreamTest extends TestCase {
+
+  /** Returns a long string, with many matches spanning chunk boundaries. */
+  private static String createString() {
+    StringBuilder builder = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      builder.append("The_.quick_brown_fox é中𝄞 ");
+      builder.append(i).append('\n');
+    }
+    return builder.toString();
+  }
+
+  private static String replace(String original, String regex,
+      String replacement, int maxMatchLength) throws Exception {
+    InputStream in = new RegexReplacingInputStream(
+        new ByteArrayInputStream(original.getBytes("UTF-8")), "UTF-8",
+        Pattern.compile(regex), replacement, maxMatchLength);
+    try {
+      return new String(ByteStreams.toByteArray(in), "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void checkReplace(String original, String regex,
+      String replacement, int maxMatchLength) throws Exception {
+    assertEquals(original.replaceAll(regex, replacement),
+        replace(original, regex, replacement, maxMatchLength));
+  }
+
+  public void testEmpty() throws Exception {
+    checkReplace("", "[_.]+", " ", 10);
+  }
+
+  public void testNoMatch() throws Exception {
+    checkReplace(createString(), "xyzzy", " ", 10);
+  }
+
+  public void testReplace() throws Exception {
+    checkReplace(createString(), "[_.]+", " ", 10);
+  }
+
+  public void testReplaceGroups() throws Exception {
+    checkReplace(createString(), "(quick)_(brown)", "$2 \\$$1", 20);
+  }
+
+  public void testReplaceMultiByte() throws Exception {
+    checkReplace(createString(), "中𝄞", "ü", 10);
+  }
+
+  public void testAnchors() throws Exception {
+    checkReplace(createString(), "(?m)^The|\\d+$", "#", 10);
+  }
+
+  public void testLookBehind() throws Exception {
+    checkReplace(createString(), "(?<=fox )é", "e", 10);
+  }
+
+  /** Tests that bytes that cannot be decoded are passed through. */
+  public void testUndecodableNoMatch() throws Exception {
+    byte[] original = new byte[3 * 8192];
+    for (int i = 0; i < original.length; i++) {
+      original[i] = (byte) (i * 7);
+    }
+    InputStream in = new RegexReplacingInputStream(
+        new ByteArrayInputStream(original), "UTF-8",
+        Pattern.compile("xyzzy"), " ", 10);
+    try {
+      assertTrue(Arrays.equals(original, ByteStreams.toByteArray(in)));
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Tests that matches before undecodable bytes are still replaced. */
+  public void testUndecodableAfterMatch() throws Exception {
+    String text = createString();
+    byte[] head = text.getBytes("UTF-8");
+    byte[] tail = { (byte) 0xff, 'a', '.', 'b', (byte) 0xc3 };
+    byte[] original = new byte[head.length + tail.length];
+    System.arraycopy(head, 0, original, 0, head.length);
+    System.arraycopy(tail, 0, original, head.length, tail.length);
+    InputStream in = new RegexReplacingInputStream(
+        new ByteArrayInputStream(original), "UTF-8",
+        Pattern.compile("[_.]+"), " ", 10);
+    byte[] modified;
+    try {
+      modified = ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+
+    // The start of the source is modified, and the source around the
+    // bad byte is passed through.
+    String prefix = "The quick brown fox";
+    assertEquals(prefix,
+        new String(modified, 0, prefix.length(), "UTF-8"));
+    byte[] suffix = Arrays.copyOfRange(original, original.length - 100,
+        original.length);
+    assertTrue(Arrays.equals(suffix, Arrays.copyOfRange(modified,
+        modified.length - suffix.length, modified.length)));
+  }
+
+  private static byte[] replaceBytes(byte[] original, String encoding,
+      String regex, String replacement) throws Exception {
+    InputStream in = new RegexReplacingInputStream(
+        new ByteArrayInputStream(original), encoding,
+        Pattern.compile(regex), replacement, 10);
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Tests that the byte order mark is kept, and not repeated. */
+  public void testUtf16() throws Exception {
+    String original = createString();
+    String expected = original.replaceAll("[_.]+", " ");
+    // Java writes a big-endian byte order mark.
+    assertTrue(Arrays.equals(expected.getBytes("UTF-16"),
+        replaceBytes(original.getBytes("UTF-16"), "UTF-16", "[_.]+", " ")));
+  }
+
+  public void testUtf16LittleEndian() throws Exception {
+    String original = "\ufeff" + createString();
+    String expected = original.replaceAll("[_.]+", " ");
+    assertTrue(Arrays.equals(expected.getBytes("UTF-16LE"),
+        replaceBytes(original.getBytes("UTF-16LE"), "UTF-16", "[_.]+", " ")));
+  }
+
+  public void testUtf16ReplaceFirst() throws Exception {
+    assertTrue(Arrays.equals("xbc".getBytes("UTF-16"),
+        replaceBytes("abc".getBytes("UTF-16"), "UTF-16", "^a", "x")));
+  }
+
+  public void testUtf16NoByteOrderMark() throws Exception {
+    assertTrue(Arrays.equals("a b".getBytes("UTF-16BE"),
+        replaceBytes("a.b".getBytes("UTF-16BE"), "UTF-16", "[.]", " ")));
+  }
+
+  public void testStatefulEncoding() throws Exception {
+    assertTrue(RegexReplacingInputStream.isSupported("UTF-8"));
+    assertTrue(RegexReplacingInputStream.isSupported("UTF-16"));
+    assertTrue(RegexReplacingInputStream.isSupported("ISO-8859-1"));
+    assertFalse(RegexReplacingInputStream.isSupported("ISO-2022-JP"));
+    assertFalse(RegexReplacingInputStream.isSupported("no-such-encoding"));
+    try {
+      replaceBytes(new byte[0], "ISO-2022-JP", "x", "");
+      fail("Expected UnsupportedEncodingException");
+    } catch (UnsupportedEncodingException expected) {
+      // Expected.
+    }
+  }
+
+  public void testSingleByteReads() throws Exception {
+    InputStream in = new RegexReplacingInputStream(
+        new ByteArrayInputStream("a.b_c".getBytes("UTF-8")), "UTF-8",
+        Pattern.compile("[_.]"), "", 1);
+    assertEquals('a', in.read());
+    assertEquals('b', in.read());
+    assertEquals('c', in.read());
+    assertEquals(-1, in.read());
+    assertEquals(-1, in.read());
+  }
+
+  public void testIllegalMaxMatchLength() throws Exception {
+    try {
+      new RegexReplacingInputStream(new ByteArrayInputStream(new byte[0]),
+          "UTF-8", Pattern.compile("x"), "", 0);
+      fail("Expected IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected.
+    }
+  }
+}
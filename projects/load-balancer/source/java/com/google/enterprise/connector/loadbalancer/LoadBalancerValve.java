@@ -14,27 +14,53 @@
 
 package com.google.enterprise.connector.loadbalancer;
 
-import org.apache.catalina.Valve;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.valves.ValveBase;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 
 /**
- * A Tomcat Valve that does round-robin load balancing to the
- * configured Connector Manager web applications.
+ * A Tomcat Valve that does load balancing to the configured Connector
+ * Manager web applications.
+ * <p>
+ * In the default {@code round-robin} mode, requests are distributed to
+ * the workers in turn.  In {@code connector} mode, requests that name a
+ * connector in their {@code ConnectorName} query parameter are always
+ * sent to the same worker, chosen by consistent hashing of the connector
+ * name, so that worker keeps the connector instance and its caches warm.
+ * Requests that do not name a connector are sent to the worker with the
+ * fewest outstanding requests.
  */
 public class LoadBalancerValve extends ValveBase {
 
+  /** Balancing mode that distributes requests to the workers in turn. */
+  public static final String ROUND_ROBIN = "round-robin";
+
+  /** Balancing mode that keeps each connector on a single worker. */
+  public static final String CONNECTOR = "connector";
+
+  /** The query parameter that names the connector. */
+  private static final String CONNECTOR_NAME_PARAM = "ConnectorName=";
+
+  /** The number of points on the hash ring for each worker. */
+  private static final int POINTS_PER_WORKER = 100;
+
   protected String manager = "/connector-manager";
-  protected String[] workers = {"/connector-manager-1", "/connector-manager-2"};
-  protected volatile int workerIndex = 0;
+  protected volatile String balance = ROUND_ROBIN;
+  protected volatile Workers workers = new Workers(
+      new String[] {"/connector-manager-1", "/connector-manager-2"});
 
   /**
    * Sets the Connector Manager to proxy.  Requests to this connector manager
@@ -59,15 +85,46 @@ public class LoadBalancerValve extends ValveBase {
     if (workers == null || workers.length() == 0) {
       throw new IllegalArgumentException("workers must not be null or empty");
     }
-    this.workers = workers.split("\\s*,\\s*");
-    this.workerIndex = 0;
+    this.workers = new Workers(workers.trim().split("\\s*,\\s*"));
+  }
+
+  /**
+   * Sets the balancing mode.
+   *
+   * @param balance either "round-robin", to distribute requests to the
+   *        workers in turn, or "connector", to send all the requests for
+   *        a connector to the same worker (default "round-robin")
+   */
+  public void setBalance(String balance) {
+    if (ROUND_ROBIN.equalsIgnoreCase(balance)) {
+      this.balance = ROUND_ROBIN;
+    } else if (CONNECTOR.equalsIgnoreCase(balance)) {
+      this.balance = CONNECTOR;
+    } else {
+      throw new IllegalArgumentException("balance must be \"" + ROUND_ROBIN
+          + "\" or \"" + CONNECTOR + "\"");
+    }
+  }
+
+  public String getBalance() {
+    return balance;
+  }
+
+  /**
+   * Returns the request statistics for each worker: the number of
+   * requests forwarded and outstanding, and the average and maximum
+   * time taken to process a request, in milliseconds.
+   */
+  public String getWorkerStatistics() {
+    return Arrays.toString(workers.workers);
   }
 
   /** Return descriptive information about this Valve implementation. */
   @Override
   public String getInfo() {
     return "Google Connector Manager Load Balancing Valve - distribute "
-      + manager + " requests to " + Arrays.toString(workers);
+      + manager + " requests to " + Arrays.toString(workers.contextPaths)
+      + " by " + balance;
   }
 
   /**
@@ -89,23 +146,186 @@ public class LoadBalancerValve extends ValveBase {
         servletPath = manager + "/";
       }
       if (servletPath.startsWith(manager + "/")) {
-        String newContextPath = (workers[workerIndex].charAt(0) == '/')
-                                ? workers[workerIndex]
-                                : ("/" + workers[workerIndex]);
-        if (++workerIndex == workers.length) {
-          workerIndex = 0;
-        }
+        Worker worker = selectWorker(request);
         String newServletPath = servletPath.substring(manager.length());
-        containerLog.info("BalancerValve redirecting to: " + newContextPath
-                          + newServletPath);
-        ServletContext workerContext =
-            request.getContext().getServletContext().getContext(newContextPath);
+        if (containerLog.isDebugEnabled()) {
+          containerLog.debug("BalancerValve redirecting to: "
+                             + worker.contextPath + newServletPath);
+        }
+        ServletContext workerContext = request.getContext().getServletContext()
+            .getContext(worker.contextPath);
         RequestDispatcher workerDispatcher =
             workerContext.getRequestDispatcher(newServletPath);
-        workerDispatcher.forward(request, response);
+        long startMillis = worker.start();
+        try {
+          workerDispatcher.forward(request, response);
+        } finally {
+          worker.finish(startMillis);
+        }
         return;
       }
     }
     getNext().invoke(request, response);
   }
+
+  /**
+   * Selects the worker for a request according to the balancing mode.
+   */
+  private Worker selectWorker(Request request) {
+    Workers current = workers;
+    if (CONNECTOR.equals(balance)) {
+      String connectorName = getConnectorName(request.getQueryString());
+      return (connectorName == null)
+          ? current.leastOutstanding() : current.forConnector(connectorName);
+    } else {
+      return current.next();
+    }
+  }
+
+  /**
+   * Returns the value of the {@code ConnectorName} parameter in the
+   * query string, or {@code null} if there is none.  Only the query
+   * string is examined, because parsing the parameters of a POST would
+   * consume the body before the worker sees it.
+   */
+  static String getConnectorName(String queryString) {
+    if (queryString == null) {
+      return null;
+    }
+    int start = 0;
+    while (start < queryString.length()) {
+      int end = queryString.indexOf('&', start);
+      if (end < 0) {
+        end = queryString.length();
+      }
+      if (queryString.startsWith(CONNECTOR_NAME_PARAM, start)) {
+        String value = queryString.substring(
+            start + CONNECTOR_NAME_PARAM.length(), end);
+        try {
+          value = URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+          throw new AssertionError(e);
+        } catch (IllegalArgumentException e) {
+          // Malformed escapes; hash the raw value.
+        }
+        return (value.length() == 0) ? null : value;
+      }
+      start = end + 1;
+    }
+    return null;
+  }
+
+  /**
+   * Mixes the bits of a hash code, so that similar strings are spread
+   * evenly around the hash ring.
+   */
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /**
+   * An immutable set of workers, with the hash ring used to assign
+   * connectors to them.  It is replaced as a whole when the workers
+   * are reconfigured.
+   */
+  private static class Workers {
+    final String[] contextPaths;
+    final Worker[] workers;
+    final TreeMap<Integer, Worker> ring = new TreeMap<Integer, Worker>();
+    final AtomicInteger nextIndex = new AtomicInteger();
+
+    Workers(String[] names) {
+      contextPaths = new String[names.length];
+      workers = new Worker[names.length];
+      for (int i = 0; i < names.length; i++) {
+        String name = names[i];
+        contextPaths[i] = (name.charAt(0) == '/') ? name : ("/" + name);
+        workers[i] = new Worker(contextPaths[i]);
+        for (int point = 0; point < POINTS_PER_WORKER; point++) {
+          ring.put(mix((workers[i].contextPath + "#" + point).hashCode()),
+                   workers[i]);
+        }
+      }
+    }
+
+    /** Returns the next worker in turn. */
+    Worker next() {
+      int index = (nextIndex.getAndIncrement() & Integer.MAX_VALUE);
+      return workers[index % workers.length];
+    }
+
+    /**
+     * Returns the worker with the fewest outstanding requests.  Ties are
+     * broken in turn, so idle workers share the load.
+     */
+    Worker leastOutstanding() {
+      int start = (nextIndex.getAndIncrement() & Integer.MAX_VALUE);
+      Worker best = null;
+      int bestOutstanding = Integer.MAX_VALUE;
+      for (int i = 0; i < workers.length; i++) {
+        Worker worker = workers[(start + i) % workers.length];
+        int outstanding = worker.outstanding.get();
+        if (outstanding < bestOutstanding) {
+          best = worker;
+          bestOutstanding = outstanding;
+        }
+      }
+      return best;
+    }
+
+    /** Returns the worker that hosts the named connector. */
+    Worker forConnector(String connectorName) {
+      Map.Entry<Integer, Worker> entry =
+          ring.ceilingEntry(mix(connectorName.hashCode()));
+      return (entry == null) ? ring.firstEntry().getValue() : entry.getValue();
+    }
+  }
+
+  /** A worker web application, with its request statistics. */
+  private static class Worker {
+    final String contextPath;
+    final AtomicInteger outstanding = new AtomicInteger();
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong totalMillis = new AtomicLong();
+    final AtomicLong maxMillis = new AtomicLong();
+
+    Worker(String contextPath) {
+      this.contextPath = contextPath;
+    }
+
+    /** Records the start of a request, returning the start time. */
+    long start() {
+      outstanding.incrementAndGet();
+      return System.currentTimeMillis();
+    }
+
+    /** Records the end of a request. */
+    void finish(long startMillis) {
+      long millis = System.currentTimeMillis() - startMillis;
+      outstanding.decrementAndGet();
+      requests.incrementAndGet();
+      totalMillis.addAndGet(millis);
+      long max;
+      while (millis > (max = maxMillis.get())) {
+        if (maxMillis.compareAndSet(max, millis)) {
+          break;
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      long count = requests.get();
+      long averageMillis = (count == 0) ? 0 : totalMillis.get() / count;
+      return contextPath + ": requests = " + count
+          + ", outstanding = " + outstanding.get()
+          + ", averageMillis = " + averageMillis
+          + ", maxMillis = " + maxMillis.get();
+    }
+  }
 }